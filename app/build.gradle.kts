@@ -76,6 +76,10 @@ android {
     buildFeatures {
         viewBinding = true
     }
+    testOptions {
+        // Shield classes log through android.util.Log; let JVM unit tests run past it.
+        unitTests.isReturnDefaultValues = true
+    }
     packaging {
         resources {
             excludes += "org/bouncycastle/x509/CertPathReviewerMessages_de.properties"
@@ -41,6 +41,7 @@ import com.example.nexus.services.ShieldVpnService;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -68,9 +69,16 @@ public class UserMainActivity extends AppCompatActivity implements AdbPairingLis
         @Override
         public void onReceive(Context context, Intent intent) {
             if (ShieldVpnService.ACTION_VPN_BLOCK.equals(intent.getAction())) {
-                String domain = intent.getStringExtra(ShieldVpnService.EXTRA_BLOCKED_DOMAIN);
-                if (domain != null && webView != null) {
-                    webView.evaluateJavascript("if(window.onShieldBlock) window.onShieldBlock('" + domain + "');", null);
+                ArrayList<String> domains = intent.getStringArrayListExtra(ShieldVpnService.EXTRA_BLOCKED_DOMAINS);
+                if (domains != null && !domains.isEmpty() && webView != null) {
+                    // One evaluateJavascript per batch, not per domain.
+                    StringBuilder js = new StringBuilder("if(window.onShieldBlock){");
+                    for (String domain : domains) {
+                        // Names come straight off the wire; never splice anything but host characters into JS.
+                        if (!domain.matches("[A-Za-z0-9._-]+")) continue;
+                        js.append("window.onShieldBlock('").append(domain).append("');");
+                    }
+                    webView.evaluateJavascript(js.append('}').toString(), null);
                 }
             }
         }
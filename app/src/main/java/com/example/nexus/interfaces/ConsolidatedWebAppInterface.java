@@ -46,6 +46,19 @@ public class ConsolidatedWebAppInterface {
     @JavascriptInterface public void startVpn() { shield.startVpn(); }
     @JavascriptInterface public void stopVpn() { shield.stopVpn(); }
     @JavascriptInterface public boolean getVpnStatus() { return shield.getVpnStatus(); }
+    @JavascriptInterface public String getResolverStats() { return shield.getResolverStats(); }
+    @JavascriptInterface public void setAllowedResolvers(String csv) { shield.setAllowedResolvers(csv); }
+    @JavascriptInterface public String getAppStats() { return shield.getAppStats(); }
+    @JavascriptInterface public String getTopDomains(String w, int n) { return shield.getTopDomains(w, n); }
+    @JavascriptInterface public String getRuleStats() { return shield.getRuleStats(); }
+    @JavascriptInterface public void setBlockRules(String text) { shield.setBlockRules(text); }
+    @JavascriptInterface public void reloadRules() { shield.reloadRules(); }
+    @JavascriptInterface public void rollbackRules() { shield.rollbackRules(); }
+    @JavascriptInterface public void setIpBlockEnabled(boolean on) { shield.setIpBlockEnabled(on); }
+    @JavascriptInterface public void setBlockedRanges(String text) { shield.setBlockedRanges(text); }
+    @JavascriptInterface public void setIncludedApps(String csv) { shield.setIncludedApps(csv); }
+    @JavascriptInterface public void setExcludedApps(String csv) { shield.setExcludedApps(csv); }
+    @JavascriptInterface public String getSplitTunnelApps() { return shield.getSplitTunnelApps(); }
     @JavascriptInterface public void executeCommand(String a, String p, int u) { executeCommandInternal(a, p, u); }
 
     // --- NEW: Shizuku-Style Notification Mode ---
@@ -1,6 +1,8 @@
 package com.example.nexus.interfaces;
 
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.net.VpnService;
 import android.os.Build;
 import android.webkit.JavascriptInterface;
@@ -10,6 +12,13 @@ import androidx.appcompat.app.AppCompatActivity;
 import com.example.nexus.UserMainActivity;
 import com.example.nexus.services.ShieldVpnService;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashSet;
+import java.util.Set;
+
 public class ShieldInterface {
     private final CommonInterface mCommon;
     private final AppCompatActivity mActivity;
@@ -44,6 +53,171 @@ public class ShieldInterface {
         return ShieldVpnService.IS_RUNNING;
     }
 
+    @JavascriptInterface
+    public String getResolverStats() {
+        return ShieldVpnService.getResolverStats();
+    }
+
+    /**
+     * Comma-separated DnsProfile names that may carry queries. An empty string
+     * goes back to the default: the active profile and those that filter alike.
+     */
+    @JavascriptInterface
+    public void setAllowedResolvers(String csv) {
+        try {
+            Set<String> allowed = new HashSet<>();
+            for (String name : (csv == null ? "" : csv).split(",")) {
+                if (!name.trim().isEmpty()) allowed.add(name.trim());
+            }
+            mCommon.mContext.getSharedPreferences(ShieldVpnService.PREFS_NAME, Context.MODE_PRIVATE)
+                    .edit()
+                    .putStringSet(ShieldVpnService.PREF_ALLOWED_RESOLVERS, allowed)
+                    .apply();
+            if (ShieldVpnService.IS_RUNNING) {
+                Intent intent = new Intent(mCommon.mContext, ShieldVpnService.class);
+                intent.setAction(ShieldVpnService.ACTION_UPDATE_RESOLVERS);
+                mCommon.mContext.startService(intent);
+            }
+        } catch (Exception e) {}
+    }
+
+    /** Per-app query and block totals plus the busiest domains, as JSON. */
+    @JavascriptInterface
+    public String getAppStats() {
+        return ShieldVpnService.getAppStats();
+    }
+
+    /** Most-queried and most-blocked domains over window "1m", "1h" or "24h". */
+    @JavascriptInterface
+    public String getTopDomains(String window, int limit) {
+        return ShieldVpnService.getTopDomains(window, limit);
+    }
+
+    @JavascriptInterface
+    public String getRuleStats() {
+        return ShieldVpnService.getRuleStats();
+    }
+
+    /**
+     * Block and allow rules, one per line or comma-separated, e.g.
+     * "analytics, @@||analytics.ourcompany.com^". An empty string goes back to
+     * the built-in keyword list.
+     */
+    @JavascriptInterface
+    public void setBlockRules(String text) {
+        try {
+            Set<String> rules = new HashSet<>();
+            for (String rule : (text == null ? "" : text).split("[,\\n]")) {
+                if (!rule.trim().isEmpty()) rules.add(rule.trim());
+            }
+            SharedPreferences.Editor editor = mCommon.mContext
+                    .getSharedPreferences(ShieldVpnService.PREFS_NAME, Context.MODE_PRIVATE).edit();
+            if (rules.isEmpty()) {
+                editor.remove(ShieldVpnService.PREF_BLOCK_RULES);
+            } else {
+                editor.putStringSet(ShieldVpnService.PREF_BLOCK_RULES, rules);
+            }
+            editor.apply();
+            reloadRules();
+        } catch (Exception e) {}
+    }
+
+    /**
+     * IP-block mode routes the configured CIDR ranges into the tunnel and
+     * refuses connections to them. Routes are fixed per tunnel, so a running
+     * Shield rebuilds its tunnel to pick up changes.
+     */
+    @JavascriptInterface
+    public void setIpBlockEnabled(boolean enabled) {
+        try {
+            mCommon.mContext.getSharedPreferences(ShieldVpnService.PREFS_NAME, Context.MODE_PRIVATE)
+                    .edit()
+                    .putBoolean(ShieldVpnService.PREF_IP_BLOCK, enabled)
+                    .apply();
+            sendServiceAction(ShieldVpnService.ACTION_REBUILD_TUNNEL);
+        } catch (Exception e) {}
+    }
+
+    /** CIDR ranges, one per line or comma-separated, e.g. "203.0.113.0/24, 2001:db8::/32, @@203.0.113.7". */
+    @JavascriptInterface
+    public void setBlockedRanges(String text) {
+        try {
+            Set<String> ranges = new HashSet<>();
+            for (String range : (text == null ? "" : text).split("[,\\n]")) {
+                if (!range.trim().isEmpty()) ranges.add(range.trim());
+            }
+            mCommon.mContext.getSharedPreferences(ShieldVpnService.PREFS_NAME, Context.MODE_PRIVATE)
+                    .edit()
+                    .putStringSet(ShieldVpnService.PREF_BLOCKED_RANGES, ranges)
+                    .apply();
+            sendServiceAction(ShieldVpnService.ACTION_REBUILD_TUNNEL);
+        } catch (Exception e) {}
+    }
+
+    /**
+     * Package names, comma-separated, that are the only apps sent through the
+     * Shield. Non-empty, it takes precedence over the exclude list.
+     */
+    @JavascriptInterface
+    public void setIncludedApps(String csv) {
+        saveAppList(ShieldVpnService.PREF_INCLUDED_APPS, csv);
+    }
+
+    /** Package names, comma-separated, that bypass the Shield, e.g. VoIP and line-of-business apps. */
+    @JavascriptInterface
+    public void setExcludedApps(String csv) {
+        saveAppList(ShieldVpnService.PREF_EXCLUDED_APPS, csv);
+    }
+
+    /** {"included": [...], "excluded": [...]} */
+    @JavascriptInterface
+    public String getSplitTunnelApps() {
+        SharedPreferences prefs = mCommon.mContext
+                .getSharedPreferences(ShieldVpnService.PREFS_NAME, Context.MODE_PRIVATE);
+        try {
+            JSONObject o = new JSONObject();
+            o.put("included", new JSONArray(prefs.getStringSet(ShieldVpnService.PREF_INCLUDED_APPS, new HashSet<>())));
+            o.put("excluded", new JSONArray(prefs.getStringSet(ShieldVpnService.PREF_EXCLUDED_APPS, new HashSet<>())));
+            return o.toString();
+        } catch (JSONException e) {
+            return "{}";
+        }
+    }
+
+    private void saveAppList(String key, String csv) {
+        try {
+            Set<String> apps = new HashSet<>();
+            for (String pkg : (csv == null ? "" : csv).split(",")) {
+                if (!pkg.trim().isEmpty()) apps.add(pkg.trim());
+            }
+            mCommon.mContext.getSharedPreferences(ShieldVpnService.PREFS_NAME, Context.MODE_PRIVATE)
+                    .edit()
+                    .putStringSet(key, apps)
+                    .apply();
+            sendServiceAction(ShieldVpnService.ACTION_REBUILD_TUNNEL);
+        } catch (Exception e) {}
+    }
+
+    /** Recompiles the rules and the hosts-file index; the tunnel keeps running on the old rules meanwhile. */
+    @JavascriptInterface
+    public void reloadRules() {
+        sendServiceAction(ShieldVpnService.ACTION_RELOAD_RULES);
+    }
+
+    @JavascriptInterface
+    public void rollbackRules() {
+        sendServiceAction(ShieldVpnService.ACTION_ROLLBACK_RULES);
+    }
+
+    private void sendServiceAction(String action) {
+        if (!ShieldVpnService.IS_RUNNING) return; // picked up on the next start anyway
+        try {
+            Intent intent = new Intent(mCommon.mContext, ShieldVpnService.class);
+            intent.setAction(action);
+            mCommon.mContext.startService(intent);
+        } catch (Exception e) {}
+    }
+
     public void startShieldServiceInternal() {
         try {
             Intent intent = new Intent(mCommon.mContext, ShieldVpnService.class);
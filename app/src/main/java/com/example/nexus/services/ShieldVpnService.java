@@ -5,7 +5,10 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
+import android.net.ConnectivityManager;
 import android.net.VpnService;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
@@ -13,20 +16,47 @@ import android.util.Log;
 
 import com.example.nexus.R;
 import com.example.nexus.UserMainActivity;
-
+import com.example.nexus.services.shield.AdmissionControl;
+import com.example.nexus.services.shield.AppAttribution;
+import com.example.nexus.services.shield.BlockResponse;
+import com.example.nexus.services.shield.DnsTransport;
+import com.example.nexus.services.shield.DnsWire;
+import com.example.nexus.services.shield.DnsCache;
+import com.example.nexus.services.shield.DomainIndex;
+import com.example.nexus.services.shield.DomainTrends;
+import com.example.nexus.services.shield.InflightQueries;
+import com.example.nexus.services.shield.Packet;
+import com.example.nexus.services.shield.PacketCodec;
+import com.example.nexus.services.shield.PacketPool;
+import com.example.nexus.services.shield.PrefixTrie;
+import com.example.nexus.services.shield.RuleStore;
+import com.example.nexus.services.shield.ShieldTelemetry;
+import com.example.nexus.services.shield.SplitTunnel;
+import com.example.nexus.services.shield.TcpDnsFlows;
+import com.example.nexus.services.shield.TunWriter;
+import com.example.nexus.services.shield.UpstreamManager;
+
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ShieldVpnService extends VpnService {
 
@@ -38,36 +68,163 @@ public class ShieldVpnService extends VpnService {
 
     public static final String EXTRA_IS_RUNNING = "isRunning";
     public static final String EXTRA_BLOCKED_COUNT = "blockedCount";
-    public static final String EXTRA_BLOCKED_DOMAIN = "blockedDomain"; // NEW
+    public static final String EXTRA_BLOCKED_DOMAINS = "blockedDomains";
+    public static final String EXTRA_CACHE_HITS = "cacheHits";
+    public static final String EXTRA_CACHE_MISSES = "cacheMisses";
+    public static final String EXTRA_CACHE_STALE = "cacheStaleHits";
+    public static final String EXTRA_CACHE_PREFETCHES = "cachePrefetches";
+    public static final String EXTRA_HEDGES_ISSUED = "hedgesIssued";
+    public static final String EXTRA_HEDGES_WON = "hedgesWon";
+    public static final String EXTRA_COALESCED = "coalesced";
+    public static final String EXTRA_TUN_DEPTH = "tunQueueDepth";
+    public static final String EXTRA_TUN_DROPPED = "tunDropped";
+    public static final String EXTRA_QUERIES_IN_FLIGHT = "queriesInFlight";
+    public static final String EXTRA_QUERIES_QUEUED = "queriesQueued";
+    public static final String EXTRA_QUERIES_SHED = "queriesShed";
+    public static final String EXTRA_IP_BLOCKED = "ipBlocked";
+    public static final String EXTRA_TCP_RETRIES = "tcpRetries";
+    public static final String EXTRA_TCP_QUERIES = "tcpQueries";
+    public static final String EXTRA_ENGINE_MODE = "engineMode";
+    public static final String EXTRA_BLOCK_RESPONSE = "blockResponse";
+    // Bloom pre-check in front of the hosts-list index; on unless the start intent says otherwise.
+    public static final String EXTRA_PREFILTER = "prefilter";
+
+    public static final String ACTION_UPDATE_RESOLVERS = "UPDATE_RESOLVERS";
+    public static final String PREFS_NAME = "shield";
+    public static final String PREF_ALLOWED_RESOLVERS = "allowedResolvers";
+    public static final String ACTION_RELOAD_RULES = "RELOAD_RULES";
+    public static final String ACTION_ROLLBACK_RULES = "ROLLBACK_RULES";
+    // Re-establishes the tunnel with fresh routes and app lists; cache, upstreams and stats carry over.
+    public static final String ACTION_REBUILD_TUNNEL = "REBUILD_TUNNEL";
+    // Rule lines (see RuleMatcher) that replace BLOCKED_KEYWORDS when present,
+    // so the list can change without a new APK.
+    public static final String PREF_BLOCK_RULES = "blockRules";
+    // IP-block mode: route these CIDR ranges (see PrefixTrie) into the tunnel and refuse them there.
+    public static final String PREF_IP_BLOCK = "ipBlock";
+    public static final String PREF_BLOCKED_RANGES = "blockedRanges";
+    // Split tunneling by package name. A non-empty include list wins: Android
+    // allows only one of the two per tunnel.
+    public static final String PREF_INCLUDED_APPS = "includedApps";
+    public static final String PREF_EXCLUDED_APPS = "excludedApps";
 
     // Global flag for UI Sync
     public static boolean IS_RUNNING = false;
+    // Read by the JS bridge for the resolver stats panel; null while stopped.
+    private static volatile UpstreamManager UPSTREAMS;
+    // Outlives the tunnel, like the cache; null only before onCreate().
+    private static volatile RuleStore RULES;
+    // Per-app and per-domain totals since the service was created; null only before onCreate().
+    private static volatile AppAttribution ATTRIBUTION;
+    private static volatile DomainTrends TRENDS;
+    private static volatile PackageManager PACKAGES;
 
     private final AtomicBoolean isRunning = new AtomicBoolean(false);
-    private final AtomicLong blockedCount = new AtomicLong(0);
+    private final LongAdder blockedCount = new LongAdder();
 
-    private ParcelFileDescriptor vpnInterface;
+    // Replaced by rebuildTunnel(); each reader thread serves one interface and leaves when it is swapped out.
+    private volatile ParcelFileDescriptor vpnInterface;
     private FileOutputStream vpnOutput;
-    private ExecutorService dnsThreadPool;
+    // Sole writer of vpnOutput; everyone else hands it finished replies.
+    private volatile TunWriter tunWriter;
+    private ThreadPoolExecutor dnsThreadPool;
+    private volatile UpstreamManager upstreams;
+    // Ranges refused in IP-block mode; fixed per tunnel since they decide its routes. Null when off.
+    private volatile PrefixTrie ipBlocklist;
+    private final LongAdder ipBlocked = new LongAdder();
 
     private static final String VPN_ADDRESS = "10.0.0.2";
+    // Always present, so dual-stack resolvers get their IPv6 queries answered instead of timing out.
+    private static final String VPN_ADDRESS_V6 = "fd00:6e78::2";
+
+    // Community hosts lists are dropped here and compiled into the mapped index.
+    private static final String BLOCKLIST_SOURCE = "blocklist.hosts";
+    private static final String BLOCKLIST_INDEX = "blocklist.idx";
+    // Large CIDR lists are dropped here rather than stored in preferences.
+    private static final String BLOCKED_RANGES_SOURCE = "blocklist.cidr";
+    // Past this the tunnel gets slow to establish; the rest of the list is left unrouted.
+    private static final int MAX_IP_ROUTES = 8192;
+
+    private static final int DNS_CACHE_ENTRIES = 2048;
+    private static final int INFLIGHT_BUCKETS = 256;
+    private static final int UPSTREAM_CHANNELS = 2; // per resolver
+    // Room for an MTU-sized query or a 4 KB upstream answer plus its IP/UDP headers.
+    private static final int PACKET_BUFFER_SIZE = 4096 + 128;
+    private static final int PACKET_BUFFERS = 256;
+    // Replies waiting for the TUN writer; past this they are dropped rather than queued.
+    private static final int TUN_QUEUE_CAPACITY = 512;
+    // Queries held at once (queued, upstream or coalesced); more are answered SERVFAIL.
+    // Kept under PACKET_BUFFERS so replies still find pooled buffers under load.
+    private static final int MAX_QUERIES_HELD = 192;
+    private static final int MIN_SHARE_PER_SOURCE = 8;
+    private static final int POOL_THREADS = 50;
+    // Upper bound only; each resolver's timeout adapts to its measured RTTs.
+    private static final long UPSTREAM_TIMEOUT_MS = 2500;
+
+    private static final String FILTER_ADS = "ads";
+    private static final String FILTER_NONE = "none";
 
     public enum DnsProfile {
-        CONTROLD_ADS("Control D (Ads)", "76.76.2.2"),
-        CLOUDFLARE("Cloudflare", "1.1.1.1"),
-        GOOGLE("Google", "8.8.8.8");
+        CONTROLD_ADS("Control D (Ads)", FILTER_ADS, "76.76.2.2", "2606:1a40::2"),
+        CLOUDFLARE("Cloudflare", FILTER_NONE, "1.1.1.1", "2606:4700:4700::1111"),
+        GOOGLE("Google", FILTER_NONE, "8.8.8.8", "2001:4860:4860::8888"),
+        CONTROLD_ADS_DOH("Control D (Ads, DoH)", FILTER_ADS, "76.76.2.2", "2606:1a40::2",
+                DnsTransport.Protocol.HTTPS, "freedns.controld.com", "/p2"),
+        CLOUDFLARE_DOT("Cloudflare (DoT)", FILTER_NONE, "1.1.1.1", "2606:4700:4700::1111",
+                DnsTransport.Protocol.TLS, "one.one.one.one", null),
+        CLOUDFLARE_DOH("Cloudflare (DoH)", FILTER_NONE, "1.1.1.1", "2606:4700:4700::1111",
+                DnsTransport.Protocol.HTTPS, "cloudflare-dns.com", "/dns-query"),
+        GOOGLE_DOT("Google (DoT)", FILTER_NONE, "8.8.8.8", "2001:4860:4860::8888",
+                DnsTransport.Protocol.TLS, "dns.google", null),
+        GOOGLE_DOH("Google (DoH)", FILTER_NONE, "8.8.8.8", "2001:4860:4860::8888",
+                DnsTransport.Protocol.HTTPS, "dns.google", "/dns-query");
 
         final String label;
+        // What the resolver itself blocks; by default queries only fail over between equal filters.
+        final String filter;
         final String ipv4;
+        // Only the in-tunnel address apps query; upstream traffic still goes out over IPv4.
+        final String ipv6;
+        final DnsTransport.Protocol protocol;
+        // TLS server name and DoH path; encrypted profiles connect by IP, so no bootstrap lookup is needed.
+        final String host;
+        final String path;
+
+        DnsProfile(String label, String filter, String ipv4, String ipv6) {
+            this(label, filter, ipv4, ipv6, DnsTransport.Protocol.UDP, null, null);
+        }
 
-        DnsProfile(String label, String ipv4) {
+        DnsProfile(String label, String filter, String ipv4, String ipv6, DnsTransport.Protocol protocol,
+                   String host, String path) {
             this.label = label;
+            this.filter = filter;
             this.ipv4 = ipv4;
+            this.ipv6 = ipv6;
+            this.protocol = protocol;
+            this.host = host;
+            this.path = path;
+        }
+
+        int port() {
+            switch (protocol) {
+                case TLS: return 853;
+                case HTTPS: return 443;
+                default: return 53;
+            }
         }
     }
 
     private DnsProfile activeProfile = DnsProfile.CONTROLD_ADS;
 
+    /**
+     * EVENT_LOOP handles each packet inline on the TUN reader thread and lets the
+     * upstream selector thread write replies, so two threads carry all DNS traffic.
+     * THREAD_POOL is the original one-task-per-packet mode, kept as a fallback.
+     */
+    public enum EngineMode { EVENT_LOOP, THREAD_POOL }
+
+    private volatile EngineMode engineMode = EngineMode.EVENT_LOOP;
+    private volatile BlockResponse blockResponse = BlockResponse.NULL_IP;
+
     private static final Set<String> BLOCKED_KEYWORDS = new HashSet<>(Arrays.asList(
             "log.tiktokv.com", "mon.tiktokv.com", "log-va.tiktokv.com",
             "ib.tiktokv.com", "toblog.ctobsnssdk.com", "log16-normal-c-useast1a.tiktokv.com",
@@ -86,15 +243,103 @@ public class ShieldVpnService extends VpnService {
             "civiccomputing", "cookiepro", "cookielaw", "consensu"
     ));
 
+    // Rule automaton and mapped domain index, swapped as a unit when rules change.
+    private RuleStore rules;
+    // Lives as long as the service, so answers survive a tunnel restart.
+    private DnsCache dnsCache;
+    private PacketPool packetPool;
+    // Identical questions waiting on the same upstream request.
+    private InflightQueries inflight;
+    // Every query from the TUN holds a slot from here until its buffer is released.
+    private AdmissionControl admission;
+    private AppAttribution attribution;
+    // Top queried and blocked names per minute, hour and day, in fixed memory.
+    private DomainTrends trends;
+    // Clients' DNS-over-TCP connections to the in-tunnel resolver address.
+    private TcpDnsFlows tcpDns;
+    private volatile ShieldTelemetry telemetry;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Only the small built-in list compiles here, so the store is never empty; the
+        // user's list, of any size, compiles on the rule thread and replaces it.
+        rules = new RuleStore(BLOCKED_KEYWORDS);
+        RULES = rules;
+        Set<String> configured = loadRules();
+        if (configured != BLOCKED_KEYWORDS) rules.setRules(configured);
+        reloadDomainIndex();
+        // Only what a pooled reply buffer holds after IPv6 and UDP headers; a cached answer is served from one.
+        dnsCache = new DnsCache(DNS_CACHE_ENTRIES,
+                PACKET_BUFFER_SIZE - PacketCodec.IPV6_HEADER_LEN - PacketCodec.UDP_HEADER_LEN, this::refreshCached);
+        packetPool = new PacketPool(PACKET_BUFFERS, PACKET_BUFFER_SIZE);
+        inflight = new InflightQueries(INFLIGHT_BUCKETS);
+        admission = new AdmissionControl(MAX_QUERIES_HELD, MIN_SHARE_PER_SOURCE);
+        attribution = new AppAttribution(ownerLookup());
+        PACKAGES = getPackageManager();
+        ATTRIBUTION = attribution;
+        trends = new DomainTrends();
+        TRENDS = trends;
+        tcpDns = new TcpDnsFlows(packetPool, this::writeToVpn, this::dispatchQuery);
+    }
+
+    /** The socket-owner lookup, which only the active VPN may call and only from Android 10. */
+    private AppAttribution.OwnerLookup ownerLookup() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return null;
+        ConnectivityManager cm = getSystemService(ConnectivityManager.class);
+        if (cm == null) return null;
+        // IP protocol numbers, which OsConstants.IPPROTO_UDP and IPPROTO_TCP also are.
+        return cm::getConnectionOwnerUid;
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent != null && "STOP".equals(intent.getAction())) {
             stopVpn();
             return START_NOT_STICKY;
         }
+        if (intent != null && ACTION_UPDATE_RESOLVERS.equals(intent.getAction())) {
+            UpstreamManager manager = upstreams;
+            if (manager != null) manager.setAllowed(loadAllowedResolvers());
+            return START_STICKY;
+        }
+        if (intent != null && ACTION_RELOAD_RULES.equals(intent.getAction())) {
+            rules.setRules(loadRules());
+            reloadDomainIndex();
+            return START_STICKY;
+        }
+        if (intent != null && ACTION_ROLLBACK_RULES.equals(intent.getAction())) {
+            rules.rollback();
+            return START_STICKY;
+        }
+        if (intent != null && ACTION_REBUILD_TUNNEL.equals(intent.getAction())) {
+            if (isRunning.get()) rebuildTunnel();
+            return START_STICKY;
+        }
+
+        if (intent != null && intent.hasExtra(EXTRA_ENGINE_MODE)) {
+            try {
+                engineMode = EngineMode.valueOf(intent.getStringExtra(EXTRA_ENGINE_MODE));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown engine mode, keeping " + engineMode);
+            }
+        }
+        if (intent != null && intent.hasExtra(EXTRA_BLOCK_RESPONSE)) {
+            try {
+                blockResponse = BlockResponse.valueOf(intent.getStringExtra(EXTRA_BLOCK_RESPONSE));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown block response, keeping " + blockResponse);
+            }
+        }
+
+        if (intent != null && intent.hasExtra(EXTRA_PREFILTER)) {
+            rules.setPrefilter(intent.getBooleanExtra(EXTRA_PREFILTER, true));
+        }
 
-        if (dnsThreadPool == null || dnsThreadPool.isShutdown()) {
-            dnsThreadPool = Executors.newFixedThreadPool(50);
+        if (engineMode == EngineMode.THREAD_POOL && (dnsThreadPool == null || dnsThreadPool.isShutdown())) {
+            // Admission already bounds what can be queued; the bounded queue is a backstop.
+            dnsThreadPool = new ThreadPoolExecutor(POOL_THREADS, POOL_THREADS, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(MAX_QUERIES_HELD));
         }
 
         startForegroundServiceNotification();
@@ -113,7 +358,7 @@ public class ShieldVpnService extends VpnService {
 
         Notification.Builder builder = new Notification.Builder(this, CHANNEL_ID)
                 .setContentTitle("Nexus Shield Active")
-                .setContentText("Reqs Blocked: " + blockedCount.get())
+                .setContentText("Reqs Blocked: " + blockedCount.sum())
                 .setSmallIcon(R.drawable.ic_launcher_foreground)
                 .setContentIntent(pi)
                 .addAction(new Notification.Action.Builder(null, "Disconnect", pendingStopIntent).build())
@@ -134,13 +379,13 @@ public class ShieldVpnService extends VpnService {
         }
     }
 
-    private void updateNotification() {
+    private void updateNotification(long blocked) {
         if (!isRunning.get()) return;
         NotificationManager nm = getSystemService(NotificationManager.class);
         if (nm != null) {
             Notification.Builder builder = new Notification.Builder(this, CHANNEL_ID)
                     .setContentTitle("Nexus Shield Active")
-                    .setContentText("Reqs Blocked: " + blockedCount.get())
+                    .setContentText("Reqs Blocked: " + blocked)
                     .setSmallIcon(R.drawable.ic_launcher_foreground)
                     .setOngoing(true)
                     .setOnlyAlertOnce(true);
@@ -152,18 +397,8 @@ public class ShieldVpnService extends VpnService {
         if (isRunning.get()) return;
 
         Log.i(TAG, "Starting VPN Proxy...");
-        Builder builder = new Builder();
-        builder.setSession("NexusShield");
-        builder.setMtu(1500);
-
-        builder.addAddress(VPN_ADDRESS, 32);
-
-        builder.addDnsServer(activeProfile.ipv4);
-        try {
-            builder.addRoute(activeProfile.ipv4, 32);
-        } catch (Exception e) {
-            Log.e(TAG, "Route error", e);
-        }
+        PrefixTrie blocklist = loadIpBlocklist();
+        Builder builder = configureTunnel(blocklist);
 
         try {
             if (vpnInterface != null) vpnInterface.close();
@@ -173,15 +408,39 @@ public class ShieldVpnService extends VpnService {
                 stopSelf();
                 return;
             }
+            ipBlocklist = blocklist;
 
             vpnOutput = new FileOutputStream(vpnInterface.getFileDescriptor());
+            tunWriter = new TunWriter(vpnOutput, TUN_QUEUE_CAPACITY);
+            upstreams = new UpstreamManager(buildResolvers(), loadAllowedResolvers(), UPSTREAM_CHANNELS,
+                    UPSTREAM_TIMEOUT_MS, this::protect, this::protect);
+            upstreams.setHousekeeping(tcpDns::tick); // TCP retransmissions inside the tunnel
+            UPSTREAMS = upstreams;
 
             isRunning.set(true);
             IS_RUNNING = true; // SYNC FLAG
-            blockedCount.set(0);
+            blockedCount.reset();
+            ipBlocked.reset();
+            telemetry = new ShieldTelemetry(new ShieldTelemetry.Sink() {
+                @Override
+                public void publishStatus(long blocked) {
+                    broadcastStatus(true);
+                }
+
+                @Override
+                public void publishBlocks(ArrayList<String> domains) {
+                    broadcastBlocks(domains);
+                }
+
+                @Override
+                public void publishNotification(long blocked) {
+                    updateNotification(blocked);
+                }
+            }, blockedCount::sum);
             broadcastStatus(true);
 
-            new Thread(this::listenForPackets).start();
+            ParcelFileDescriptor iface = vpnInterface;
+            new Thread(() -> listenForPackets(iface), "ShieldEngine").start();
 
         } catch (Exception e) {
             Log.e(TAG, "Establish error", e);
@@ -189,193 +448,571 @@ public class ShieldVpnService extends VpnService {
         }
     }
 
-    private void listenForPackets() {
-        FileInputStream in = new FileInputStream(vpnInterface.getFileDescriptor());
-        byte[] buffer = new byte[32767];
+    /** Everything about the tunnel that is fixed at establish time: addresses, routes and which apps use it. */
+    private Builder configureTunnel(PrefixTrie blocklist) {
+        Builder builder = new Builder();
+        builder.setSession("NexusShield");
+        builder.setMtu(1500);
 
+        builder.addAddress(VPN_ADDRESS, 32);
+        builder.addAddress(VPN_ADDRESS_V6, 128);
+
+        builder.addDnsServer(activeProfile.ipv4);
+        builder.addDnsServer(activeProfile.ipv6);
         try {
-            while (isRunning.get() && vpnInterface != null) {
-                int length = in.read(buffer);
-                if (length > 0) {
-                    byte[] packetData = Arrays.copyOf(buffer, length);
-                    if (dnsThreadPool != null && !dnsThreadPool.isShutdown()) {
-                        dnsThreadPool.execute(() -> processPacket(packetData));
-                    }
+            builder.addRoute(activeProfile.ipv4, 32);
+            builder.addRoute(activeProfile.ipv6, 128);
+        } catch (Exception e) {
+            Log.e(TAG, "Route error", e);
+        }
+        if (blocklist != null) addIpBlockRoutes(builder, blocklist);
+        applyAppLists(builder);
+        return builder;
+    }
+
+    private void applyAppLists(Builder builder) {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        Set<String> included = prefs.getStringSet(PREF_INCLUDED_APPS, Collections.emptySet());
+        Set<String> excluded = prefs.getStringSet(PREF_EXCLUDED_APPS, Collections.emptySet());
+        if (!included.isEmpty() && !excluded.isEmpty()) Log.w(TAG, "Both app lists set; using the include list");
+        List<String> missing = SplitTunnel.apply(included, excluded, new SplitTunnel.Target() {
+            @Override
+            public boolean allow(String pkg) {
+                try {
+                    builder.addAllowedApplication(pkg);
+                    return true;
+                } catch (PackageManager.NameNotFoundException e) {
+                    return false;
                 }
             }
+
+            @Override
+            public boolean disallow(String pkg) {
+                try {
+                    builder.addDisallowedApplication(pkg);
+                    return true;
+                } catch (PackageManager.NameNotFoundException e) {
+                    return false;
+                }
+            }
+        });
+        for (String pkg : missing) Log.w(TAG, "Split tunnel: no package " + pkg);
+    }
+
+    /**
+     * Establishes a new interface with the current routes and app lists and
+     * moves the engine onto it. The cache, upstreams, rules, pending queries
+     * and counters are untouched; Android hands traffic to the new interface
+     * as soon as it is established, so the gap is one reader handoff.
+     */
+    private void rebuildTunnel() {
+        long start = System.nanoTime();
+        PrefixTrie blocklist = loadIpBlocklist();
+        ParcelFileDescriptor next;
+        try {
+            next = configureTunnel(blocklist).establish();
         } catch (Exception e) {
-            Log.e(TAG, "Packet listener error", e);
-        } finally {
-            stopVpn();
+            Log.e(TAG, "Tunnel rebuild failed, keeping the current one", e);
+            return;
+        }
+        if (next == null) return; // VPN permission revoked meanwhile; onRevoke() handles it
+
+        ParcelFileDescriptor oldInterface = vpnInterface;
+        FileOutputStream oldOutput = vpnOutput;
+        TunWriter oldWriter = tunWriter;
+        // Publish the new interface first so the old reader leaves without stopping the service.
+        vpnInterface = next;
+        vpnOutput = new FileOutputStream(next.getFileDescriptor());
+        tunWriter = new TunWriter(vpnOutput, TUN_QUEUE_CAPACITY);
+        ipBlocklist = blocklist;
+        new Thread(() -> listenForPackets(next), "ShieldEngine").start();
+
+        if (oldWriter != null) oldWriter.close();
+        if (oldOutput != null) {
+            try { oldOutput.close(); } catch (IOException ignored) {}
         }
+        if (oldInterface != null) {
+            try { oldInterface.close(); } catch (IOException ignored) {}
+        }
+        Log.i(TAG, "Tunnel rebuilt in " + (System.nanoTime() - start) / 1_000_000 + " ms");
     }
 
-    private void processPacket(byte[] packetData) {
-        try {
-            if (((packetData[0] >> 4) & 0x0F) != 4 || packetData[9] != 17) return;
+    private PrefixTrie loadIpBlocklist() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        if (!prefs.getBoolean(PREF_IP_BLOCK, false)) return null;
+        List<String> lines = new ArrayList<>(prefs.getStringSet(PREF_BLOCKED_RANGES, Collections.emptySet()));
+        File source = new File(getFilesDir(), BLOCKED_RANGES_SOURCE);
+        if (source.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(source))) {
+                String line;
+                while ((line = reader.readLine()) != null) lines.add(line);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read " + BLOCKED_RANGES_SOURCE, e);
+            }
+        }
+        PrefixTrie trie = PrefixTrie.compile(lines);
+        Log.i(TAG, "IP blocklist: " + trie.prefixCount() + " ranges, " + trie.rejectedCount() + " rejected");
+        return trie;
+    }
 
-            int ipHeaderLen = (packetData[0] & 0x0F) * 4;
-            int dstPort = ((packetData[ipHeaderLen + 2] & 0xFF) << 8) | (packetData[ipHeaderLen + 3] & 0xFF);
+    private void addIpBlockRoutes(Builder builder, PrefixTrie trie) {
+        int[] routes = new int[1];
+        trie.forEachRoute((address, prefixLength) -> {
+            if (routes[0] >= MAX_IP_ROUTES) return;
+            try {
+                builder.addRoute(address, prefixLength);
+                routes[0]++;
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Route refused: " + address.getHostAddress() + "/" + prefixLength);
+            }
+        });
+        if (routes[0] >= MAX_IP_ROUTES) Log.w(TAG, "IP blocklist truncated at " + MAX_IP_ROUTES + " routes");
+    }
+
+    /** Every profile gets a transport; which of them may carry queries is {@link #loadAllowedResolvers}. */
+    private List<UpstreamManager.Resolver> buildResolvers() throws IOException {
+        List<UpstreamManager.Resolver> list = new ArrayList<>();
+        for (DnsProfile p : DnsProfile.values()) {
+            list.add(new UpstreamManager.Resolver(p.name(), p.protocol,
+                    new InetSocketAddress(InetAddress.getByName(p.ipv4), p.port()), p.host, p.path));
+        }
+        return list;
+    }
 
-            if (dstPort == 53) {
-                int udpHeaderLen = 8;
-                int dnsStart = ipHeaderLen + udpHeaderLen;
+    /**
+     * The resolvers the user chose, or by default the active profile and those
+     * that filter the same way, so a faster resolver can never quietly take
+     * queries away from the filtering the user picked.
+     */
+    private Set<String> loadAllowedResolvers() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        Set<String> allowed = new HashSet<>();
+        for (String name : prefs.getStringSet(PREF_ALLOWED_RESOLVERS, Collections.emptySet())) {
+            for (DnsProfile p : DnsProfile.values()) {
+                if (p.name().equals(name)) allowed.add(name);
+            }
+        }
+        if (allowed.isEmpty()) {
+            for (DnsProfile p : DnsProfile.values()) {
+                if (p.filter.equals(activeProfile.filter)) allowed.add(p.name());
+            }
+        }
+        return allowed;
+    }
 
-                String queryDomain = extractDomain(packetData, dnsStart, packetData.length);
+    /** Per-resolver RTT, loss and error stats as a JSON array, or "[]" while stopped. */
+    public static String getResolverStats() {
+        UpstreamManager manager = UPSTREAMS;
+        return manager != null ? manager.statsJson() : "[]";
+    }
 
-                if (isBlocked(queryDomain)) {
-                    Log.d(TAG, "BLOCKING: " + queryDomain);
-                    blockedCount.incrementAndGet();
-                    updateNotification();
-                    broadcastStatus(true);
+    private Set<String> loadRules() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        Set<String> custom = prefs.getStringSet(PREF_BLOCK_RULES, null);
+        return custom != null ? custom : BLOCKED_KEYWORDS;
+    }
 
-                    // NEW: Notify UI
-                    broadcastBlock(queryDomain);
+    /** Current rule version, sizes and rollback history as JSON, or "{}" before the service exists. */
+    public static String getRuleStats() {
+        RuleStore store = RULES;
+        return store != null ? store.statsJson() : "{}";
+    }
 
-                    return;
+    /** Queries and blocks per app (UID and package) and for the busiest names, as JSON; "{}" before the service exists. */
+    public static String getAppStats() {
+        AppAttribution a = ATTRIBUTION;
+        PackageManager pm = PACKAGES;
+        if (a == null || pm == null) return "{}";
+        return a.statsJson(pm::getNameForUid);
+    }
+
+    /** Top {@code limit} queried and blocked names over "1m", "1h" or "24h", as JSON; "{}" before the service exists. */
+    public static String getTopDomains(String window, int limit) {
+        DomainTrends t = TRENDS;
+        return t != null ? t.statsJson(DomainTrends.Window.parse(window), limit) : "{}";
+    }
+
+    private void reloadDomainIndex() {
+        File index = new File(getFilesDir(), BLOCKLIST_INDEX);
+        File source = new File(getFilesDir(), BLOCKLIST_SOURCE);
+        // Map what is already compiled first, so lookups work while a newer hosts file compiles.
+        if (index.exists() && rules.current().index() == null) {
+            rules.setIndex(() -> DomainIndex.open(index));
+        }
+        if (source.exists() && source.lastModified() > index.lastModified()) {
+            rules.setIndex(() -> {
+                try (FileReader reader = new FileReader(source)) {
+                    int count = DomainIndex.compile(reader, index);
+                    Log.i(TAG, "Blocklist compiled: " + count + " domains");
                 }
+                return DomainIndex.open(index);
+            });
+        }
+    }
 
-                forwardDnsQuery(packetData, ipHeaderLen, dnsStart, packetData.length);
+    private void listenForPackets(ParcelFileDescriptor iface) {
+        FileInputStream in = new FileInputStream(iface.getFileDescriptor());
+
+        try {
+            while (isRunning.get() && vpnInterface == iface) {
+                Packet packet = packetPool.acquire();
+                int length;
+                try {
+                    length = in.read(packet.data);
+                } catch (IOException e) {
+                    packet.release();
+                    throw e;
+                }
+                if (length <= 0) {
+                    packet.release();
+                    continue;
+                }
+                packet.length = length;
+                if (!PacketCodec.parseDnsQuery(packet)) {
+                    if (!tcpDns.handle(packet)) refuseIfBlocked(packet);
+                    packet.release();
+                    continue;
+                }
+                dispatchQuery(packet);
             }
         } catch (Exception e) {
-            Log.e(TAG, "Process packet error", e);
+            // Reading a swapped-out interface fails once rebuildTunnel() closes it; that is expected.
+            if (vpnInterface == iface) Log.e(TAG, "Packet listener error", e);
+        } finally {
+            if (vpnInterface == iface) stopVpn();
         }
     }
 
-    private void forwardDnsQuery(byte[] originalPacket, int ipHeaderLen, int dnsStart, int totalLength) {
-        DatagramSocket tunnelSocket = null;
+    /**
+     * Takes a parsed query, from UDP or from a TCP connection, through
+     * attribution and admission into the engine. Runs on the reader thread.
+     */
+    private void dispatchQuery(Packet packet) {
+        packet.uid = attribution.ownerOf(packet);
+        if (!admission.tryAcquire(admissionKey(packet))) {
+            // Overloaded: fail fast rather than buffer without limit.
+            answerLocally(packet, DnsWire.RCODE_SERVFAIL);
+            releaseQuery(packet);
+            return;
+        }
+        if (engineMode == EngineMode.EVENT_LOOP) {
+            processPacket(packet);
+            return;
+        }
+        ThreadPoolExecutor pool = dnsThreadPool;
         try {
-            tunnelSocket = new DatagramSocket();
-            if (!protect(tunnelSocket)) {
-                throw new IOException("Socket protection failed");
+            if (pool == null) throw new RejectedExecutionException();
+            pool.execute(jobFor(packet));
+        } catch (RejectedExecutionException e) {
+            answerLocally(packet, DnsWire.RCODE_SERVFAIL);
+            finishQuery(packet);
+        }
+    }
+
+    /**
+     * Per-buffer continuation: the pool task in THREAD_POOL mode and the upstream
+     * callback for a forwarded query. Created once per pooled buffer, then reused.
+     */
+    private final class PacketJob implements Runnable, DnsTransport.Callback {
+        private final Packet packet;
+
+        PacketJob(Packet packet) {
+            this.packet = packet;
+        }
+
+        @Override
+        public void run() {
+            processPacket(packet);
+        }
+
+        @Override
+        public void onResponse(byte[] buf, int offset, int length) {
+            dnsCache.store(packet.data, packet.dnsStart, packet.length, buf, offset, offset + length);
+            Packet waiter = inflight.finish(packet);
+            answerFromUpstream(packet, buf, offset, length);
+            finishQuery(packet);
+            while (waiter != null) {
+                Packet next = waiter.nextWaiter;
+                answerFromUpstream(waiter, buf, offset, length);
+                finishQuery(waiter);
+                waiter = next;
             }
-            tunnelSocket.setSoTimeout(2500);
+        }
+
+        @Override
+        public void onFailure() {
+            // Nothing to answer with; the client resolvers retry on their own.
+            finishWaiters(inflight.finish(packet));
+            finishQuery(packet);
+        }
+    }
+
+    /** Frames an upstream answer for one client, with that client's ID and question casing. */
+    private void answerFromUpstream(Packet query, byte[] buf, int offset, int length) {
+        if (query.tcpFlow != 0) {
+            // Straight into the connection's send buffer; a large answer would not fit a packet.
+            tcpDns.reply(query, buf, offset, length);
+            return;
+        }
+        Packet reply = packetPool.acquire();
+        int qEnd = DnsWire.questionEnd(query.data, query.dnsStart, query.length);
+        int qLen = qEnd - query.dnsStart;
+        if (qEnd < 0 || length < qLen) {
+            reply.release();
+            return;
+        }
+        // More than the buffer holds is more than any UDP client takes; sendReply cuts it to the question.
+        System.arraycopy(buf, offset, reply.data, query.dnsStart, Math.min(length, reply.data.length - query.dnsStart));
+        // Header flags and counts come from the answer; ID and question from this client.
+        System.arraycopy(query.data, query.dnsStart, reply.data, query.dnsStart, 2);
+        System.arraycopy(query.data, query.dnsStart + DnsWire.HEADER_LEN,
+                reply.data, query.dnsStart + DnsWire.HEADER_LEN, qLen - DnsWire.HEADER_LEN);
+        sendReply(query, reply, length);
+    }
 
-            byte[] dnsPayload = Arrays.copyOfRange(originalPacket, dnsStart, totalLength);
-            InetAddress server = InetAddress.getByName(activeProfile.ipv4);
-            DatagramPacket dnsPacket = new DatagramPacket(dnsPayload, dnsPayload.length, server, 53);
-            tunnelSocket.send(dnsPacket);
+    /**
+     * Sends the answer at {@code reply.data[query.dnsStart]} back the way
+     * {@code query} came and takes {@code reply}'s buffer. Over UDP an answer
+     * bigger than the client accepts, or than the buffer holds, is cut to its
+     * question with TC set, so the client asks again over TCP rather than
+     * waiting for an answer that never fits.
+     */
+    private void sendReply(Packet query, Packet reply, int dnsLen) {
+        int msg = query.dnsStart;
+        if (query.tcpFlow != 0) {
+            tcpDns.reply(query, reply.data, msg, dnsLen);
+            reply.release();
+            return;
+        }
+        int room = reply.data.length - msg;
+        if (dnsLen > DnsWire.CLASSIC_UDP_LIMIT
+                && dnsLen > Math.min(room, DnsWire.udpPayloadLimit(query.data, msg, query.length))) {
+            dnsLen = DnsWire.truncate(reply.data, msg, msg + Math.min(dnsLen, room));
+            if (dnsLen < 0) {
+                reply.release();
+                return;
+            }
+        }
+        reply.length = PacketCodec.buildResponsePacket(query, reply.data, dnsLen);
+        writeToVpn(reply);
+    }
 
-            byte[] respBuf = new byte[4096];
-            DatagramPacket respPacket = new DatagramPacket(respBuf, respBuf.length);
-            tunnelSocket.receive(respPacket);
+    private PacketJob jobFor(Packet packet) {
+        if (packet.attachment == null) packet.attachment = new PacketJob(packet);
+        return (PacketJob) packet.attachment;
+    }
 
-            byte[] rawResponse = buildResponsePacket(originalPacket, totalLength, respPacket.getData(), respPacket.getLength());
+    /** Handles one parsed, admitted query from the TUN and takes ownership of its buffer. */
+    private void processPacket(Packet packet) {
+        boolean retained = false;
+        try {
+            boolean blocked = PacketCodec.readName(packet) && rules.current().blocks(packet.name, 0, packet.nameLen);
+            attribution.record(packet.uid, packet, blocked);
+            trends.record(packet, blocked);
+            if (blocked) {
+                answerBlocked(packet);
+
+                // Only blocked names are ever turned into a String.
+                String queryDomain = new String(packet.name, 0, packet.nameLen, StandardCharsets.US_ASCII);
+                blockedCount.increment();
+                ShieldTelemetry t = telemetry;
+                if (t != null) t.recordBlock(queryDomain);
 
-            writeToVpn(rawResponse);
+                return;
+            }
 
+            retained = forwardDnsQuery(packet);
         } catch (Exception e) {
+            Log.e(TAG, "Process packet error", e);
         } finally {
-            if (tunnelSocket != null) tunnelSocket.close();
+            if (!retained) finishQuery(packet);
         }
     }
 
-    private synchronized void writeToVpn(byte[] packet) {
-        try {
-            if (vpnOutput != null && isRunning.get()) {
-                vpnOutput.write(packet);
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Error writing to VPN interface", e);
+    /** Writes the configured synthetic answer for a blocked query straight back to the TUN. */
+    private void answerBlocked(Packet query) {
+        Packet reply = packetPool.acquire();
+        int dnsLen = blockResponse.write(query.data, query.dnsStart, query.length, reply.data, query.dnsStart);
+        if (dnsLen > 0) {
+            sendReply(query, reply, dnsLen);
+        } else {
+            reply.release();
         }
     }
 
-    private boolean isBlocked(String domain) {
-        if (domain == null) return false;
-        String clean = domain.toLowerCase();
-        for (String keyword : BLOCKED_KEYWORDS) {
-            if (clean.contains(keyword)) return true;
+    /** Answers from cache or sends upstream. Returns true if the query buffer is now held by a pending request. */
+    private boolean forwardDnsQuery(Packet query) {
+        Packet reply = packetPool.acquire();
+        int cachedLen = dnsCache.lookup(query.data, query.dnsStart, query.length, reply.data, query.dnsStart);
+        if (cachedLen > 0) {
+            sendReply(query, reply, cachedLen);
+            return false;
         }
+        reply.release();
+
+        UpstreamManager manager = upstreams;
+        if (manager == null) return false;
+        if (inflight.join(query)) return true; // rides on an identical query already upstream
+
+        if (manager.send(query.data, query.dnsStart, query.length - query.dnsStart, jobFor(query))) return true;
+        // Could not send: whoever joined in the meantime is dropped along with the leader.
+        finishWaiters(inflight.finish(query));
         return false;
     }
 
-    // NEW HELPER METHOD
-    private void broadcastBlock(String domain) {
-        Intent intent = new Intent(ACTION_VPN_BLOCK);
-        intent.putExtra(EXTRA_BLOCKED_DOMAIN, domain);
-        intent.setPackage(getPackageName());
-        sendBroadcast(intent);
+    /**
+     * Asks the upstream again for a cached name that is stale or about to expire.
+     * The client already has its answer from the cache; this one only goes back
+     * into it. Runs on whichever thread did the lookup, so it only hands the
+     * query to the upstream, which never blocks on the network in send().
+     */
+    private void refreshCached(byte[] query, int msg, int end) {
+        UpstreamManager manager = upstreams;
+        if (manager == null) return;
+        // The upstream may hold on to the query for hedges and retries, so it gets its own buffer.
+        Packet copy = packetPool.acquire();
+        int len = end - msg;
+        if (len > copy.data.length) {
+            copy.release();
+            return;
+        }
+        System.arraycopy(query, msg, copy.data, 0, len);
+        copy.dnsStart = 0;
+        copy.length = len;
+        if (!manager.send(copy.data, 0, len, new CacheRefresh(copy))) {
+            copy.release();
+            dnsCache.refreshFailed(query, msg, end);
+        }
     }
 
-    private byte[] buildResponsePacket(byte[] original, int ipLen, byte[] dnsData, int dnsLen) {
-        int ipHeaderLen = (original[0] & 0x0F) * 4;
-        int totalLen = ipHeaderLen + 8 + dnsLen;
-
-        byte[] response = new byte[totalLen];
-
-        System.arraycopy(original, 0, response, 0, ipHeaderLen);
+    /** Stores a background refresh's answer and frees its query buffer. */
+    private final class CacheRefresh implements DnsTransport.Callback {
+        private final Packet query;
 
-        response[2] = (byte) (totalLen >> 8);
-        response[3] = (byte) (totalLen & 0xFF);
+        CacheRefresh(Packet query) {
+            this.query = query;
+        }
 
-        System.arraycopy(original, 16, response, 12, 4);
-        System.arraycopy(original, 12, response, 16, 4);
+        @Override
+        public void onResponse(byte[] buf, int offset, int length) {
+            int rcode = DnsWire.rcode(buf, offset);
+            if (rcode == DnsWire.RCODE_SERVFAIL || rcode == DnsWire.RCODE_REFUSED) {
+                dnsCache.refreshFailed(query.data, 0, query.length);
+            } else {
+                dnsCache.store(query.data, 0, query.length, buf, offset, offset + length);
+            }
+            query.release();
+        }
 
-        response[10] = 0;
-        response[11] = 0;
-        int ipChecksum = calculateChecksum(response, 0, ipHeaderLen);
-        response[10] = (byte) (ipChecksum >> 8);
-        response[11] = (byte) (ipChecksum & 0xFF);
+        @Override
+        public void onFailure() {
+            // The stale entry keeps answering for now; the next hit after the retry gap tries again.
+            dnsCache.refreshFailed(query.data, 0, query.length);
+            query.release();
+        }
+    }
 
-        response[ipHeaderLen] = original[ipHeaderLen + 2];
-        response[ipHeaderLen + 1] = original[ipHeaderLen + 3];
-        response[ipHeaderLen + 2] = original[ipHeaderLen];
-        response[ipHeaderLen + 3] = original[ipHeaderLen + 1];
+    /** Gives back the query's admission slot and its buffer. */
+    private void finishQuery(Packet query) {
+        admission.release(admissionKey(query));
+        releaseQuery(query);
+    }
 
-        int udpLen = 8 + dnsLen;
-        response[ipHeaderLen + 4] = (byte) (udpLen >> 8);
-        response[ipHeaderLen + 5] = (byte) (udpLen & 0xFF);
-        response[ipHeaderLen + 6] = 0;
-        response[ipHeaderLen + 7] = 0;
+    /** Gives back a query's buffer; a TCP connection waits for this on each query before it closes. */
+    private void releaseQuery(Packet query) {
+        if (query.tcpFlow != 0) tcpDns.finished(query.tcpFlow);
+        query.release();
+    }
 
-        System.arraycopy(dnsData, 0, response, ipHeaderLen + 8, dnsLen);
+    /** Fair shares go per app; a query whose owner is unknown falls back to its source port. */
+    private static int admissionKey(Packet query) {
+        return query.uid != AppAttribution.UNKNOWN_UID ? query.uid : -1 - query.srcPort;
+    }
 
-        return response;
+    private void finishWaiters(Packet waiter) {
+        while (waiter != null) {
+            Packet next = waiter.nextWaiter;
+            finishQuery(waiter);
+            waiter = next;
+        }
     }
 
-    private int calculateChecksum(byte[] buf, int offset, int length) {
-        int sum = 0;
-        for (int i = 0; i < length; i += 2) {
-            int word = ((buf[offset + i] & 0xFF) << 8) | ((i + 1 < length) ? (buf[offset + i + 1] & 0xFF) : 0);
-            sum += word;
+    /**
+     * Non-DNS traffic only reaches the tunnel through IP-block routes. TCP to a
+     * blocked range is reset so the app fails fast; anything else is dropped.
+     */
+    private void refuseIfBlocked(Packet packet) {
+        PrefixTrie blocklist = ipBlocklist;
+        if (blocklist == null || !blocklist.blocksDestination(packet.data, packet.length)) return;
+        ipBlocked.increment();
+        Packet reply = packetPool.acquire();
+        int len = PacketCodec.buildTcpReset(packet.data, packet.length, reply.data);
+        if (len > 0) {
+            reply.length = len;
+            writeToVpn(reply);
+        } else {
+            reply.release();
         }
-        while ((sum >> 16) > 0) {
-            sum = (sum & 0xFFFF) + (sum >> 16);
+    }
+
+    /** Answers {@code query} from here with no records and the given RCODE. */
+    private void answerLocally(Packet query, int rcode) {
+        Packet reply = packetPool.acquire();
+        int dnsLen = DnsWire.writeEmptyAnswer(query.data, query.dnsStart, query.length,
+                reply.data, query.dnsStart, rcode);
+        if (dnsLen > 0) {
+            sendReply(query, reply, dnsLen);
+        } else {
+            reply.release();
         }
-        return ~sum & 0xFFFF;
     }
 
-    private String extractDomain(byte[] data, int offset, int max) {
-        try {
-            int pos = offset + 12;
-            StringBuilder sb = new StringBuilder();
-            while (pos < max) {
-                int len = data[pos] & 0xFF;
-                if (len == 0) break;
-                if (sb.length() > 0) sb.append(".");
-                pos++;
-                for (int i = 0; i < len; i++) {
-                    sb.append((char) data[pos + i]);
-                }
-                pos += len;
-            }
-            return sb.toString();
-        } catch (Exception e) {
-            return null;
+    /** Queues one packet for the TUN writer, which returns its buffer to the pool. */
+    private void writeToVpn(Packet packet) {
+        TunWriter writer = tunWriter;
+        if (writer != null && isRunning.get()) {
+            writer.write(packet);
+        } else {
+            packet.release();
         }
     }
 
+    /** One intent per telemetry batch rather than one per blocked query. */
+    private void broadcastBlocks(ArrayList<String> domains) {
+        Intent intent = new Intent(ACTION_VPN_BLOCK);
+        intent.putStringArrayListExtra(EXTRA_BLOCKED_DOMAINS, domains);
+        intent.setPackage(getPackageName());
+        sendBroadcast(intent);
+    }
+
     private void stopVpn() {
         Log.i(TAG, "Stopping VPN Service...");
         isRunning.set(false);
         IS_RUNNING = false; // SYNC FLAG
+        if (telemetry != null) {
+            telemetry.shutdown();
+            telemetry = null;
+        }
         broadcastStatus(false);
 
         if (dnsThreadPool != null) {
-            dnsThreadPool.shutdownNow();
+            // Queries that never reached a worker still hold admission slots.
+            for (Runnable job : dnsThreadPool.shutdownNow()) finishQuery(((PacketJob) job).packet);
             dnsThreadPool = null;
         }
 
+        ipBlocklist = null;
+        UPSTREAMS = null;
+        if (upstreams != null) {
+            upstreams.close();
+            upstreams = null;
+        }
+
+        if (tunWriter != null) {
+            tunWriter.close();
+            tunWriter = null;
+        }
+
         if (vpnOutput != null) {
             try { vpnOutput.close(); } catch (IOException ignored) {}
             vpnOutput = null;
@@ -392,13 +1029,44 @@ public class ShieldVpnService extends VpnService {
     private void broadcastStatus(boolean running) {
         Intent intent = new Intent(ACTION_VPN_STATUS);
         intent.putExtra(EXTRA_IS_RUNNING, running);
-        intent.putExtra(EXTRA_BLOCKED_COUNT, blockedCount.get());
+        intent.putExtra(EXTRA_BLOCKED_COUNT, blockedCount.sum());
+        if (dnsCache != null) {
+            intent.putExtra(EXTRA_CACHE_HITS, dnsCache.hits());
+            intent.putExtra(EXTRA_CACHE_MISSES, dnsCache.misses());
+            intent.putExtra(EXTRA_CACHE_STALE, dnsCache.staleHits());
+            intent.putExtra(EXTRA_CACHE_PREFETCHES, dnsCache.prefetches());
+        }
+        UpstreamManager manager = upstreams;
+        if (manager != null) {
+            intent.putExtra(EXTRA_HEDGES_ISSUED, manager.hedgesIssued());
+            intent.putExtra(EXTRA_HEDGES_WON, manager.hedgesWon());
+            intent.putExtra(EXTRA_TCP_RETRIES, manager.tcpRetries());
+        }
+        if (tcpDns != null) intent.putExtra(EXTRA_TCP_QUERIES, tcpDns.queryCount());
+        if (inflight != null) intent.putExtra(EXTRA_COALESCED, inflight.coalescedCount());
+        if (admission != null) {
+            intent.putExtra(EXTRA_QUERIES_IN_FLIGHT, admission.inFlight());
+            intent.putExtra(EXTRA_QUERIES_SHED, admission.rejectedCount());
+        }
+        intent.putExtra(EXTRA_IP_BLOCKED, ipBlocked.sum());
+        ThreadPoolExecutor pool = dnsThreadPool;
+        if (pool != null) intent.putExtra(EXTRA_QUERIES_QUEUED, pool.getQueue().size());
+        TunWriter writer = tunWriter;
+        if (writer != null) {
+            intent.putExtra(EXTRA_TUN_DEPTH, writer.depth());
+            intent.putExtra(EXTRA_TUN_DROPPED, writer.droppedCount());
+        }
         sendBroadcast(intent);
     }
 
     @Override
     public void onDestroy() {
         stopVpn();
+        RULES = null;
+        ATTRIBUTION = null;
+        TRENDS = null;
+        PACKAGES = null;
+        rules.shutdown();
         super.onDestroy();
     }
 
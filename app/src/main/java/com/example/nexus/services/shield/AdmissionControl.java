@@ -0,0 +1,99 @@
+package com.example.nexus.services.shield;
+
+/**
+ * Bounds how many DNS queries the Shield holds at once (queued for a worker,
+ * waiting upstream, or coalesced behind another query) and splits that budget
+ * fairly between sources. A source is whatever key the caller passes, such as
+ * the client's UDP source port; keys are hashed into a fixed table, so memory
+ * does not grow with the number of sources and colliding sources simply share
+ * a share.
+ *
+ * <p>No source may hold more than {@code capacity / (active sources + 1)}
+ * queries (but always at least {@code minShare}). The +1 keeps room for a
+ * source that has not shown up yet, so one flooding app cannot take the whole
+ * budget before anyone else asks. Queries past either limit are refused and
+ * the caller answers them locally.
+ */
+public final class AdmissionControl {
+
+    private static final int BUCKETS_PER_SLOT = 4;
+
+    private final int capacity;
+    private final int minShare;
+    private final int[] held;
+    private final int mask;
+    private int active;
+    private int inFlight;
+    private int peak;
+    private long admitted;
+    private long rejectedFull;
+    private long rejectedShare;
+
+    public AdmissionControl(int capacity, int minShare) {
+        this.capacity = capacity;
+        this.minShare = minShare;
+        int n = Integer.highestOneBit(Math.max(capacity * BUCKETS_PER_SLOT, 2) - 1) << 1;
+        this.held = new int[n];
+        this.mask = n - 1;
+    }
+
+    /** Takes one slot for {@code source}; the caller must {@link #release} it exactly once. */
+    public synchronized boolean tryAcquire(int source) {
+        if (inFlight >= capacity) {
+            rejectedFull++;
+            return false;
+        }
+        int b = bucket(source);
+        int share = Math.max(minShare, capacity / (active + 1));
+        if (held[b] >= share) {
+            rejectedShare++;
+            return false;
+        }
+        if (held[b]++ == 0) active++;
+        if (++inFlight > peak) peak = inFlight;
+        admitted++;
+        return true;
+    }
+
+    public synchronized void release(int source) {
+        int b = bucket(source);
+        if (held[b] == 0) return; // unbalanced release; never go negative
+        if (--held[b] == 0) active--;
+        inFlight--;
+    }
+
+    private int bucket(int source) {
+        int h = source * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    public synchronized int peakInFlight() {
+        return peak;
+    }
+
+    public synchronized int activeSources() {
+        return active;
+    }
+
+    public synchronized long admittedCount() {
+        return admitted;
+    }
+
+    /** Refused because the global budget was used up. */
+    public synchronized long rejectedFullCount() {
+        return rejectedFull;
+    }
+
+    /** Refused because the source already held its fair share. */
+    public synchronized long rejectedShareCount() {
+        return rejectedShare;
+    }
+
+    public synchronized long rejectedCount() {
+        return rejectedFull + rejectedShare;
+    }
+}
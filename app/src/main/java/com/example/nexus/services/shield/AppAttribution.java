@@ -0,0 +1,295 @@
+package com.example.nexus.services.shield;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Works out which app sent each query and keeps per-app and per-domain totals.
+ *
+ * <p>The owner comes from the platform's socket table (the VPN-only
+ * {@code getConnectionOwnerUid}) and is cached by source port for a few
+ * seconds. A resolver sends the A and AAAA questions, and any retries, from
+ * one socket, so most queries after the first skip the binder call.
+ *
+ * <p>Counters live in fixed open-addressed tables whose slots are claimed
+ * with a CAS and never freed. Each slot counts with {@link LongAdder}s, so
+ * threads answering queries never share a lock or a contended cache line.
+ * When a table is full, new apps or domains are only counted in the
+ * overflow totals.
+ */
+public final class AppAttribution {
+
+    private static final String TAG = "ShieldAttribution";
+
+    /** Owner could not be determined; matches {@code android.os.Process.INVALID_UID}. */
+    public static final int UNKNOWN_UID = -1;
+
+    /**
+     * The platform lookup, for example {@code ConnectivityManager.getConnectionOwnerUid};
+     * {@code protocol} is the IP protocol number, 17 for UDP or 6 for TCP.
+     */
+    public interface OwnerLookup {
+        int ownerUid(int protocol, InetSocketAddress local, InetSocketAddress remote);
+    }
+
+    /** Turns a UID into something a person can read, such as its package name. */
+    public interface Labeler {
+        String labelFor(int uid);
+    }
+
+    private static final int OWNER_CACHE_SLOTS = 1024;
+    // Long enough to cover a resolver's retries; short enough that a reused port rarely lands on another app.
+    private static final int OWNER_TTL_SEC = 5;
+    private static final int APP_SLOTS = 512;
+    private static final int DOMAIN_SLOTS = 8192;
+    private static final int MAX_PROBES = 16;
+    private static final int TOP_DOMAINS = 50;
+
+    private final OwnerLookup lookup;
+    // (port + 1) << 47 | (second & 0x7FFF) << 32 | uid; 0 is an empty slot.
+    private final AtomicLongArray owners = new AtomicLongArray(OWNER_CACHE_SLOTS);
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+
+    private final AtomicReferenceArray<AppCounters> apps = new AtomicReferenceArray<>(APP_SLOTS);
+    private final AtomicReferenceArray<DomainCounters> domains = new AtomicReferenceArray<>(DOMAIN_SLOTS);
+    private final LongAdder appOverflow = new LongAdder();
+    private final LongAdder domainOverflow = new LongAdder();
+
+    /** {@code lookup} may be null where the platform has no owner lookup; every query is then unknown. */
+    public AppAttribution(OwnerLookup lookup) {
+        this.lookup = lookup;
+    }
+
+    /** Counters for one app. */
+    public static final class AppCounters {
+        public final int uid;
+        final LongAdder queries = new LongAdder();
+        final LongAdder blocked = new LongAdder();
+
+        AppCounters(int uid) {
+            this.uid = uid;
+        }
+
+        public long queries() {
+            return queries.sum();
+        }
+
+        public long blocked() {
+            return blocked.sum();
+        }
+    }
+
+    /** Counters for one query name. */
+    public static final class DomainCounters {
+        final int hash;
+        final byte[] name;
+        final LongAdder queries = new LongAdder();
+        final LongAdder blocked = new LongAdder();
+
+        DomainCounters(int hash, byte[] name) {
+            this.hash = hash;
+            this.name = name;
+        }
+
+        public String name() {
+            return new String(name, StandardCharsets.US_ASCII);
+        }
+
+        public long queries() {
+            return queries.sum();
+        }
+
+        public long blocked() {
+            return blocked.sum();
+        }
+
+        boolean is(int h, byte[] other, int len) {
+            if (hash != h || name.length != len) return false;
+            for (int i = 0; i < len; i++) {
+                if (name[i] != other[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The UID that owns the socket {@code query} was sent from, or
+     * {@link #UNKNOWN_UID}. Needs {@link PacketCodec#parseDnsQuery} to have run.
+     */
+    public int ownerOf(Packet query) {
+        if (lookup == null) return UNKNOWN_UID;
+        int port = query.srcPort;
+        int second = (int) (System.nanoTime() / 1_000_000_000L) & 0x7FFF;
+        int slot = port & (OWNER_CACHE_SLOTS - 1); // the kernel already picks ports at random
+        long e = owners.get(slot);
+        if (e != 0 && (int) (e >>> 47) == port + 1
+                && ((second - (int) (e >>> 32)) & 0x7FFF) < OWNER_TTL_SEC) {
+            cacheHits.increment();
+            return (int) e;
+        }
+        int uid = lookupOwner(query);
+        owners.set(slot, ((long) (port + 1) << 47) | ((long) second << 32) | (uid & 0xFFFFFFFFL));
+        return uid;
+    }
+
+    private int lookupOwner(Packet query) {
+        lookups.increment();
+        byte[] d = query.data;
+        int udp = query.ipHeaderLen;
+        boolean v6 = ((d[0] >> 4) & 0x0F) == 6;
+        int addrLen = v6 ? 16 : 4;
+        int src = v6 ? 8 : 12;
+        try {
+            InetSocketAddress local = new InetSocketAddress(
+                    InetAddress.getByAddress(Arrays.copyOfRange(d, src, src + addrLen)), query.srcPort);
+            InetSocketAddress remote = new InetSocketAddress(
+                    InetAddress.getByAddress(Arrays.copyOfRange(d, src + addrLen, src + 2 * addrLen)),
+                    ((d[udp + 2] & 0xFF) << 8) | (d[udp + 3] & 0xFF));
+            int protocol = query.tcpFlow != 0 ? PacketCodec.PROTO_TCP : PacketCodec.PROTO_UDP;
+            return lookup.ownerUid(protocol, local, remote);
+        } catch (UnknownHostException | RuntimeException e) {
+            // Not the active VPN any more, or the socket is already gone.
+            return UNKNOWN_UID;
+        }
+    }
+
+    /**
+     * Counts one query against its app and, if {@link PacketCodec#readName}
+     * succeeded, against its name. Lock-free; allocates only the first time an
+     * app or name is seen.
+     */
+    public void record(int uid, Packet query, boolean blocked) {
+        AppCounters app = app(uid);
+        if (app != null) {
+            app.queries.increment();
+            if (blocked) app.blocked.increment();
+        } else {
+            appOverflow.increment();
+        }
+        if (query.nameHash == 0) return;
+        DomainCounters domain = domain(query.nameHash, query.name, query.nameLen);
+        if (domain != null) {
+            domain.queries.increment();
+            if (blocked) domain.blocked.increment();
+        } else {
+            domainOverflow.increment();
+        }
+    }
+
+    private AppCounters app(int uid) {
+        int slot = mix(uid) & (APP_SLOTS - 1);
+        for (int probe = 0; probe < MAX_PROBES; probe++, slot = (slot + 1) & (APP_SLOTS - 1)) {
+            AppCounters c = apps.get(slot);
+            if (c == null) {
+                AppCounters fresh = new AppCounters(uid);
+                if (apps.compareAndSet(slot, null, fresh)) return fresh;
+                c = apps.get(slot);
+            }
+            if (c.uid == uid) return c;
+        }
+        return null;
+    }
+
+    private DomainCounters domain(int hash, byte[] name, int len) {
+        int slot = mix(hash) & (DOMAIN_SLOTS - 1);
+        for (int probe = 0; probe < MAX_PROBES; probe++, slot = (slot + 1) & (DOMAIN_SLOTS - 1)) {
+            DomainCounters c = domains.get(slot);
+            if (c == null) {
+                byte[] copy = new byte[len];
+                System.arraycopy(name, 0, copy, 0, len);
+                DomainCounters fresh = new DomainCounters(hash, copy);
+                if (domains.compareAndSet(slot, null, fresh)) return fresh;
+                c = domains.get(slot);
+            }
+            if (c.is(hash, name, len)) return c;
+        }
+        return null;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Every app seen so far, most queries first. */
+    public List<AppCounters> apps() {
+        List<AppCounters> list = new ArrayList<>();
+        for (int i = 0; i < APP_SLOTS; i++) {
+            AppCounters c = apps.get(i);
+            if (c != null) list.add(c);
+        }
+        list.sort((a, b) -> Long.compare(b.queries(), a.queries()));
+        return list;
+    }
+
+    /** Every name seen so far, most queries first. */
+    public List<DomainCounters> domains() {
+        List<DomainCounters> list = new ArrayList<>();
+        for (int i = 0; i < DOMAIN_SLOTS; i++) {
+            DomainCounters c = domains.get(i);
+            if (c != null) list.add(c);
+        }
+        list.sort((a, b) -> Long.compare(b.queries(), a.queries()));
+        return list;
+    }
+
+    /** Binder calls made to find an owner. */
+    public long lookupCount() {
+        return lookups.sum();
+    }
+
+    public long cacheHitCount() {
+        return cacheHits.sum();
+    }
+
+    /** Per-app totals and the busiest names, as JSON for the dashboard. */
+    public String statsJson(Labeler labeler) {
+        JSONObject o = new JSONObject();
+        try {
+            JSONArray appList = new JSONArray();
+            for (AppCounters c : apps()) {
+                JSONObject a = new JSONObject();
+                a.put("uid", c.uid);
+                a.put("app", c.uid == UNKNOWN_UID ? null : labeler.labelFor(c.uid));
+                a.put("queries", c.queries());
+                a.put("blocked", c.blocked());
+                appList.put(a);
+            }
+            o.put("apps", appList);
+            JSONArray domainList = new JSONArray();
+            List<DomainCounters> all = domains();
+            for (int i = 0; i < Math.min(TOP_DOMAINS, all.size()); i++) {
+                DomainCounters c = all.get(i);
+                JSONObject d = new JSONObject();
+                d.put("domain", c.name());
+                d.put("queries", c.queries());
+                d.put("blocked", c.blocked());
+                domainList.put(d);
+            }
+            o.put("domains", domainList);
+            o.put("domainsTracked", all.size());
+            o.put("untrackedApps", appOverflow.sum());
+            o.put("untrackedDomains", domainOverflow.sum());
+            o.put("ownerLookups", lookupCount());
+            o.put("ownerCacheHits", cacheHitCount());
+        } catch (JSONException e) {
+            Log.e(TAG, "Stats serialisation failed", e);
+        }
+        return o.toString();
+    }
+}
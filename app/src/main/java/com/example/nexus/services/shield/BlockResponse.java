@@ -0,0 +1,79 @@
+package com.example.nexus.services.shield;
+
+/**
+ * What the Shield answers when a query is blocked. Anything but {@link #DROP}
+ * resolves the client immediately instead of leaving it to time out and retry.
+ * Answers without records carry a synthetic SOA in the authority section, as
+ * RFC 2308 expects of negative answers, so stub resolvers cache them for
+ * {@link #TTL_SECONDS} instead of asking again at once.
+ */
+public enum BlockResponse {
+    /** Send nothing; the client waits for its own timeout. */
+    DROP,
+    /** Name does not exist (RCODE 3). */
+    NXDOMAIN,
+    /** Name exists but has no records of the requested type. */
+    NODATA,
+    /** 0.0.0.0 for A and :: for AAAA queries, NODATA for any other type. */
+    NULL_IP;
+
+    public static final int TTL_SECONDS = 10;
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final int TYPE_SOA = 6;
+    // Owner and MNAME point at the question name, RNAME is the root; then five 32-bit fields.
+    private static final int SOA_RDATA_LEN = 2 + 1 + 5 * 4;
+    private static final int SOA_RECORD_LEN = 2 + 10 + SOA_RDATA_LEN;
+
+    /**
+     * Writes the answer to the query at {@code query[msg, end)} into {@code out} at
+     * {@code outMsg}. Returns the DNS message length, or -1 for {@link #DROP}, a
+     * malformed query or too little room in {@code out}.
+     */
+    public int write(byte[] query, int msg, int end, byte[] out, int outMsg) {
+        if (this == DROP) return -1;
+        int qEnd = DnsWire.questionEnd(query, msg, end);
+        if (qEnd < 0) return -1;
+        int qLen = qEnd - msg;
+        int qType = DnsWire.u16(query, qEnd - 4);
+        int rdLen = this != NULL_IP ? 0 : qType == TYPE_A ? 4 : qType == TYPE_AAAA ? 16 : 0;
+        int len = qLen + (rdLen > 0 ? 12 + rdLen : SOA_RECORD_LEN);
+        if (outMsg + len > out.length) return -1;
+
+        DnsWire.writeEmptyAnswer(query, msg, end, out, outMsg,
+                this == NXDOMAIN ? DnsWire.RCODE_NXDOMAIN : DnsWire.RCODE_NOERROR);
+        if (rdLen > 0) {
+            DnsWire.put16(out, outMsg + 6, 1);
+            int pos = outMsg + qLen;
+            DnsWire.put16(out, pos, 0xC000 | DnsWire.HEADER_LEN); // name: pointer to the question
+            DnsWire.put16(out, pos + 2, qType);
+            DnsWire.put16(out, pos + 4, 1); // IN
+            DnsWire.put32(out, pos + 6, TTL_SECONDS);
+            DnsWire.put16(out, pos + 10, rdLen);
+            for (int i = 0; i < rdLen; i++) out[pos + 12 + i] = 0;
+        } else {
+            DnsWire.put16(out, outMsg + 8, 1); // NSCOUNT
+            writeSoa(out, outMsg + qLen);
+        }
+        return len;
+    }
+
+    /** The negative-caching SOA for the question's name; its TTL and MINIMUM are the block TTL. */
+    private static void writeSoa(byte[] out, int pos) {
+        int pointer = 0xC000 | DnsWire.HEADER_LEN;
+        DnsWire.put16(out, pos, pointer);
+        DnsWire.put16(out, pos + 2, TYPE_SOA);
+        DnsWire.put16(out, pos + 4, 1); // IN
+        DnsWire.put32(out, pos + 6, TTL_SECONDS);
+        DnsWire.put16(out, pos + 10, SOA_RDATA_LEN);
+        int rdata = pos + 12;
+        DnsWire.put16(out, rdata, pointer); // MNAME
+        out[rdata + 2] = 0; // RNAME
+        DnsWire.put32(out, rdata + 3, 1); // SERIAL
+        DnsWire.put32(out, rdata + 7, TTL_SECONDS); // REFRESH
+        DnsWire.put32(out, rdata + 11, TTL_SECONDS); // RETRY
+        DnsWire.put32(out, rdata + 15, TTL_SECONDS); // EXPIRE
+        DnsWire.put32(out, rdata + 19, TTL_SECONDS); // MINIMUM
+    }
+}
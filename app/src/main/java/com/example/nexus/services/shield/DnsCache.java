@@ -0,0 +1,393 @@
+package com.example.nexus.services.shield;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, TTL-aware cache of upstream DNS responses keyed by the question
+ * (qname, qtype, qclass) and the query flags that change the answer (RD, CD,
+ * DO and whether the query had EDNS), so a DNSSEC answer with its OPT record
+ * never reaches a client that asked without them. Entries are evicted in LRU
+ * order once the cache is full. An entry is fresh for its smallest record TTL
+ * and then, as RFC 8767 allows, may be served stale for up to a day more.
+ *
+ * A hit is copied into the caller's buffer with the query's transaction ID and
+ * record TTLs aged by the time spent in the cache. Lookups do not allocate.
+ *
+ * With a {@link Refresher}, two kinds of hit also have the name fetched again
+ * in the background: a stale one, which is answered at once with a 30 s TTL
+ * instead of waiting on the upstream, and a hit on a popular entry in the last
+ * tenth of its TTL, so that names in steady use are renewed before they expire.
+ * Popularity is the entry's hit count since it was last stored, so it costs a
+ * field per entry and nothing outside the cache's fixed capacity. An entry asks
+ * for at most one refresh every few seconds; a refresh that fails leaves the
+ * old answer in place. Failures are reported through {@link #refreshFailed}:
+ * after a few in a row the entry may only answer stale for a few minutes more,
+ * so a resolver that keeps failing does not pin a name to an old answer for
+ * the whole day (RFC 8767 leaves that limit to the implementation).
+ */
+public final class DnsCache {
+
+    // Upper bound on how long we trust any record, whatever the upstream says.
+    private static final long MAX_TTL_SECONDS = 24 * 60 * 60;
+    // How long past its TTL an entry may still answer (RFC 8767 suggests one to three days).
+    private static final long MAX_STALE_MS = 24 * 60 * 60 * 1000L;
+    // The TTL a stale answer goes out with, so clients come back soon for the refreshed one.
+    static final long STALE_TTL_SECONDS = 30;
+    // Hits within one TTL that make an entry worth renewing before it expires.
+    static final int PREFETCH_MIN_HITS = 3;
+    private static final int PREFETCH_WINDOW_DIVISOR = 10;
+    // Gap between refreshes of one entry, so a slow or failing upstream is not asked on every hit.
+    static final long REFRESH_RETRY_MS = 5_000;
+    // Failed refreshes in a row after which a stale entry has only FAILING_STALE_MS left.
+    static final int REFRESH_FAILURES_UNTIL_CAPPED = 3;
+    static final long FAILING_STALE_MS = 5 * 60 * 1000L;
+
+    /**
+     * Fetches a name again; the answer is expected back through {@link #store},
+     * a failure through {@link #refreshFailed}.
+     */
+    public interface Refresher {
+        /**
+         * The query is {@code query[msg, end)}, valid only for the duration of the
+         * call. Called on the lookup thread, outside the cache's lock, with the
+         * client's answer already written, so it must hand the query off and
+         * return rather than wait for the upstream.
+         */
+        void refresh(byte[] query, int msg, int end);
+    }
+
+    private static final class Entry {
+        int hash;
+        byte[] question;
+        int questionLen;
+        byte[] response;
+        int responseLen;
+        long storedAt;
+        long expiresAt;
+        long prefetchAt;
+        long staleUntil;
+        long nextRefresh;
+        int hitCount;
+        int refreshFailures;
+        int flags;
+
+        Entry chain;
+        Entry newer;
+        Entry older;
+    }
+
+    private final int capacity;
+    private final int maxResponseLen;
+    private final Entry[] table;
+    private final int mask;
+    private int size;
+
+    // LRU list: head is the most recently used entry, tail the eviction candidate.
+    private Entry head;
+    private Entry tail;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong prefetches = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+
+    private final Refresher refresher;
+
+    public DnsCache(int capacity) {
+        this(capacity, StreamUpstream.MAX_MESSAGE, null);
+    }
+
+    /**
+     * @param maxResponseLen largest answer kept, at most what a lookup's output
+     *                       buffer holds; bigger ones would only pin memory,
+     *                       since they could never be served
+     */
+    public DnsCache(int capacity, int maxResponseLen, Refresher refresher) {
+        this.capacity = capacity;
+        this.maxResponseLen = maxResponseLen;
+        this.refresher = refresher;
+        int buckets = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+        this.table = new Entry[buckets];
+        this.mask = buckets - 1;
+    }
+
+    /**
+     * Looks up the query at {@code query[msg, end)}. On a hit the response is written to
+     * {@code out} at {@code outOffset} and its length returned; otherwise returns -1.
+     * A stale or soon-to-expire popular entry is also handed to the refresher, after
+     * the answer has been written and on the calling thread.
+     */
+    public int lookup(byte[] query, int msg, int end, byte[] out, int outOffset) {
+        return lookup(query, msg, end, out, outOffset, now());
+    }
+
+    int lookup(byte[] query, int msg, int end, byte[] out, int outOffset, long now) {
+        int qEnd = DnsWire.questionEnd(query, msg, end);
+        if (qEnd < 0) return -1;
+        int qStart = msg + DnsWire.HEADER_LEN;
+        int flags = flags(query, msg, end);
+        int hash = hash(query, qStart, qEnd, flags);
+        int len;
+        boolean refresh;
+
+        synchronized (this) {
+            Entry e = find(hash, flags, query, qStart, qEnd);
+            // Stale answers are only worth giving while something is fetching a fresh one.
+            if (e == null || (refresher != null ? e.staleUntil : e.expiresAt) <= now) {
+                if (e != null) remove(e);
+                misses.incrementAndGet();
+                return -1;
+            }
+            if (out.length - outOffset < e.responseLen) {
+                misses.incrementAndGet();
+                return -1;
+            }
+            touch(e);
+            if (e.hitCount < Integer.MAX_VALUE) e.hitCount++;
+            boolean stale = e.expiresAt <= now;
+            boolean prefetch = !stale && now >= e.prefetchAt && e.hitCount >= PREFETCH_MIN_HITS;
+            refresh = (stale || prefetch) && refresher != null && now >= e.nextRefresh;
+            if (refresh) {
+                e.nextRefresh = now + REFRESH_RETRY_MS;
+                if (prefetch) prefetches.incrementAndGet();
+            }
+            System.arraycopy(e.response, 0, out, outOffset, e.responseLen);
+            len = e.responseLen;
+            hits.incrementAndGet();
+
+            // Answer with the client's ID; copy its question too so 0x20 case randomisation survives.
+            out[outOffset] = query[msg];
+            out[outOffset + 1] = query[msg + 1];
+            System.arraycopy(query, qStart, out, outOffset + DnsWire.HEADER_LEN, qEnd - qStart);
+            if (stale) {
+                staleHits.incrementAndGet();
+                DnsWire.setTtls(out, outOffset, outOffset + len, STALE_TTL_SECONDS);
+            } else {
+                DnsWire.ageTtls(out, outOffset, outOffset + len, (now - e.storedAt) / 1000);
+            }
+        }
+        if (refresh) refresher.refresh(query, msg, end);
+        return len;
+    }
+
+    /**
+     * Caches the response {@code resp[respMsg, respEnd)} for the query {@code query[msg, end)}.
+     * Only successful or NXDOMAIN, untruncated answers with a positive TTL that
+     * fit {@code maxResponseLen} are kept; a bigger one drops the entry it replaces.
+     */
+    public void store(byte[] query, int msg, int end, byte[] resp, int respMsg, int respEnd) {
+        store(query, msg, end, resp, respMsg, respEnd, now());
+    }
+
+    void store(byte[] query, int msg, int end, byte[] resp, int respMsg, int respEnd, long now) {
+        int qEnd = DnsWire.questionEnd(query, msg, end);
+        int rqEnd = DnsWire.questionEnd(resp, respMsg, respEnd);
+        if (qEnd < 0 || rqEnd < 0) return;
+        if (!DnsWire.isResponse(resp, respMsg) || DnsWire.isTruncated(resp, respMsg)) return;
+        if (DnsWire.id(resp, respMsg) != DnsWire.id(query, msg)) return;
+        if (!sameQuestion(query, msg + DnsWire.HEADER_LEN, qEnd, resp, respMsg + DnsWire.HEADER_LEN, rqEnd)) return;
+        int rcode = DnsWire.rcode(resp, respMsg);
+        if (rcode != DnsWire.RCODE_NOERROR && rcode != DnsWire.RCODE_NXDOMAIN) return;
+
+        long ttl = Math.min(DnsWire.minTtl(resp, respMsg, respEnd), MAX_TTL_SECONDS);
+        if (ttl <= 0) return;
+
+        int qStart = msg + DnsWire.HEADER_LEN;
+        int qLen = qEnd - qStart;
+        int rLen = respEnd - respMsg;
+        int flags = flags(query, msg, end);
+        int hash = hash(query, qStart, qEnd, flags);
+
+        synchronized (this) {
+            Entry e = find(hash, flags, query, qStart, qEnd);
+            if (rLen > maxResponseLen) {
+                if (e != null) remove(e); // outdated by the answer we cannot keep
+                return;
+            }
+            if (e != null) {
+                unlink(e);
+            } else {
+                e = size >= capacity ? evictOldest() : new Entry();
+                e.hash = hash;
+                e.flags = flags;
+                e.question = ensure(e.question, qLen);
+                e.questionLen = qLen;
+                for (int i = 0; i < qLen; i++) e.question[i] = (byte) lower(query[qStart + i]);
+                int bucket = hash & mask;
+                e.chain = table[bucket];
+                table[bucket] = e;
+                size++;
+            }
+            e.response = ensure(e.response, rLen);
+            System.arraycopy(resp, respMsg, e.response, 0, rLen);
+            e.responseLen = rLen;
+            e.storedAt = now;
+            e.expiresAt = now + ttl * 1000;
+            e.prefetchAt = e.expiresAt - ttl * 1000 / PREFETCH_WINDOW_DIVISOR;
+            e.staleUntil = e.expiresAt + MAX_STALE_MS;
+            e.nextRefresh = Long.MIN_VALUE;
+            e.hitCount = 0;
+            e.refreshFailures = 0;
+            linkFirst(e);
+        }
+    }
+
+    /**
+     * Records that a refresh of the query {@code query[msg, end)} got no usable
+     * answer: it timed out, could not be sent, or came back SERVFAIL or REFUSED.
+     * A successful {@link #store} clears the count.
+     */
+    public void refreshFailed(byte[] query, int msg, int end) {
+        refreshFailed(query, msg, end, now());
+    }
+
+    void refreshFailed(byte[] query, int msg, int end, long now) {
+        int qEnd = DnsWire.questionEnd(query, msg, end);
+        if (qEnd < 0) return;
+        int qStart = msg + DnsWire.HEADER_LEN;
+        int flags = flags(query, msg, end);
+        int hash = hash(query, qStart, qEnd, flags);
+        synchronized (this) {
+            Entry e = find(hash, flags, query, qStart, qEnd);
+            if (e == null) return;
+            refreshFailures.incrementAndGet();
+            if (e.refreshFailures < Integer.MAX_VALUE) e.refreshFailures++;
+            if (e.refreshFailures >= REFRESH_FAILURES_UNTIL_CAPPED) {
+                // A failed prefetch must not cut short the entry's own TTL.
+                e.staleUntil = Math.max(e.expiresAt, Math.min(e.staleUntil, now + FAILING_STALE_MS));
+            }
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    /** Hits answered from an expired entry while it was being refreshed; part of {@link #hits}. */
+    public long staleHits() {
+        return staleHits.get();
+    }
+
+    /** Refreshes started for popular entries before they expired. */
+    public long prefetches() {
+        return prefetches.get();
+    }
+
+    /** Refreshes reported through {@link #refreshFailed}. */
+    public long refreshFailures() {
+        return refreshFailures.get();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < table.length; i++) table[i] = null;
+        head = tail = null;
+        size = 0;
+    }
+
+    // --- Internals (callers hold the monitor) ---
+
+    private Entry find(int hash, int flags, byte[] buf, int start, int end) {
+        int len = end - start;
+        for (Entry e = table[hash & mask]; e != null; e = e.chain) {
+            if (e.hash != hash || e.flags != flags || e.questionLen != len) continue;
+            int i = 0;
+            while (i < len && e.question[i] == (byte) lower(buf[start + i])) i++;
+            if (i == len) return e;
+        }
+        return null;
+    }
+
+    private Entry evictOldest() {
+        Entry victim = tail;
+        remove(victim);
+        return victim;
+    }
+
+    private void remove(Entry e) {
+        int bucket = e.hash & mask;
+        Entry prev = null;
+        for (Entry cur = table[bucket]; cur != null; prev = cur, cur = cur.chain) {
+            if (cur == e) {
+                if (prev == null) table[bucket] = cur.chain;
+                else prev.chain = cur.chain;
+                break;
+            }
+        }
+        e.chain = null;
+        unlink(e);
+        size--;
+    }
+
+    private void touch(Entry e) {
+        if (head == e) return;
+        unlink(e);
+        linkFirst(e);
+    }
+
+    private void linkFirst(Entry e) {
+        e.older = head;
+        e.newer = null;
+        if (head != null) head.newer = e;
+        head = e;
+        if (tail == null) tail = e;
+    }
+
+    private void unlink(Entry e) {
+        if (e.newer != null) e.newer.older = e.older;
+        else if (head == e) head = e.older;
+        if (e.older != null) e.older.newer = e.newer;
+        else if (tail == e) tail = e.newer;
+        e.newer = e.older = null;
+    }
+
+    private static boolean sameQuestion(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd) {
+        if (aEnd - aStart != bEnd - bStart) return false;
+        for (int i = 0; i < aEnd - aStart; i++) {
+            if (lower(a[aStart + i]) != lower(b[bStart + i])) return false;
+        }
+        return true;
+    }
+
+    private static byte[] ensure(byte[] buf, int len) {
+        return (buf != null && buf.length >= len) ? buf : new byte[len];
+    }
+
+    private static int lower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b + 32 : b;
+    }
+
+    /**
+     * The query bits that change the answer, as in {@link InflightQueries}: RD and
+     * CD change how the resolver answers, DO whether DNSSEC records come with it,
+     * and EDNS presence whether the answer may carry an OPT record (RFC 6891).
+     * The payload size is left out: the service truncates each answer for its client anyway.
+     */
+    private static int flags(byte[] buf, int msg, int end) {
+        int flags = (buf[msg + 2] & 0x01) | (buf[msg + 3] & 0x10);
+        if (DnsWire.hasOpt(buf, msg, end)) flags |= 0x100;
+        if (DnsWire.dnssecOk(buf, msg, end)) flags |= 0x200;
+        return flags;
+    }
+
+    private static int hash(byte[] buf, int start, int end, int flags) {
+        int h = 0x811C9DC5 ^ flags;
+        for (int i = start; i < end; i++) {
+            h ^= lower(buf[i]) & 0xFF;
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000L;
+    }
+}
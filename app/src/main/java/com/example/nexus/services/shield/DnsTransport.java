@@ -0,0 +1,54 @@
+package com.example.nexus.services.shield;
+
+import java.io.Closeable;
+
+/** A way of getting a DNS query answered by one upstream resolver. */
+public interface DnsTransport extends Closeable {
+
+    /** How queries reach the resolver. */
+    enum Protocol {
+        /** Plain DNS over UDP port 53. */
+        UDP,
+        /** DNS over TLS (RFC 7858), port 853. */
+        TLS,
+        /** DNS over HTTPS (RFC 8484) on HTTP/2, port 443. */
+        HTTPS
+    }
+
+    /** Receives the outcome of one query. Buffers are only valid for the duration of the call. */
+    interface Callback {
+        void onResponse(byte[] buf, int offset, int length);
+
+        void onFailure();
+    }
+
+    /** Observes every exchange, for health and latency tracking. Called on the transport's I/O thread. */
+    interface Listener {
+        void onAnswer(long rttMicros, int rcode);
+
+        void onTimeout();
+    }
+
+    /**
+     * Sends the DNS message {@code query[offset, offset + length)}. The caller's buffer
+     * is not modified. Returns false if the query could not be sent, in which case the
+     * callback is never invoked.
+     *
+     * <p>Never blocks on the network and never calls back before returning: the
+     * message is written to a non-blocking socket or queued for a writer thread,
+     * and a connection that is not up yet refuses rather than waits. Callers may
+     * therefore send from a selector thread while holding their own locks.
+     */
+    boolean send(byte[] query, int offset, int length, Callback callback);
+
+    /** Deadline for queries sent from now on; ones already in flight keep theirs. */
+    void setTimeout(long timeoutMs);
+
+    /** Fails queries that are past their deadline. Called regularly by the owner. */
+    void tick(long nowMs);
+
+    int inFlight();
+
+    @Override
+    void close();
+}
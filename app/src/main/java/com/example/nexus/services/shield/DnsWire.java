@@ -0,0 +1,201 @@
+package com.example.nexus.services.shield;
+
+/**
+ * Helpers for reading and patching DNS messages in wire format, in place.
+ * Offsets are absolute indexes into the buffer; {@code end} is exclusive.
+ * Malformed input yields -1 rather than an exception.
+ */
+public final class DnsWire {
+
+    public static final int HEADER_LEN = 12;
+    public static final int TYPE_OPT = 41;
+    /** Largest UDP answer a client that sent no EDNS OPT record will take (RFC 1035). */
+    public static final int CLASSIC_UDP_LIMIT = 512;
+
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_SERVFAIL = 2;
+    public static final int RCODE_NXDOMAIN = 3;
+    public static final int RCODE_REFUSED = 5;
+
+    private DnsWire() {}
+
+    public static int u16(byte[] buf, int pos) {
+        return ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+    }
+
+    public static long u32(byte[] buf, int pos) {
+        return ((long) u16(buf, pos) << 16) | u16(buf, pos + 2);
+    }
+
+    public static void put16(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) (value >> 8);
+        buf[pos + 1] = (byte) value;
+    }
+
+    public static void put32(byte[] buf, int pos, long value) {
+        put16(buf, pos, (int) (value >> 16));
+        put16(buf, pos + 2, (int) value);
+    }
+
+    public static int id(byte[] buf, int msg) {
+        return u16(buf, msg);
+    }
+
+    public static boolean isResponse(byte[] buf, int msg) {
+        return (buf[msg + 2] & 0x80) != 0;
+    }
+
+    public static boolean isTruncated(byte[] buf, int msg) {
+        return (buf[msg + 2] & 0x02) != 0;
+    }
+
+    public static int rcode(byte[] buf, int msg) {
+        return buf[msg + 3] & 0x0F;
+    }
+
+    public static int qdCount(byte[] buf, int msg) {
+        return u16(buf, msg + 4);
+    }
+
+    /** Skips a possibly compressed name starting at {@code pos}; returns the position after it. */
+    public static int skipName(byte[] buf, int pos, int end) {
+        while (pos < end) {
+            int len = buf[pos] & 0xFF;
+            if (len == 0) return pos + 1;
+            if ((len & 0xC0) == 0xC0) return pos + 2 <= end ? pos + 2 : -1;
+            if ((len & 0xC0) != 0) return -1;
+            pos += 1 + len;
+        }
+        return -1;
+    }
+
+    /**
+     * Writes a reply to the query at {@code query[msg, end)} that echoes its
+     * question, carries no records and has the given {@code rcode}. Returns the
+     * message length, or -1 if the query is malformed or {@code out} is too small.
+     */
+    public static int writeEmptyAnswer(byte[] query, int msg, int end, byte[] out, int outMsg, int rcode) {
+        int qEnd = questionEnd(query, msg, end);
+        if (qEnd < 0) return -1;
+        int len = qEnd - msg;
+        if (outMsg + len > out.length) return -1;
+        System.arraycopy(query, msg, out, outMsg, len);
+        // QR=1, keep opcode and RD; RA=1.
+        out[outMsg + 2] = (byte) (0x80 | (query[msg + 2] & 0x79));
+        out[outMsg + 3] = (byte) (0x80 | rcode);
+        put16(out, outMsg + 6, 0);
+        put16(out, outMsg + 8, 0);
+        put16(out, outMsg + 10, 0); // any EDNS OPT record in the query is not echoed
+        return len;
+    }
+
+    /**
+     * Largest UDP answer the sender of the query at {@code buf[msg, end)} accepts:
+     * the payload size in its EDNS OPT record (RFC 6891), or 512 without one.
+     */
+    public static int udpPayloadLimit(byte[] buf, int msg, int end) {
+        int opt = findOpt(buf, msg, end);
+        return opt < 0 ? CLASSIC_UDP_LIMIT : Math.max(CLASSIC_UDP_LIMIT, u16(buf, opt + 2));
+    }
+
+    /** Whether the message at {@code buf[msg, end)} has an EDNS OPT record (RFC 6891). */
+    public static boolean hasOpt(byte[] buf, int msg, int end) {
+        return findOpt(buf, msg, end) >= 0;
+    }
+
+    /** Whether the message at {@code buf[msg, end)} has an EDNS OPT record with the DO bit (RFC 3225) set. */
+    public static boolean dnssecOk(byte[] buf, int msg, int end) {
+        int opt = findOpt(buf, msg, end);
+        return opt >= 0 && (buf[opt + 6] & 0x80) != 0;
+    }
+
+    /** Position of the OPT record's TYPE field, or -1 if there is none or the message is malformed. */
+    private static int findOpt(byte[] buf, int msg, int end) {
+        int pos = questionEnd(buf, msg, end);
+        if (pos < 0) return -1;
+        int records = u16(buf, msg + 6) + u16(buf, msg + 8) + u16(buf, msg + 10);
+        for (int i = 0; i < records; i++) {
+            pos = skipName(buf, pos, end);
+            if (pos < 0 || pos + 10 > end) return -1;
+            if (u16(buf, pos) == TYPE_OPT) return pos;
+            pos += 10 + u16(buf, pos + 8);
+        }
+        return -1;
+    }
+
+    /**
+     * Cuts the response at {@code buf[msg, end)} down to its header and question,
+     * with TC set, so the client asks again over TCP. Works in place; returns
+     * the new length, or -1 if the message is malformed.
+     */
+    public static int truncate(byte[] buf, int msg, int end) {
+        int qEnd = questionEnd(buf, msg, end);
+        if (qEnd < 0) return -1;
+        buf[msg + 2] |= 0x02;
+        put16(buf, msg + 6, 0);
+        put16(buf, msg + 8, 0);
+        put16(buf, msg + 10, 0);
+        return qEnd - msg;
+    }
+
+    /** End of the single question (name, type, class) of the message at {@code msg}, or -1. */
+    public static int questionEnd(byte[] buf, int msg, int end) {
+        if (end - msg < HEADER_LEN || qdCount(buf, msg) != 1) return -1;
+        int pos = skipName(buf, msg + HEADER_LEN, end);
+        if (pos < 0 || pos + 4 > end) return -1;
+        return pos + 4;
+    }
+
+    /**
+     * Smallest TTL across the answer and authority sections, or -1 if there are no
+     * such records or the message is malformed. Negative answers carry their TTL in
+     * the SOA record, so the SOA MINIMUM field is also honoured.
+     */
+    public static long minTtl(byte[] buf, int msg, int end) {
+        int pos = questionEnd(buf, msg, end);
+        if (pos < 0) return -1;
+        int records = u16(buf, msg + 6) + u16(buf, msg + 8);
+        long min = -1;
+        for (int i = 0; i < records; i++) {
+            pos = skipName(buf, pos, end);
+            if (pos < 0 || pos + 10 > end) return -1;
+            int type = u16(buf, pos);
+            long ttl = u32(buf, pos + 4);
+            int rdLen = u16(buf, pos + 8);
+            int rdata = pos + 10;
+            if (rdata + rdLen > end) return -1;
+            if (type == 6 && rdLen >= 22) { // SOA: MINIMUM is the last 4 bytes of RDATA
+                ttl = Math.min(ttl, u32(buf, rdata + rdLen - 4));
+            }
+            if (min < 0 || ttl < min) min = ttl;
+            pos = rdata + rdLen;
+        }
+        return min;
+    }
+
+    /** Subtracts {@code elapsed} seconds from every record TTL (floored at 0), skipping OPT. */
+    public static boolean ageTtls(byte[] buf, int msg, int end, long elapsed) {
+        return rewriteTtls(buf, msg, end, elapsed, -1);
+    }
+
+    /** Sets every record TTL (except OPT) to {@code ttl}, e.g. for a stale answer. */
+    public static boolean setTtls(byte[] buf, int msg, int end, long ttl) {
+        return rewriteTtls(buf, msg, end, 0, ttl);
+    }
+
+    /** Ages each TTL by {@code elapsed}, or sets it to {@code ttl} when that is not negative. */
+    private static boolean rewriteTtls(byte[] buf, int msg, int end, long elapsed, long ttl) {
+        int pos = questionEnd(buf, msg, end);
+        if (pos < 0) return false;
+        int records = u16(buf, msg + 6) + u16(buf, msg + 8) + u16(buf, msg + 10);
+        for (int i = 0; i < records; i++) {
+            pos = skipName(buf, pos, end);
+            if (pos < 0 || pos + 10 > end) return false;
+            if (u16(buf, pos) != TYPE_OPT) {
+                put32(buf, pos + 4, ttl >= 0 ? ttl : Math.max(0, u32(buf, pos + 4) - elapsed));
+            }
+            pos += 10 + u16(buf, pos + 8);
+        }
+        return pos <= end;
+    }
+}
@@ -0,0 +1,236 @@
+package com.example.nexus.services.shield;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Read-only, memory-mapped set of blocked domains compiled from hosts-style lists.
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   int   magic "NXDI"
+ *   int   format version
+ *   int   entry count N
+ *   int[] N offsets into the record area, in sorted order
+ *   records: u8 length, then the domain with its characters reversed
+ * </pre>
+ * Storing names reversed makes every parent domain a prefix of its children,
+ * and the sort order lets us binary search straight out of the mapping. Lookups
+ * read the mapping with absolute gets and never allocate.
+ */
+public final class DomainIndex {
+
+    private static final int MAGIC = 0x4E584449; // "NXDI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_NAME = 253;
+
+    private final ByteBuffer map;
+    private final int count;
+    private final int recordBase;
+
+    private DomainIndex(ByteBuffer map, int count) {
+        this.map = map;
+        this.count = count;
+        this.recordBase = HEADER_SIZE + count * 4;
+    }
+
+    /** Maps a compiled index. Only the header is touched, so this is cheap for any size. */
+    public static DomainIndex open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Bad index size: " + size);
+            }
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            map.order(ByteOrder.BIG_ENDIAN);
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                throw new IOException("Not a domain index: " + file);
+            }
+            int count = map.getInt(8);
+            if (count < 0 || HEADER_SIZE + (long) count * 4 > size) {
+                throw new IOException("Corrupt index header: " + file);
+            }
+            return new DomainIndex(map, count);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long byteSize() {
+        return map.capacity();
+    }
+
+    /** {@link SuffixFilter} hash of entry {@code i}; records are stored reversed, so this reads them in order. */
+    long entryHash(int i) {
+        int rec = recordBase + map.getInt(HEADER_SIZE + i * 4);
+        int len = map.get(rec) & 0xFF;
+        long h = SuffixFilter.SEED;
+        for (int j = 0; j < len; j++) h = SuffixFilter.step(h, map.get(rec + 1 + j) & 0xFF);
+        return h;
+    }
+
+    /** True if {@code name} or any of its parent domains is in the index. */
+    public boolean contains(CharSequence name) {
+        int end = name.length();
+        if (end > 0 && name.charAt(end - 1) == '.') end--;
+        if (end == 0 || end > MAX_NAME) return false;
+        if (containsExact(name, 0, end)) return true;
+        for (int i = 0; i < end; i++) {
+            if (name.charAt(i) == '.' && i + 1 < end && containsExact(name, i + 1, end)) return true;
+        }
+        return false;
+    }
+
+    /** Same as {@link #contains(CharSequence)} for a dotted ASCII name held in a byte array. */
+    public boolean contains(byte[] name, int offset, int length) {
+        int end = offset + length;
+        if (length > 0 && name[end - 1] == '.') end--;
+        if (end <= offset || end - offset > MAX_NAME) return false;
+        if (containsExact(name, offset, end)) return true;
+        for (int i = offset; i < end; i++) {
+            if (name[i] == '.' && i + 1 < end && containsExact(name, i + 1, end)) return true;
+        }
+        return false;
+    }
+
+    private boolean containsExact(CharSequence name, int start, int end) {
+        int lo = 0, hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int rec = recordBase + map.getInt(HEADER_SIZE + mid * 4);
+            int recLen = map.get(rec) & 0xFF;
+            int qLen = end - start;
+            int n = Math.min(recLen, qLen);
+            int cmp = 0;
+            for (int j = 0; j < n && cmp == 0; j++) {
+                int q = fold(name.charAt(end - 1 - j));
+                cmp = (map.get(rec + 1 + j) & 0xFF) - q;
+            }
+            if (cmp == 0) cmp = recLen - qLen;
+            if (cmp < 0) lo = mid + 1;
+            else if (cmp > 0) hi = mid - 1;
+            else return true;
+        }
+        return false;
+    }
+
+    private boolean containsExact(byte[] name, int start, int end) {
+        int lo = 0, hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int rec = recordBase + map.getInt(HEADER_SIZE + mid * 4);
+            int recLen = map.get(rec) & 0xFF;
+            int qLen = end - start;
+            int n = Math.min(recLen, qLen);
+            int cmp = 0;
+            for (int j = 0; j < n && cmp == 0; j++) {
+                int q = fold(name[end - 1 - j] & 0xFF);
+                cmp = (map.get(rec + 1 + j) & 0xFF) - q;
+            }
+            if (cmp == 0) cmp = recLen - qLen;
+            if (cmp < 0) lo = mid + 1;
+            else if (cmp > 0) hi = mid - 1;
+            else return true;
+        }
+        return false;
+    }
+
+    private static int fold(int c) {
+        if (c > 0xFF) return 0x100; // sorts after every stored byte, so it never matches
+        return (c >= 'A' && c <= 'Z') ? c + 32 : c;
+    }
+
+    // --- Compiler ---
+
+    /**
+     * Parses a hosts file or plain one-domain-per-line list and writes a compiled
+     * index to {@code out}. The file is written next to the target and renamed
+     * into place, so a concurrently mapped old index is never torn.
+     *
+     * @return number of unique domains written
+     */
+    public static int compile(Reader source, File out) throws IOException {
+        List<String> reversed = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(source)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int hash = line.indexOf('#');
+                if (hash >= 0) line = line.substring(0, hash);
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length == 0 || tokens[0].isEmpty()) continue;
+                int first = isAddress(tokens[0]) ? 1 : 0;
+                for (int i = first; i < tokens.length; i++) {
+                    String domain = normalize(tokens[i]);
+                    if (domain != null) reversed.add(new StringBuilder(domain).reverse().toString());
+                }
+            }
+        }
+
+        Collections.sort(reversed);
+        File tmp = new File(out.getPath() + ".tmp");
+        int written = 0;
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            List<byte[]> records = new ArrayList<>(reversed.size());
+            String prev = null;
+            for (String r : reversed) {
+                if (r.equals(prev)) continue;
+                records.add(r.getBytes(StandardCharsets.US_ASCII));
+                prev = r;
+            }
+            written = records.size();
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(written);
+            int offset = 0;
+            for (byte[] rec : records) {
+                dos.writeInt(offset);
+                offset += 1 + rec.length;
+            }
+            for (byte[] rec : records) {
+                dos.writeByte(rec.length);
+                dos.write(rec);
+            }
+        }
+        if (!tmp.renameTo(out)) {
+            tmp.delete();
+            throw new IOException("Could not move index into place: " + out);
+        }
+        return written;
+    }
+
+    private static boolean isAddress(String token) {
+        return token.indexOf(':') >= 0 || token.matches("\\d{1,3}(\\.\\d{1,3}){3}");
+    }
+
+    private static String normalize(String token) {
+        String d = token.toLowerCase(Locale.ROOT);
+        if (d.endsWith(".")) d = d.substring(0, d.length() - 1);
+        if (d.isEmpty() || d.length() > MAX_NAME || d.indexOf('.') < 0) return null; // skips "localhost" etc.
+        for (int i = 0; i < d.length(); i++) {
+            char c = d.charAt(i);
+            boolean ok = (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_';
+            if (!ok) return null;
+        }
+        return d;
+    }
+}
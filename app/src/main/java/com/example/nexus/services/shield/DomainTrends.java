@@ -0,0 +1,335 @@
+package com.example.nexus.services.shield;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Most-queried and most-blocked domains over the last minute, hour and day,
+ * in fixed memory however many distinct names go by.
+ *
+ * <p>Each time bucket keeps a Space-Saving summary: K counters, and a name
+ * that is not tracked takes over the smallest counter, inheriting its count
+ * as an error bound. Queries land in the current 10 s bucket, which stores
+ * names as bytes in reused slots, so recording allocates nothing. Each
+ * packet thread writes to the 10 s buckets of its own stripe under that
+ * stripe's lock; the shared lock is only taken once per 10 s, when the open
+ * buckets of every stripe are folded into the 5 min bucket they belong to,
+ * and closed 5 min buckets into their hour. A window is answered by merging
+ * the buckets it covers; counts may be overstated by at most the reported
+ * error.
+ */
+public final class DomainTrends {
+
+    private static final String TAG = "ShieldTrends";
+
+    public enum Window {
+        MINUTE("1m"),
+        HOUR("1h"),
+        DAY("24h");
+
+        public final String label;
+
+        Window(String label) {
+            this.label = label;
+        }
+
+        /** "1m", "1h" or "24h"; anything else is the hour. */
+        public static Window parse(String label) {
+            for (Window w : values()) {
+                if (w.label.equalsIgnoreCase(label)) return w;
+            }
+            return HOUR;
+        }
+    }
+
+    private static final long FINE_MS = 10_000L;
+    private static final long MID_MS = 5 * 60_000L;
+    private static final long COARSE_MS = 3_600_000L;
+    private static final int FINE_BUCKETS = 6;    // one minute
+    private static final int MID_BUCKETS = 12;    // one hour
+    private static final int COARSE_BUCKETS = 24; // one day
+    private static final int STRIPES = 4;
+
+    // Counters per bucket. With 60 buckets of two summaries each this is about 0.6 MB in all.
+    static final int K = 64;
+    private static final int NAME_SLOT = 64; // grows once per slot for longer names
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final Bucket[] mid = new Bucket[MID_BUCKETS];
+    private final Bucket[] coarse = new Bucket[COARSE_BUCKETS];
+
+    public DomainTrends() {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+        for (int i = 0; i < MID_BUCKETS; i++) mid[i] = new Bucket();
+        for (int i = 0; i < COARSE_BUCKETS; i++) coarse[i] = new Bucket();
+    }
+
+    /**
+     * The last minute of 10 s buckets for the threads that map to it. Guarded
+     * by its own monitor; {@code current} is the open bucket's epoch.
+     */
+    private static final class Stripe {
+        final Bucket[] fine = new Bucket[FINE_BUCKETS];
+        volatile long current = Long.MIN_VALUE;
+
+        Stripe() {
+            for (int i = 0; i < FINE_BUCKETS; i++) fine[i] = new Bucket();
+        }
+
+        Bucket open() {
+            return fine[(int) Math.floorMod(current, (long) FINE_BUCKETS)];
+        }
+    }
+
+    /** Queried and blocked summaries for one interval; {@code epoch} is the interval's index since time 0. */
+    private static final class Bucket {
+        final Summary queried;
+        final Summary blocked;
+        long epoch = Long.MIN_VALUE;
+        boolean rolledUp; // mid buckets only: already folded into their hour
+
+        Bucket() {
+            queried = new Summary(K);
+            blocked = new Summary(K);
+        }
+
+        void reset(long epoch) {
+            this.epoch = epoch;
+            rolledUp = false;
+            queried.clear();
+            blocked.clear();
+        }
+    }
+
+    /** Space-Saving over names held as bytes. K is small, so lookups are a scan of the hashes. */
+    private static final class Summary {
+        final int[] hashes;
+        final long[] counts;
+        final long[] errors;
+        final byte[][] names;
+        final int[] lengths;
+        int size;
+
+        Summary(int k) {
+            hashes = new int[k];
+            counts = new long[k];
+            errors = new long[k];
+            names = new byte[k][NAME_SLOT];
+            lengths = new int[k];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void offer(int hash, byte[] name, int len, long count, long error) {
+            for (int i = 0; i < size; i++) {
+                if (hashes[i] == hash && same(i, name, len)) {
+                    counts[i] += count;
+                    errors[i] += error;
+                    return;
+                }
+            }
+            int slot;
+            if (size < hashes.length) {
+                slot = size++;
+            } else {
+                slot = 0;
+                for (int i = 1; i < size; i++) {
+                    if (counts[i] < counts[slot]) slot = i;
+                }
+                // The newcomer may have been seen up to min times while untracked.
+                count += counts[slot];
+                error += counts[slot];
+            }
+            if (names[slot].length < len) names[slot] = new byte[PacketCodec.MAX_NAME];
+            System.arraycopy(name, 0, names[slot], 0, len);
+            lengths[slot] = len;
+            hashes[slot] = hash;
+            counts[slot] = count;
+            errors[slot] = error;
+        }
+
+        void mergeInto(Summary other) {
+            for (int i = 0; i < size; i++) other.offer(hashes[i], names[i], lengths[i], counts[i], errors[i]);
+        }
+
+        void addTo(Map<String, long[]> totals) {
+            for (int i = 0; i < size; i++) {
+                String name = new String(names[i], 0, lengths[i], StandardCharsets.US_ASCII);
+                long[] t = totals.get(name);
+                if (t == null) totals.put(name, t = new long[2]);
+                t[0] += counts[i];
+                t[1] += errors[i];
+            }
+        }
+
+        private boolean same(int i, byte[] name, int len) {
+            if (lengths[i] != len) return false;
+            byte[] mine = names[i];
+            for (int j = 0; j < len; j++) {
+                if (mine[j] != name[j]) return false;
+            }
+            return true;
+        }
+    }
+
+    /** Counts one query whose name {@link PacketCodec#readName} filled in. */
+    public void record(Packet query, boolean blocked) {
+        record(query.nameHash, query.name, query.nameLen, blocked, now());
+    }
+
+    void record(int hash, byte[] name, int len, boolean blocked, long nowMs) {
+        if (hash == 0) return;
+        Stripe s = stripes[(int) (Thread.currentThread().getId() % STRIPES)];
+        if (Math.floorDiv(nowMs, FINE_MS) > s.current) advance(nowMs);
+        synchronized (s) {
+            // Another thread may have moved the stripe on since; a query that
+            // late still counts in the newest bucket.
+            Bucket b = s.open();
+            b.queried.offer(hash, name, len, 1, 0);
+            if (blocked) b.blocked.offer(hash, name, len, 1, 0);
+        }
+    }
+
+    /**
+     * Moves the open fine bucket of every stripe to {@code nowMs}. The buckets
+     * they replace are folded into their 5 min bucket, and 5 min buckets that
+     * can no longer receive anything are folded into their hour. All stripes
+     * move together, so none is left holding an interval older than the 5 min
+     * ring still covers.
+     */
+    private synchronized void advance(long nowMs) {
+        long epoch = Math.floorDiv(nowMs, FINE_MS);
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                if (s.current >= epoch) continue;
+                if (s.current != Long.MIN_VALUE) {
+                    Bucket closed = s.open();
+                    Bucket m = slot(mid, Math.floorDiv(s.current * FINE_MS, MID_MS));
+                    closed.queried.mergeInto(m.queried);
+                    closed.blocked.mergeInto(m.blocked);
+                }
+                s.current = epoch;
+                s.open().reset(epoch);
+            }
+        }
+        long openMid = Math.floorDiv(nowMs, MID_MS);
+        for (Bucket m : mid) {
+            if (m.epoch != Long.MIN_VALUE && m.epoch < openMid && !m.rolledUp) {
+                Bucket c = slot(coarse, Math.floorDiv(m.epoch * MID_MS, COARSE_MS));
+                m.queried.mergeInto(c.queried);
+                m.blocked.mergeInto(c.blocked);
+                m.rolledUp = true;
+            }
+        }
+    }
+
+    /** The bucket for {@code epoch} in {@code ring}, emptied first if it still holds an older interval. */
+    private static Bucket slot(Bucket[] ring, long epoch) {
+        Bucket b = ring[(int) Math.floorMod(epoch, (long) ring.length)];
+        if (b.epoch != epoch) b.reset(epoch);
+        return b;
+    }
+
+    /** Top {@code limit} names (at most {@link #K}) by queries and by blocks over {@code window}. */
+    public String statsJson(Window window, int limit) {
+        return statsJson(window, limit, now());
+    }
+
+    synchronized String statsJson(Window window, int limit, long nowMs) {
+        JSONObject o = new JSONObject();
+        try {
+            o.put("window", window.label);
+            o.put("queried", toJson(top(window, false, limit, nowMs)));
+            o.put("blocked", toJson(top(window, true, limit, nowMs)));
+        } catch (JSONException e) {
+            Log.e(TAG, "Stats serialisation failed", e);
+        }
+        return o.toString();
+    }
+
+    /** A name with its estimated count, which overstates the true count by at most {@code error}. */
+    public static final class Entry {
+        public final String name;
+        public final long count;
+        public final long error;
+
+        Entry(String name, long count, long error) {
+            this.name = name;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    synchronized List<Entry> top(Window window, boolean blocked, int limit, long nowMs) {
+        advance(nowMs);
+        Map<String, long[]> totals = new HashMap<>();
+        long fineEpoch = Math.floorDiv(nowMs, FINE_MS);
+        long midEpoch = Math.floorDiv(nowMs, MID_MS);
+        long coarseEpoch = Math.floorDiv(nowMs, COARSE_MS);
+        switch (window) {
+            case MINUTE:
+                collectFine(fineEpoch - FINE_BUCKETS, fineEpoch, blocked, totals);
+                break;
+            case HOUR:
+                collect(mid, midEpoch - MID_BUCKETS, midEpoch, blocked, totals);
+                collectFine(fineEpoch - 1, fineEpoch, blocked, totals);
+                break;
+            case DAY:
+                collect(coarse, coarseEpoch - COARSE_BUCKETS, coarseEpoch, blocked, totals);
+                // The open 5 min bucket has not reached its hour yet.
+                collect(mid, midEpoch - 1, midEpoch, blocked, totals);
+                collectFine(fineEpoch - 1, fineEpoch, blocked, totals);
+                break;
+        }
+        List<Entry> list = new ArrayList<>(totals.size());
+        for (Map.Entry<String, long[]> e : totals.entrySet()) {
+            list.add(new Entry(e.getKey(), e.getValue()[0], e.getValue()[1]));
+        }
+        list.sort((a, b) -> Long.compare(b.count, a.count));
+        limit = Math.min(limit, K);
+        return list.size() > limit ? new ArrayList<>(list.subList(0, limit)) : list;
+    }
+
+    /** Adds the 10 s buckets of every stripe whose epoch lies in (from, to]. */
+    private void collectFine(long from, long to, boolean blocked, Map<String, long[]> totals) {
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                collect(s.fine, from, to, blocked, totals);
+            }
+        }
+    }
+
+    /** Adds every bucket whose epoch lies in (from, to]. */
+    private static void collect(Bucket[] ring, long from, long to, boolean blocked, Map<String, long[]> totals) {
+        for (Bucket b : ring) {
+            if (b.epoch > from && b.epoch <= to) (blocked ? b.blocked : b.queried).addTo(totals);
+        }
+    }
+
+    private static JSONArray toJson(List<Entry> entries) throws JSONException {
+        JSONArray a = new JSONArray();
+        for (Entry e : entries) {
+            JSONObject o = new JSONObject();
+            o.put("domain", e.name);
+            o.put("count", e.count);
+            o.put("error", e.error);
+            a.put(o);
+        }
+        return a;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000L;
+    }
+}
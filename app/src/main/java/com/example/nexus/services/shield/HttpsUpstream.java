@@ -0,0 +1,603 @@
+package com.example.nexus.services.shield;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * DNS over HTTPS (RFC 8484) as POSTs multiplexed on one HTTP/2 connection.
+ *
+ * Only the part of HTTP/2 that DoH needs is implemented. Requests are encoded
+ * with the HPACK static table and literals only, so the server's decoder state
+ * never changes. Of the response headers only the leading :status is read; we
+ * advertise a zero header table, so it is a static-table entry or a literal.
+ * Anything but 2xx (or a status we cannot read) fails the query without
+ * looking at the body, and a 2xx body must still be a DNS reply to the query
+ * sent on that stream. Request bodies stay within both the connection and the
+ * per-stream send window; what a window holds back goes out when the server
+ * opens it. A query that times out has its stream reset so the server can
+ * drop it too.
+ */
+public final class HttpsUpstream extends StreamUpstream {
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int FRAME_HEADER = 9;
+    private static final int MAX_FRAME = 16384; // the default SETTINGS_MAX_FRAME_SIZE, which we keep
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int ERROR_CANCEL = 0x8;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final long MAX_WINDOW = Integer.MAX_VALUE;
+    // We raise the connection receive window once and top it up in large steps.
+    private static final int RECEIVE_WINDOW = 1 << 24;
+    // Each stream carries one answer and gets no window updates, so its window fits the largest, padded.
+    private static final int RECEIVE_STREAM_WINDOW = 1 << 17;
+    // Request bytes waiting for a send window, across all streams.
+    private static final int MAX_HELD = MAX_MESSAGE;
+    private static final int WINDOW_REFILL = 1 << 22;
+    private static final int MAX_STREAM_ID = Integer.MAX_VALUE - 2;
+    private static final int STREAM_SLOTS = PendingQueries.SLOTS;
+
+    // :status values of HPACK static table entries 8 to 14 (RFC 7541, appendix A).
+    private static final int[] STATIC_STATUS = {200, 204, 206, 304, 400, 404, 500};
+
+    /** HTTP/2 state of one connection. */
+    private static final class Session extends Connection {
+        int nextStreamId = 1;
+        volatile int maxStreams = 100; // until the server's SETTINGS say otherwise
+
+        // Send windows, and request bodies they held back. Guarded by writeLock.
+        long sendWindow = DEFAULT_WINDOW;
+        long initialStreamWindow = DEFAULT_WINDOW;
+        final int[] heldStreams = new int[STREAM_SLOTS];
+        final long[] heldWindows = new long[STREAM_SLOTS];
+        final byte[][] held = new byte[STREAM_SLOTS][];
+        final int[] heldLengths = new int[STREAM_SLOTS];
+        final int[] heldSent = new int[STREAM_SLOTS];
+        int heldBytes;
+        final byte[] resetCode = new byte[4];
+
+        // Stream to DNS ID, so a failed stream can fail its query. Guarded by the session.
+        final int[] streamIds = new int[STREAM_SLOTS];
+        final int[] streamDnsIds = new int[STREAM_SLOTS];
+
+        // Reader thread only: streams answered with 2xx, bodies that span several
+        // DATA frames, and unacknowledged bytes.
+        final int[] answeredStreams = new int[STREAM_SLOTS];
+        final byte[][] bodies = new byte[STREAM_SLOTS][];
+        final int[] bodyStreams = new int[STREAM_SLOTS];
+        final int[] bodyLengths = new int[STREAM_SLOTS];
+        int unacked;
+        final byte[] windowIncrement = new byte[4];
+
+        Session(Socket socket) throws IOException {
+            super(socket);
+        }
+    }
+
+    private final byte[] headerBlock;
+    // Written under writeLock.
+    private final byte[] frame;
+    private final byte[] control = new byte[FRAME_HEADER + 64];
+
+    /**
+     * @param authority host name sent as :authority, e.g. "dns.google"
+     * @param path      request path, e.g. "/dns-query"
+     * @param tls       false only for cleartext HTTP/2 (h2c) test servers
+     */
+    public HttpsUpstream(Connector connector, String authority, String path, boolean tls,
+                         long timeoutMs, Listener listener) {
+        super("ShieldDoH", connector, timeoutMs, listener);
+        byte[] block = new byte[64 + authority.length() + path.length() + 2 * 32];
+        int p = 0;
+        block[p++] = (byte) 0x83;                   // :method: POST
+        block[p++] = (byte) (tls ? 0x87 : 0x86);    // :scheme: https / http
+        if (path.equals("/")) {
+            block[p++] = (byte) 0x84;               // :path: /
+        } else {
+            p = putLiteral(block, p, 4, path);      // :path
+        }
+        p = putLiteral(block, p, 1, authority);     // :authority
+        p = putLiteral(block, p, 31, "application/dns-message"); // content-type
+        p = putLiteral(block, p, 19, "application/dns-message"); // accept
+        this.headerBlock = new byte[p];
+        System.arraycopy(block, 0, headerBlock, 0, p);
+        int dataFrames = (MAX_MESSAGE + MAX_FRAME - 1) / MAX_FRAME;
+        this.frame = new byte[FRAME_HEADER + headerBlock.length + dataFrames * FRAME_HEADER + MAX_MESSAGE];
+    }
+
+    @Override
+    Connection newConnection(Socket socket) throws IOException {
+        return new Session(socket);
+    }
+
+    @Override
+    void onConnected(Connection c) throws IOException {
+        byte[] b = new byte[PREFACE.length + FRAME_HEADER + 18 + FRAME_HEADER + 4];
+        int p = 0;
+        System.arraycopy(PREFACE, 0, b, 0, PREFACE.length);
+        p += PREFACE.length;
+        p = putFrameHeader(b, p, 18, TYPE_SETTINGS, 0, 0);
+        p = putSetting(b, p, SETTINGS_HEADER_TABLE_SIZE, 0);
+        p = putSetting(b, p, SETTINGS_ENABLE_PUSH, 0);
+        p = putSetting(b, p, SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_STREAM_WINDOW);
+        p = putFrameHeader(b, p, 4, TYPE_WINDOW_UPDATE, 0, 0);
+        DnsWire.put32(b, p, RECEIVE_WINDOW - DEFAULT_WINDOW);
+        p += 4;
+        c.out.write(b, 0, p);
+    }
+
+    @Override
+    int frameLength(int length) {
+        int dataFrames = Math.max(1, (length + MAX_FRAME - 1) / MAX_FRAME);
+        return FRAME_HEADER + headerBlock.length + dataFrames * FRAME_HEADER + length;
+    }
+
+    @Override
+    boolean hasCapacity(Connection c, int length) {
+        Session s = (Session) c;
+        return s.pending.size() < s.maxStreams && s.nextStreamId <= MAX_STREAM_ID
+                && s.heldBytes + length <= MAX_HELD;
+    }
+
+    @Override
+    void writeQuery(Connection c, byte[] query, int offset, int length, int id) throws IOException {
+        Session s = (Session) c;
+        int stream = s.nextStreamId;
+        s.nextStreamId += 2;
+        if (s.nextStreamId > MAX_STREAM_ID) retire(s); // out of stream IDs: the next query opens a new connection
+        int slot = (stream >>> 1) & (STREAM_SLOTS - 1);
+        synchronized (s) {
+            s.streamIds[slot] = stream;
+            s.streamDnsIds[slot] = id;
+        }
+
+        int p = putFrameHeader(frame, 0, headerBlock.length, TYPE_HEADERS, FLAG_END_HEADERS, stream);
+        System.arraycopy(headerBlock, 0, frame, p, headerBlock.length);
+        p += headerBlock.length;
+        if (length <= s.sendWindow && length <= s.initialStreamWindow) {
+            // The usual case: both windows take the whole body.
+            int body = p + FRAME_HEADER;
+            p = putData(frame, p, stream, query, offset, length, true);
+            DnsWire.put16(frame, body, id);
+            s.sendWindow -= length;
+            c.out.write(frame, 0, p);
+            return;
+        }
+        c.out.write(frame, 0, p);
+        byte[] body = s.held[slot];
+        if (body == null || body.length < length) body = s.held[slot] = new byte[Math.max(length, 512)];
+        System.arraycopy(query, offset, body, 0, length);
+        DnsWire.put16(body, 0, id);
+        s.heldStreams[slot] = stream;
+        s.heldWindows[slot] = s.initialStreamWindow;
+        s.heldLengths[slot] = length;
+        s.heldSent[slot] = 0;
+        s.heldBytes += length;
+        sendHeld(s, slot);
+    }
+
+    /** Sends as much of a held body as the windows allow. Called under {@link #writeLock}. */
+    private void sendHeld(Session s, int slot) throws IOException {
+        int sent = s.heldSent[slot];
+        int length = s.heldLengths[slot];
+        long allowed = Math.min(length - sent, Math.min(s.sendWindow, s.heldWindows[slot]));
+        if (allowed <= 0) return;
+        int n = (int) allowed;
+        int p = putData(frame, 0, s.heldStreams[slot], s.held[slot], sent, n, sent + n == length);
+        s.out.write(frame, 0, p);
+        s.sendWindow -= n;
+        s.heldWindows[slot] -= n;
+        s.heldSent[slot] = sent + n;
+        s.heldBytes -= n;
+        if (sent + n == length) s.heldStreams[slot] = 0;
+    }
+
+    /** Retries every held body after a window opened. Called under {@link #writeLock}. */
+    private void sendAllHeld(Session s) throws IOException {
+        for (int slot = 0; slot < STREAM_SLOTS && s.heldBytes > 0; slot++) {
+            if (s.heldStreams[slot] != 0) sendHeld(s, slot);
+        }
+    }
+
+    /** Forgets what is left of a stream's held body. Called under {@link #writeLock}. */
+    private static void dropHeld(Session s, int stream) {
+        int slot = (stream >>> 1) & (STREAM_SLOTS - 1);
+        if (s.heldStreams[slot] != stream) return;
+        s.heldBytes -= s.heldLengths[slot] - s.heldSent[slot];
+        s.heldStreams[slot] = 0;
+    }
+
+    /** Resets the streams whose queries timed out, so the server stops working on them. */
+    @Override
+    void onExpired(Connection c) {
+        Session s = (Session) c;
+        synchronized (writeLock) {
+            for (int slot = 0; slot < STREAM_SLOTS; slot++) {
+                int stream;
+                synchronized (s) {
+                    stream = s.streamIds[slot];
+                    if (stream == 0 || s.pending.isPending(s.streamDnsIds[slot])) continue;
+                    s.streamIds[slot] = 0;
+                }
+                try {
+                    resetStream(s, stream);
+                } catch (IOException e) {
+                    return; // the connection is closing anyway
+                }
+            }
+        }
+    }
+
+    @Override
+    void readLoop(Connection c) throws IOException {
+        Session s = (Session) c;
+        byte[] header = new byte[FRAME_HEADER];
+        byte[] payload = new byte[MAX_FRAME];
+        while (true) {
+            c.in.readFully(header, 0, FRAME_HEADER);
+            int length = (header[0] & 0xFF) << 16 | (header[1] & 0xFF) << 8 | (header[2] & 0xFF);
+            int type = header[3] & 0xFF;
+            int flags = header[4] & 0xFF;
+            int stream = (int) DnsWire.u32(header, 5) & 0x7FFFFFFF;
+            if (length > MAX_FRAME) throw new IOException("Frame exceeds SETTINGS_MAX_FRAME_SIZE");
+            c.in.readFully(payload, 0, length);
+
+            switch (type) {
+                case TYPE_DATA:
+                    onData(s, stream, flags, payload, length);
+                    break;
+                case TYPE_HEADERS:
+                    onHeaders(s, stream, flags, payload, length);
+                    break;
+                case TYPE_RST_STREAM:
+                    failStream(s, stream);
+                    synchronized (writeLock) {
+                        dropHeld(s, stream);
+                    }
+                    break;
+                case TYPE_SETTINGS:
+                    if ((flags & FLAG_ACK) == 0) onSettings(s, payload, length);
+                    break;
+                case TYPE_PING:
+                    if ((flags & FLAG_ACK) == 0 && length == 8) writeControl(s, TYPE_PING, FLAG_ACK, 0, payload, 8);
+                    break;
+                case TYPE_GOAWAY:
+                    retire(s); // in-flight streams below the last stream ID may still finish
+                    break;
+                case TYPE_WINDOW_UPDATE:
+                    if (length == 4) onWindowUpdate(s, stream, DnsWire.u32(payload, 0) & 0x7FFFFFFF);
+                    break;
+                default:
+                    break; // PRIORITY, CONTINUATION of ignored headers, unknown extensions
+            }
+        }
+    }
+
+    private void onHeaders(Session s, int stream, int flags, byte[] payload, int length) throws IOException {
+        int start = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (length == 0) return;
+            start = 1;
+            end = length - (payload[0] & 0xFF);
+        }
+        if ((flags & FLAG_PRIORITY) != 0) start += 5;
+        boolean last = (flags & FLAG_END_STREAM) != 0;
+        int slot = (stream >>> 1) & (STREAM_SLOTS - 1);
+
+        if (s.answeredStreams[slot] == stream && stream != 0) {
+            // Trailers after a 2xx: whatever body came is the answer.
+            if (last) {
+                int have = s.bodyStreams[slot] == stream ? s.bodyLengths[slot] : 0;
+                s.bodyLengths[slot] = 0;
+                if (have > 0) {
+                    finishStream(s, stream, s.bodies[slot], 0, have);
+                } else {
+                    failStream(s, stream);
+                }
+            }
+            return;
+        }
+        int status = end >= start ? status(payload, start, end) : -1;
+        if (status >= 100 && status < 200) return; // informational; the real response follows
+        if (status < 200 || status >= 300 || last) {
+            // An error, a status we cannot read, or a success without a body.
+            failStream(s, stream);
+            if (!last) resetStream(s, stream);
+            return;
+        }
+        s.answeredStreams[slot] = stream;
+        s.bodyStreams[slot] = stream;
+        s.bodyLengths[slot] = 0;
+    }
+
+    private void onWindowUpdate(Session s, int stream, long increment) throws IOException {
+        synchronized (writeLock) {
+            if (stream == 0) {
+                s.sendWindow += increment;
+                if (s.sendWindow > MAX_WINDOW) throw new IOException("Connection window overflow");
+                sendAllHeld(s);
+                return;
+            }
+            int slot = (stream >>> 1) & (STREAM_SLOTS - 1);
+            if (s.heldStreams[slot] != stream) return; // bodies not held back were sent whole
+            s.heldWindows[slot] += increment;
+            sendHeld(s, slot);
+        }
+    }
+
+    private void onData(Session s, int stream, int flags, byte[] payload, int length) throws IOException {
+        s.unacked += length;
+        if (s.unacked >= WINDOW_REFILL) {
+            DnsWire.put32(s.windowIncrement, 0, s.unacked);
+            writeControl(s, TYPE_WINDOW_UPDATE, 0, 0, s.windowIncrement, 4);
+            s.unacked = 0;
+        }
+        int slot = (stream >>> 1) & (STREAM_SLOTS - 1);
+        if (s.answeredStreams[slot] != stream) return; // no 2xx on this stream: it has failed already
+
+        int start = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (length == 0) return;
+            start = 1;
+            end = length - (payload[0] & 0xFF);
+            if (end < start) return;
+        }
+        boolean last = (flags & FLAG_END_STREAM) != 0;
+
+        if (s.bodyLengths[slot] == 0 && last) {
+            // The usual case: the whole answer in one frame.
+            finishStream(s, stream, payload, start, end - start);
+            return;
+        }
+        if (s.bodyStreams[slot] != stream) {
+            s.bodyStreams[slot] = stream;
+            s.bodyLengths[slot] = 0;
+        }
+        int have = s.bodyLengths[slot];
+        int need = have + end - start;
+        if (need > MAX_MESSAGE) {
+            s.bodyLengths[slot] = 0;
+            failStream(s, stream);
+            return;
+        }
+        byte[] body = s.bodies[slot];
+        if (body == null || body.length < need) {
+            byte[] grown = new byte[Math.min(MAX_MESSAGE, Math.max(need, 4096))];
+            if (body != null) System.arraycopy(body, 0, grown, 0, have);
+            body = s.bodies[slot] = grown;
+        }
+        System.arraycopy(payload, start, body, have, end - start);
+        s.bodyLengths[slot] = need;
+        if (last) {
+            s.bodyLengths[slot] = 0;
+            finishStream(s, stream, body, 0, need);
+        }
+    }
+
+    private void finishStream(Session s, int stream, byte[] buf, int offset, int length) {
+        int dnsId;
+        synchronized (s) {
+            int slot = (stream >>> 1) & (STREAM_SLOTS - 1);
+            if (s.streamIds[slot] != stream) return; // reset after its query timed out
+            s.streamIds[slot] = 0;
+            dnsId = s.streamDnsIds[slot];
+        }
+        // Not a DNS answer to this query: fail it rather than wait for the timeout.
+        if (!s.pending.complete(buf, offset, length, listener)) s.pending.fail(dnsId, listener);
+    }
+
+    private void failStream(Session s, int stream) {
+        int dnsId;
+        synchronized (s) {
+            int slot = (stream >>> 1) & (STREAM_SLOTS - 1);
+            if (stream == 0 || s.streamIds[slot] != stream) return;
+            s.streamIds[slot] = 0;
+            dnsId = s.streamDnsIds[slot];
+        }
+        s.pending.fail(dnsId, listener);
+    }
+
+    /** Tells the server we no longer want {@code stream}, and stops sending its body. */
+    private void resetStream(Session s, int stream) throws IOException {
+        synchronized (writeLock) {
+            dropHeld(s, stream);
+            DnsWire.put32(s.resetCode, 0, ERROR_CANCEL);
+            writeControl(s, TYPE_RST_STREAM, 0, stream, s.resetCode, 4);
+        }
+    }
+
+    private void onSettings(Session s, byte[] payload, int length) throws IOException {
+        synchronized (writeLock) {
+            for (int p = 0; p + 6 <= length; p += 6) {
+                int id = DnsWire.u16(payload, p);
+                long value = DnsWire.u32(payload, p + 2);
+                if (id == SETTINGS_MAX_CONCURRENT_STREAMS) {
+                    s.maxStreams = (int) Math.min(value, STREAM_SLOTS / 2);
+                } else if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                    if (value > MAX_WINDOW) throw new IOException("SETTINGS_INITIAL_WINDOW_SIZE too large");
+                    // Applies to open streams too (RFC 9113, 6.9.2); only held bodies still need theirs.
+                    long delta = value - s.initialStreamWindow;
+                    s.initialStreamWindow = value;
+                    for (int slot = 0; slot < STREAM_SLOTS; slot++) {
+                        if (s.heldStreams[slot] != 0) s.heldWindows[slot] += delta;
+                    }
+                }
+            }
+            sendAllHeld(s);
+            // Acknowledged under the same lock, so no query is queued between the change and the ack.
+            writeControl(s, TYPE_SETTINGS, FLAG_ACK, 0, payload, 0);
+        }
+    }
+
+    private void writeControl(Session s, int type, int flags, int stream, byte[] payload, int length)
+            throws IOException {
+        synchronized (writeLock) {
+            int p = putFrameHeader(control, 0, length, type, flags, stream);
+            System.arraycopy(payload, 0, control, p, length);
+            s.out.write(control, 0, p + length);
+        }
+    }
+
+    /** Writes DATA frames for {@code src[off, off + len)} at {@code b[p]}, ending the stream if {@code last}. */
+    private static int putData(byte[] b, int p, int stream, byte[] src, int off, int len, boolean last) {
+        int sent = 0;
+        do {
+            int chunk = Math.min(MAX_FRAME, len - sent);
+            boolean end = last && sent + chunk == len;
+            p = putFrameHeader(b, p, chunk, TYPE_DATA, end ? FLAG_END_STREAM : 0, stream);
+            System.arraycopy(src, off + sent, b, p, chunk);
+            p += chunk;
+            sent += chunk;
+        } while (sent < len);
+        return p;
+    }
+
+    private static int putFrameHeader(byte[] b, int p, int length, int type, int flags, int stream) {
+        b[p] = (byte) (length >> 16);
+        b[p + 1] = (byte) (length >> 8);
+        b[p + 2] = (byte) length;
+        b[p + 3] = (byte) type;
+        b[p + 4] = (byte) flags;
+        DnsWire.put32(b, p + 5, stream & 0x7FFFFFFFL);
+        return p + FRAME_HEADER;
+    }
+
+    private static int putSetting(byte[] b, int p, int id, long value) {
+        DnsWire.put16(b, p, id);
+        DnsWire.put32(b, p + 2, value);
+        return p + 6;
+    }
+
+    /** HPACK "literal header field without indexing" with a static-table name (RFC 7541, 6.2.2). */
+    private static int putLiteral(byte[] b, int p, int nameIndex, String value) {
+        p = putInt(b, p, 4, 0x00, nameIndex);
+        byte[] v = value.getBytes(StandardCharsets.US_ASCII);
+        p = putInt(b, p, 7, 0x00, v.length); // H = 0: no Huffman coding
+        System.arraycopy(v, 0, b, p, v.length);
+        return p + v.length;
+    }
+
+    /**
+     * The :status at the start of a response header block, or -1 if the block
+     * does not start with one we can read: a static-table entry, or a literal
+     * with the :status name and a plain or Huffman-coded value.
+     */
+    static int status(byte[] b, int p, int end) {
+        // Dynamic table size updates come first once the server applies our zero-size setting.
+        while (p < end && (b[p] & 0xE0) == 0x20) {
+            long skipped = readInt(b, p, end, 5);
+            if (skipped < 0) return -1;
+            p = (int) skipped;
+        }
+        if (p >= end) return -1;
+        if ((b[p] & 0x80) != 0) {
+            long index = readInt(b, p, end, 7);
+            int i = (int) (index >>> 32);
+            return index >= 0 && i >= 8 && i <= 14 ? STATIC_STATUS[i - 8] : -1;
+        }
+        // Literal with incremental indexing (6-bit name index), or without / never indexed (4-bit).
+        long name = readInt(b, p, end, (b[p] & 0x40) != 0 ? 6 : 4);
+        if (name < 0) return -1;
+        int i = (int) (name >>> 32);
+        if (i < 8 || i > 14) return -1;
+        p = (int) name;
+        if (p >= end) return -1;
+        boolean huffman = (b[p] & 0x80) != 0;
+        long valueLength = readInt(b, p, end, 7);
+        if (valueLength < 0) return -1;
+        int start = (int) valueLength;
+        int stop = start + (int) (valueLength >>> 32);
+        if (stop > end) return -1;
+        return huffman ? huffmanStatus(b, start, stop) : plainStatus(b, start, stop);
+    }
+
+    private static int plainStatus(byte[] b, int p, int end) {
+        if (end - p != 3) return -1;
+        int status = 0;
+        for (; p < end; p++) {
+            int digit = b[p] - '0';
+            if (digit < 0 || digit > 9) return -1;
+            status = status * 10 + digit;
+        }
+        return status;
+    }
+
+    /** Three digits in HPACK's Huffman code: '0'-'2' are 5 bits 0-2, '3'-'9' are 6 bits 0x19-0x1f. */
+    private static int huffmanStatus(byte[] b, int p, int end) {
+        long bits = 0;
+        int have = 0;
+        for (int i = p; i < end && i < p + 3; i++) {
+            bits = bits << 8 | (b[i] & 0xFF);
+            have += 8;
+        }
+        int status = 0;
+        for (int digits = 0; digits < 3; digits++) {
+            if (have < 5) return -1;
+            int code5 = (int) (bits >>> (have - 5)) & 0x1F;
+            if (code5 <= 2) {
+                status = status * 10 + code5;
+                have -= 5;
+                continue;
+            }
+            if (have < 6) return -1;
+            int code6 = (int) (bits >>> (have - 6)) & 0x3F;
+            if (code6 < 0x19) return -1;
+            status = status * 10 + code6 - 0x19 + 3;
+            have -= 6;
+        }
+        return status;
+    }
+
+    /** Reads an HPACK integer with an N-bit prefix; returns its value << 32 | the next position, or -1. */
+    private static long readInt(byte[] b, int p, int end, int prefixBits) {
+        int max = (1 << prefixBits) - 1;
+        int value = b[p++] & max;
+        if (value < max) return (long) value << 32 | p;
+        for (int shift = 0; p < end && shift <= 21; shift += 7) {
+            int x = b[p++] & 0xFF;
+            value += (x & 0x7F) << shift;
+            if ((x & 0x80) == 0) return (long) value << 32 | p;
+        }
+        return -1;
+    }
+
+    /** HPACK integer with an N-bit prefix (RFC 7541, 5.1). */
+    private static int putInt(byte[] b, int p, int prefixBits, int flags, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            b[p++] = (byte) (flags | value);
+            return p;
+        }
+        b[p++] = (byte) (flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            b[p++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        b[p++] = (byte) value;
+        return p;
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.nexus.services.shield;
+
+/**
+ * Upstream requests currently in flight, keyed by question (name, type and
+ * class) plus the header and EDNS bits that can change the answer. A query
+ * that matches a pending one does not go upstream; it waits on the leader and
+ * gets a copy of the leader's answer. Entries are the query {@link Packet}s
+ * themselves, linked through their intrusive fields, so nothing is allocated.
+ */
+public final class InflightQueries {
+
+    private static final int OPCODE_MASK = 0x78;
+    // Upper bounds of the EDNS payload size classes; past the last one is a class of its own.
+    private static final int[] SIZE_CLASSES = {DnsWire.CLASSIC_UDP_LIMIT, 1232, 4096};
+
+    private final Packet[] table;
+    private final int mask;
+    private int size;
+    private long coalesced;
+
+    /** {@code buckets} is rounded up to a power of two. */
+    public InflightQueries(int buckets) {
+        int n = Integer.highestOneBit(Math.max(buckets, 2) - 1) << 1;
+        this.table = new Packet[n];
+        this.mask = n - 1;
+    }
+
+    /**
+     * Either registers {@code query} as the leader for its question and returns
+     * false (the caller must send it upstream), or queues it behind an existing
+     * leader and returns true (the caller must not touch it until it is handed
+     * back by {@link #finish}). Queries that cannot be keyed always lead, but
+     * are not registered. The key hash starts from the name hash left by
+     * {@link PacketCodec#readName}, so that must have succeeded first.
+     */
+    public synchronized boolean join(Packet query) {
+        byte[] buf = query.data;
+        int msg = query.dnsStart;
+        int qEnd = DnsWire.questionEnd(buf, msg, query.length);
+        if (qEnd < 0 || query.nameHash == 0 || DnsWire.qdCount(buf, msg) != 1 || (buf[msg + 2] & OPCODE_MASK) != 0) {
+            query.inflightHash = 0;
+            return false;
+        }
+        int hash = hash(query.nameHash, buf, msg, query.length, qEnd);
+        for (Packet p = table[hash & mask]; p != null; p = p.nextLeader) {
+            if (p.inflightHash == hash && sameKey(p, query, qEnd)) {
+                query.nextWaiter = p.waiters;
+                p.waiters = query;
+                coalesced++;
+                return true;
+            }
+        }
+        query.inflightHash = hash;
+        query.waiters = null;
+        query.nextLeader = table[hash & mask];
+        table[hash & mask] = query;
+        size++;
+        return false;
+    }
+
+    /**
+     * Removes {@code leader} from the table and returns the queries that were
+     * waiting on it, linked through {@link Packet#nextWaiter}, or null.
+     */
+    public synchronized Packet finish(Packet leader) {
+        if (leader.inflightHash == 0) return null;
+        int bucket = leader.inflightHash & mask;
+        Packet prev = null;
+        for (Packet p = table[bucket]; p != null; prev = p, p = p.nextLeader) {
+            if (p != leader) continue;
+            if (prev == null) table[bucket] = p.nextLeader;
+            else prev.nextLeader = p.nextLeader;
+            size--;
+            break;
+        }
+        Packet waiters = leader.waiters;
+        leader.waiters = null;
+        leader.nextLeader = null;
+        leader.inflightHash = 0;
+        return waiters;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Queries answered by sharing another query's upstream request. */
+    public synchronized long coalescedCount() {
+        return coalesced;
+    }
+
+    /**
+     * RD and CD change how the resolver answers, and DO whether DNSSEC records
+     * come with it. EDNS presence decides whether the answer may carry an OPT
+     * record, and the payload size how much of it fits a datagram; the size is
+     * bucketed so that only a materially different one splits queries apart.
+     */
+    private static int flags(byte[] buf, int msg, int end) {
+        int flags = (buf[msg + 2] & 0x01) | (buf[msg + 3] & 0x10) | (DnsWire.u16(buf, msg + 10) > 0 ? 0x100 : 0);
+        if (DnsWire.dnssecOk(buf, msg, end)) flags |= 0x200;
+        int size = DnsWire.udpPayloadLimit(buf, msg, end);
+        int sizeClass = 0;
+        while (sizeClass < SIZE_CLASSES.length && size > SIZE_CLASSES[sizeClass]) sizeClass++;
+        return flags | sizeClass << 10;
+    }
+
+    private static boolean sameKey(Packet leader, Packet query, int qEnd) {
+        byte[] a = leader.data;
+        byte[] b = query.data;
+        int aMsg = leader.dnsStart;
+        int bMsg = query.dnsStart;
+        if (flags(a, aMsg, leader.length) != flags(b, bMsg, query.length)) return false;
+        int len = qEnd - bMsg - DnsWire.HEADER_LEN;
+        int aEnd = DnsWire.questionEnd(a, aMsg, leader.length);
+        if (aEnd - aMsg - DnsWire.HEADER_LEN != len) return false;
+        int nameLen = len - 4;
+        for (int i = 0; i < len; i++) {
+            byte x = a[aMsg + DnsWire.HEADER_LEN + i];
+            byte y = b[bMsg + DnsWire.HEADER_LEN + i];
+            if (i < nameLen ? lower(x) != lower(y) : x != y) return false;
+        }
+        return true;
+    }
+
+    private static int lower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b + 32 : b;
+    }
+
+    // Never 0, which marks an unregistered query.
+    private static int hash(int nameHash, byte[] buf, int msg, int end, int qEnd) {
+        int h = nameHash ^ flags(buf, msg, end) << 20;
+        for (int i = qEnd - 4; i < qEnd; i++) {
+            h ^= buf[i] & 0xFF;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        return h != 0 ? h : 1;
+    }
+}
@@ -0,0 +1,239 @@
+package com.example.nexus.services.shield;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Aho-Corasick automaton over a fixed keyword set.
+ * Built once, then answers "does any keyword occur in this name" in a single
+ * pass over the name, independent of how many keywords were compiled in.
+ * Matching is ASCII case-insensitive and does not allocate.
+ */
+public final class KeywordMatcher {
+
+    private static final int ROOT = 0;
+    private static final int NO_MATCH = -1;
+
+    // Transitions are stored CSR-style: the children of state s live in
+    // childLabel/childTarget[childStart[s] .. childStart[s + 1]), sorted by label.
+    private final int[] childStart;
+    private final byte[] childLabel;
+    private final int[] childTarget;
+    private final int[] fail;
+    // Lowest keyword index that ends in this state or anywhere on its fail chain.
+    private final int[] output;
+    // Keyword ending exactly in this state, and the next state on the fail chain
+    // where one ends; together they enumerate every match, not just the first.
+    private final int[] terminal;
+    private final int[] dict;
+    // The root is hit on almost every byte, so it gets a dense row.
+    private final int[] rootNext = new int[256];
+    private final int keywordCount;
+
+    private KeywordMatcher(int[] childStart, byte[] childLabel, int[] childTarget,
+                           int[] fail, int[] output, int[] terminal, int[] dict, int keywordCount) {
+        this.childStart = childStart;
+        this.childLabel = childLabel;
+        this.childTarget = childTarget;
+        this.fail = fail;
+        this.output = output;
+        this.terminal = terminal;
+        this.dict = dict;
+        this.keywordCount = keywordCount;
+        for (int i = childStart[ROOT]; i < childStart[ROOT + 1]; i++) {
+            rootNext[childLabel[i] & 0xFF] = childTarget[i];
+        }
+    }
+
+    /**
+     * Builds the automaton with flat int arrays only. Keywords are inserted in
+     * sorted order, so each one shares its prefix with the previous one and
+     * every state's children come out already sorted by label; that keeps
+     * compiling tens of thousands of keywords cheap in time and memory.
+     */
+    public static KeywordMatcher compile(Collection<String> keywords) {
+        String[] folded = new String[keywords.size()];
+        List<Integer> order = new ArrayList<>(folded.length);
+        int totalChars = 0;
+        int index = 0;
+        for (String keyword : keywords) {
+            if (keyword != null && !keyword.isEmpty()) {
+                folded[index] = keyword.toLowerCase(Locale.ROOT);
+                totalChars += keyword.length();
+                order.add(index);
+            }
+            index++;
+        }
+        // Equal keywords sort by index, so the first one seen claims the state.
+        order.sort((x, y) -> {
+            int c = compareBytes(folded[x], folded[y]);
+            return c != 0 ? c : Integer.compare(x, y);
+        });
+
+        int[] terminal = new int[totalChars + 1];
+        int[] edgeParent = new int[totalChars];
+        int[] edgeLabel = new int[totalChars];
+        int stateCount = 1;
+        terminal[ROOT] = NO_MATCH;
+        int[] path = new int[1];
+        String prev = "";
+        for (int k : order) {
+            String word = folded[k];
+            if (path.length < word.length() + 1) path = Arrays.copyOf(path, word.length() + 1);
+            int d = commonPrefix(prev, word);
+            for (; d < word.length(); d++) {
+                int state = stateCount++;
+                terminal[state] = NO_MATCH;
+                // Edge i leads to state i + 1: states are numbered in creation order.
+                edgeParent[state - 1] = path[d];
+                edgeLabel[state - 1] = word.charAt(d) & 0xFF;
+                path[d + 1] = state;
+            }
+            int end = path[word.length()];
+            if (terminal[end] == NO_MATCH) terminal[end] = k;
+            prev = word;
+        }
+
+        // Group edges by parent. Within a parent they were created in label order, so stay sorted.
+        int edges = stateCount - 1;
+        int[] childStart = new int[stateCount + 1];
+        for (int e = 0; e < edges; e++) childStart[edgeParent[e] + 1]++;
+        for (int s = 0; s < stateCount; s++) childStart[s + 1] += childStart[s];
+        int[] fill = Arrays.copyOf(childStart, stateCount);
+        byte[] childLabel = new byte[edges];
+        int[] childTarget = new int[edges];
+        for (int e = 0; e < edges; e++) {
+            int slot = fill[edgeParent[e]]++;
+            childLabel[slot] = (byte) edgeLabel[e];
+            childTarget[slot] = e + 1;
+        }
+
+        // Breadth-first pass to wire up fail links and merge outputs along them.
+        int[] fail = new int[stateCount];
+        int[] output = new int[stateCount];
+        int[] ends = Arrays.copyOf(terminal, stateCount);
+        int[] dict = new int[stateCount];
+        System.arraycopy(ends, 0, output, 0, stateCount);
+        dict[ROOT] = NO_MATCH;
+
+        KeywordMatcher partial = new KeywordMatcher(childStart, childLabel, childTarget, fail, output, ends, dict, index);
+        int[] queue = new int[stateCount];
+        int head = 0, tail = 0;
+        for (int i = childStart[ROOT]; i < childStart[ROOT + 1]; i++) {
+            fail[childTarget[i]] = ROOT;
+            dict[childTarget[i]] = NO_MATCH;
+            queue[tail++] = childTarget[i];
+        }
+        while (head < tail) {
+            int s = queue[head++];
+            for (int i = childStart[s]; i < childStart[s + 1]; i++) {
+                int child = childTarget[i];
+                int f = partial.step(fail[s], childLabel[i] & 0xFF);
+                fail[child] = f;
+                output[child] = minOutput(output[child], output[f]);
+                dict[child] = ends[f] != NO_MATCH ? f : dict[f];
+                queue[tail++] = child;
+            }
+        }
+        return partial;
+    }
+
+    // Keywords compare by the same byte values the automaton is labelled with.
+    private static int compareBytes(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        for (int i = 0; i < n; i++) {
+            int c = (a.charAt(i) & 0xFF) - (b.charAt(i) & 0xFF);
+            if (c != 0) return c;
+        }
+        return a.length() - b.length();
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && (a.charAt(i) & 0xFF) == (b.charAt(i) & 0xFF)) i++;
+        return i;
+    }
+
+    private static int minOutput(int a, int b) {
+        if (a == NO_MATCH) return b;
+        if (b == NO_MATCH) return a;
+        return Math.min(a, b);
+    }
+
+    /** Advances the automaton by one byte value; {@code c} is not case folded here. */
+    int step(int state, int c) {
+        while (state != ROOT) {
+            int lo = childStart[state];
+            int hi = childStart[state + 1] - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int label = childLabel[mid] & 0xFF;
+                if (label < c) lo = mid + 1;
+                else if (label > c) hi = mid - 1;
+                else return childTarget[mid];
+            }
+            state = fail[state];
+        }
+        return rootNext[c];
+    }
+
+    static int start() {
+        return ROOT;
+    }
+
+    /** Keyword that ends exactly at {@code state}, or -1. */
+    int keywordAt(int state) {
+        return terminal[state];
+    }
+
+    /** Next state on the fail chain of {@code state} where a keyword ends, or -1. */
+    int nextMatchState(int state) {
+        return dict[state];
+    }
+
+    private static int fold(int c) {
+        return (c >= 'A' && c <= 'Z') ? c + 32 : c;
+    }
+
+    public boolean matches(CharSequence name) {
+        return firstMatch(name) != NO_MATCH;
+    }
+
+    public boolean matches(byte[] buf, int offset, int length) {
+        return firstMatch(buf, offset, length) != NO_MATCH;
+    }
+
+    /** Returns the index of a keyword found in {@code name}, or -1. */
+    public int firstMatch(CharSequence name) {
+        int state = ROOT;
+        for (int i = 0, n = name.length(); i < n; i++) {
+            char ch = name.charAt(i);
+            // Keywords are ASCII host names; anything wider simply restarts the scan.
+            state = ch > 0xFF ? ROOT : step(state, fold(ch));
+            if (output[state] != NO_MATCH) return output[state];
+        }
+        return NO_MATCH;
+    }
+
+    /** Returns the index of a keyword found in {@code buf[offset, offset + length)}, or -1. */
+    public int firstMatch(byte[] buf, int offset, int length) {
+        int state = ROOT;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            state = step(state, fold(buf[i] & 0xFF));
+            if (output[state] != NO_MATCH) return output[state];
+        }
+        return NO_MATCH;
+    }
+
+    public int keywordCount() {
+        return keywordCount;
+    }
+
+    public int stateCount() {
+        return fail.length;
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.nexus.services.shield;
+
+/**
+ * A reusable packet buffer handed out by {@link PacketPool}.
+ * Besides the raw bytes it carries the parse results of the packet it holds
+ * and scratch space for the query name, so the hot path never needs to
+ * allocate to look at a query.
+ */
+public final class Packet {
+
+    public final byte[] data;
+    public int length;
+
+    // Filled in by PacketCodec.parseDnsQuery().
+    public int ipHeaderLen;
+    public int dnsStart;
+    public int srcPort;
+    // 0 for a UDP query; otherwise the TcpDnsFlows handle of the connection it arrived on.
+    public int tcpFlow;
+    // Owning app, or AppAttribution.UNKNOWN_UID; set by the service alongside parsing.
+    public int uid;
+
+    // Query name in dotted, lower-case ASCII; see PacketCodec.readName().
+    public final byte[] name = new byte[PacketCodec.MAX_NAME];
+    public int nameLen;
+    // Case-insensitive hash of the name, never 0 once readName() succeeds; 0 if it failed.
+    public int nameHash;
+
+    // Links for InflightQueries while this query leads or waits on an upstream request.
+    int inflightHash;
+    Packet nextLeader;
+    Packet waiters;
+    public Packet nextWaiter;
+
+    /** Owner-defined continuation, created once per buffer and reused with it. */
+    public Object attachment;
+
+    final PacketPool pool;
+
+    Packet(PacketPool pool, int capacity) {
+        this.pool = pool;
+        this.data = new byte[capacity];
+    }
+
+    public void release() {
+        pool.release(this);
+    }
+}
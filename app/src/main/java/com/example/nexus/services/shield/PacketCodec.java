@@ -0,0 +1,289 @@
+package com.example.nexus.services.shield;
+
+import java.util.Arrays;
+
+/**
+ * IPv4/UDP and IPv6/UDP framing for DNS packets read from and written to the
+ * TUN interface, plus TCP resets for connections the Shield refuses.
+ * Everything works in place on caller-supplied buffers.
+ */
+public final class PacketCodec {
+
+    public static final int MAX_NAME = 255;
+    public static final int UDP_HEADER_LEN = 8;
+    public static final int DNS_PORT = 53;
+    public static final int IPV6_HEADER_LEN = 40;
+
+    static final int PROTO_TCP = 6;
+    static final int PROTO_UDP = 17;
+    static final int TCP_FIN = 0x01;
+    static final int TCP_SYN = 0x02;
+    static final int TCP_RST = 0x04;
+    static final int TCP_PSH = 0x08;
+    static final int TCP_ACK = 0x10;
+
+    // FNV-1a over the folded, dotted name.
+    private static final int NAME_HASH_SEED = 0x811C9DC5;
+    private static final int NAME_HASH_PRIME = 0x01000193;
+
+    private PacketCodec() {}
+
+    /**
+     * Checks that {@code p} is an IPv4/UDP or IPv6/UDP datagram to port 53
+     * carrying at least a DNS header, and records where the DNS message starts.
+     * IPv6 packets with extension headers are not ours: the stack sends plain
+     * UDP queries, so anything else is left to the caller's refusal path.
+     */
+    public static boolean parseDnsQuery(Packet p) {
+        byte[] d = p.data;
+        if (p.length < 20) return false;
+        int ipHeaderLen;
+        int version = (d[0] >> 4) & 0x0F;
+        if (version == 4) {
+            if (d[9] != PROTO_UDP) return false;
+            ipHeaderLen = (d[0] & 0x0F) * 4;
+            if (ipHeaderLen < 20) return false;
+        } else if (version == 6) {
+            if (p.length < IPV6_HEADER_LEN || d[6] != PROTO_UDP) return false;
+            ipHeaderLen = IPV6_HEADER_LEN;
+        } else {
+            return false;
+        }
+        if (p.length < ipHeaderLen + UDP_HEADER_LEN + DnsWire.HEADER_LEN) return false;
+        int dstPort = ((d[ipHeaderLen + 2] & 0xFF) << 8) | (d[ipHeaderLen + 3] & 0xFF);
+        if (dstPort != DNS_PORT) return false;
+        p.ipHeaderLen = ipHeaderLen;
+        p.dnsStart = ipHeaderLen + UDP_HEADER_LEN;
+        p.srcPort = ((d[ipHeaderLen] & 0xFF) << 8) | (d[ipHeaderLen + 1] & 0xFF);
+        p.tcpFlow = 0;
+        return true;
+    }
+
+    /**
+     * Copies the question name into {@code p.name} as dotted lower-case ASCII and
+     * hashes it on the way into {@code p.nameHash}, so callers can key on the name
+     * without another pass or a String. Returns false (and clears
+     * {@code p.nameHash}) if the name is malformed or compressed.
+     */
+    public static boolean readName(Packet p) {
+        byte[] d = p.data;
+        int msg = p.dnsStart;
+        int pos = msg + DnsWire.HEADER_LEN;
+        int out = 0;
+        int h = NAME_HASH_SEED;
+        p.nameHash = 0;
+        while (pos < p.length) {
+            int len = d[pos] & 0xFF;
+            if (len == 0) {
+                p.nameLen = out;
+                p.nameHash = h != 0 ? h : 1;
+                return true;
+            }
+            // The question is the first name in the message; a pointer has nothing earlier to refer to.
+            if (len > 63 || pos + 1 + len > p.length || out + len + 1 > MAX_NAME) return false;
+            if (out > 0) {
+                p.name[out++] = '.';
+                h = (h ^ '.') * NAME_HASH_PRIME;
+            }
+            pos++;
+            for (int i = 0; i < len; i++) {
+                byte b = d[pos + i];
+                if (b >= 'A' && b <= 'Z') b += 32;
+                p.name[out++] = b;
+                h = (h ^ (b & 0xFF)) * NAME_HASH_PRIME;
+            }
+            pos += len;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the IP and UDP headers of a reply to {@code query} into {@code out},
+     * in the query's own IP version. The DNS payload of {@code dnsLen} bytes must
+     * already sit at {@code out[query.dnsStart]}. Returns the total packet length.
+     */
+    public static int buildResponsePacket(Packet query, byte[] out, int dnsLen) {
+        byte[] original = query.data;
+        if (((original[0] >> 4) & 0x0F) == 6) return buildResponsePacketV6(original, out, dnsLen);
+        int ipHeaderLen = query.ipHeaderLen;
+        int totalLen = ipHeaderLen + UDP_HEADER_LEN + dnsLen;
+
+        System.arraycopy(original, 0, out, 0, ipHeaderLen);
+
+        out[2] = (byte) (totalLen >> 8);
+        out[3] = (byte) (totalLen & 0xFF);
+
+        System.arraycopy(original, 16, out, 12, 4);
+        System.arraycopy(original, 12, out, 16, 4);
+
+        out[10] = 0;
+        out[11] = 0;
+        int ipChecksum = calculateChecksum(out, 0, ipHeaderLen);
+        out[10] = (byte) (ipChecksum >> 8);
+        out[11] = (byte) (ipChecksum & 0xFF);
+
+        swapPorts(original, out, ipHeaderLen);
+
+        int udpLen = UDP_HEADER_LEN + dnsLen;
+        out[ipHeaderLen + 4] = (byte) (udpLen >> 8);
+        out[ipHeaderLen + 5] = (byte) (udpLen & 0xFF);
+        out[ipHeaderLen + 6] = 0;
+        out[ipHeaderLen + 7] = 0;
+
+        return totalLen;
+    }
+
+    /**
+     * IPv6 has no header checksum but makes the UDP one mandatory (RFC 8200
+     * section 8.1), so it is summed here over the pseudo-header and the whole
+     * datagram. A computed 0 goes out as 0xFFFF, since 0 would mean none.
+     */
+    private static int buildResponsePacketV6(byte[] original, byte[] out, int dnsLen) {
+        int udp = IPV6_HEADER_LEN;
+        int udpLen = UDP_HEADER_LEN + dnsLen;
+
+        System.arraycopy(original, 0, out, 0, 4); // version, traffic class, flow label
+        DnsWire.put16(out, 4, udpLen);
+        out[6] = PROTO_UDP;
+        out[7] = 64;
+        System.arraycopy(original, 24, out, 8, 16);
+        System.arraycopy(original, 8, out, 24, 16);
+
+        swapPorts(original, out, udp);
+        DnsWire.put16(out, udp + 4, udpLen);
+        out[udp + 6] = 0;
+        out[udp + 7] = 0;
+
+        int checksum = fold(sum(out, udp, udpLen, sum(out, 8, 32, PROTO_UDP + udpLen)));
+        DnsWire.put16(out, udp + 6, checksum == 0 ? 0xFFFF : checksum);
+        return IPV6_HEADER_LEN + udpLen;
+    }
+
+    private static void swapPorts(byte[] original, byte[] out, int udp) {
+        out[udp] = original[udp + 2];
+        out[udp + 1] = original[udp + 3];
+        out[udp + 2] = original[udp];
+        out[udp + 3] = original[udp + 1];
+    }
+
+    /**
+     * Writes into {@code out} the RST that refuses the TCP segment in
+     * {@code in} (IPv4, or IPv6 without extension headers), addressed back to
+     * its sender as RFC 9293 prescribes. Returns the packet length, or 0 if
+     * {@code in} is not TCP or is itself a reset.
+     */
+    public static int buildTcpReset(byte[] in, int length, byte[] out) {
+        if (length < 1) return 0;
+        int version = (in[0] >> 4) & 0x0F;
+        int ipLen;
+        int segmentLen;
+        if (version == 4 && length >= 20) {
+            ipLen = (in[0] & 0x0F) * 4;
+            if (in[9] != PROTO_TCP || ipLen < 20) return 0;
+            segmentLen = Math.min(length, DnsWire.u16(in, 2)) - ipLen;
+        } else if (version == 6 && length >= 40) {
+            ipLen = 40;
+            if (in[6] != PROTO_TCP) return 0;
+            segmentLen = Math.min(length - ipLen, DnsWire.u16(in, 4));
+        } else {
+            return 0;
+        }
+        if (segmentLen < 20 || ipLen + 20 > length) return 0;
+        int tcp = ipLen;
+        int flags = in[tcp + 13] & 0xFF;
+        if ((flags & TCP_RST) != 0) return 0;
+        int dataLen = segmentLen - ((in[tcp + 12] >> 4) & 0x0F) * 4;
+        if (dataLen < 0) return 0;
+
+        if ((flags & TCP_ACK) != 0) {
+            // Take the sequence number the peer expects next; no ACK of our own.
+            return buildTcpSegment(in, out, TCP_RST, DnsWire.u32(in, tcp + 8), 0, 0, 0, null, 0, 0);
+        }
+        long ack = DnsWire.u32(in, tcp + 4) + dataLen
+                + ((flags & TCP_SYN) != 0 ? 1 : 0) + ((flags & TCP_FIN) != 0 ? 1 : 0);
+        return buildTcpSegment(in, out, TCP_RST | TCP_ACK, 0, ack, 0, 0, null, 0, 0);
+    }
+
+    /**
+     * Writes into {@code out} a TCP segment back to the sender of the segment
+     * whose headers are in {@code in} (IPv4, or IPv6 without extension
+     * headers): addresses and ports swapped, then the given flags, sequence and
+     * acknowledgment numbers, window and payload. An {@code mss} above 0 adds
+     * the MSS option a SYN-ACK carries. Returns the packet length.
+     */
+    public static int buildTcpSegment(byte[] in, byte[] out, int flags, long seq, long ack, int window,
+                                      int mss, byte[] payload, int offset, int length) {
+        int version = (in[0] >> 4) & 0x0F;
+        int tcp = version == 4 ? (in[0] & 0x0F) * 4 : IPV6_HEADER_LEN;
+        int t = version == 4 ? 20 : IPV6_HEADER_LEN;
+        int headerLen = mss > 0 ? 24 : 20;
+        int tcpLen = headerLen + length;
+        Arrays.fill(out, 0, t + headerLen, (byte) 0);
+        // Ports swapped.
+        out[t] = in[tcp + 2];
+        out[t + 1] = in[tcp + 3];
+        out[t + 2] = in[tcp];
+        out[t + 3] = in[tcp + 1];
+        DnsWire.put32(out, t + 4, seq & 0xFFFFFFFFL);
+        DnsWire.put32(out, t + 8, ack & 0xFFFFFFFFL);
+        out[t + 12] = (byte) ((headerLen / 4) << 4);
+        out[t + 13] = (byte) flags;
+        DnsWire.put16(out, t + 14, window);
+        if (mss > 0) {
+            out[t + 20] = 2; // kind MSS
+            out[t + 21] = 4;
+            DnsWire.put16(out, t + 22, mss);
+        }
+        if (length > 0) System.arraycopy(payload, offset, out, t + headerLen, length);
+
+        int sum;
+        if (version == 4) {
+            out[0] = 0x45;
+            DnsWire.put16(out, 2, t + tcpLen);
+            out[6] = 0x40; // DF
+            out[8] = 64;
+            out[9] = PROTO_TCP;
+            System.arraycopy(in, 16, out, 12, 4);
+            System.arraycopy(in, 12, out, 16, 4);
+            DnsWire.put16(out, 10, calculateChecksum(out, 0, 20));
+            sum = sum(out, 12, 8, PROTO_TCP + tcpLen);
+        } else {
+            out[0] = 0x60;
+            DnsWire.put16(out, 4, tcpLen);
+            out[6] = PROTO_TCP;
+            out[7] = 64;
+            System.arraycopy(in, 24, out, 8, 16);
+            System.arraycopy(in, 8, out, 24, 16);
+            sum = sum(out, 8, 32, PROTO_TCP + tcpLen);
+        }
+        DnsWire.put16(out, t + 16, fold(sum(out, t, tcpLen, sum)));
+        return t + tcpLen;
+    }
+
+    /** One's-complement sum of 16-bit words, not yet folded or inverted. */
+    private static int sum(byte[] buf, int offset, int length, int sum) {
+        for (int i = 0; i < length; i += 2) {
+            sum += ((buf[offset + i] & 0xFF) << 8) | ((i + 1 < length) ? (buf[offset + i + 1] & 0xFF) : 0);
+        }
+        return sum;
+    }
+
+    private static int fold(int sum) {
+        while ((sum >> 16) > 0) {
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        }
+        return ~sum & 0xFFFF;
+    }
+
+    public static int calculateChecksum(byte[] buf, int offset, int length) {
+        int sum = 0;
+        for (int i = 0; i < length; i += 2) {
+            int word = ((buf[offset + i] & 0xFF) << 8) | ((i + 1 < length) ? (buf[offset + i + 1] & 0xFF) : 0);
+            sum += word;
+        }
+        while ((sum >> 16) > 0) {
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        }
+        return ~sum & 0xFFFF;
+    }
+}
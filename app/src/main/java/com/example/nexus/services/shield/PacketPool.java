@@ -0,0 +1,56 @@
+package com.example.nexus.services.shield;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size free list of {@link Packet} buffers shared by the reader, the
+ * upstream transports and the TUN writer. Once warmed up, taking and returning
+ * buffers does not allocate. If the pool runs dry a fresh buffer is created and
+ * counted, and it joins the pool when released if there is room.
+ */
+public final class PacketPool {
+
+    private final Packet[] free;
+    private final int bufferSize;
+    private int top;
+    private final AtomicLong overflow = new AtomicLong();
+
+    public PacketPool(int buffers, int bufferSize) {
+        this.free = new Packet[buffers];
+        this.bufferSize = bufferSize;
+        for (int i = 0; i < buffers; i++) free[i] = new Packet(this, bufferSize);
+        this.top = buffers;
+    }
+
+    public Packet acquire() {
+        synchronized (this) {
+            if (top > 0) {
+                Packet p = free[--top];
+                free[top] = null;
+                return p;
+            }
+        }
+        overflow.incrementAndGet();
+        return new Packet(this, bufferSize);
+    }
+
+    void release(Packet p) {
+        p.length = 0;
+        synchronized (this) {
+            if (top < free.length) free[top++] = p;
+        }
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public synchronized int available() {
+        return top;
+    }
+
+    /** Buffers allocated because the pool was empty. Should stay flat in steady state. */
+    public long overflowCount() {
+        return overflow.get();
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.nexus.services.shield;
+
+import java.security.SecureRandom;
+
+/**
+ * Queries in flight on one upstream path (a UDP channel, a TLS stream or an
+ * HTTP/2 session). Each query is sent with a fresh random transaction ID whose
+ * low bits pick its slot, and a reply is only accepted if its ID is in flight
+ * here and it echoes the same question. Slots are preallocated and reused.
+ *
+ * IDs come from {@link SecureRandom}, drawn a block at a time: a few long-lived
+ * source ports are all the entropy UDP has besides the ID, and a guessed ID
+ * would put a forged answer in the cache for as long as its TTL.
+ */
+final class PendingQueries {
+
+    static final int SLOTS = 1024;
+    static final int MAX_QUESTION = 512;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final class Slot {
+        boolean busy;
+        int id;
+        int originalId;
+        long sentAt;
+        long deadline;
+        DnsTransport.Callback callback;
+        final byte[] question = new byte[MAX_QUESTION];
+        int questionLen;
+    }
+
+    private final Slot[] slots = new Slot[SLOTS];
+    private int size;
+    // Unused random bytes for IDs, two per ID; refilled when spent. Guarded by this.
+    private final byte[] idBytes = new byte[256];
+    private int idPos = idBytes.length;
+
+    PendingQueries() {
+        for (int i = 0; i < SLOTS; i++) slots[i] = new Slot();
+    }
+
+    /**
+     * Reserves a slot for the query at {@code query[offset, offset + length)} and
+     * returns the transaction ID it must be sent with, or -1 if the query is
+     * malformed or no free slot was found.
+     */
+    int claim(byte[] query, int offset, int length, DnsTransport.Callback callback, long timeoutMs) {
+        if (length < DnsWire.HEADER_LEN) return -1;
+        int qEnd = DnsWire.questionEnd(query, offset, offset + length);
+        int qLen = qEnd - offset - DnsWire.HEADER_LEN;
+        if (qEnd < 0 || qLen > MAX_QUESTION) return -1;
+        synchronized (this) {
+            for (int attempt = 0; attempt < 8; attempt++) {
+                int id = nextId();
+                Slot s = slots[id & (SLOTS - 1)];
+                if (s.busy) continue;
+                s.busy = true;
+                s.id = id;
+                s.originalId = DnsWire.id(query, offset);
+                s.callback = callback;
+                s.sentAt = System.nanoTime();
+                s.deadline = now() + timeoutMs;
+                System.arraycopy(query, offset + DnsWire.HEADER_LEN, s.question, 0, qLen);
+                s.questionLen = qLen;
+                size++;
+                return id;
+            }
+            return -1;
+        }
+    }
+
+    /** A fresh random 16-bit ID. Called under the lock. */
+    private int nextId() {
+        if (idPos == idBytes.length) {
+            RANDOM.nextBytes(idBytes);
+            idPos = 0;
+        }
+        int id = ((idBytes[idPos] & 0xFF) << 8) | (idBytes[idPos + 1] & 0xFF);
+        idPos += 2;
+        return id;
+    }
+
+    /** Frees a claimed slot whose query never went out. The callback is not invoked. */
+    synchronized void cancel(int id) {
+        Slot s = slots[id & (SLOTS - 1)];
+        if (s.busy && s.id == id) free(s);
+    }
+
+    /**
+     * Hands a reply to the query it answers, restoring the caller's transaction ID
+     * in {@code buf}. Returns false, leaving the query pending, if the reply is not
+     * a response to anything in flight here.
+     */
+    boolean complete(byte[] buf, int offset, int length, DnsTransport.Listener listener) {
+        if (length < DnsWire.HEADER_LEN || !DnsWire.isResponse(buf, offset)) return false;
+        int id = DnsWire.id(buf, offset);
+        Slot s = slots[id & (SLOTS - 1)];
+        DnsTransport.Callback callback;
+        long sentAt;
+        synchronized (this) {
+            if (!s.busy || s.id != id || !sameQuestion(s, buf, offset, length)) return false;
+            DnsWire.put16(buf, offset, s.originalId);
+            sentAt = s.sentAt;
+            callback = s.callback;
+            free(s);
+        }
+        if (listener != null) listener.onAnswer((System.nanoTime() - sentAt) / 1000, DnsWire.rcode(buf, offset));
+        callback.onResponse(buf, offset, length);
+        return true;
+    }
+
+    /** Fails one query right away, e.g. because its HTTP/2 stream was reset. */
+    void fail(int id, DnsTransport.Listener listener) {
+        Slot s = slots[id & (SLOTS - 1)];
+        DnsTransport.Callback callback = null;
+        synchronized (this) {
+            if (s.busy && s.id == id) {
+                callback = s.callback;
+                free(s);
+            }
+        }
+        if (callback == null) return;
+        if (listener != null) listener.onTimeout();
+        callback.onFailure();
+    }
+
+    /** Fails every query past its deadline and returns how many there were. */
+    int expire(long nowMs, DnsTransport.Listener listener) {
+        int expired = 0;
+        for (Slot s : slots) {
+            if (!s.busy) continue; // racy pre-check, confirmed under the lock
+            DnsTransport.Callback callback = null;
+            synchronized (this) {
+                if (s.busy && s.deadline <= nowMs) {
+                    callback = s.callback;
+                    free(s);
+                }
+            }
+            if (callback != null) {
+                expired++;
+                if (listener != null) listener.onTimeout();
+                callback.onFailure();
+            }
+        }
+        return expired;
+    }
+
+    /** Fails everything still in flight, without blaming the resolver. */
+    void failAll() {
+        for (Slot s : slots) {
+            DnsTransport.Callback callback = null;
+            synchronized (this) {
+                if (s.busy) {
+                    callback = s.callback;
+                    free(s);
+                }
+            }
+            if (callback != null) callback.onFailure();
+        }
+    }
+
+    /** Whether {@code id} is still waiting for its reply. */
+    synchronized boolean isPending(int id) {
+        Slot s = slots[id & (SLOTS - 1)];
+        return s.busy && s.id == id;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private void free(Slot s) {
+        s.busy = false;
+        s.callback = null;
+        size--;
+    }
+
+    private static boolean sameQuestion(Slot s, byte[] buf, int offset, int length) {
+        int qEnd = DnsWire.questionEnd(buf, offset, offset + length);
+        if (qEnd - offset - DnsWire.HEADER_LEN != s.questionLen) return false;
+        for (int i = 0; i < s.questionLen; i++) {
+            if (s.question[i] != buf[offset + DnsWire.HEADER_LEN + i]) return false;
+        }
+        return true;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000L;
+    }
+}
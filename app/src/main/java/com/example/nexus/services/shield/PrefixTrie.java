@@ -0,0 +1,381 @@
+package com.example.nexus.services.shield;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+
+/**
+ * Longest-prefix-match table of IP ranges to block or allow, for traffic that
+ * hard-codes addresses and so never asks DNS.
+ *
+ * <p>Each line is a CIDR range such as {@code 203.0.113.0/24} or
+ * {@code 2001:db8::/32}; a bare address means the single host. Prefix a line
+ * with {@code @@} to allow a range inside a blocked one. Lines starting with
+ * {@code #} or {@code !} are comments. IPv4 is stored as IPv4-mapped IPv6
+ * ({@code ::ffff:a.b.c.d}), so one trie serves both families.
+ *
+ * <p>The trie is path-compressed: each node keeps its whole prefix, so a
+ * lookup compares two longs per node and skips runs of single-child bits.
+ * Nodes live in one flat array, and a lookup allocates nothing.
+ */
+public final class PrefixTrie {
+
+    public static final int NONE = 0;
+    public static final int BLOCK = 1;
+    public static final int ALLOW = 2;
+
+    // ::ffff:0:0/96
+    private static final long V4_MAPPED_LO = 0x0000FFFF00000000L;
+
+    // Four longs per node, so a lookup step touches one cache line:
+    // prefix high and low halves, depth | value << 8, zero child << 32 | one child.
+    private static final int STRIDE = 4;
+    private final long[] nodes;
+    // Whether the node or anything under it blocks / allows; used to plan routes.
+    private final boolean[] blockBelow;
+    private final boolean[] allowBelow;
+    private final int prefixes;
+    private final int rejected;
+
+    /** Receives one route: a 4- or 16-byte address and its prefix length. */
+    public interface RouteSink {
+        void route(InetAddress address, int prefixLength);
+    }
+
+    private PrefixTrie(Node root, int count, int prefixes, int rejected) {
+        nodes = new long[count * STRIDE];
+        blockBelow = new boolean[count];
+        allowBelow = new boolean[count];
+        this.prefixes = prefixes;
+        this.rejected = rejected;
+        flatten(root, new int[1]);
+    }
+
+    /** Compiles CIDR lines; unparseable lines are skipped and counted. */
+    public static PrefixTrie compile(Collection<String> lines) {
+        Node root = new Node(0, 0, 0, NONE);
+        int[] nodes = {1};
+        int prefixes = 0;
+        int rejected = 0;
+        long[] key = new long[2];
+        for (String raw : lines) {
+            String line = raw.trim();
+            if (line.isEmpty() || line.startsWith("#") || line.startsWith("!")) continue;
+            int v = BLOCK;
+            if (line.startsWith("@@")) {
+                v = ALLOW;
+                line = line.substring(2).trim();
+            }
+            int len = parse(line, key);
+            if (len < 0) {
+                rejected++;
+                continue;
+            }
+            insert(root, key[0], key[1], len, v, nodes);
+            prefixes++;
+        }
+        return new PrefixTrie(root, nodes[0], prefixes, rejected);
+    }
+
+    /** Parses "address[/len]" into {@code key} as IPv6 (IPv4 mapped). Returns the prefix length, or -1. */
+    static int parse(String text, long[] key) {
+        int slash = text.indexOf('/');
+        String addr = slash < 0 ? text : text.substring(0, slash);
+        boolean full = slash < 0; // no length given: a single address
+        int len = 0;
+        if (!full) {
+            try {
+                len = Integer.parseInt(text.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            if (len < 0) return -1;
+        }
+        byte[] b = null;
+        if (addr.indexOf(':') >= 0) {
+            // Only IPv6 literals contain ':', so this never reaches DNS.
+            try {
+                b = InetAddress.getByName(addr).getAddress();
+            } catch (UnknownHostException | SecurityException e) {
+                return -1;
+            }
+        } else {
+            b = parseV4(addr);
+        }
+        if (b == null) return -1;
+        if (b.length == 4) {
+            if (full) len = 32;
+            if (len > 32) return -1;
+            key[0] = 0;
+            key[1] = V4_MAPPED_LO | (DnsWire.u32(b, 0));
+            len += 96;
+        } else {
+            if (full) len = 128;
+            if (len > 128) return -1;
+            key[0] = readLong(b, 0);
+            key[1] = readLong(b, 8);
+        }
+        key[0] &= mask(len);
+        key[1] &= mask(len - 64);
+        return len;
+    }
+
+    private static byte[] parseV4(String s) {
+        byte[] out = new byte[4];
+        int part = 0;
+        int acc = -1;
+        for (int i = 0; i <= s.length(); i++) {
+            char c = i < s.length() ? s.charAt(i) : '.';
+            if (c == '.') {
+                if (acc < 0 || part > 3) return null;
+                out[part++] = (byte) acc;
+                acc = -1;
+            } else if (c >= '0' && c <= '9') {
+                acc = (acc < 0 ? 0 : acc * 10) + (c - '0');
+                if (acc > 255) return null;
+            } else {
+                return null;
+            }
+        }
+        return part == 4 ? out : null;
+    }
+
+    private static long readLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) v = (v << 8) | (b[off + i] & 0xFF);
+        return v;
+    }
+
+    /** Top {@code bits} bits set, for one 64-bit half; out-of-range counts saturate. */
+    private static long mask(int bits) {
+        if (bits <= 0) return 0;
+        if (bits >= 64) return -1L;
+        return -1L << (64 - bits);
+    }
+
+    private static int bit(long hi, long lo, int i) {
+        return (int) (i < 64 ? hi >>> (63 - i) : lo >>> (127 - i)) & 1;
+    }
+
+    private static int commonPrefix(long aHi, long aLo, long bHi, long bLo) {
+        long x = aHi ^ bHi;
+        if (x != 0) return Long.numberOfLeadingZeros(x);
+        return 64 + Long.numberOfLeadingZeros(aLo ^ bLo);
+    }
+
+    /** BLOCK, ALLOW or NONE for the longest prefix covering the address. */
+    public int lookup(long hi, long lo) {
+        long[] t = nodes;
+        int best = NONE;
+        int n = 0;
+        while (n >= 0) {
+            int at = n * STRIDE;
+            int meta = (int) t[at + 2];
+            int d = meta & 0xFF;
+            if (((hi ^ t[at]) & mask(d)) != 0 || ((lo ^ t[at + 1]) & mask(d - 64)) != 0) break;
+            if ((meta >>> 8) != NONE) best = meta >>> 8;
+            if (d == 128) break;
+            long children = t[at + 3];
+            n = bit(hi, lo, d) == 0 ? (int) (children >> 32) : (int) children;
+        }
+        return best;
+    }
+
+    /**
+     * Whether the destination of the IPv4 or IPv6 packet in {@code buf} falls in
+     * a blocked range. Reads the address in place.
+     */
+    public boolean blocksDestination(byte[] buf, int length) {
+        if (length < 1) return false;
+        int version = (buf[0] >> 4) & 0x0F;
+        if (version == 4 && length >= 20) {
+            return lookup(0, V4_MAPPED_LO | DnsWire.u32(buf, 16)) == BLOCK;
+        }
+        if (version == 6 && length >= 40) {
+            return lookup(readLong(buf, 24), readLong(buf, 32)) == BLOCK;
+        }
+        return false;
+    }
+
+    /**
+     * Emits a set of routes that covers exactly the blocked address space, with
+     * allowed holes cut out, so nothing else is pulled into the tunnel.
+     */
+    public void forEachRoute(RouteSink sink) {
+        routes(0, 0, 0, 0, NONE, sink);
+    }
+
+    private void routes(int n, long hi, long lo, int len, int inherited, RouteSink sink) {
+        boolean inside = n >= 0 && depth(n) >= len
+                && ((hi ^ keyHi(n)) & mask(len)) == 0 && ((lo ^ keyLo(n)) & mask(len - 64)) == 0;
+        if (!inside) {
+            if (inherited == BLOCK) emit(hi, lo, len, sink);
+            return;
+        }
+        if (depth(n) == len) {
+            int v = value(n) != NONE ? value(n) : inherited;
+            boolean mixed = v == BLOCK ? below(allowBelow, n) : below(blockBelow, n);
+            if (!mixed) {
+                if (v == BLOCK) emit(hi, lo, len, sink);
+                return;
+            }
+            routes(zero(n), hi, lo, len + 1, v, sink);
+            routes(one(n), withBit(hi, len), withBitLo(lo, len), len + 1, v, sink);
+            return;
+        }
+        // n sits somewhere below this range; everything else in it is uniformly `inherited`.
+        if (inherited != BLOCK && !blockBelow[n]) return;
+        if (inherited == BLOCK && !allowBelow[n]) {
+            emit(hi, lo, len, sink);
+            return;
+        }
+        boolean nOnOneSide = bit(keyHi(n), keyLo(n), len) == 1;
+        routes(nOnOneSide ? -1 : n, hi, lo, len + 1, inherited, sink);
+        routes(nOnOneSide ? n : -1, withBit(hi, len), withBitLo(lo, len), len + 1, inherited, sink);
+    }
+
+    private boolean below(boolean[] flags, int n) {
+        return (zero(n) >= 0 && flags[zero(n)]) || (one(n) >= 0 && flags[one(n)]);
+    }
+
+    private long keyHi(int n) {
+        return nodes[n * STRIDE];
+    }
+
+    private long keyLo(int n) {
+        return nodes[n * STRIDE + 1];
+    }
+
+    private int depth(int n) {
+        return (int) nodes[n * STRIDE + 2] & 0xFF;
+    }
+
+    private int value(int n) {
+        return (int) nodes[n * STRIDE + 2] >>> 8;
+    }
+
+    private int zero(int n) {
+        return (int) (nodes[n * STRIDE + 3] >> 32);
+    }
+
+    private int one(int n) {
+        return (int) nodes[n * STRIDE + 3];
+    }
+
+    private static long withBit(long hi, int i) {
+        return i < 64 ? hi | (1L << (63 - i)) : hi;
+    }
+
+    private static long withBitLo(long lo, int i) {
+        return i >= 64 ? lo | (1L << (127 - i)) : lo;
+    }
+
+    private static void emit(long hi, long lo, int len, RouteSink sink) {
+        byte[] b;
+        int prefix;
+        if (hi == 0 && len >= 96 && (lo >>> 32) == 0xFFFF) {
+            b = new byte[4];
+            DnsWire.put32(b, 0, lo & 0xFFFFFFFFL);
+            prefix = len - 96;
+        } else {
+            b = new byte[16];
+            for (int i = 0; i < 8; i++) {
+                b[i] = (byte) (hi >>> (56 - 8 * i));
+                b[8 + i] = (byte) (lo >>> (56 - 8 * i));
+            }
+            prefix = len;
+        }
+        try {
+            InetAddress address = InetAddress.getByAddress(b);
+            // A mapped range wider than /96 is really IPv6 space; Android would read it as IPv4.
+            if (b.length == 16 && address instanceof Inet4Address) return;
+            sink.route(address, prefix);
+        } catch (UnknownHostException ignored) {
+            // Cannot happen for 4- and 16-byte arrays.
+        }
+    }
+
+    public int prefixCount() {
+        return prefixes;
+    }
+
+    public int rejectedCount() {
+        return rejected;
+    }
+
+    public int nodeCount() {
+        return blockBelow.length;
+    }
+
+    private static final class Node {
+        final long hi;
+        final long lo;
+        final int depth;
+        int value;
+        Node zero;
+        Node one;
+
+        Node(long hi, long lo, int depth, int value) {
+            this.hi = hi;
+            this.lo = lo;
+            this.depth = depth;
+            this.value = value;
+        }
+    }
+
+    private static void insert(Node root, long hi, long lo, int len, int v, int[] nodes) {
+        Node cur = root;
+        while (true) {
+            if (cur.depth == len) {
+                // A repeated range keeps the allow, like an allow rule beating a block rule.
+                if (cur.value != ALLOW) cur.value = v;
+                return;
+            }
+            int b = bit(hi, lo, cur.depth);
+            Node child = b == 0 ? cur.zero : cur.one;
+            if (child == null) {
+                set(cur, b, new Node(hi, lo, len, v));
+                nodes[0]++;
+                return;
+            }
+            int common = Math.min(Math.min(len, child.depth), commonPrefix(hi, lo, child.hi, child.lo));
+            if (common == child.depth) {
+                cur = child;
+                continue;
+            }
+            // Split the compressed edge at the first differing bit (or at our own length).
+            Node mid = new Node(hi & mask(common), lo & mask(common - 64), common, NONE);
+            nodes[0]++;
+            set(mid, bit(child.hi, child.lo, common), child);
+            set(cur, b, mid);
+            if (common == len) {
+                mid.value = v;
+            } else {
+                set(mid, bit(hi, lo, common), new Node(hi, lo, len, v));
+                nodes[0]++;
+            }
+            return;
+        }
+    }
+
+    private static void set(Node parent, int bit, Node child) {
+        if (bit == 0) parent.zero = child;
+        else parent.one = child;
+    }
+
+    /** Copies the subtree into the arrays in pre-order and returns the node's index. */
+    private int flatten(Node node, int[] next) {
+        int i = next[0]++;
+        int at = i * STRIDE;
+        nodes[at] = node.hi;
+        nodes[at + 1] = node.lo;
+        nodes[at + 2] = node.depth | (node.value << 8);
+        int z = node.zero != null ? flatten(node.zero, next) : -1;
+        int o = node.one != null ? flatten(node.one, next) : -1;
+        nodes[at + 3] = ((long) z << 32) | (o & 0xFFFFFFFFL);
+        blockBelow[i] = node.value == BLOCK || below(blockBelow, i);
+        allowBelow[i] = node.value == ALLOW || below(allowBelow, i);
+        return i;
+    }
+}
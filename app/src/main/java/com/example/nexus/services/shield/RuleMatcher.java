@@ -0,0 +1,319 @@
+package com.example.nexus.services.shield;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Block and allow rules compiled into one {@link KeywordMatcher} automaton and
+ * evaluated in a single pass over the query name.
+ *
+ * <p>Rule syntax, one rule per line (a subset of the common adblock syntax):
+ * <pre>
+ *   tracker                 block names containing "tracker"
+ *   ||ads.example^          block ads.example and all of its subdomains
+ *   |ads.example|           block exactly ads.example
+ *   ||ads*.example^         '*' matches any run of characters, dots included
+ *   @@||cdn.ads.example^    exception: allow, whatever else matches
+ *   ! comment, # comment
+ * </pre>
+ * A leading {@code ||} anchors the rule at a label boundary, a leading {@code |}
+ * at the start of the name, and a trailing {@code ^} or {@code |} at its end.
+ * Rules with {@code $options} or {@code /regex/} bodies are rejected.
+ *
+ * <p>Anchors are compiled in by matching against the name framed as
+ * {@code START . name END}, with two marker bytes. The leading dot puts every
+ * label, the first included, right after a dot, so {@code ||ads.example^}
+ * becomes the single plain pattern {@code .ads.example END} and
+ * {@code |ads.example|} becomes {@code START .ads.example END}. A rule
+ * with wildcards is split into its literal segments, and the rule matches once
+ * its segments have been seen in order without overlapping.
+ *
+ * <p>Precedence is fixed: a name is allowed if any allow rule matches it, and
+ * blocked if no allow rule but some block rule does. Matching does not
+ * allocate, and stops early once the outcome cannot change.
+ */
+public final class RuleMatcher {
+
+    public static final int NO_RULE = -1;
+
+    private static final int START = 0x01;
+    private static final int END = 0x02;
+    // Control bytes in a name are folded to this, which no pattern contains, so
+    // a crafted name cannot forge the anchor markers.
+    private static final int CONTROL = 0x1F;
+
+    private final KeywordMatcher automaton;
+    private final String[] rules;
+    private final boolean[] allow;
+    private final boolean hasAllow;
+    private final int rejected;
+
+    // Per pattern: its length, and who uses it (CSR): the rule, and which of its
+    // segments the pattern is (or -1 if the rule has only one segment).
+    private final int[] patternLen;
+    private final int[] userStart;
+    private final int[] userRule;
+    private final int[] userSegment;
+
+    // Multi-segment rules: their slot in the per-thread progress arrays and segment count.
+    private final int[] slot;
+    private final int[] segments;
+    private final int slotCount;
+    private final ThreadLocal<Progress> progress;
+
+    private RuleMatcher(Builder b) {
+        this.rules = b.rules.toArray(new String[0]);
+        this.allow = new boolean[rules.length];
+        boolean anyAllow = false;
+        for (int i = 0; i < rules.length; i++) {
+            allow[i] = b.allow.get(i);
+            anyAllow |= allow[i];
+        }
+        this.hasAllow = anyAllow;
+        this.rejected = b.rejected;
+        this.automaton = KeywordMatcher.compile(b.patterns);
+
+        int patterns = b.patterns.size();
+        this.patternLen = new int[patterns];
+        this.userStart = new int[patterns + 1];
+        for (int p = 0; p < patterns; p++) {
+            patternLen[p] = b.patterns.get(p).length();
+            userStart[p + 1] = userStart[p] + b.users.get(p).size() / 2;
+        }
+        this.userRule = new int[userStart[patterns]];
+        this.userSegment = new int[userStart[patterns]];
+        for (int p = 0; p < patterns; p++) {
+            List<Integer> users = b.users.get(p);
+            for (int u = 0; u < users.size() / 2; u++) {
+                userRule[userStart[p] + u] = users.get(2 * u);
+                userSegment[userStart[p] + u] = users.get(2 * u + 1);
+            }
+        }
+
+        this.slot = new int[rules.length];
+        this.segments = new int[rules.length];
+        int slots = 0;
+        for (int r = 0; r < rules.length; r++) {
+            segments[r] = b.segments.get(r);
+            slot[r] = segments[r] > 1 ? slots++ : -1;
+        }
+        this.slotCount = slots;
+        int n = slots;
+        this.progress = ThreadLocal.withInitial(() -> new Progress(n));
+    }
+
+    /** Parses and compiles {@code lines}; lines that are not valid rules are counted and skipped. */
+    public static RuleMatcher compile(Collection<String> lines) {
+        Builder b = new Builder();
+        for (String line : lines) {
+            if (line != null) b.add(line.trim());
+        }
+        return new RuleMatcher(b);
+    }
+
+    /**
+     * Returns the rule that decides {@code name}: a matching allow rule if there
+     * is one, else a matching block rule, else {@link #NO_RULE}. The same name
+     * always gets the same rule.
+     * {@code name} is dotted ASCII; case is ignored.
+     */
+    public int match(byte[] name, int offset, int length) {
+        Progress p = slotCount > 0 ? progress.get().next() : null;
+        int block = NO_RULE;
+        int state = KeywordMatcher.start();
+        for (int pos = 0; pos <= length + 2; pos++) {
+            int c;
+            if (pos == 0) c = START;
+            else if (pos == 1) c = '.';
+            else if (pos == length + 2) c = END;
+            else c = fold(name[offset + pos - 2] & 0xFF);
+            state = automaton.step(state, c);
+
+            int s = automaton.keywordAt(state) != NO_RULE ? state : automaton.nextMatchState(state);
+            for (; s != NO_RULE; s = automaton.nextMatchState(s)) {
+                int pattern = automaton.keywordAt(s);
+                for (int u = userStart[pattern]; u < userStart[pattern + 1]; u++) {
+                    int rule = userRule[u];
+                    if (userSegment[u] >= 0 && !p.advance(slot[rule], userSegment[u], segments[rule],
+                            pos - patternLen[pattern] + 1, pos)) {
+                        continue;
+                    }
+                    if (allow[rule]) return rule;
+                    if (block == NO_RULE || rule < block) block = rule;
+                }
+            }
+            if (block != NO_RULE && !hasAllow) return block;
+        }
+        return block;
+    }
+
+    public boolean isAllow(int rule) {
+        return allow[rule];
+    }
+
+    /** Source text of a compiled rule. */
+    public String rule(int rule) {
+        return rules[rule];
+    }
+
+    public int ruleCount() {
+        return rules.length;
+    }
+
+    public int allowCount() {
+        int n = 0;
+        for (boolean a : allow) if (a) n++;
+        return n;
+    }
+
+    /** Lines that were not comments but could not be parsed. */
+    public int rejectedCount() {
+        return rejected;
+    }
+
+    public int stateCount() {
+        return automaton.stateCount();
+    }
+
+    private static int fold(int c) {
+        if (c < 0x20) return CONTROL;
+        return (c >= 'A' && c <= 'Z') ? c + 32 : c;
+    }
+
+    /**
+     * How far each wildcard rule has got in the current name. Stamped with a
+     * generation number so starting a new name does not need to clear anything.
+     */
+    private static final class Progress {
+        final int[] stamp;
+        final int[] matched;
+        final int[] lastEnd;
+        int generation;
+
+        Progress(int slots) {
+            stamp = new int[slots];
+            matched = new int[slots];
+            lastEnd = new int[slots];
+        }
+
+        Progress next() {
+            if (++generation == 0) {
+                Arrays.fill(stamp, 0);
+                generation = 1;
+            }
+            return this;
+        }
+
+        /**
+         * Records segment {@code segment} found at [{@code start}, {@code end}] and
+         * returns true once the last segment is in. Taking the first occurrence that
+         * starts after the previous segment is always safe: an earlier end leaves
+         * the most room for the segments still to come.
+         */
+        boolean advance(int slot, int segment, int segmentCount, int start, int end) {
+            if (stamp[slot] != generation) {
+                stamp[slot] = generation;
+                matched[slot] = 0;
+                lastEnd[slot] = -1;
+            }
+            if (matched[slot] != segment || start <= lastEnd[slot]) return false;
+            matched[slot]++;
+            lastEnd[slot] = end;
+            return matched[slot] == segmentCount;
+        }
+    }
+
+    /** Collects rules and interns their literal patterns while parsing. */
+    private static final class Builder {
+        final List<String> rules = new ArrayList<>();
+        final List<Boolean> allow = new ArrayList<>();
+        final List<Integer> segments = new ArrayList<>();
+        final List<String> patterns = new ArrayList<>();
+        // Flattened (rule, segment) pairs per pattern.
+        final List<List<Integer>> users = new ArrayList<>();
+        final Map<String, Integer> patternIds = new HashMap<>();
+        int rejected;
+
+        void add(String line) {
+            if (line.isEmpty() || line.startsWith("!") || line.startsWith("#")) return;
+            String body = line;
+            boolean isAllow = body.startsWith("@@");
+            if (isAllow) body = body.substring(2);
+
+            boolean labelStart = false, nameStart = false, nameEnd = false;
+            if (body.startsWith("||")) {
+                labelStart = true;
+                body = body.substring(2);
+            } else if (body.startsWith("|")) {
+                nameStart = true;
+                body = body.substring(1);
+            }
+            if (body.endsWith("^") || body.endsWith("|")) {
+                nameEnd = true;
+                body = body.substring(0, body.length() - 1);
+            }
+            if (!isValidBody(body)) {
+                rejected++;
+                return;
+            }
+
+            String[] parts = body.toLowerCase(Locale.ROOT).split("\\*", -1);
+            // A wildcard next to an anchor cancels it.
+            boolean anchoredStart = !parts[0].isEmpty();
+            boolean anchoredEnd = !parts[parts.length - 1].isEmpty();
+            List<String> literal = new ArrayList<>();
+            for (String part : parts) {
+                if (!part.isEmpty()) literal.add(part);
+            }
+            if (literal.isEmpty()) {
+                rejected++; // would match every name
+                return;
+            }
+
+            int rule = rules.size();
+            rules.add(line);
+            allow.add(isAllow);
+            segments.add(literal.size());
+            int segment = literal.size() > 1 ? 0 : -1;
+            for (int i = 0; i < literal.size(); i++, segment += segment >= 0 ? 1 : 0) {
+                String text = literal.get(i);
+                boolean last = i == literal.size() - 1;
+                String suffix = last && nameEnd && anchoredEnd ? String.valueOf((char) END) : "";
+                if (i == 0 && anchoredStart && labelStart) {
+                    use("." + text + suffix, rule, segment);
+                } else if (i == 0 && anchoredStart && nameStart) {
+                    use(((char) START) + "." + text + suffix, rule, segment);
+                } else {
+                    use(text + suffix, rule, segment);
+                }
+            }
+        }
+
+        private void use(String pattern, int rule, int segment) {
+            Integer id = patternIds.get(pattern);
+            if (id == null) {
+                id = patterns.size();
+                patternIds.put(pattern, id);
+                patterns.add(pattern);
+                users.add(new ArrayList<>(2));
+            }
+            List<Integer> list = users.get(id);
+            list.add(rule);
+            list.add(segment);
+        }
+
+        private static boolean isValidBody(String body) {
+            if (body.isEmpty() || body.indexOf('$') >= 0 || body.startsWith("/")) return false;
+            for (int i = 0; i < body.length(); i++) {
+                char c = body.charAt(i);
+                if (c <= 0x20 || c >= 0x7F || c == '|' || c == '^') return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.nexus.services.shield;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One immutable, fully compiled set of block rules. The packet path reads the
+ * current snapshot from {@link RuleStore} and keeps using it for the whole
+ * query, so a swap in the middle of a lookup can never mix two rule sets.
+ */
+public final class RuleSnapshot {
+
+    public final int version;
+    public final long createdAtMs;
+    public final long compileMs;
+
+    private final List<String> lines;
+    private final RuleMatcher matcher;
+    // Exact and parent-domain matches from the compiled hosts lists, or null.
+    private final DomainIndex index;
+    // Bloom pre-check in front of the index, or null when the stage is off.
+    private final SuffixFilter filter;
+    // Per-rule hits, shared with any snapshot that reuses this matcher. Adders,
+    // not atomics: every engine thread bumps them on every match.
+    private final LongAdder[] hits;
+    private final LongAdder indexHits;
+
+    private RuleSnapshot(int version, List<String> lines, RuleMatcher matcher, DomainIndex index,
+                         SuffixFilter filter, LongAdder[] hits, LongAdder indexHits, long compileMs) {
+        this.version = version;
+        this.createdAtMs = System.currentTimeMillis();
+        this.compileMs = compileMs;
+        this.lines = lines;
+        this.matcher = matcher;
+        this.index = index;
+        this.filter = filter;
+        this.hits = hits;
+        this.indexHits = indexHits;
+    }
+
+    /** Compiles rule {@code lines} (see {@link RuleMatcher}). Expensive; call off the packet path. */
+    static RuleSnapshot compile(int version, Collection<String> lines, DomainIndex index, SuffixFilter filter) {
+        long start = System.nanoTime();
+        List<String> copy = Collections.unmodifiableList(new ArrayList<>(lines));
+        RuleMatcher matcher = RuleMatcher.compile(copy);
+        LongAdder[] hits = new LongAdder[matcher.ruleCount()];
+        for (int i = 0; i < hits.length; i++) hits[i] = new LongAdder();
+        return new RuleSnapshot(version, copy, matcher, index, filter, hits, new LongAdder(),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /** Same rules with a different domain index and filter; the matcher is shared, not rebuilt. */
+    RuleSnapshot withIndex(int version, DomainIndex index, SuffixFilter filter) {
+        return new RuleSnapshot(version, lines, matcher, index, filter, hits, new LongAdder(), 0);
+    }
+
+    /**
+     * True if a dotted, lower-case name should be blocked: a block rule or the
+     * domain index matches it and no allow rule does. Allow rules override the
+     * hosts lists too. Counts a hit for whichever rule decided.
+     */
+    public boolean blocks(byte[] name, int offset, int length) {
+        int rule = matcher.match(name, offset, length);
+        if (rule != RuleMatcher.NO_RULE) {
+            hits[rule].increment();
+            return !matcher.isAllow(rule);
+        }
+        if (index != null && (filter == null || filter.mightContain(name, offset, length))
+                && index.contains(name, offset, length)) {
+            indexHits.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /** Rule lines as given, including any that were rejected. */
+    public List<String> lines() {
+        return lines;
+    }
+
+    public RuleMatcher matcher() {
+        return matcher;
+    }
+
+    public long hits(int rule) {
+        return hits[rule].sum();
+    }
+
+    public long indexHits() {
+        return indexHits.sum();
+    }
+
+    public DomainIndex index() {
+        return index;
+    }
+
+    public SuffixFilter filter() {
+        return filter;
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.nexus.services.shield;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the live {@link RuleSnapshot}. Readers take {@link #current()}, a single
+ * volatile read with no locking. Every change is compiled on one background
+ * thread and published with a single reference swap, so updates take effect on
+ * the next query without pausing the tunnel. The last few snapshots are kept
+ * for {@link #rollback()}.
+ */
+public final class RuleStore {
+
+    private static final String TAG = "ShieldRules";
+    private static final int HISTORY = 4;
+    private static final int TOP_RULES = 20;
+
+    private final AtomicReference<RuleSnapshot> current = new AtomicReference<>();
+    // Superseded snapshots, newest first. Only touched on the compiler thread, except stats.
+    private final ArrayDeque<RuleSnapshot> history = new ArrayDeque<>();
+    private final ExecutorService compiler = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, TAG);
+        t.setDaemon(true);
+        return t;
+    });
+    private int lastVersion;
+    // Whether published snapshots carry a SuffixFilter in front of their index.
+    private boolean prefilter = true;
+
+    /**
+     * Compiles the initial rule set on the calling thread so the store is never
+     * empty. Keep it small, e.g. a built-in list; anything larger belongs in
+     * {@link #setRules}, which compiles in the background.
+     */
+    public RuleStore(Collection<String> rules) {
+        current.set(RuleSnapshot.compile(++lastVersion, rules, null, null));
+    }
+
+    public RuleSnapshot current() {
+        return current.get();
+    }
+
+    /** Recompiles the rule matcher, keeping the current domain index. */
+    public Future<RuleSnapshot> setRules(Collection<String> rules) {
+        ArrayList<String> copy = new ArrayList<>(rules);
+        return compiler.submit(() -> {
+            RuleSnapshot now = current();
+            return publish(RuleSnapshot.compile(++lastVersion, copy, now.index(), now.filter()));
+        });
+    }
+
+    /**
+     * Runs {@code loader} on the compiler thread and swaps in the index it returns
+     * (null for none). If the loader throws, the current rules stay in place.
+     */
+    public Future<RuleSnapshot> setIndex(Callable<DomainIndex> loader) {
+        return compiler.submit(() -> {
+            DomainIndex index;
+            try {
+                index = loader.call();
+            } catch (Exception e) {
+                Log.e(TAG, "Domain index load failed, keeping v" + current().version, e);
+                throw e;
+            }
+            return publish(current().withIndex(++lastVersion, index, filterFor(index)));
+        });
+    }
+
+    /** Turns the Bloom pre-check in front of the domain index on or off. */
+    public Future<RuleSnapshot> setPrefilter(boolean enabled) {
+        return compiler.submit(() -> {
+            if (prefilter == enabled) return current();
+            prefilter = enabled;
+            DomainIndex index = current().index();
+            return publish(current().withIndex(++lastVersion, index, filterFor(index)));
+        });
+    }
+
+    private SuffixFilter filterFor(DomainIndex index) {
+        return prefilter && index != null && index.size() > 0 ? SuffixFilter.build(index) : null;
+    }
+
+    /** Goes back to the previous snapshot. The Future yields null if there is none left. */
+    public Future<RuleSnapshot> rollback() {
+        return compiler.submit(() -> {
+            RuleSnapshot previous;
+            synchronized (history) {
+                previous = history.pollFirst();
+            }
+            if (previous == null) return null;
+            current.set(previous);
+            Log.i(TAG, "Rolled back to rules v" + previous.version);
+            return previous;
+        });
+    }
+
+    private RuleSnapshot publish(RuleSnapshot next) {
+        RuleSnapshot old = current.getAndSet(next);
+        synchronized (history) {
+            history.addFirst(old);
+            while (history.size() > HISTORY) history.removeLast();
+        }
+        Log.i(TAG, "Published rules v" + next.version + " (" + next.matcher().ruleCount() + " rules, "
+                + (next.index() != null ? next.index().size() : 0) + " domains, " + next.compileMs + " ms)");
+        return next;
+    }
+
+    public String statsJson() {
+        RuleSnapshot s = current();
+        JSONObject o = new JSONObject();
+        try {
+            o.put("version", s.version);
+            o.put("createdAt", s.createdAtMs);
+            o.put("compileMs", s.compileMs);
+            RuleMatcher m = s.matcher();
+            o.put("rules", m.ruleCount());
+            o.put("allowRules", m.allowCount());
+            o.put("rejectedRules", m.rejectedCount());
+            o.put("matcherStates", m.stateCount());
+            o.put("indexDomains", s.index() != null ? s.index().size() : 0);
+            o.put("indexBytes", s.index() != null ? s.index().byteSize() : 0);
+            o.put("indexHits", s.indexHits());
+            o.put("prefilter", filterStats(s));
+            o.put("topRules", topRules(s));
+            JSONArray previous = new JSONArray();
+            synchronized (history) {
+                for (RuleSnapshot h : history) previous.put(h.version);
+            }
+            o.put("rollbackVersions", previous);
+        } catch (JSONException e) {
+            Log.e(TAG, "Stats serialisation failed", e);
+        }
+        return o.toString();
+    }
+
+    private static JSONObject filterStats(RuleSnapshot s) throws JSONException {
+        SuffixFilter f = s.filter();
+        if (f == null) return null;
+        JSONObject o = new JSONObject();
+        o.put("bytes", f.byteSize());
+        o.put("hashes", f.hashCount());
+        o.put("expectedFpRate", f.expectedFalsePositiveRate());
+        long probes = f.probeCount();
+        long passes = f.passCount();
+        // Every index hit passed the filter; whatever else passed was a false positive.
+        long falsePositives = Math.max(0, passes - s.indexHits());
+        long negatives = probes - s.indexHits();
+        o.put("probes", probes);
+        o.put("rejected", probes - passes);
+        o.put("falsePositives", falsePositives);
+        o.put("observedFpRate", negatives > 0 ? (double) falsePositives / negatives : 0);
+        return o;
+    }
+
+    private static JSONArray topRules(RuleSnapshot s) throws JSONException {
+        RuleMatcher m = s.matcher();
+        Integer[] order = new Integer[m.ruleCount()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(s.hits(b), s.hits(a)));
+        JSONArray out = new JSONArray();
+        for (int i = 0; i < Math.min(TOP_RULES, order.length) && s.hits(order[i]) > 0; i++) {
+            JSONObject r = new JSONObject();
+            r.put("rule", m.rule(order[i]));
+            r.put("allow", m.isAllow(order[i]));
+            r.put("hits", s.hits(order[i]));
+            out.put(r);
+        }
+        return out;
+    }
+
+    public void shutdown() {
+        compiler.shutdownNow();
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.nexus.services.shield;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Decouples block reporting from the DNS path. The packet path only enqueues
+ * the blocked domain; a single background thread batches domains and publishes
+ * at a capped rate: UI updates at most every {@link #UI_INTERVAL_MS}, the
+ * notification at most every {@link #NOTIFICATION_INTERVAL_MS}. Nothing is
+ * scheduled while no blocks arrive.
+ */
+public final class ShieldTelemetry {
+
+    public static final long UI_INTERVAL_MS = 100;
+    public static final long NOTIFICATION_INTERVAL_MS = 1000;
+
+    private static final int QUEUE_CAPACITY = 512;
+    private static final int MAX_BATCH = 64;
+
+    /** Receives the coalesced updates, always on the telemetry thread. */
+    public interface Sink {
+        void publishStatus(long blockedCount);
+
+        void publishBlocks(ArrayList<String> domains);
+
+        void publishNotification(long blockedCount);
+    }
+
+    private final Sink sink;
+    private final LongSupplier blockedCount;
+    private final ArrayBlockingQueue<String> pending = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "ShieldTelemetry"));
+    private final AtomicBoolean uiScheduled = new AtomicBoolean();
+    private final AtomicBoolean notificationScheduled = new AtomicBoolean();
+    private final AtomicLong droppedDomains = new AtomicLong();
+
+    // Written on the telemetry thread; lastUiAt is also read by recordBlock().
+    // nanoTime has an arbitrary origin, so "never" must be far in the past rather than 0.
+    private volatile long lastUiAt = Long.MIN_VALUE / 2;
+    private long lastNotificationAt = Long.MIN_VALUE / 2;
+    private long lastUiCount = -1;
+    private long lastNotifiedCount = -1;
+
+    public ShieldTelemetry(Sink sink, LongSupplier blockedCount) {
+        this.sink = sink;
+        this.blockedCount = blockedCount;
+    }
+
+    /** Called from the packet path. Never blocks on publishing. */
+    public void recordBlock(String domain) {
+        if (!pending.offer(domain)) droppedDomains.incrementAndGet();
+        if (uiScheduled.compareAndSet(false, true)) {
+            long wait = Math.max(0, lastUiAt + UI_INTERVAL_MS - now());
+            schedule(this::flushUi, wait);
+        }
+    }
+
+    /** Domains that could not be queued because the UI fell behind. */
+    public long droppedCount() {
+        return droppedDomains.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void flushUi() {
+        uiScheduled.set(false);
+        lastUiAt = now();
+
+        ArrayList<String> batch = new ArrayList<>();
+        pending.drainTo(batch, MAX_BATCH);
+        // Leftovers get their own slot rather than one oversized intent.
+        if (!pending.isEmpty() && uiScheduled.compareAndSet(false, true)) {
+            schedule(this::flushUi, UI_INTERVAL_MS);
+        }
+        if (!batch.isEmpty()) sink.publishBlocks(batch);
+
+        long count = blockedCount.getAsLong();
+        if (count != lastUiCount) {
+            lastUiCount = count;
+            sink.publishStatus(count);
+        }
+
+        if (count != lastNotifiedCount && notificationScheduled.compareAndSet(false, true)) {
+            long wait = Math.max(0, lastNotificationAt + NOTIFICATION_INTERVAL_MS - now());
+            schedule(this::flushNotification, wait);
+        }
+    }
+
+    private void flushNotification() {
+        notificationScheduled.set(false);
+        lastNotificationAt = now();
+        long count = blockedCount.getAsLong();
+        if (count != lastNotifiedCount) {
+            lastNotifiedCount = count;
+            sink.publishNotification(count);
+        }
+    }
+
+    private void schedule(Runnable task, long delayMs) {
+        try {
+            executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // Shut down; nothing left to publish to.
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000L;
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.nexus.services.shield;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Decides which apps use the tunnel from the include and exclude package
+ * lists. Android accepts only one kind of list per tunnel, so a non-empty
+ * include list wins and the exclude list is then ignored. Packages that are
+ * no longer installed are skipped rather than failing the whole tunnel.
+ */
+public final class SplitTunnel {
+
+    /** Where the chosen packages go; the VPN builder in production. */
+    public interface Target {
+        /** Routes only listed apps through the tunnel; false if the package is not installed. */
+        boolean allow(String pkg);
+
+        /** Keeps the app out of the tunnel; false if the package is not installed. */
+        boolean disallow(String pkg);
+    }
+
+    private SplitTunnel() {}
+
+    /**
+     * Hands the winning list to {@code target} and returns the packages it
+     * skipped as not installed. An include list of only such apps covers
+     * nothing, so Android then falls back to every app, which is the safe side.
+     */
+    public static List<String> apply(Collection<String> included, Collection<String> excluded, Target target) {
+        boolean include = !included.isEmpty();
+        List<String> missing = new ArrayList<>();
+        for (String pkg : include ? included : excluded) {
+            boolean added = include ? target.allow(pkg) : target.disallow(pkg);
+            if (!added) missing.add(pkg);
+        }
+        return missing;
+    }
+}
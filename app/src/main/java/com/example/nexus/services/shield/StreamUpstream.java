@@ -0,0 +1,333 @@
+package com.example.nexus.services.shield;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Base for transports that carry DNS over one persistent stream connection
+ * (TCP, TLS or HTTP/2). Queries are pipelined: each is written as soon as it is
+ * sent and replies are matched by transaction ID in whatever order they come
+ * back. The connection is opened on a background thread, which then stays on
+ * as its reader; while it is being (re)opened {@link #send} returns false so
+ * the caller can route the query elsewhere instead of waiting on a handshake.
+ *
+ * {@link #send} never touches the socket. It encodes the query into the
+ * connection's {@link Outbox}, and a writer thread per connection moves
+ * whatever has queued up to the socket in one write. Callers (the TUN reader,
+ * the UDP selector, cache refreshes) therefore never wait on a slow or stalled
+ * peer; a connection whose queue is full just refuses more queries.
+ */
+abstract class StreamUpstream implements DnsTransport {
+
+    /** Opens a connected socket to the resolver, already protected from the tunnel. */
+    public interface Connector {
+        Socket connect() throws IOException;
+    }
+
+    static final int MAX_MESSAGE = 65535;
+
+    private static final long RETRY_MS = 1_000;
+    // Reopen a connection the server closed only if it carried traffic this recently.
+    private static final long IDLE_RECONNECT_MS = 60_000;
+    private static final long SWEEP_INTERVAL_MS = 50;
+    static final int OUTBOX_BYTES = 1 << 16;
+    // Kept free of queries so control frames (acks, window updates, resets) always fit.
+    private static final int CONTROL_RESERVE = 1024;
+
+    /**
+     * Bytes waiting to be written to one connection. Appending copies into a
+     * fixed buffer and never blocks; the writer thread takes everything queued
+     * in one go and writes it outside any lock senders use.
+     */
+    static final class Outbox {
+        private final byte[] buf = new byte[OUTBOX_BYTES];
+        private int size;
+        private boolean closed;
+
+        synchronized int free() {
+            return closed ? 0 : buf.length - size;
+        }
+
+        /** Queues {@code b[off, off + len)}, or throws if the connection is closed or the queue is full. */
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("Connection closed");
+            if (len > buf.length - size) throw new IOException("Write queue full");
+            System.arraycopy(b, off, buf, size, len);
+            if (size == 0) notifyAll();
+            size += len;
+        }
+
+        /** Waits for queued bytes and moves them all to {@code into}; returns -1 once closed. */
+        synchronized int take(byte[] into) throws InterruptedException {
+            while (size == 0 && !closed) wait();
+            if (closed) return -1;
+            int n = size;
+            System.arraycopy(buf, 0, into, 0, n);
+            size = 0;
+            return n;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    /** One socket and the queries in flight on it. */
+    static class Connection {
+        final Socket socket;
+        final Outbox out = new Outbox();
+        final DataInputStream in;
+        final PendingQueries pending = new PendingQueries();
+        volatile boolean usable = true;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        void close() {
+            usable = false;
+            out.close();
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private final String name;
+    private final Connector connector;
+    final Listener listener;
+    volatile long timeoutMs;
+
+    // Guards the connection fields below and every write to a connection.
+    final Object writeLock = new Object();
+    private Connection current;
+    private Connection draining;
+    private boolean connecting;
+    private long lastFailure = Long.MIN_VALUE / 2;
+    // Far in the past, not 0: the clock counts from boot, so 0 would look like a recent send.
+    private volatile long lastSend = Long.MIN_VALUE / 2;
+    private volatile boolean open = true;
+    private long nextSweep;
+
+    private int connects;
+    private long timedOut;
+
+    StreamUpstream(String name, Connector connector, long timeoutMs, Listener listener) {
+        this.name = name;
+        this.connector = connector;
+        this.timeoutMs = timeoutMs;
+        this.listener = listener;
+    }
+
+    /** Wraps a fresh socket; subclasses may return a Connection carrying protocol state. */
+    Connection newConnection(Socket socket) throws IOException {
+        return new Connection(socket);
+    }
+
+    /** Called on the connection thread before the connection is used, e.g. to queue a preface. */
+    void onConnected(Connection c) throws IOException {}
+
+    /** Bytes {@link #writeQuery} may queue for a query of {@code length} bytes. */
+    abstract int frameLength(int length);
+
+    /**
+     * Queues one query on {@code c.out} with its transaction ID replaced by
+     * {@code id}. Called under {@link #writeLock} with at least
+     * {@link #frameLength} bytes free in the queue.
+     */
+    abstract void writeQuery(Connection c, byte[] query, int offset, int length, int id) throws IOException;
+
+    /** Reads replies until the connection ends, handing them to {@code c.pending}. */
+    abstract void readLoop(Connection c) throws IOException;
+
+    /** Whether {@code c} can take another query of {@code length} bytes now. Called under {@link #writeLock}. */
+    boolean hasCapacity(Connection c, int length) {
+        return true;
+    }
+
+    /** Called on the sweeping thread after queries in flight on {@code c} timed out. */
+    void onExpired(Connection c) {}
+
+    @Override
+    public boolean send(byte[] query, int offset, int length, Callback callback) {
+        if (!open || length > MAX_MESSAGE) return false;
+        lastSend = now();
+        synchronized (writeLock) {
+            Connection c = current;
+            if (c == null || !c.usable) {
+                connectAsync();
+                return false;
+            }
+            // A full queue means the peer is not reading; let the caller go elsewhere.
+            if (!hasCapacity(c, length) || c.out.free() < frameLength(length) + CONTROL_RESERVE) return false;
+            int id = c.pending.claim(query, offset, length, callback, timeoutMs);
+            if (id < 0) return false;
+            try {
+                writeQuery(c, query, offset, length, id);
+                return true;
+            } catch (IOException e) {
+                c.pending.cancel(id);
+                c.close(); // the reader sees the closed socket and cleans up
+                return false;
+            }
+        }
+    }
+
+    /** Starts opening a connection unless one is already on its way. Called under {@link #writeLock}. */
+    private void connectAsync() {
+        if (!open || connecting || now() - lastFailure < RETRY_MS) return;
+        connecting = true;
+        new Thread(this::runConnection, name).start();
+    }
+
+    private void runConnection() {
+        Connection c = null;
+        boolean published = false;
+        try {
+            c = newConnection(connector.connect());
+            Connection writing = c;
+            new Thread(() -> writeLoop(writing), name + "Writer").start();
+            onConnected(c);
+            synchronized (writeLock) {
+                connecting = false;
+                if (!open) return;
+                if (current != null) draining = current;
+                current = c;
+                published = true;
+                connects++;
+            }
+            readLoop(c);
+        } catch (IOException e) {
+            if (open) Log.w(name, "Connection ended: " + e.getMessage());
+        } finally {
+            synchronized (writeLock) {
+                if (!published) {
+                    connecting = false;
+                    lastFailure = now();
+                }
+                if (current == c) current = null;
+                if (draining == c) draining = null;
+            }
+            if (c != null) {
+                c.close();
+                c.pending.failAll();
+            }
+        }
+    }
+
+    /** Moves queued bytes to the socket until the connection closes. */
+    private void writeLoop(Connection c) {
+        byte[] batch = new byte[OUTBOX_BYTES];
+        try {
+            OutputStream socketOut = c.socket.getOutputStream();
+            while (true) {
+                int n = c.out.take(batch);
+                if (n < 0) return;
+                socketOut.write(batch, 0, n);
+                socketOut.flush();
+            }
+        } catch (IOException e) {
+            if (open) Log.w(name, "Write failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        c.close(); // the reader sees the closed socket and cleans up
+    }
+
+    /** Stops routing new queries to {@code c}; what is in flight may still be answered. */
+    void retire(Connection c) {
+        c.usable = false;
+    }
+
+    @Override
+    public void setTimeout(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    @Override
+    public void tick(long nowMs) {
+        if (nowMs < nextSweep) return;
+        nextSweep = nowMs + SWEEP_INTERVAL_MS;
+        Connection c;
+        Connection d;
+        synchronized (writeLock) {
+            c = current;
+            d = draining;
+        }
+        if (c == null && d == null) {
+            // Nothing to sweep. If the server dropped a busy connection, reopen it before the next query.
+            if (open && nowMs - lastSend < IDLE_RECONNECT_MS) {
+                synchronized (writeLock) {
+                    connectAsync();
+                }
+            }
+            return;
+        }
+        int expired = 0;
+        if (c != null) expired += expire(c, nowMs);
+        if (d != null) expired += expire(d, nowMs);
+        synchronized (writeLock) {
+            timedOut += expired;
+        }
+    }
+
+    private int expire(Connection c, long nowMs) {
+        int expired = c.pending.expire(nowMs, listener);
+        if (expired > 0) onExpired(c);
+        return expired;
+    }
+
+    @Override
+    public int inFlight() {
+        Connection c;
+        Connection d;
+        synchronized (writeLock) {
+            c = current;
+            d = draining;
+        }
+        return (c != null ? c.pending.size() : 0) + (d != null ? d.pending.size() : 0);
+    }
+
+    /** Connections opened so far; stays at one while the first one lives. */
+    public int connectCount() {
+        synchronized (writeLock) {
+            return connects;
+        }
+    }
+
+    public long timeoutCount() {
+        synchronized (writeLock) {
+            return timedOut;
+        }
+    }
+
+    @Override
+    public void close() {
+        Connection c;
+        Connection d;
+        synchronized (writeLock) {
+            open = false;
+            c = current;
+            d = draining;
+            current = null;
+            draining = null;
+        }
+        if (c != null) {
+            c.close();
+            c.pending.failAll();
+        }
+        if (d != null) {
+            d.close();
+            d.pending.failAll();
+        }
+    }
+
+    static long now() {
+        return System.nanoTime() / 1_000_000L;
+    }
+}
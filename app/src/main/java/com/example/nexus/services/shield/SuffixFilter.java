@@ -0,0 +1,134 @@
+package com.example.nexus.services.shield;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bloom filter over every domain in a {@link DomainIndex}, checked before the
+ * index itself. A query name is probed once per parent-domain suffix, hashed
+ * right to left in one pass, which is the same byte order the index stores its
+ * reversed records in. Most clean names miss on the first bit of every probe,
+ * so they never touch the mapped file; only likely hits go on to the exact
+ * lookup.
+ */
+public final class SuffixFilter {
+
+    // About 1% false positives per suffix probed at the optimal hash count; the table
+    // is then rounded up to a power of two, which only lowers that.
+    static final int BITS_PER_ENTRY = 10;
+    private static final int MAX_HASHES = 12;
+
+    // FNV-1a, 64-bit, over the folded name from its last byte to its first.
+    static final long SEED = 0xCBF29CE484222325L;
+    private static final long PRIME = 0x100000001B3L;
+
+    private final long[] bits;
+    private final int mask;
+    private final int hashes;
+    private final int entries;
+    private final LongAdder probes = new LongAdder();
+    private final LongAdder passes = new LongAdder();
+
+    private SuffixFilter(int entries) {
+        long wanted = Math.max(64, (long) entries * BITS_PER_ENTRY);
+        int bitCount = (int) Math.min(1L << 30, Long.highestOneBit(wanted - 1) << 1);
+        this.bits = new long[bitCount >>> 6];
+        this.mask = bitCount - 1;
+        this.entries = entries;
+        this.hashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(Math.log(2) * bitCount / Math.max(1, entries))));
+    }
+
+    /** Builds a filter holding every domain in {@code index}. Linear in the index size; run it off the packet path. */
+    public static SuffixFilter build(DomainIndex index) {
+        int n = index.size();
+        SuffixFilter f = new SuffixFilter(n);
+        for (int i = 0; i < n; i++) f.add(index.entryHash(i));
+        return f;
+    }
+
+    static long step(long h, int c) {
+        return (h ^ fold(c)) * PRIME;
+    }
+
+    private static int fold(int c) {
+        return (c >= 'A' && c <= 'Z') ? c + 32 : c;
+    }
+
+    private void add(long hash) {
+        long m = mix(hash);
+        int h1 = (int) m;
+        int h2 = (int) (m >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private boolean test(long hash) {
+        long m = mix(hash);
+        int h1 = (int) m;
+        int h2 = (int) (m >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * False if neither {@code name} nor any of its parent domains can be in the
+     * index; true if one might be. Mirrors {@link DomainIndex#contains(byte[], int, int)}.
+     */
+    public boolean mightContain(byte[] name, int offset, int length) {
+        probes.increment();
+        int end = offset + length;
+        if (length > 0 && name[end - 1] == '.') end--;
+        long h = SEED;
+        for (int i = end - 1; i >= offset; i--) {
+            int c = name[i] & 0xFF;
+            // Everything hashed so far is the suffix after this dot.
+            if (c == '.' && i + 1 < end && test(h)) {
+                passes.increment();
+                return true;
+            }
+            h = step(h, c);
+        }
+        if (end > offset && test(h)) {
+            passes.increment();
+            return true;
+        }
+        return false;
+    }
+
+    // Final avalanche (from MurmurHash3) so both halves of the FNV state spread over the table.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public long byteSize() {
+        return (long) bits.length * 8;
+    }
+
+    public int hashCount() {
+        return hashes;
+    }
+
+    /** False-positive rate the filter was sized for, given how full it is. */
+    public double expectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) hashes * entries / (mask + 1.0)), hashes);
+    }
+
+    /** Names checked against the filter. */
+    public long probeCount() {
+        return probes.sum();
+    }
+
+    /** Names the filter let through to the exact lookup. */
+    public long passCount() {
+        return passes.sum();
+    }
+}
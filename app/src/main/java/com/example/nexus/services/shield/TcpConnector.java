@@ -0,0 +1,33 @@
+package com.example.nexus.services.shield;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/** Opens plain TCP connections to one resolver, protected from the tunnel. */
+public final class TcpConnector implements StreamUpstream.Connector {
+
+    private static final int CONNECT_TIMEOUT_MS = 5_000;
+
+    private final InetSocketAddress address;
+    private final TlsConnector.Protector protector;
+
+    public TcpConnector(InetSocketAddress address, TlsConnector.Protector protector) {
+        this.address = address;
+        this.protector = protector;
+    }
+
+    @Override
+    public Socket connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            if (!protector.protect(socket)) throw new IOException("Socket protection failed");
+            socket.setTcpNoDelay(true);
+            socket.connect(address, CONNECT_TIMEOUT_MS);
+            return socket;
+        } catch (IOException e) {
+            try { socket.close(); } catch (IOException ignored) {}
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,499 @@
+package com.example.nexus.services.shield;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Terminates the DNS-over-TCP connections (RFC 7766) that clients open to the
+ * resolver address inside the tunnel, usually to ask again after a truncated
+ * UDP answer. Only as much TCP as short query/answer exchanges need: a passive
+ * open, in-order receive (anything out of order is dropped and re-ACKed, so
+ * the client sends it again), sends bounded by the client's window, a resend
+ * from the first unacknowledged byte after three duplicate ACKs or when the
+ * retransmission timer fires (see {@link #tick}), and an orderly close once
+ * every query has been answered.
+ *
+ * <p>Each complete query is copied into a pooled {@link Packet} carrying the
+ * connection's handle and goes through the same pipeline as UDP queries;
+ * answers come back through {@link #reply}. The connection table is small and
+ * fixed. When it is full, a new connection takes over one that has been idle
+ * for {@link #IDLE_MS}, or is reset. All state is guarded by this object's
+ * lock, which is never held while a query is handed on.
+ */
+public final class TcpDnsFlows {
+
+    /** Takes one parsed query, and with it the ownership of its buffer. */
+    public interface QueryHandler {
+        void onQuery(Packet query);
+    }
+
+    /** Writes one finished packet to the tunnel, taking ownership of its buffer. */
+    public interface Output {
+        void write(Packet packet);
+    }
+
+    static final long IDLE_MS = 10_000;
+
+    private static final int MAX_FLOWS = 32;
+    // Receive buffer per connection; its free space is the window we advertise.
+    private static final int RECV_BUFFER = 4096;
+    // Answers queued on one connection; a client that stops reading is reset past this.
+    private static final int MAX_SEND_BUFFER = 4 * (2 + StreamUpstream.MAX_MESSAGE);
+    private static final int TUN_MTU = 1500;
+    // Assumed when a SYN carries no MSS option (RFC 9293, RFC 8200).
+    private static final int DEFAULT_MSS_V4 = 536;
+    private static final int DEFAULT_MSS_V6 = 1220;
+    private static final int DUP_ACKS = 3;
+    // The client is an app on this device, so there is no RTT worth measuring:
+    // a fixed first timeout, doubled on each resend (RFC 6298 5.5), and a reset
+    // once the client has ignored the last one.
+    static final long INITIAL_RTO_MS = 250;
+    private static final long MAX_RTO_MS = 8_000;
+    private static final int MAX_RETRANSMITS = 6;
+
+    private static final int SYN_RECEIVED = 1;
+    private static final int ESTABLISHED = 2;
+
+    /** One client connection, reused for the next once it closes. */
+    private static final class Flow {
+        final int index;
+        int generation = 1;
+        boolean used;
+        int state;
+        // The client's IP header and ports, as PacketCodec.buildTcpSegment takes them.
+        final byte[] template = new byte[60 + 20];
+        int tcp;
+        int mss;
+        long lastActive;
+
+        int rcvNext;
+        int sndUna;
+        int sndNext;
+        int window;
+        int dupAcks;
+        // When to resend from sndUna; 0 while nothing is unacknowledged.
+        long rtoAt;
+        long rto;
+        int retransmits;
+        boolean ackPending;
+        boolean finReceived;
+        boolean finSent;
+        int pending;
+
+        final byte[] in = new byte[RECV_BUFFER];
+        int inLen;
+        // Bytes from sndUna on: sent but unacknowledged, then not yet sent. Grown on first use.
+        byte[] out = new byte[0];
+        int outLen;
+
+        Flow(int index) {
+            this.index = index;
+        }
+
+        int handle() {
+            return (generation << 8) | index;
+        }
+    }
+
+    private final PacketPool pool;
+    private final Output output;
+    private final QueryHandler handler;
+    private final Flow[] flows = new Flow[MAX_FLOWS];
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+
+    public TcpDnsFlows(PacketPool pool, Output output, QueryHandler handler) {
+        this.pool = pool;
+        this.output = output;
+        this.handler = handler;
+        for (int i = 0; i < MAX_FLOWS; i++) flows[i] = new Flow(i);
+    }
+
+    /**
+     * Takes a segment read from the tunnel. Returns false, leaving it alone,
+     * unless it is TCP to port 53; the caller keeps the segment's buffer either way.
+     */
+    public boolean handle(Packet segment) {
+        byte[] d = segment.data;
+        int len = segment.length;
+        if (len < 20) return false;
+        int version = (d[0] >> 4) & 0x0F;
+        int tcp;
+        int end;
+        if (version == 4) {
+            if (d[9] != PacketCodec.PROTO_TCP) return false;
+            tcp = (d[0] & 0x0F) * 4;
+            end = Math.min(len, DnsWire.u16(d, 2));
+        } else if (version == 6 && len >= PacketCodec.IPV6_HEADER_LEN) {
+            if (d[6] != PacketCodec.PROTO_TCP) return false;
+            tcp = PacketCodec.IPV6_HEADER_LEN;
+            end = Math.min(len, tcp + DnsWire.u16(d, 4));
+        } else {
+            return false;
+        }
+        if (tcp < 20 || end < tcp + 20 || DnsWire.u16(d, tcp + 2) != PacketCodec.DNS_PORT) return false;
+        int dataStart = tcp + ((d[tcp + 12] >> 4) & 0x0F) * 4;
+        if (dataStart < tcp + 20 || dataStart > end) return true; // malformed; drop it
+
+        Flow f;
+        int handle;
+        synchronized (this) {
+            f = segment(d, len, tcp, dataStart, end, now());
+            if (f == null) return true;
+            handle = f.handle();
+        }
+        // Hand on what arrived complete, outside the lock: a cached or blocked
+        // answer comes straight back through reply() on this thread.
+        Packet query;
+        while ((query = nextQuery(f, handle)) != null) handler.onQuery(query);
+        synchronized (this) {
+            if (f.used && f.handle() == handle) {
+                pump(f);
+                if (f.ackPending) send(f, PacketCodec.TCP_ACK, f.sndNext, null, 0, 0);
+            }
+        }
+        return true;
+    }
+
+    /** Applies one segment to its connection and returns the connection if it is still open. Under the lock. */
+    private Flow segment(byte[] d, int len, int tcp, int dataStart, int end, long now) {
+        int flags = d[tcp + 13] & 0xFF;
+        int seq = (int) DnsWire.u32(d, tcp + 4);
+        int ack = (int) DnsWire.u32(d, tcp + 8);
+        Flow f = find(d, tcp);
+        if (f == null) {
+            if ((flags & PacketCodec.TCP_RST) != 0) return null;
+            if ((flags & (PacketCodec.TCP_SYN | PacketCodec.TCP_ACK)) != PacketCodec.TCP_SYN) {
+                resetUnknown(d, len);
+                return null;
+            }
+            f = open(d, tcp, dataStart, seq, now);
+            if (f == null) {
+                refused.incrementAndGet();
+                resetUnknown(d, len);
+                return null;
+            }
+            send(f, PacketCodec.TCP_SYN | PacketCodec.TCP_ACK, f.sndUna, null, 0, 0);
+            return null;
+        }
+        f.lastActive = now;
+        if ((flags & PacketCodec.TCP_RST) != 0) {
+            close(f);
+            return null;
+        }
+        if ((flags & PacketCodec.TCP_SYN) != 0) {
+            // Our SYN-ACK was lost; anything else is a stale duplicate.
+            if (f.state == SYN_RECEIVED && seq == f.rcvNext - 1) {
+                send(f, PacketCodec.TCP_SYN | PacketCodec.TCP_ACK, f.sndUna, null, 0, 0);
+            }
+            return null;
+        }
+        if ((flags & PacketCodec.TCP_ACK) == 0) return null;
+
+        int dataLen = end - dataStart;
+        boolean fin = (flags & PacketCodec.TCP_FIN) != 0;
+        int acked = ack - f.sndUna;
+        int inFlight = f.sndNext - f.sndUna;
+        if (acked > 0 && acked <= inFlight) {
+            if (f.state == SYN_RECEIVED) {
+                f.state = ESTABLISHED;
+                acked--; // the SYN
+            }
+            int data = Math.min(acked, f.outLen);
+            System.arraycopy(f.out, data, f.out, 0, f.outLen - data);
+            f.outLen -= data;
+            f.sndUna = ack;
+            f.dupAcks = 0;
+            f.rto = INITIAL_RTO_MS;
+            f.retransmits = 0;
+            f.rtoAt = ack == f.sndNext ? 0 : now + f.rto;
+        } else if (acked == 0 && inFlight > 0 && dataLen == 0 && !fin
+                && DnsWire.u16(d, tcp + 14) == f.window && ++f.dupAcks == DUP_ACKS) {
+            rewind(f);
+        }
+        if (f.state == SYN_RECEIVED) return null;
+        f.window = DnsWire.u16(d, tcp + 14);
+        if (f.finSent && f.sndUna == f.sndNext) {
+            close(f); // our FIN is acknowledged
+            return null;
+        }
+
+        if (dataLen > 0 || fin) {
+            f.ackPending = true;
+            if (seq == f.rcvNext && !f.finReceived) {
+                // A client that keeps to our window always fits.
+                int taken = Math.min(dataLen, RECV_BUFFER - f.inLen);
+                System.arraycopy(d, dataStart, f.in, f.inLen, taken);
+                f.inLen += taken;
+                f.rcvNext += taken;
+                if (fin && taken == dataLen) {
+                    f.rcvNext++;
+                    f.finReceived = true;
+                }
+            }
+        }
+        return f;
+    }
+
+    /** Cuts the next complete message out of {@code f}'s receive buffer into a query packet, or null. */
+    private Packet nextQuery(Flow f, int handle) {
+        synchronized (this) {
+            if (!f.used || f.handle() != handle || f.inLen < 2) return null;
+            int msgLen = DnsWire.u16(f.in, 0);
+            if (f.inLen < 2 + msgLen) {
+                if (2 + msgLen > RECV_BUFFER) abort(f); // could never arrive whole
+                return null;
+            }
+            Packet q = pool.acquire();
+            int ipLen = f.tcp;
+            int dnsStart = ipLen + PacketCodec.UDP_HEADER_LEN;
+            if (msgLen < DnsWire.HEADER_LEN || dnsStart + msgLen > q.data.length) {
+                q.release();
+                abort(f);
+                return null;
+            }
+            // Addresses and ports as the client sent them, for attribution; no transport header follows.
+            System.arraycopy(f.template, 0, q.data, 0, ipLen + 4);
+            System.arraycopy(f.in, 2, q.data, dnsStart, msgLen);
+            System.arraycopy(f.in, 2 + msgLen, f.in, 0, f.inLen - 2 - msgLen);
+            f.inLen -= 2 + msgLen;
+            f.ackPending = true; // the window has grown
+            f.pending++;
+            q.length = dnsStart + msgLen;
+            q.ipHeaderLen = ipLen;
+            q.dnsStart = dnsStart;
+            q.srcPort = DnsWire.u16(f.template, ipLen);
+            q.tcpFlow = handle;
+            queries.incrementAndGet();
+            return q;
+        }
+    }
+
+    /**
+     * Queues the answer {@code dns[offset, offset + length)} on the connection
+     * {@code query} came from, with that query's ID and question casing. Does
+     * nothing if the connection has gone meanwhile.
+     */
+    public void reply(Packet query, byte[] dns, int offset, int length) {
+        int qEnd = DnsWire.questionEnd(query.data, query.dnsStart, query.length);
+        int qLen = qEnd - query.dnsStart;
+        if (qEnd < 0 || length < qLen || length > StreamUpstream.MAX_MESSAGE) return;
+        synchronized (this) {
+            Flow f = flow(query.tcpFlow);
+            if (f == null || f.finSent) return;
+            int need = f.outLen + 2 + length;
+            if (need > MAX_SEND_BUFFER) {
+                abort(f);
+                return;
+            }
+            if (need > f.out.length) {
+                int size = Math.max(RECV_BUFFER, Math.max(need, 2 * f.out.length));
+                byte[] grown = new byte[Math.min(MAX_SEND_BUFFER, size)];
+                System.arraycopy(f.out, 0, grown, 0, f.outLen);
+                f.out = grown;
+            }
+            int at = f.outLen + 2;
+            DnsWire.put16(f.out, f.outLen, length);
+            System.arraycopy(dns, offset, f.out, at, length);
+            System.arraycopy(query.data, query.dnsStart, f.out, at, 2);
+            System.arraycopy(query.data, query.dnsStart + DnsWire.HEADER_LEN,
+                    f.out, at + DnsWire.HEADER_LEN, qLen - DnsWire.HEADER_LEN);
+            f.outLen += 2 + length;
+            pump(f);
+        }
+    }
+
+    /** Called once per query handed on, when its buffer is given back, answered or not. */
+    public void finished(int handle) {
+        synchronized (this) {
+            Flow f = flow(handle);
+            if (f == null) return;
+            f.pending--;
+            pump(f);
+        }
+    }
+
+    /**
+     * Retransmission timer, called periodically (every few tens of
+     * milliseconds is plenty): resends the SYN-ACK, or everything from the
+     * first unacknowledged byte including our FIN, on each connection whose
+     * timeout has passed, and resets those that never acknowledge.
+     */
+    public void tick(long nowMs) {
+        synchronized (this) {
+            for (Flow f : flows) {
+                if (!f.used || f.rtoAt == 0 || nowMs < f.rtoAt) continue;
+                if (++f.retransmits > MAX_RETRANSMITS) {
+                    abort(f);
+                    continue;
+                }
+                f.rto = Math.min(2 * f.rto, MAX_RTO_MS);
+                f.rtoAt = nowMs + f.rto;
+                if (f.state == SYN_RECEIVED) {
+                    send(f, PacketCodec.TCP_SYN | PacketCodec.TCP_ACK, f.sndUna, null, 0, 0);
+                } else {
+                    rewind(f);
+                    pump(f);
+                }
+            }
+        }
+    }
+
+    /** Sends what the client's window allows, then our FIN once the client is done and answered. Under the lock. */
+    private void pump(Flow f) {
+        if (f.state != ESTABLISHED || f.finSent) return;
+        int sent = f.sndNext - f.sndUna;
+        int before = sent;
+        while (sent < f.outLen && sent < f.window) {
+            int n = Math.min(f.mss, Math.min(f.outLen - sent, f.window - sent));
+            send(f, PacketCodec.TCP_ACK | PacketCodec.TCP_PSH, f.sndNext, f.out, sent, n);
+            f.sndNext += n;
+            sent += n;
+        }
+        if (f.finReceived && f.pending == 0 && sent == f.outLen) {
+            send(f, PacketCodec.TCP_FIN | PacketCodec.TCP_ACK, f.sndNext, null, 0, 0);
+            f.sndNext++;
+            f.finSent = true;
+        }
+        if (f.rtoAt == 0 && f.sndNext - f.sndUna > before) f.rtoAt = now() + f.rto;
+    }
+
+    /** Sends again from the first byte the client lacks; a FIN already sent goes again after the data. */
+    private void rewind(Flow f) {
+        f.sndNext = f.sndUna;
+        f.finSent = false;
+        f.dupAcks = 0;
+    }
+
+    private void send(Flow f, int flags, int seq, byte[] payload, int offset, int length) {
+        Packet p = pool.acquire();
+        boolean syn = (flags & PacketCodec.TCP_SYN) != 0;
+        p.length = PacketCodec.buildTcpSegment(f.template, p.data, flags, seq & 0xFFFFFFFFL,
+                f.rcvNext & 0xFFFFFFFFL, RECV_BUFFER - f.inLen, syn ? ourMss(f) : 0, payload, offset, length);
+        f.ackPending = false;
+        output.write(p);
+    }
+
+    private Flow open(byte[] d, int tcp, int dataStart, int seq, long now) {
+        Flow f = null;
+        for (Flow c : flows) {
+            if (!c.used) {
+                f = c;
+                break;
+            }
+        }
+        if (f == null) {
+            for (Flow c : flows) {
+                if (now - c.lastActive >= IDLE_MS && (f == null || c.lastActive < f.lastActive)) f = c;
+            }
+            if (f == null) return null;
+            abort(f);
+        }
+        f.used = true;
+        f.state = SYN_RECEIVED;
+        System.arraycopy(d, 0, f.template, 0, tcp + 20);
+        f.tcp = tcp;
+        f.mss = Math.min(peerMss(d, tcp, dataStart), ourMss(f));
+        f.lastActive = now;
+        f.rcvNext = seq + 1;
+        f.sndUna = ThreadLocalRandom.current().nextInt();
+        f.sndNext = f.sndUna + 1;
+        f.window = 0;
+        f.dupAcks = 0;
+        f.rto = INITIAL_RTO_MS;
+        f.retransmits = 0;
+        f.rtoAt = now + f.rto; // for the SYN-ACK
+        f.ackPending = false;
+        f.finReceived = false;
+        f.finSent = false;
+        f.pending = 0;
+        f.inLen = 0;
+        f.outLen = 0;
+        return f;
+    }
+
+    /** Resets {@code f} towards the client and frees it. */
+    private void abort(Flow f) {
+        send(f, PacketCodec.TCP_RST | PacketCodec.TCP_ACK, f.sndNext, null, 0, 0);
+        close(f);
+    }
+
+    private void close(Flow f) {
+        f.used = false;
+        // Answers still on their way for the old connection must not land on the next one.
+        f.generation = (f.generation & 0x7FFFFF) + 1;
+    }
+
+    private void resetUnknown(byte[] d, int len) {
+        Packet p = pool.acquire();
+        int n = PacketCodec.buildTcpReset(d, len, p.data);
+        if (n > 0) {
+            p.length = n;
+            output.write(p);
+        } else {
+            p.release();
+        }
+    }
+
+    private Flow flow(int handle) {
+        Flow f = flows[handle & 0xFF];
+        return f.used && f.handle() == handle ? f : null;
+    }
+
+    private Flow find(byte[] d, int tcp) {
+        for (Flow f : flows) {
+            if (f.used && sameEndpoints(f, d, tcp)) return f;
+        }
+        return null;
+    }
+
+    private static boolean sameEndpoints(Flow f, byte[] d, int tcp) {
+        byte[] t = f.template;
+        if (f.tcp != tcp || (t[0] & 0xF0) != (d[0] & 0xF0)) return false;
+        boolean v4 = (d[0] & 0xF0) == 0x40;
+        // Both addresses, then both ports.
+        for (int i = v4 ? 12 : 8; i < (v4 ? 20 : 40); i++) {
+            if (t[i] != d[i]) return false;
+        }
+        for (int i = tcp; i < tcp + 4; i++) {
+            if (t[i] != d[i]) return false;
+        }
+        return true;
+    }
+
+    private static int ourMss(Flow f) {
+        return TUN_MTU - 20 - ((f.template[0] >> 4 & 0x0F) == 4 ? 20 : PacketCodec.IPV6_HEADER_LEN);
+    }
+
+    private static int peerMss(byte[] d, int tcp, int dataStart) {
+        int pos = tcp + 20;
+        while (pos < dataStart) {
+            int kind = d[pos] & 0xFF;
+            if (kind == 0) break;
+            if (kind == 1) {
+                pos++;
+                continue;
+            }
+            if (pos + 1 >= dataStart) break;
+            int optLen = d[pos + 1] & 0xFF;
+            if (optLen < 2 || pos + optLen > dataStart) break;
+            if (kind == 2 && optLen == 4) return Math.max(DnsWire.HEADER_LEN, DnsWire.u16(d, pos + 2));
+            pos += optLen;
+        }
+        return (d[0] >> 4 & 0x0F) == 4 ? DEFAULT_MSS_V4 : DEFAULT_MSS_V6;
+    }
+
+    /** Queries received over TCP so far. */
+    public long queryCount() {
+        return queries.get();
+    }
+
+    /** Connections reset because the table was full of active ones. */
+    public long refusedCount() {
+        return refused.get();
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000L;
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.nexus.services.shield;
+
+import java.io.IOException;
+
+/**
+ * Plain DNS over TCP (RFC 7766): every message travels with a two-byte
+ * length prefix over one persistent connection, and any number of queries
+ * may be outstanding at once. Carries the answers that come back truncated
+ * over UDP; {@link TlsUpstream} runs the same framing inside TLS.
+ */
+public class TcpUpstream extends StreamUpstream {
+
+    // Written under writeLock.
+    private final byte[] frame = new byte[2 + MAX_MESSAGE];
+
+    public TcpUpstream(Connector connector, long timeoutMs, Listener listener) {
+        this("ShieldTcp", connector, timeoutMs, listener);
+    }
+
+    TcpUpstream(String name, Connector connector, long timeoutMs, Listener listener) {
+        super(name, connector, timeoutMs, listener);
+    }
+
+    @Override
+    int frameLength(int length) {
+        return 2 + length;
+    }
+
+    @Override
+    void writeQuery(Connection c, byte[] query, int offset, int length, int id) throws IOException {
+        DnsWire.put16(frame, 0, length);
+        System.arraycopy(query, offset, frame, 2, length);
+        DnsWire.put16(frame, 2, id);
+        c.out.write(frame, 0, 2 + length);
+    }
+
+    @Override
+    void readLoop(Connection c) throws IOException {
+        byte[] buf = new byte[MAX_MESSAGE];
+        while (true) {
+            int length = c.in.readUnsignedShort();
+            c.in.readFully(buf, 0, length);
+            c.pending.complete(buf, 0, length, listener);
+        }
+    }
+}
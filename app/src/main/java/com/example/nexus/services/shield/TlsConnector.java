@@ -0,0 +1,119 @@
+package com.example.nexus.services.shield;
+
+import android.annotation.SuppressLint;
+
+import org.conscrypt.Conscrypt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Opens TLS connections to one resolver through the bundled Conscrypt provider.
+ * The SSLContext lives as long as the connector, so its client session cache
+ * (and session tickets) let every reconnect resume instead of running a full
+ * handshake.
+ */
+public final class TlsConnector implements StreamUpstream.Connector {
+
+    private static final int CONNECT_TIMEOUT_MS = 5_000;
+
+    /** Lets the VPN service exclude our sockets from its own tunnel. */
+    public interface Protector {
+        boolean protect(Socket socket);
+    }
+
+    private final String host;
+    private final InetSocketAddress address;
+    private final String alpn;
+    private final Protector protector;
+    private final SSLSocketFactory factory;
+    private final HostnameVerifier verifier;
+
+    /**
+     * @param host    name to send as SNI and to verify the certificate against
+     * @param address resolver address; connecting by IP needs no bootstrap lookup
+     * @param alpn    protocol to require, e.g. "h2", or null for none (DoT)
+     */
+    public TlsConnector(String host, InetSocketAddress address, String alpn, Protector protector)
+            throws GeneralSecurityException {
+        this(host, address, alpn, protector, conscryptContext(), HttpsURLConnection.getDefaultHostnameVerifier());
+    }
+
+    /** With another TLS stack and certificate check; tests use the JDK's and a throwaway certificate. */
+    TlsConnector(String host, InetSocketAddress address, String alpn, Protector protector,
+                 SSLContext context, HostnameVerifier verifier) {
+        this.host = host;
+        this.address = address;
+        this.alpn = alpn;
+        this.protector = protector;
+        this.factory = context.getSocketFactory();
+        this.verifier = verifier;
+    }
+
+    private static SSLContext conscryptContext() throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance("TLS", Conscrypt.newProvider());
+        context.init(null, null, null);
+        return context;
+    }
+
+    @Override
+    public Socket connect() throws IOException {
+        Socket raw = new Socket();
+        SSLSocket tls = null;
+        try {
+            if (!protector.protect(raw)) throw new IOException("Socket protection failed");
+            raw.setTcpNoDelay(true);
+            raw.connect(address, CONNECT_TIMEOUT_MS);
+            // Passing host and port keys the session cache, which is what makes resumption work.
+            tls = (SSLSocket) factory.createSocket(raw, host, address.getPort(), true);
+            boolean conscrypt = Conscrypt.isConscrypt(tls);
+            if (conscrypt) {
+                Conscrypt.setHostname(tls, host);
+                Conscrypt.setUseSessionTickets(tls, true);
+                if (alpn != null) Conscrypt.setApplicationProtocols(tls, new String[]{alpn});
+            } else {
+                configure(tls, host, alpn);
+            }
+            tls.setSoTimeout(CONNECT_TIMEOUT_MS);
+            tls.startHandshake();
+            tls.setSoTimeout(0);
+
+            if (!verifier.verify(host, tls.getSession())) {
+                throw new IOException("Certificate does not match " + host);
+            }
+            String negotiated = conscrypt ? Conscrypt.getApplicationProtocol(tls) : applicationProtocol(tls);
+            if (alpn != null && !alpn.equals(negotiated)) {
+                throw new IOException(host + " did not negotiate " + alpn);
+            }
+            return tls;
+        } catch (IOException e) {
+            try { (tls != null ? tls : raw).close(); } catch (IOException ignored) {}
+            throw e;
+        }
+    }
+
+    // SSLSocket's own ALPN calls are API 29, but only a non-Conscrypt context (the JDK's, in tests) gets here.
+    @SuppressLint("NewApi")
+    private static void configure(SSLSocket tls, String host, String alpn) {
+        SSLParameters params = tls.getSSLParameters();
+        params.setServerNames(Collections.singletonList(new SNIHostName(host)));
+        if (alpn != null) params.setApplicationProtocols(new String[]{alpn});
+        tls.setSSLParameters(params);
+    }
+
+    @SuppressLint("NewApi")
+    private static String applicationProtocol(SSLSocket tls) {
+        return tls.getApplicationProtocol();
+    }
+}
@@ -0,0 +1,13 @@
+package com.example.nexus.services.shield;
+
+/**
+ * DNS over TLS (RFC 7858): the length-prefixed TCP framing of
+ * {@link TcpUpstream} inside one persistent TLS session, with any number of
+ * queries outstanding at once.
+ */
+public final class TlsUpstream extends TcpUpstream {
+
+    public TlsUpstream(Connector connector, long timeoutMs, Listener listener) {
+        super("ShieldDoT", connector, timeoutMs, listener);
+    }
+}
@@ -0,0 +1,183 @@
+package com.example.nexus.services.shield;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The only thread that writes to the TUN. Producers (the TUN reader, the
+ * upstream selector, pool workers) hand finished reply packets to a bounded
+ * lock-free ring and return at once; the writer drains whatever has piled up
+ * and writes it back to back, one packet per write as the TUN requires. It
+ * parks only when the ring is empty, so a burst of answers costs one wakeup
+ * rather than a lock handoff per packet. When the ring is full the packet is
+ * dropped and counted; the client's resolver retries. Closing freezes the
+ * tail, so no packet can be queued after the writer's last sweep, and the
+ * writer hands everything still in the ring back to its pool.
+ */
+public final class TunWriter {
+
+    private static final String TAG = "ShieldTunWriter";
+    private static final long CLOSE_WAIT_MS = 500;
+    // Set in tail once closed; producers cannot claim a ticket past it.
+    private static final long CLOSED = 1L << 62;
+
+    private final OutputStream out;
+    private final Packet[] slots;
+    // Vyukov-style sequence per slot: equal to the ticket when free for that
+    // producer, ticket + 1 once filled, ticket + capacity once consumed.
+    private final AtomicLongArray sequence;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head; // advanced by the writer thread only
+
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean parked;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long written;
+    private volatile long bursts;
+    private volatile int maxBurst;
+    private volatile long writeErrors;
+
+    /** {@code capacity} is rounded up to a power of two. */
+    public TunWriter(OutputStream out, int capacity) {
+        int n = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.out = out;
+        this.slots = new Packet[n];
+        this.sequence = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++) sequence.set(i, i);
+        this.mask = n - 1;
+        this.thread = new Thread(this::drainLoop, TAG);
+        thread.start();
+    }
+
+    /**
+     * Queues {@code packet} for writing and takes ownership of it. Never blocks;
+     * returns false (and releases the packet) if the ring is full or closed.
+     */
+    public boolean write(Packet packet) {
+        long ticket;
+        while (true) {
+            ticket = tail.get();
+            if (ticket >= CLOSED) {
+                packet.release();
+                return false;
+            }
+            long diff = sequence.get((int) ticket & mask) - ticket;
+            if (diff == 0) {
+                if (tail.compareAndSet(ticket, ticket + 1)) break;
+            } else if (diff < 0) {
+                dropped.incrementAndGet();
+                packet.release();
+                return false;
+            }
+        }
+        int slot = (int) ticket & mask;
+        slots[slot] = packet;
+        // A full volatile store, not lazySet: it must not pass the read of parked below.
+        sequence.set(slot, ticket + 1);
+        if (parked) LockSupport.unpark(thread);
+        return true;
+    }
+
+    private Packet poll() {
+        int slot = (int) head & mask;
+        if (sequence.get(slot) != head + 1) return null;
+        Packet p = slots[slot];
+        slots[slot] = null;
+        sequence.lazySet(slot, head + slots.length);
+        head++;
+        return p;
+    }
+
+    private void drainLoop() {
+        while (running) {
+            int burst = 0;
+            Packet p;
+            while ((p = poll()) != null) {
+                try {
+                    out.write(p.data, 0, p.length);
+                } catch (IOException e) {
+                    writeErrors++;
+                    if (running) Log.e(TAG, "Error writing to VPN interface", e);
+                } finally {
+                    p.release();
+                }
+                burst++;
+            }
+            if (burst > 0) {
+                written += burst;
+                bursts++;
+                if (burst > maxBurst) maxBurst = burst;
+                continue;
+            }
+            // Publish that we are about to sleep, then look once more so a
+            // producer that missed the flag cannot leave a packet stranded.
+            parked = true;
+            if (sequence.get((int) head & mask) != head + 1 && running) LockSupport.park(this);
+            parked = false;
+        }
+        // The tail is frozen by now. A producer may still be between claiming
+        // its slot and filling it; wait for it rather than strand the packet.
+        long end = tail.get() & ~CLOSED;
+        while (head < end) {
+            Packet p = poll();
+            if (p != null) {
+                p.release();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /** Packets queued but not yet written. */
+    public int depth() {
+        return (int) Math.max(0, (tail.get() & ~CLOSED) - head);
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    public long writtenCount() {
+        return written;
+    }
+
+    /** Wakeups that found something to write; written / bursts is the mean burst size. */
+    public long burstCount() {
+        return bursts;
+    }
+
+    public int maxBurst() {
+        return maxBurst;
+    }
+
+    public long errorCount() {
+        return writeErrors;
+    }
+
+    /**
+     * Stops the writer and waits for it to release the packets still queued,
+     * unwritten. Does not close the stream: a writer blocked on a stalled TUN
+     * releases them once its write returns, i.e. when the caller closes it.
+     */
+    public void close() {
+        long t;
+        do {
+            t = tail.get();
+        } while (t < CLOSED && !tail.compareAndSet(t, t | CLOSED));
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(CLOSE_WAIT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
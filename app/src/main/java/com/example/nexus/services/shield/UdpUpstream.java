@@ -0,0 +1,207 @@
+package com.example.nexus.services.shield;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plain UDP transport to one resolver over a small set of long-lived, protected
+ * {@link DatagramChannel}s. Queries are sent without blocking; each goes out with
+ * a fresh random transaction ID. The channels are registered with a selector
+ * owned by {@link UpstreamManager}, whose single thread calls {@link #poll} to
+ * match replies back to the waiting caller by channel (source port) and ID.
+ *
+ * A reply is only accepted if it arrives on the channel the query left from,
+ * carries an ID that is in flight there and echoes the same question.
+ * Anything else is counted and dropped.
+ */
+public final class UdpUpstream implements DnsTransport {
+
+    private static final String TAG = "ShieldUpstream";
+
+    /** Lets the VPN service exclude our sockets from its own tunnel. */
+    public interface Protector {
+        boolean protect(DatagramSocket socket);
+    }
+
+    private static final int MAX_PACKET = 4096;
+    // Any datagram fits, so a large answer is never cut short without TC; the
+    // service truncates it to what the client accepts (and sets TC) itself.
+    private static final int MAX_ANSWER = 65535;
+    private static final long SWEEP_INTERVAL_MS = 50;
+
+    private static final class Lane {
+        final DatagramChannel channel;
+        SelectionKey key;
+        final ByteBuffer sendBuf = ByteBuffer.allocateDirect(MAX_PACKET);
+        final PendingQueries pending = new PendingQueries();
+
+        Lane(DatagramChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final InetSocketAddress server;
+    private final Lane[] lanes;
+    private volatile long timeoutMs;
+    private final Listener listener;
+    private final AtomicInteger nextLane = new AtomicInteger();
+    private final ByteBuffer recvBuf = ByteBuffer.allocateDirect(MAX_ANSWER);
+    private final byte[] recvBytes = new byte[MAX_ANSWER];
+    private volatile boolean open = true;
+    private long nextSweep;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong answered = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /** Opens the channels and registers them with {@code selector}; no thread is started. */
+    public UdpUpstream(InetSocketAddress server, int channels, Protector protector, long timeoutMs,
+                       Selector selector, Listener listener) throws IOException {
+        this.server = server;
+        this.timeoutMs = timeoutMs;
+        this.listener = listener;
+        this.lanes = new Lane[channels];
+        try {
+            for (int i = 0; i < channels; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                if (!protector.protect(channel.socket())) {
+                    channel.close();
+                    throw new IOException("Socket protection failed");
+                }
+                channel.connect(server);
+                channel.configureBlocking(false);
+                lanes[i] = new Lane(channel);
+                lanes[i].key = channel.register(selector, SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void setTimeout(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    public InetSocketAddress server() {
+        return server;
+    }
+
+    @Override
+    public boolean send(byte[] query, int offset, int length, Callback callback) {
+        if (!open || length > MAX_PACKET) return false;
+        Lane lane = lanes[Math.floorMod(nextLane.getAndIncrement(), lanes.length)];
+        int id = lane.pending.claim(query, offset, length, callback, timeoutMs);
+        if (id < 0) return false;
+
+        int written;
+        try {
+            synchronized (lane.sendBuf) {
+                ByteBuffer out = lane.sendBuf;
+                out.clear();
+                out.put(query, offset, length);
+                out.putShort(0, (short) id);
+                out.flip();
+                written = lane.channel.write(out);
+            }
+        } catch (IOException e) {
+            written = -1;
+        }
+        // A full socket buffer sends nothing; say so now rather than as a timeout later.
+        if (written < length) {
+            lane.pending.cancel(id);
+            return false;
+        }
+        sent.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Called on the selector thread after each wakeup: reads every channel the
+     * selector reported and fails queries that are past their deadline.
+     */
+    public void poll(Set<SelectionKey> selected, long nowMs) {
+        for (Lane lane : lanes) {
+            // contains() rather than iterating selectedKeys(), whose iterator allocates.
+            if (selected.contains(lane.key)) {
+                try {
+                    drain(lane);
+                } catch (IOException e) {
+                    if (open) Log.e(TAG, "Upstream receive error", e);
+                }
+            }
+        }
+        tick(nowMs);
+    }
+
+    @Override
+    public void tick(long nowMs) {
+        if (nowMs < nextSweep || inFlight() == 0) return;
+        nextSweep = nowMs + SWEEP_INTERVAL_MS;
+        for (Lane lane : lanes) {
+            timedOut.addAndGet(lane.pending.expire(nowMs, listener));
+        }
+    }
+
+    private void drain(Lane lane) throws IOException {
+        while (true) {
+            recvBuf.clear();
+            int n = lane.channel.read(recvBuf);
+            if (n <= 0) return;
+            recvBuf.flip();
+            recvBuf.get(recvBytes, 0, n);
+            if (lane.pending.complete(recvBytes, 0, n, listener)) {
+                answered.incrementAndGet();
+            } else {
+                rejected.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public int inFlight() {
+        int total = 0;
+        for (Lane lane : lanes) {
+            if (lane != null) total += lane.pending.size();
+        }
+        return total;
+    }
+
+    public long sentCount() {
+        return sent.get();
+    }
+
+    public long answeredCount() {
+        return answered.get();
+    }
+
+    public long timeoutCount() {
+        return timedOut.get();
+    }
+
+    public long rejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        for (Lane lane : lanes) {
+            if (lane == null) continue;
+            try { lane.channel.close(); } catch (IOException ignored) {}
+            lane.pending.failAll();
+        }
+    }
+}
@@ -0,0 +1,603 @@
+package com.example.nexus.services.shield;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Selector;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes each query to the best healthy resolver in the user's allowed set.
+ *
+ * Every resolver keeps an EWMA of its round-trip time plus EWMAs of its loss
+ * (timeouts) and error (SERVFAIL/REFUSED) rates, fed by real traffic and by
+ * light probes to resolvers that are not currently carrying any. A resolver
+ * that keeps failing is taken out of rotation until a probe succeeds again.
+ *
+ * Timeouts are not fixed: each resolver's recent RTT percentiles set its own
+ * deadline, and a query still unanswered after about the resolver's p95 is
+ * hedged, i.e. sent once more to the next best resolver. Whichever answer
+ * arrives first is delivered; the other only feeds the RTT stats.
+ *
+ * One selector thread serves the UDP transports of all resolvers, fires
+ * hedges, sweeps timeouts and sends the probes. Encrypted resolvers (DoT,
+ * DoH) each keep one persistent connection with its own reader thread.
+ *
+ * A UDP answer with TC set does not reach the client: the query is asked
+ * again, once, over a persistent pipelined TCP connection to the same
+ * resolver, opened the first time one is needed. Only if that connection is
+ * not up yet does the truncated answer go through, and the client retries
+ * over TCP itself.
+ */
+public final class UpstreamManager implements Closeable {
+
+    private static final String TAG = "ShieldUpstreams";
+
+    private static final double RTT_ALPHA = 0.2;
+    private static final double RATE_ALPHA = 0.1;
+    private static final double INITIAL_RTT_MS = 100;
+    private static final int FAILURES_UNTIL_DOWN = 3;
+    private static final double MAX_LOSS = 0.5;
+
+    // Percentiles come from the last RTT_WINDOW answers, re-sorted every RTT_REFRESH.
+    private static final int RTT_WINDOW = 128;
+    private static final int RTT_REFRESH = 16;
+    private static final int RTT_MIN_SAMPLES = 20;
+    private static final long MIN_HEDGE_DELAY_MS = 10;
+    private static final long MIN_TIMEOUT_MS = 300;
+
+    private static final int HEDGE_SLOTS = 512;
+    private static final long HEDGE_TICK_MS = 5;
+
+    private static final long SELECT_TIMEOUT_MS = 50;
+    private static final long PROBE_IDLE_MS = 30_000;
+    private static final long PROBE_DOWN_MS = 5_000;
+
+    // Probe: "example.com IN A" with RD set; the ID is replaced by the transport.
+    private static final byte[] PROBE_QUERY = {
+            0, 0, 0x01, 0, 0, 1, 0, 0, 0, 0, 0, 0,
+            7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0,
+            0, 1, 0, 1
+    };
+
+    private static final DnsTransport.Callback PROBE_CALLBACK = new DnsTransport.Callback() {
+        @Override
+        public void onResponse(byte[] buf, int offset, int length) {}
+
+        @Override
+        public void onFailure() {}
+    };
+
+    /**
+     * Live statistics for one upstream resolver. Updated on the selector thread,
+     * or on a stream transport's reader thread, hence the synchronized callbacks.
+     */
+    public static final class Resolver implements DnsTransport.Listener {
+        public final String name;
+        final DnsTransport.Protocol protocol;
+        final InetSocketAddress address;
+        final String host;
+        final String path;
+        DnsTransport transport;
+        // UDP resolvers only: where truncated answers are asked again.
+        DnsTransport tcp;
+        long maxTimeoutMs;
+
+        volatile boolean allowed = true;
+        volatile double rttMs = INITIAL_RTT_MS;
+        volatile double lossRate;
+        volatile double errorRate;
+        volatile int consecutiveFailures;
+        volatile long lastActivity;
+        final AtomicLong answers = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+
+        private final int[] rttWindow = new int[RTT_WINDOW]; // micros
+        private final int[] rttSorted = new int[RTT_WINDOW];
+        private int rttSamples;
+        volatile long p50Ms;
+        volatile long p95Ms;
+        volatile long p99Ms;
+        volatile long hedgeDelayMs;
+        volatile long timeoutMs;
+
+        public Resolver(String name, InetSocketAddress address) {
+            this(name, DnsTransport.Protocol.UDP, address, null, null);
+        }
+
+        /**
+         * @param host TLS server name for {@link DnsTransport.Protocol#TLS} and
+         *             {@link DnsTransport.Protocol#HTTPS}; ignored for UDP
+         * @param path DoH request path, e.g. "/dns-query"
+         */
+        public Resolver(String name, DnsTransport.Protocol protocol, InetSocketAddress address,
+                        String host, String path) {
+            this.name = name;
+            this.protocol = protocol;
+            this.address = address;
+            this.host = host;
+            this.path = path;
+        }
+
+        @Override
+        public synchronized void onAnswer(long rttMicros, int rcode) {
+            answers.incrementAndGet();
+            rttMs += RTT_ALPHA * (rttMicros / 1000.0 - rttMs);
+            lossRate -= RATE_ALPHA * lossRate;
+            boolean error = rcode == DnsWire.RCODE_SERVFAIL || rcode == DnsWire.RCODE_REFUSED;
+            if (error) errors.incrementAndGet();
+            errorRate += RATE_ALPHA * ((error ? 1 : 0) - errorRate);
+            if (!error && !healthy()) {
+                // Back from the dead: one good answer is enough to rejoin the rotation.
+                lossRate = Math.min(lossRate, MAX_LOSS / 2);
+            }
+            consecutiveFailures = error ? consecutiveFailures + 1 : 0;
+            lastActivity = now();
+            recordRtt(rttMicros);
+        }
+
+        @Override
+        public synchronized void onTimeout() {
+            timeouts.incrementAndGet();
+            lossRate += RATE_ALPHA * (1 - lossRate);
+            consecutiveFailures++;
+            lastActivity = now();
+        }
+
+        public boolean healthy() {
+            return consecutiveFailures < FAILURES_UNTIL_DOWN && lossRate < MAX_LOSS;
+        }
+
+        /** Expected cost of sending a query here; lower is better. */
+        double score() {
+            return rttMs * (1 + 4 * lossRate + 2 * errorRate);
+        }
+
+        // Timeouts are not samples: a lost datagram says nothing about latency.
+        private void recordRtt(long rttMicros) {
+            rttWindow[rttSamples % RTT_WINDOW] = (int) Math.min(rttMicros, Integer.MAX_VALUE);
+            rttSamples++;
+            if (rttSamples < RTT_MIN_SAMPLES) {
+                applyTimeouts();
+            } else if (rttSamples % RTT_REFRESH == 0 || rttSamples == RTT_MIN_SAMPLES) {
+                int n = Math.min(rttSamples, RTT_WINDOW);
+                System.arraycopy(rttWindow, 0, rttSorted, 0, n);
+                Arrays.sort(rttSorted, 0, n);
+                p50Ms = rttSorted[n / 2] / 1000;
+                p95Ms = rttSorted[n * 95 / 100] / 1000;
+                p99Ms = rttSorted[n * 99 / 100] / 1000;
+                applyTimeouts();
+            }
+        }
+
+        /** Hedge at p95; give up well past p99 so the slow tail still counts as answered. */
+        void applyTimeouts() {
+            boolean measured = rttSamples >= RTT_MIN_SAMPLES;
+            long timeout = measured ? 3 * p99Ms + 100 : maxTimeoutMs;
+            timeoutMs = Math.max(MIN_TIMEOUT_MS, Math.min(timeout, maxTimeoutMs));
+            long hedge = measured ? p95Ms : 2 * (long) rttMs;
+            hedgeDelayMs = Math.max(MIN_HEDGE_DELAY_MS, Math.min(hedge, timeoutMs / 2));
+            if (transport != null) transport.setTimeout(timeoutMs);
+        }
+    }
+
+    /**
+     * One query that may go out twice. Preallocated and recycled, so hedging
+     * costs no allocation. The query bytes stay owned by the caller and are
+     * only read until the first answer has been handed back, hence the hedge
+     * is sent under the same lock that delivers that answer.
+     */
+    private final class Hedge {
+        final Leg first = new Leg(this);
+        final Leg second = new Leg(this);
+        final Leg overTcp = new Leg(this);
+        byte[] query;
+        int offset;
+        int length;
+        DnsTransport.Callback callback;
+        Resolver primary;
+        Resolver backup;
+        long hedgeAt;
+        boolean active;
+        boolean hedged;
+        boolean done;
+        boolean tcpTried;
+        boolean tcpPending;
+        int outstanding;
+
+        synchronized void maybeHedge(long now) {
+            if (!active || done || hedged || now < hedgeAt) return;
+            hedged = true;
+            backup = pickOther(primary);
+            if (backup != null && backup.transport.send(query, offset, length, second)) {
+                outstanding++;
+                hedgesIssued.incrementAndGet();
+            }
+        }
+
+        void answer(Leg leg, byte[] buf, int off, int len) {
+            DnsTransport.Callback deliver = null;
+            synchronized (this) {
+                outstanding--;
+                if (leg == overTcp) tcpPending = false;
+                if (done) {
+                    // Already answered; this copy only fed the RTT stats.
+                } else if (leg != overTcp && DnsWire.isTruncated(buf, off) && (tcpPending || retryOverTcp(leg))) {
+                    // The full answer is on its way over TCP.
+                } else {
+                    done = true;
+                    deliver = callback;
+                    if (leg == second) hedgesWon.incrementAndGet();
+                }
+                recycleIfIdle();
+            }
+            if (deliver != null) deliver.onResponse(buf, off, len);
+        }
+
+        /**
+         * Asks the resolver behind {@code leg} again over TCP; at most once per query.
+         * Called under the lock on the selector thread, which is safe because the
+         * send only queues the query for the connection's writer thread. It has to
+         * stay under the lock: the query bytes are the caller's until an answer is delivered.
+         */
+        private boolean retryOverTcp(Leg leg) {
+            if (tcpTried) return false;
+            tcpTried = true;
+            Resolver r = leg == first ? primary : backup;
+            if (r == null || r.tcp == null || !r.tcp.send(query, offset, length, overTcp)) return false;
+            outstanding++;
+            tcpPending = true;
+            tcpRetries.incrementAndGet();
+            return true;
+        }
+
+        void fail(Leg leg) {
+            DnsTransport.Callback deliver = null;
+            synchronized (this) {
+                outstanding--;
+                if (leg == overTcp) tcpPending = false;
+                if (!done && outstanding == 0) {
+                    done = true;
+                    deliver = callback;
+                }
+                recycleIfIdle();
+            }
+            if (deliver != null) deliver.onFailure();
+        }
+
+        private void recycleIfIdle() {
+            if (!done || outstanding > 0) return;
+            active = false;
+            callback = null;
+            query = null;
+            primary = null;
+            backup = null;
+            activeHedges.decrementAndGet();
+            freeHedge(this);
+        }
+    }
+
+    private static final class Leg implements DnsTransport.Callback {
+        private final Hedge hedge;
+
+        Leg(Hedge hedge) {
+            this.hedge = hedge;
+        }
+
+        @Override
+        public void onResponse(byte[] buf, int offset, int length) {
+            hedge.answer(this, buf, offset, length);
+        }
+
+        @Override
+        public void onFailure() {
+            hedge.fail(this);
+        }
+    }
+
+    private final Resolver[] resolvers;
+    private final Selector selector;
+    private final Thread loop;
+    private volatile boolean open = true;
+    private volatile LongConsumer housekeeping;
+
+    private final Hedge[] hedges = new Hedge[HEDGE_SLOTS];
+    private final Hedge[] freeHedges = new Hedge[HEDGE_SLOTS];
+    private int freeHedgeCount;
+    private final AtomicInteger activeHedges = new AtomicInteger();
+    private final AtomicLong hedgesIssued = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+    private final AtomicLong tcpRetries = new AtomicLong();
+
+    /** {@code maxTimeoutMs} caps the adaptive timeouts and applies until enough RTTs are known. */
+    public UpstreamManager(List<Resolver> resolvers, int channelsPerResolver, long maxTimeoutMs,
+                           UdpUpstream.Protector udpProtector, TlsConnector.Protector tcpProtector)
+            throws IOException {
+        this(resolvers, Collections.<String>emptySet(), channelsPerResolver, maxTimeoutMs, udpProtector, tcpProtector);
+    }
+
+    /**
+     * Starts with only the {@code allowed} resolvers in rotation, as {@link #setAllowed}
+     * would, so the others are never queried or probed, not even on the first pass.
+     */
+    public UpstreamManager(List<Resolver> resolvers, Collection<String> allowed, int channelsPerResolver,
+                           long maxTimeoutMs, UdpUpstream.Protector udpProtector,
+                           TlsConnector.Protector tcpProtector) throws IOException {
+        this.resolvers = resolvers.toArray(new Resolver[0]);
+        this.selector = Selector.open();
+        for (int i = 0; i < HEDGE_SLOTS; i++) {
+            hedges[i] = new Hedge();
+            freeHedges[i] = hedges[i];
+        }
+        freeHedgeCount = HEDGE_SLOTS;
+        try {
+            for (Resolver r : this.resolvers) {
+                r.transport = openTransport(r, channelsPerResolver, maxTimeoutMs, udpProtector, tcpProtector);
+                if (r.protocol == DnsTransport.Protocol.UDP) {
+                    // No listener: connection setup would skew the UDP RTTs the timeouts are derived from.
+                    r.tcp = new TcpUpstream(new TcpConnector(r.address, tcpProtector), maxTimeoutMs, null);
+                }
+                r.maxTimeoutMs = maxTimeoutMs;
+                r.applyTimeouts();
+                r.lastActivity = now() - PROBE_IDLE_MS; // probe everything on the first pass
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        setAllowed(allowed);
+        loop = new Thread(this::selectLoop, TAG);
+        loop.start();
+    }
+
+    private DnsTransport openTransport(Resolver r, int channels, long timeoutMs,
+                                       UdpUpstream.Protector udpProtector, TlsConnector.Protector tcpProtector)
+            throws IOException {
+        try {
+            switch (r.protocol) {
+                case TLS:
+                    return new TlsUpstream(new TlsConnector(r.host, r.address, null, tcpProtector), timeoutMs, r);
+                case HTTPS:
+                    return new HttpsUpstream(new TlsConnector(r.host, r.address, "h2", tcpProtector),
+                            r.host, r.path, true, timeoutMs, r);
+                default:
+                    return new UdpUpstream(r.address, channels, udpProtector, timeoutMs, selector, r);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("TLS unavailable for " + r.name, e);
+        }
+    }
+
+    /**
+     * Runs {@code task} with the current time in milliseconds after every pass
+     * of the selector loop, so at least every {@link #SELECT_TIMEOUT_MS}. For
+     * timers elsewhere in the Shield that need no thread of their own; it must
+     * not block.
+     */
+    public void setHousekeeping(LongConsumer task) {
+        housekeeping = task;
+    }
+
+    /**
+     * Restricts routing and probing to the named resolvers. An empty or unknown
+     * set allows all of them; callers that filter should always name at least one.
+     * A resolver that joins the rotation is probed on the next pass.
+     */
+    public void setAllowed(Collection<String> names) {
+        boolean any = false;
+        for (Resolver r : resolvers) any |= names.contains(r.name);
+        long now = now();
+        for (Resolver r : resolvers) {
+            boolean allowed = !any || names.contains(r.name);
+            if (allowed && !r.allowed) r.lastActivity = now - PROBE_IDLE_MS;
+            r.allowed = allowed;
+        }
+    }
+
+    /** The allowed resolver with the best score, preferring healthy ones. */
+    public Resolver pick() {
+        return pickOther(null);
+    }
+
+    /** Like {@link #pick()} but avoiding {@code exclude} unless nothing else is allowed. */
+    private Resolver pickOther(Resolver exclude) {
+        Resolver best = null;
+        Resolver bestAny = null;
+        for (Resolver r : resolvers) {
+            if (!r.allowed || r == exclude) continue;
+            if (bestAny == null || r.score() < bestAny.score()) bestAny = r;
+            if (r.healthy() && (best == null || r.score() < best.score())) best = r;
+        }
+        if (best != null) return best;
+        return bestAny != null ? bestAny : exclude;
+    }
+
+    /**
+     * Sends the query to the best resolver and arms a hedge for it. The callback
+     * fires exactly once: with the first answer from either resolver, or with a
+     * failure once every copy has given up.
+     */
+    public boolean send(byte[] query, int offset, int length, DnsTransport.Callback callback) {
+        Resolver r = pick();
+        if (r == null) return false;
+        Hedge h = takeHedge();
+        if (h == null) return r.transport.send(query, offset, length, callback); // all slots busy: no hedge
+        if (sendHedged(h, r, query, offset, length, callback)) return true;
+
+        // The best resolver could not take it right now, e.g. its connection is being reopened.
+        Resolver other = pickOther(r);
+        if (other != r && (h = takeHedge()) != null && sendHedged(h, other, query, offset, length, callback)) {
+            return true;
+        }
+        return false;
+    }
+
+    private boolean sendHedged(Hedge h, Resolver r, byte[] query, int offset, int length,
+                               DnsTransport.Callback callback) {
+
+        synchronized (h) {
+            h.query = query;
+            h.offset = offset;
+            h.length = length;
+            h.callback = callback;
+            h.primary = r;
+            h.hedgeAt = now() + r.hedgeDelayMs;
+            h.hedged = false;
+            h.done = false;
+            h.tcpTried = false;
+            h.tcpPending = false;
+            h.outstanding = 1;
+            if (!r.transport.send(query, offset, length, h.first)) {
+                h.callback = null;
+                h.query = null;
+                h.primary = null;
+                freeHedge(h);
+                return false;
+            }
+            h.active = true;
+            if (activeHedges.incrementAndGet() == 1) selector.wakeup(); // switch the loop to hedge ticks
+        }
+        return true;
+    }
+
+    private Hedge takeHedge() {
+        synchronized (freeHedges) {
+            return freeHedgeCount > 0 ? freeHedges[--freeHedgeCount] : null;
+        }
+    }
+
+    private void freeHedge(Hedge h) {
+        synchronized (freeHedges) {
+            freeHedges[freeHedgeCount++] = h;
+        }
+    }
+
+    public int inFlight() {
+        int total = 0;
+        for (Resolver r : resolvers) {
+            total += r.transport.inFlight();
+            if (r.tcp != null) total += r.tcp.inFlight();
+        }
+        return total;
+    }
+
+    public long hedgesIssued() {
+        return hedgesIssued.get();
+    }
+
+    /** Hedges whose answer arrived before the original query's. */
+    public long hedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /** Truncated UDP answers asked again over TCP. */
+    public long tcpRetries() {
+        return tcpRetries.get();
+    }
+
+    /** Per-resolver statistics for the UI. */
+    public String statsJson() {
+        JSONArray out = new JSONArray();
+        Resolver active = pick();
+        try {
+            for (Resolver r : resolvers) {
+                JSONObject o = new JSONObject();
+                o.put("name", r.name);
+                o.put("protocol", r.protocol.name());
+                o.put("address", r.address.getAddress().getHostAddress());
+                o.put("allowed", r.allowed);
+                o.put("healthy", r.healthy());
+                o.put("active", r == active);
+                o.put("rttMs", Math.round(r.rttMs * 10) / 10.0);
+                o.put("p50Ms", r.p50Ms);
+                o.put("p95Ms", r.p95Ms);
+                o.put("p99Ms", r.p99Ms);
+                o.put("hedgeDelayMs", r.hedgeDelayMs);
+                o.put("timeoutMs", r.timeoutMs);
+                o.put("lossRate", Math.round(r.lossRate * 1000) / 1000.0);
+                o.put("errorRate", Math.round(r.errorRate * 1000) / 1000.0);
+                o.put("answers", r.answers.get());
+                o.put("timeouts", r.timeouts.get());
+                o.put("errors", r.errors.get());
+                out.put(o);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Stats serialisation failed", e);
+        }
+        return out.toString();
+    }
+
+    private void selectLoop() {
+        while (open) {
+            try {
+                selector.select(activeHedges.get() > 0 ? HEDGE_TICK_MS : SELECT_TIMEOUT_MS);
+                long now = now();
+                for (Resolver r : resolvers) {
+                    if (r.transport instanceof UdpUpstream) {
+                        ((UdpUpstream) r.transport).poll(selector.selectedKeys(), now);
+                    } else {
+                        r.transport.tick(now);
+                    }
+                    if (r.tcp != null) r.tcp.tick(now);
+                }
+                selector.selectedKeys().clear();
+                if (activeHedges.get() > 0) fireHedges(now);
+                probeIdle(now);
+                LongConsumer task = housekeeping;
+                if (task != null) task.accept(now);
+            } catch (Exception e) {
+                if (open) Log.e(TAG, "Upstream loop error", e);
+            }
+        }
+    }
+
+    private void fireHedges(long now) {
+        for (Hedge h : hedges) {
+            if (h.active) h.maybeHedge(now); // racy pre-check, confirmed under the lock
+        }
+    }
+
+    /**
+     * Keeps stats fresh for allowed resolvers that are not carrying traffic, and
+     * revives failed ones. Resolvers outside the allowed set are never contacted.
+     */
+    private void probeIdle(long now) {
+        for (Resolver r : resolvers) {
+            if (!r.allowed) continue;
+            long interval = r.healthy() ? PROBE_IDLE_MS : PROBE_DOWN_MS;
+            if (now - r.lastActivity < interval) continue;
+            // A stream transport refuses while it connects; retry on a later pass until it is up.
+            if (r.transport.send(PROBE_QUERY, 0, PROBE_QUERY.length, PROBE_CALLBACK)) r.lastActivity = now;
+        }
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+        for (Resolver r : resolvers) {
+            if (r.transport != null) r.transport.close();
+            if (r.tcp != null) r.tcp.close();
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000L;
+    }
+}
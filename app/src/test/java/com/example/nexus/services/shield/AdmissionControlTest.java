@@ -0,0 +1,116 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * One flooding source cannot take the whole budget, even while it races
+ * other sources from other threads; the global cap holds no matter how many
+ * sources ask, and every slot comes back on release.
+ */
+public class AdmissionControlTest {
+
+    @Test
+    public void floodingSourceLeavesRoomForOthers() {
+        AdmissionControl ac = new AdmissionControl(64, 4);
+        int flood = 0;
+        while (ac.tryAcquire(1000)) flood++;
+        // Alone, a source gets capacity / 2: half the budget stays free for newcomers.
+        assertEquals(32, flood);
+        assertEquals(1, ac.rejectedShareCount());
+
+        int other = 0;
+        while (ac.tryAcquire(2000)) other++;
+        assertTrue("second source got " + other, other >= 4);
+        assertEquals(flood + other, ac.inFlight());
+        assertEquals(0, ac.rejectedFullCount());
+    }
+
+    @Test
+    public void quietSourcesGetTheirShareWhileAFloodRaces() throws Exception {
+        AdmissionControl ac = new AdmissionControl(64, 4);
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicInteger floodPeak = new AtomicInteger();
+        Thread flood = new Thread(() -> {
+            while (!stop.get()) {
+                int held = 0;
+                while (ac.tryAcquire(1000)) held++;
+                floodPeak.accumulateAndGet(held, Math::max);
+                for (int i = 0; i < held; i++) ac.release(1000);
+            }
+        });
+        flood.start();
+
+        // Six quiet sources at their minimum share fit in what the flood must leave free.
+        Thread[] quiet = new Thread[6];
+        AtomicInteger refused = new AtomicInteger();
+        for (int q = 0; q < quiet.length; q++) {
+            int source = q + 1;
+            quiet[q] = new Thread(() -> {
+                for (int round = 0; round < 20_000; round++) {
+                    int held = 0;
+                    for (int i = 0; i < 4; i++) {
+                        if (ac.tryAcquire(source)) {
+                            held++;
+                        } else {
+                            refused.incrementAndGet();
+                        }
+                    }
+                    for (int i = 0; i < held; i++) ac.release(source);
+                }
+            });
+            quiet[q].start();
+        }
+        for (Thread t : quiet) t.join();
+        stop.set(true);
+        flood.join();
+
+        assertEquals(0, refused.get());
+        assertTrue("flood held " + floodPeak.get(), floodPeak.get() <= 32);
+        assertTrue(ac.peakInFlight() <= 64);
+        assertEquals(0, ac.rejectedFullCount());
+        assertEquals(0, ac.inFlight());
+        assertEquals(0, ac.activeSources());
+    }
+
+    @Test
+    public void globalCapHoldsAcrossManySources() {
+        AdmissionControl ac = new AdmissionControl(32, 2);
+        int admitted = 0;
+        for (int round = 0; round < 4; round++) {
+            for (int source = 1; source <= 100; source++) {
+                if (ac.tryAcquire(source)) admitted++;
+            }
+        }
+        assertEquals(32, admitted);
+        assertEquals(32, ac.inFlight());
+        assertEquals(32, ac.peakInFlight());
+        assertTrue(ac.rejectedFullCount() > 0);
+        assertEquals(400 - 32, ac.rejectedCount());
+    }
+
+    @Test
+    public void releaseReturnsEverySlot() {
+        AdmissionControl ac = new AdmissionControl(16, 2);
+        int[] held = new int[16];
+        int n = 0;
+        for (int source = 0; source < 50 && n < held.length; source++) {
+            if (ac.tryAcquire(source)) held[n++] = source;
+        }
+        for (int i = 0; i < n; i++) ac.release(held[i]);
+        assertEquals(0, ac.inFlight());
+        assertEquals(0, ac.activeSources());
+        // A stray release must not hand out extra capacity.
+        ac.release(7);
+        assertEquals(0, ac.inFlight());
+        int again = 0;
+        for (int source = 0; source < 50; source++) {
+            if (ac.tryAcquire(source)) again++;
+        }
+        assertEquals(16, again);
+    }
+}
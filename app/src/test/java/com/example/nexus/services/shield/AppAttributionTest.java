@@ -0,0 +1,120 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Owners are looked up once per socket rather than per query, and counters
+ * lose nothing when many threads record at once.
+ */
+public class AppAttributionTest {
+
+    @Test
+    public void looksUpEachSourcePortOnce() {
+        AtomicInteger calls = new AtomicInteger();
+        AppAttribution a = new AppAttribution((protocol, local, remote) -> {
+            calls.incrementAndGet();
+            assertEquals(17, protocol);
+            assertEquals(53, remote.getPort());
+            return 10_000 + local.getPort() % 7;
+        });
+        PacketPool pool = new PacketPool(4, 512);
+        for (int round = 0; round < 3; round++) {
+            for (int port = 40_000; port < 40_100; port++) {
+                Packet p = query(pool, port, "example.com");
+                assertEquals(10_000 + port % 7, a.ownerOf(p));
+                p.release();
+            }
+        }
+        assertEquals(100, calls.get());
+        assertEquals(100, a.lookupCount());
+        assertEquals(200, a.cacheHitCount());
+    }
+
+    @Test
+    public void failedLookupIsUnknown() {
+        AppAttribution a = new AppAttribution((int protocol, InetSocketAddress local, InetSocketAddress remote) -> {
+            throw new SecurityException("not the active VPN");
+        });
+        Packet p = query(new PacketPool(1, 512), 40_000, "example.com");
+        assertEquals(AppAttribution.UNKNOWN_UID, a.ownerOf(p));
+        assertEquals(AppAttribution.UNKNOWN_UID, new AppAttribution(null).ownerOf(p));
+    }
+
+    @Test
+    public void countsEveryQueryUnderContention() throws Exception {
+        AppAttribution a = new AppAttribution(null);
+        int threads = 8;
+        int perThread = 50_000;
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                PacketPool pool = new PacketPool(2, 512);
+                Packet tracker = query(pool, 40_000, "t.tracker.io");
+                Packet clean = query(pool, 40_001, "example.com");
+                PacketCodec.readName(tracker);
+                PacketCodec.readName(clean);
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    a.record(10_000 + i % 3, i % 4 == 0 ? tracker : clean, i % 4 == 0);
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread w : workers) w.join();
+
+        long queries = 0;
+        long blocked = 0;
+        List<AppAttribution.AppCounters> apps = a.apps();
+        assertEquals(3, apps.size());
+        for (AppAttribution.AppCounters c : apps) {
+            queries += c.queries();
+            blocked += c.blocked();
+        }
+        assertEquals((long) threads * perThread, queries);
+        assertEquals((long) threads * perThread / 4, blocked);
+
+        List<AppAttribution.DomainCounters> domains = a.domains();
+        assertEquals(2, domains.size());
+        assertEquals("example.com", domains.get(0).name());
+        assertEquals(0, domains.get(0).blocked());
+        assertEquals("t.tracker.io", domains.get(1).name());
+        assertEquals(domains.get(1).queries(), domains.get(1).blocked());
+    }
+
+    private static Packet query(PacketPool pool, int srcPort, String name) {
+        Packet p = pool.acquire();
+        byte[] d = p.data;
+        java.util.Arrays.fill(d, (byte) 0);
+        int pos = 28 + DnsWire.HEADER_LEN;
+        for (String label : name.split("\\.")) {
+            d[pos++] = (byte) label.length();
+            for (char c : label.toCharArray()) d[pos++] = (byte) c;
+        }
+        d[pos++] = 0;
+        d[pos + 1] = 1; // QTYPE A
+        d[pos + 3] = 1; // QCLASS IN
+        p.length = pos + 4;
+        d[0] = 0x45;
+        d[9] = 17; // UDP
+        d[12] = 10; d[15] = 2;
+        d[16] = 76; d[17] = 76; d[18] = 2; d[19] = 2;
+        d[20] = (byte) (srcPort >> 8); d[21] = (byte) srcPort;
+        d[23] = 53;
+        d[33] = 1; // QDCOUNT
+        assertTrue(PacketCodec.parseDnsQuery(p));
+        return p;
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Block answers on the wire: the null address for A and AAAA, and for answers
+ * without records an RCODE plus a negative-caching SOA whose TTL and MINIMUM
+ * are the block TTL.
+ */
+public class BlockResponseTest {
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final int TYPE_TXT = 16;
+    private static final int QUESTION_END = 12 + 17 + 4;
+
+    private final byte[] out = new byte[512];
+
+    @Test
+    public void nullIpAnswersAddressQueries() {
+        int len = BlockResponse.NULL_IP.write(query(TYPE_A), 0, QUESTION_END, out, 0);
+        assertEquals(QUESTION_END + 12 + 4, len);
+        assertHeader(DnsWire.RCODE_NOERROR, 1, 0);
+        assertEquals(TYPE_A, DnsWire.u16(out, QUESTION_END + 2));
+        assertEquals(4, DnsWire.u16(out, QUESTION_END + 10));
+        assertEquals(0, DnsWire.u32(out, QUESTION_END + 12));
+        assertEquals(BlockResponse.TTL_SECONDS, DnsWire.minTtl(out, 0, len));
+
+        len = BlockResponse.NULL_IP.write(query(TYPE_AAAA), 0, QUESTION_END, out, 0);
+        assertEquals(QUESTION_END + 12 + 16, len);
+        assertEquals(16, DnsWire.u16(out, QUESTION_END + 10));
+    }
+
+    @Test
+    public void answersWithoutRecordsCarryANegativeCachingSoa() {
+        int len = BlockResponse.NXDOMAIN.write(query(TYPE_A), 0, QUESTION_END, out, 0);
+        assertHeader(DnsWire.RCODE_NXDOMAIN, 0, 1);
+        assertSoa(len);
+
+        len = BlockResponse.NODATA.write(query(TYPE_AAAA), 0, QUESTION_END, out, 0);
+        assertHeader(DnsWire.RCODE_NOERROR, 0, 1);
+        assertSoa(len);
+
+        // NULL_IP has no address to give for other types.
+        len = BlockResponse.NULL_IP.write(query(TYPE_TXT), 0, QUESTION_END, out, 0);
+        assertHeader(DnsWire.RCODE_NOERROR, 0, 1);
+        assertSoa(len);
+    }
+
+    @Test
+    public void dropAndNoRoomWriteNothing() {
+        assertEquals(-1, BlockResponse.DROP.write(query(TYPE_A), 0, QUESTION_END, out, 0));
+        byte[] small = new byte[QUESTION_END + 10];
+        assertEquals(-1, BlockResponse.NXDOMAIN.write(query(TYPE_A), 0, QUESTION_END, small, 0));
+        byte[] q = query(TYPE_A);
+        q[12] = 40;
+        assertEquals(-1, BlockResponse.NXDOMAIN.write(q, 0, QUESTION_END, out, 0));
+    }
+
+    private void assertHeader(int rcode, int answers, int authority) {
+        assertEquals(0x2A2A, DnsWire.id(out, 0));
+        assertTrue(DnsWire.isResponse(out, 0));
+        assertEquals(rcode, DnsWire.rcode(out, 0));
+        assertEquals(1, DnsWire.u16(out, 4));
+        assertEquals(answers, DnsWire.u16(out, 6));
+        assertEquals(authority, DnsWire.u16(out, 8));
+        assertEquals(0, DnsWire.u16(out, 10));
+    }
+
+    private void assertSoa(int len) {
+        int soa = QUESTION_END;
+        assertEquals(0xC00C, DnsWire.u16(out, soa));
+        assertEquals(6, DnsWire.u16(out, soa + 2));
+        assertEquals(1, DnsWire.u16(out, soa + 4));
+        int rdLen = DnsWire.u16(out, soa + 10);
+        assertEquals(len, soa + 12 + rdLen);
+        assertEquals(BlockResponse.TTL_SECONDS, DnsWire.u32(out, len - 4)); // MINIMUM
+        assertEquals(BlockResponse.TTL_SECONDS, DnsWire.minTtl(out, 0, len));
+    }
+
+    /** www.example.com with the given type, ID 0x2A2A, and an EDNS OPT record after the question. */
+    private static byte[] query(int type) {
+        byte[] q = {
+                0x2A, 0x2A, 0x01, 0, 0, 1, 0, 0, 0, 0, 0, 1,
+                3, 'w', 'w', 'w', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0,
+                0, 0, 0, 1,
+                0, 0, 41, 0x10, 0, 0, 0, 0, 0, 0, 0
+        };
+        DnsWire.put16(q, QUESTION_END - 4, type);
+        return q;
+    }
+}
@@ -0,0 +1,265 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * TTL aging, LRU eviction, what is kept at all (nothing larger than can be
+ * served) and which query flags keep answers apart; then serve-stale and
+ * prefetch: an expired entry answers at once with a short TTL and asks for one
+ * refresh, a popular entry is renewed shortly before it expires, and a quiet
+ * one is left to run out. Refreshes that keep failing cut the stale window
+ * short, but never the entry's own TTL.
+ */
+public class DnsCacheTest {
+
+    private static final long T0 = 1_000_000;
+    private static final int TTL = 100;
+    // The answer's A record TTL sits right after header, question and name pointer.
+    private static final int TTL_AT = 12 + 17 + 4 + 2 + 4;
+
+    private final List<Integer> refreshed = new ArrayList<>();
+    private final DnsCache cache = new DnsCache(16, 512, (query, msg, end) -> refreshed.add(DnsWire.id(query, msg)));
+    private final byte[] out = new byte[512];
+
+    @Test
+    public void hitsAgeTtlsAndUseTheClientsIdAndCasing() {
+        DnsCache plain = new DnsCache(16);
+        plain.store(query(1), 0, query(1).length, answer(1), 0, answer(1).length, T0);
+        byte[] q = query(0x4242);
+        q[13] = 'W';
+        assertEquals(answer(1).length, plain.lookup(q, 0, q.length, out, 0, T0 + 37_500));
+        assertEquals(TTL - 37, DnsWire.u32(out, TTL_AT));
+        assertEquals(0x4242, DnsWire.id(out, 0));
+        assertEquals('W', out[13]);
+        assertEquals(1, plain.hits());
+
+        assertEquals(-1, plain.lookup(q, 0, q.length, out, 0, T0 + TTL * 1000));
+        assertEquals(1, plain.misses());
+        assertEquals(0, plain.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedWhenFull() {
+        DnsCache small = new DnsCache(2);
+        byte[] a = named(1, 'a'), b = named(2, 'b'), c = named(3, 'c');
+        small.store(a, 0, a.length, answerTo(a), 0, answerTo(a).length, T0);
+        small.store(b, 0, b.length, answerTo(b), 0, answerTo(b).length, T0);
+        // Touch "a" so "b" is the oldest when "c" arrives.
+        assertTrue(small.lookup(a, 0, a.length, out, 0, T0) > 0);
+        small.store(c, 0, c.length, answerTo(c), 0, answerTo(c).length, T0);
+
+        assertEquals(2, small.size());
+        assertTrue(small.lookup(a, 0, a.length, out, 0, T0) > 0);
+        assertEquals(-1, small.lookup(b, 0, b.length, out, 0, T0));
+        assertTrue(small.lookup(c, 0, c.length, out, 0, T0) > 0);
+    }
+
+    @Test
+    public void keepsOnlyMatchingUsableAnswers() {
+        DnsCache plain = new DnsCache(16);
+        byte[] q = query(1);
+        byte[] wrongId = answer(2);
+        byte[] truncated = answer(1);
+        truncated[2] |= 0x02;
+        byte[] servfail = answer(1);
+        servfail[3] = (byte) 0x82;
+        byte[] zeroTtl = answer(1);
+        DnsWire.put32(zeroTtl, TTL_AT, 0);
+        byte[] otherName = answerTo(named(1, 'z'));
+        for (byte[] r : new byte[][]{wrongId, truncated, servfail, zeroTtl, otherName}) {
+            plain.store(q, 0, q.length, r, 0, r.length, T0);
+        }
+        assertEquals(0, plain.size());
+    }
+
+    @Test
+    public void answersTooBigToServeAreNotKept() {
+        cache.store(query(1), 0, query(1).length, answer(1), 0, answer(1).length, T0);
+        assertEquals(1, cache.size());
+        // Past the 512 bytes this cache serves: not kept, and the older answer goes with it.
+        byte[] big = Arrays.copyOf(answer(1), 513);
+        cache.store(query(1), 0, query(1).length, big, 0, big.length, T0 + 1_000);
+        assertEquals(0, cache.size());
+        assertEquals(-1, lookup(2, T0 + 2_000));
+    }
+
+    @Test
+    public void dnssecAndCheckingDisabledAnswersStayWithTheirKindOfQuery() {
+        byte[] signed = withOpt(query(1), true);
+        byte[] signedAnswer = withOpt(answer(1), true);
+        cache.store(signed, 0, signed.length, signedAnswer, 0, signedAnswer.length, T0);
+
+        // A client without EDNS must never get the OPT record and signatures.
+        assertEquals(-1, lookup(2, T0 + 1_000));
+        byte[] ednsOnly = withOpt(query(3), false);
+        assertEquals(-1, cache.lookup(ednsOnly, 0, ednsOnly.length, out, 0, T0 + 1_000));
+        byte[] again = withOpt(query(4), true);
+        assertEquals(signedAnswer.length, cache.lookup(again, 0, again.length, out, 0, T0 + 1_000));
+
+        // An answer the resolver did not validate is not served to a client that wants it validated.
+        byte[] unchecked = query(5);
+        unchecked[3] |= 0x10;
+        cache.store(unchecked, 0, unchecked.length, answerTo(unchecked), 0, answerTo(unchecked).length, T0);
+        assertEquals(-1, lookup(6, T0 + 1_000));
+        assertEquals(2, cache.size());
+
+        cache.store(query(7), 0, query(7).length, answer(7), 0, answer(7).length, T0);
+        assertEquals(answer(7).length, lookup(8, T0 + 1_000));
+        assertEquals(0, DnsWire.u16(out, 10));
+    }
+
+    @Test
+    public void expiredEntryIsServedStaleWhileOneRefreshRuns() {
+        cache.store(query(1), 0, query(1).length, answer(1), 0, answer(1).length, T0);
+
+        assertTrue(lookup(2, T0 + 40_000) > 0);
+        assertEquals(TTL - 40, DnsWire.u32(out, TTL_AT));
+        assertTrue(refreshed.isEmpty());
+
+        // Past its TTL: still answered, with the stale TTL, and the name is fetched again once.
+        assertEquals(answer(1).length, lookup(3, T0 + TTL * 1000 + 1));
+        assertEquals(3, DnsWire.id(out, 0));
+        assertEquals(DnsCache.STALE_TTL_SECONDS, DnsWire.u32(out, TTL_AT));
+        assertTrue(lookup(4, T0 + TTL * 1000 + 2) > 0);
+        assertEquals(1, refreshed.size());
+        assertEquals(3, (int) refreshed.get(0));
+        assertEquals(2, cache.staleHits());
+
+        // The refresh failed: the next hit after the retry gap asks again.
+        assertTrue(lookup(5, T0 + TTL * 1000 + 1 + DnsCache.REFRESH_RETRY_MS) > 0);
+        assertEquals(2, refreshed.size());
+
+        // The refreshed answer is fresh again.
+        cache.store(query(5), 0, query(5).length, answer(5), 0, answer(5).length, T0 + 200_000);
+        assertTrue(lookup(6, T0 + 200_000) > 0);
+        assertEquals(TTL, DnsWire.u32(out, TTL_AT));
+        assertEquals(2, refreshed.size());
+    }
+
+    @Test
+    public void popularEntryIsPrefetchedBeforeItExpires() {
+        cache.store(query(1), 0, query(1).length, answer(1), 0, answer(1).length, T0);
+        for (int i = 0; i < DnsCache.PREFETCH_MIN_HITS; i++) lookup(10 + i, T0 + 1_000);
+        assertTrue(refreshed.isEmpty());
+
+        // In the last tenth of its TTL.
+        lookup(20, T0 + 91_000);
+        assertEquals(1, refreshed.size());
+        assertEquals(1, cache.prefetches());
+        assertEquals(0, cache.staleHits());
+        lookup(21, T0 + 92_000);
+        assertEquals(1, refreshed.size());
+    }
+
+    @Test
+    public void repeatedFailedRefreshesCapTheStaleWindow() {
+        cache.store(query(1), 0, query(1).length, answer(1), 0, answer(1).length, T0);
+        long expired = T0 + TTL * 1000;
+        byte[] q = query(2);
+        for (int i = 1; i < DnsCache.REFRESH_FAILURES_UNTIL_CAPPED; i++) cache.refreshFailed(q, 0, q.length, expired + i);
+        // Not yet: still good for the rest of the day.
+        assertTrue(lookup(3, expired + 60 * 60 * 1000) > 0);
+
+        // A refresh that succeeds clears the count.
+        cache.store(query(1), 0, query(1).length, answer(1), 0, answer(1).length, T0 + 1);
+        cache.refreshFailed(q, 0, q.length, expired + 10);
+        assertTrue(lookup(4, expired + 60 * 60 * 1000) > 0);
+
+        long failedAt = expired + 20_000;
+        for (int i = 1; i < DnsCache.REFRESH_FAILURES_UNTIL_CAPPED; i++) cache.refreshFailed(q, 0, q.length, failedAt);
+        assertEquals(2 * DnsCache.REFRESH_FAILURES_UNTIL_CAPPED - 1, cache.refreshFailures());
+        assertTrue(lookup(5, failedAt + DnsCache.FAILING_STALE_MS - 1) > 0);
+        assertEquals(DnsCache.STALE_TTL_SECONDS, DnsWire.u32(out, TTL_AT));
+        assertEquals(-1, lookup(6, failedAt + DnsCache.FAILING_STALE_MS));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void failedPrefetchesLeaveTheTtlAlone() {
+        byte[] longLived = answer(1);
+        DnsWire.put32(longLived, TTL_AT, 3600);
+        cache.store(query(1), 0, query(1).length, longLived, 0, longLived.length, T0);
+        byte[] q = query(2);
+        for (int i = 0; i < DnsCache.REFRESH_FAILURES_UNTIL_CAPPED; i++) cache.refreshFailed(q, 0, q.length, T0 + 1_000);
+        assertTrue(lookup(3, T0 + 3_600_000 - 1) > 0);
+        assertEquals(1, DnsWire.u32(out, TTL_AT));
+        // Capped, so no stale serving past the TTL.
+        assertEquals(-1, lookup(4, T0 + 3_600_000));
+    }
+
+    @Test
+    public void quietEntryIsNotPrefetchedAndWithoutRefresherExpires() {
+        cache.store(query(1), 0, query(1).length, answer(1), 0, answer(1).length, T0);
+        lookup(2, T0 + 95_000);
+        assertTrue(refreshed.isEmpty());
+
+        DnsCache plain = new DnsCache(16);
+        plain.store(query(1), 0, query(1).length, answer(1), 0, answer(1).length, T0);
+        byte[] q = query(2);
+        assertEquals(-1, plain.lookup(q, 0, q.length, out, 0, T0 + TTL * 1000 + 1));
+    }
+
+    private int lookup(int id, long now) {
+        byte[] q = query(id);
+        return cache.lookup(q, 0, q.length, out, 0, now);
+    }
+
+    /** A query for www.example.com IN A. */
+    private static byte[] query(int id) {
+        byte[] q = {
+                0, 0, 0x01, 0, 0, 1, 0, 0, 0, 0, 0, 0,
+                3, 'w', 'w', 'w', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0,
+                0, 1, 0, 1
+        };
+        DnsWire.put16(q, 0, id);
+        return q;
+    }
+
+    /** A query for {@code <letter>ww.example.com}, same length as {@link #query}. */
+    private static byte[] named(int id, char letter) {
+        byte[] q = query(id);
+        q[13] = (byte) letter;
+        return q;
+    }
+
+    /** One A record with a {@link #TTL}-second TTL. */
+    private static byte[] answer(int id) {
+        return answerTo(query(id));
+    }
+
+    /** {@code msg} with an EDNS OPT record (4096-byte payload) appended, DO set if {@code dnssecOk}. */
+    private static byte[] withOpt(byte[] msg, boolean dnssecOk) {
+        byte[] m = new byte[msg.length + 11];
+        System.arraycopy(msg, 0, m, 0, msg.length);
+        DnsWire.put16(m, 10, DnsWire.u16(msg, 10) + 1);
+        int p = msg.length + 1; // root name
+        DnsWire.put16(m, p, DnsWire.TYPE_OPT);
+        DnsWire.put16(m, p + 2, 4096);
+        DnsWire.put32(m, p + 4, dnssecOk ? 0x8000 : 0);
+        return m;
+    }
+
+    private static byte[] answerTo(byte[] q) {
+        byte[] a = new byte[q.length + 16];
+        System.arraycopy(q, 0, a, 0, q.length);
+        a[2] = (byte) 0x81;
+        a[3] = (byte) 0x80;
+        a[7] = 1; // ANCOUNT
+        int p = q.length;
+        a[p] = (byte) 0xC0;
+        a[p + 1] = 12;
+        a[p + 3] = 1;
+        a[p + 5] = 1;
+        DnsWire.put32(a, p + 6, TTL);
+        a[p + 11] = 4;
+        a[p + 12] = 93;
+        a[p + 15] = 34;
+        return a;
+    }
+}
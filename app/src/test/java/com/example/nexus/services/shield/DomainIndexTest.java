@@ -0,0 +1,81 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hosts-file compilation and lookups in the mapped index: address columns,
+ * comments, duplicates and junk are handled, and a listed domain blocks its
+ * subdomains but not names that merely end with the same letters.
+ */
+public class DomainIndexTest {
+
+    private static final String HOSTS = ""
+            + "# comment line\n"
+            + "127.0.0.1 localhost\n"
+            + "0.0.0.0 Ads.Example.COM   # trailing comment\n"
+            + "::1 tracker.example.net\n"
+            + "plain.example.org\n"
+            + "0.0.0.0 ads.example.com dup.example.com\n"
+            + "0.0.0.0 bad_char!.example bare\n"
+            + "\n";
+
+    @Test
+    public void compilesHostsFileAndMatchesParents() throws Exception {
+        File file = tempFile();
+        int written = DomainIndex.compile(new StringReader(HOSTS), file);
+        DomainIndex index = DomainIndex.open(file);
+
+        // ads, tracker, plain, dup; "localhost", "bare" and the bad name are skipped, the repeat folded.
+        assertEquals(4, written);
+        assertEquals(4, index.size());
+
+        assertTrue(index.contains("ads.example.com"));
+        assertTrue(index.contains("ADS.example.com."));
+        assertTrue(index.contains("cdn.eu.ads.example.com"));
+        assertTrue(index.contains("tracker.example.net"));
+        assertTrue(index.contains("plain.example.org"));
+
+        assertFalse(index.contains("example.com"));
+        assertFalse(index.contains("badads.example.com"));
+        assertFalse(index.contains("ads.example.co"));
+        assertFalse(index.contains("localhost"));
+        assertFalse(index.contains(""));
+    }
+
+    @Test
+    public void byteLookupsAgreeWithStrings() throws Exception {
+        File file = tempFile();
+        DomainIndex.compile(new StringReader(HOSTS), file);
+        DomainIndex index = DomainIndex.open(file);
+        String[] names = {"x.ads.example.com", "Tracker.Example.Net", "notplain.example.org", "dup.example.com."};
+        for (String name : names) {
+            byte[] wire = ("__" + name).getBytes(StandardCharsets.US_ASCII);
+            assertEquals(name, index.contains(name), index.contains(wire, 2, name.length()));
+        }
+    }
+
+    @Test
+    public void rejectsFilesThatAreNotAnIndex() throws Exception {
+        File file = tempFile();
+        Files.write(file.toPath(), "0.0.0.0 ads.example.com\n".getBytes(StandardCharsets.US_ASCII));
+        try {
+            DomainIndex.open(file);
+            fail("opened a hosts file as an index");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("domain-index", ".idx");
+        file.deleteOnExit();
+        return file;
+    }
+}
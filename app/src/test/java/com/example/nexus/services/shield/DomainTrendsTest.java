@@ -0,0 +1,127 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Heavy hitters surface through a long tail of one-off names, each window
+ * counts only what happened inside it, once, and queries recorded by several
+ * threads at once are all counted.
+ */
+public class DomainTrendsTest {
+
+    private static final long MIN = 60_000L;
+    private static final long HOUR = 60 * MIN;
+    // Away from zero so bucket boundaries are not special.
+    private static final long T0 = 1000 * HOUR;
+
+    @Test
+    public void findsHeavyHittersInALongTail() {
+        DomainTrends trends = new DomainTrends();
+        Random rnd = new Random(3);
+        int heavy = 10;
+        long[] truth = new long[heavy];
+        for (int i = 0; i < 40_000; i++) {
+            long now = T0 + i; // all inside one 10 s bucket
+            if (rnd.nextInt(4) == 0) {
+                int h = rnd.nextInt(heavy);
+                truth[h]++;
+                record(trends, "heavy" + h + ".example", h % 2 == 0, now);
+            } else {
+                record(trends, "tail" + i + ".example", false, now);
+            }
+        }
+        List<DomainTrends.Entry> top = trends.top(DomainTrends.Window.MINUTE, false, heavy, T0 + 40_000);
+        assertEquals(heavy, top.size());
+        for (DomainTrends.Entry e : top) {
+            assertTrue(e.name, e.name.startsWith("heavy"));
+            long actual = truth[Integer.parseInt(e.name.substring(5, e.name.indexOf('.')))];
+            assertTrue(e.name + " under-counted", e.count >= actual);
+            assertTrue(e.name + " error bound", e.count - e.error <= actual);
+        }
+        List<DomainTrends.Entry> blocked = trends.top(DomainTrends.Window.MINUTE, true, heavy, T0 + 40_000);
+        assertEquals(heavy / 2, blocked.size());
+        for (DomainTrends.Entry e : blocked) {
+            long actual = truth[Integer.parseInt(e.name.substring(5, e.name.indexOf('.')))];
+            assertEquals(e.name, actual, e.count);
+        }
+    }
+
+    @Test
+    public void windowsCountOnlyTheirOwnSpan() {
+        DomainTrends trends = new DomainTrends();
+        repeat(trends, "a.example", 3, T0);
+        repeat(trends, "a.example", 5, T0 + 6 * MIN);
+        repeat(trends, "a.example", 2, T0 + 61 * MIN);
+        long now = T0 + 61 * MIN + 5_000;
+
+        assertEquals(2, count(trends, DomainTrends.Window.MINUTE, now));
+        assertEquals(7, count(trends, DomainTrends.Window.HOUR, now));
+        assertEquals(10, count(trends, DomainTrends.Window.DAY, now));
+
+        // Rolled into hours and still in the day.
+        assertEquals(0, count(trends, DomainTrends.Window.HOUR, now + 2 * HOUR));
+        assertEquals(10, count(trends, DomainTrends.Window.DAY, now + 2 * HOUR));
+        // And gone once the day has passed.
+        assertEquals(0, count(trends, DomainTrends.Window.DAY, now + 25 * HOUR));
+    }
+
+    @Test
+    public void keepsCountingAcrossManyBucketsWithoutDoubleCounting() {
+        DomainTrends trends = new DomainTrends();
+        // One query every 7 s for three hours.
+        int n = 0;
+        long t;
+        for (t = T0; t < T0 + 3 * HOUR; t += 7_000) {
+            record(trends, "steady.example", true, t);
+            n++;
+        }
+        long hour = count(trends, DomainTrends.Window.HOUR, t);
+        assertTrue("hour " + hour, Math.abs(hour - HOUR / 7_000) <= 50);
+        assertEquals(n, count(trends, DomainTrends.Window.DAY, t));
+    }
+
+    @Test
+    public void queriesFromManyThreadsAreAllCounted() throws Exception {
+        DomainTrends trends = new DomainTrends();
+        int threads = 8;
+        int perThread = 5_000;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                for (int j = 0; j < perThread; j++) {
+                    // Crosses three 10 s buckets while other threads are recording.
+                    record(trends, "shared.example", j % 2 == 0, T0 + j * 6L);
+                }
+            });
+        }
+        for (Thread w : workers) w.start();
+        for (Thread w : workers) w.join();
+
+        long now = T0 + perThread * 6L;
+        assertEquals(threads * perThread, count(trends, DomainTrends.Window.MINUTE, now));
+        List<DomainTrends.Entry> blocked = trends.top(DomainTrends.Window.MINUTE, true, 5, now);
+        assertEquals(threads * perThread / 2, blocked.get(0).count);
+        // Folded into the 5 min buckets exactly once.
+        assertEquals(threads * perThread, count(trends, DomainTrends.Window.HOUR, now + 2 * MIN));
+    }
+
+    private static long count(DomainTrends trends, DomainTrends.Window w, long now) {
+        List<DomainTrends.Entry> top = trends.top(w, false, 5, now);
+        return top.isEmpty() ? 0 : top.get(0).count;
+    }
+
+    private static void repeat(DomainTrends trends, String name, int times, long now) {
+        for (int i = 0; i < times; i++) record(trends, name, false, now);
+    }
+
+    private static void record(DomainTrends trends, String name, boolean blocked, long now) {
+        byte[] b = name.getBytes(StandardCharsets.US_ASCII);
+        trends.record(name.hashCode() | 1, b, b.length, blocked, now);
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the DoT and DoH transports against {@link LoopbackDnsServer}: many
+ * queries in flight at once over a single reused connection, answered out of
+ * order, while a transport nothing has been sent on never connects. For DoH
+ * also: error statuses fail the query even with a DNS body, timed-out streams
+ * are reset, and request bodies wait for the stream window.
+ */
+public class EncryptedUpstreamTest {
+
+    private static final int QUERIES = 2_000;
+
+    @Test
+    public void tls_pipelinesQueriesOverOneConnection() throws Exception {
+        try (LoopbackDnsServer server = new LoopbackDnsServer(LoopbackDnsServer.Mode.TLS_FRAMING, 500)) {
+            TlsUpstream upstream = new TlsUpstream(server.connector(), 5_000, null);
+            try {
+                runQueries(upstream);
+                assertEquals(1, server.connections());
+                assertEquals(1, upstream.connectCount());
+            } finally {
+                upstream.close();
+            }
+        }
+    }
+
+    @Test
+    public void unusedTransportNeverConnectsOnItsOwn() throws Exception {
+        AtomicInteger connects = new AtomicInteger();
+        TlsUpstream upstream = new TlsUpstream(() -> {
+            connects.incrementAndGet();
+            throw new IOException("not expected");
+        }, 5_000, null);
+        try {
+            // A clock that started at boot reads small; nothing has been sent, so there is nothing to reopen.
+            for (long now = 0; now <= 60_000; now += 500) upstream.tick(now);
+            Thread.sleep(100);
+            assertEquals(0, connects.get());
+        } finally {
+            upstream.close();
+        }
+    }
+
+    @Test
+    public void https_multiplexesQueriesOverOneConnection() throws Exception {
+        try (LoopbackDnsServer server = new LoopbackDnsServer(LoopbackDnsServer.Mode.H2C, 500)) {
+            HttpsUpstream upstream = new HttpsUpstream(server.connector(), "localhost", "/dns-query", false, 5_000, null);
+            try {
+                runQueries(upstream);
+                assertEquals(1, server.connections());
+                assertEquals(1, upstream.connectCount());
+            } finally {
+                upstream.close();
+            }
+        }
+    }
+
+    @Test
+    public void https_failsQueriesAnsweredWithAnErrorStatus() throws Exception {
+        // 404 from the static table, and 503 as a Huffman-coded literal; both carry a valid DNS answer.
+        byte[][] statuses = {{(byte) 0x8D}, {0x08, (byte) 0x83, 0x6C, 0x0C, (byte) 0xFF}};
+        for (byte[] status : statuses) {
+            try (LoopbackDnsServer server = new LoopbackDnsServer(LoopbackDnsServer.Mode.H2C, 0)) {
+                server.respondWith(status);
+                HttpsUpstream upstream = new HttpsUpstream(server.connector(), "localhost", "/dns-query", false, 5_000, null);
+                try {
+                    CountDownLatch done = new CountDownLatch(1);
+                    AtomicInteger errors = new AtomicInteger();
+                    sendWhenReady(upstream, dnsQuery(7, "error.example"), new Recorder(done, errors, 7));
+                    assertTrue(done.await(5, TimeUnit.SECONDS));
+                    assertEquals(1, server.queries());
+                    assertEquals(1, errors.get());
+                    assertEquals(0, upstream.inFlight());
+                } finally {
+                    upstream.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void https_readsTheStatusHowServersEncodeIt() {
+        assertEquals(200, status(0x88));
+        assertEquals(404, status(0x8D));
+        assertEquals(200, status(0x20, 0x88));                   // after a table size update
+        assertEquals(503, status(0x08, 0x03, '5', '0', '3'));    // literal, plain value
+        assertEquals(200, status(0x48, 0x03, '2', '0', '0'));    // literal with incremental indexing
+        assertEquals(503, status(0x08, 0x83, 0x6C, 0x0C, 0xFF)); // literal, Huffman-coded
+        assertEquals(200, status(0x08, 0x82, 0x10, 0x01));
+        assertEquals(-1, status(0x82));                          // :method, not :status
+        assertEquals(-1, status(0x00, 0x07));                    // literal name
+        assertEquals(-1, status(0x08, 0x83, 0x6C));              // truncated
+        assertEquals(-1, status());
+    }
+
+    @Test
+    public void https_resetsStreamsWhoseQueriesTimedOut() throws Exception {
+        try (LoopbackDnsServer server = new LoopbackDnsServer(LoopbackDnsServer.Mode.H2C, 0)) {
+            server.setSilent(true);
+            HttpsUpstream upstream = new HttpsUpstream(server.connector(), "localhost", "/dns-query", false, 200, null);
+            try {
+                CountDownLatch done = new CountDownLatch(1);
+                AtomicInteger errors = new AtomicInteger();
+                sendWhenReady(upstream, dnsQuery(9, "slow.example"), new Recorder(done, errors, 9));
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                while (done.getCount() > 0 && System.nanoTime() < deadline) {
+                    upstream.tick(StreamUpstream.now());
+                    Thread.sleep(10);
+                }
+                assertEquals(1, errors.get());
+                while (server.resets() == 0 && System.nanoTime() < deadline) Thread.sleep(10);
+                assertEquals(1, server.resets());
+            } finally {
+                upstream.close();
+            }
+        }
+    }
+
+    @Test
+    public void https_holdsRequestBodiesToTheStreamWindow() throws Exception {
+        try (LoopbackDnsServer server = new LoopbackDnsServer(LoopbackDnsServer.Mode.H2C, 500)) {
+            server.limitStreamWindow(16); // smaller than any query; each stream is opened further after its headers
+            HttpsUpstream upstream = new HttpsUpstream(server.connector(), "localhost", "/dns-query", false, 5_000, null);
+            try {
+                runQueries(upstream);
+                assertEquals(0, server.flowViolations());
+            } finally {
+                upstream.close();
+            }
+        }
+    }
+
+    private static int status(int... block) {
+        byte[] b = new byte[block.length];
+        for (int i = 0; i < block.length; i++) b[i] = (byte) block[i];
+        return HttpsUpstream.status(b, 0, b.length);
+    }
+
+    private static void runQueries(StreamUpstream upstream) throws InterruptedException {
+        byte[] warmup = dnsQuery(0, "warmup.example");
+        CountDownLatch first = new CountDownLatch(1);
+        AtomicInteger errors = new AtomicInteger();
+        sendWhenReady(upstream, warmup, new Recorder(first, errors, 0));
+        assertTrue("connection never came up", first.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch done = new CountDownLatch(QUERIES);
+        for (int i = 0; i < QUERIES; i++) {
+            byte[] query = dnsQuery(i + 1, "host" + i + ".example");
+            sendWhenReady(upstream, query, new Recorder(done, errors, i + 1));
+        }
+        assertTrue("answers missing", done.await(10, TimeUnit.SECONDS));
+
+        assertEquals("failed queries or mismatched IDs", 0, errors.get());
+        assertEquals(0, upstream.inFlight());
+    }
+
+    /** send() refuses while connecting or when the session is at its stream limit; retry until it takes the query. */
+    private static void sendWhenReady(StreamUpstream upstream, byte[] query, Recorder r) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!upstream.send(query, 0, query.length, r)) {
+            assertTrue("send never accepted", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static final class Recorder implements DnsTransport.Callback {
+        final CountDownLatch done;
+        final AtomicInteger errors;
+        final int expectedId;
+
+        Recorder(CountDownLatch done, AtomicInteger errors, int expectedId) {
+            this.done = done;
+            this.errors = errors;
+            this.expectedId = expectedId;
+        }
+
+        @Override
+        public void onResponse(byte[] buf, int offset, int length) {
+            if (DnsWire.id(buf, offset) != expectedId) errors.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure() {
+            errors.incrementAndGet();
+            done.countDown();
+        }
+    }
+
+    private static byte[] dnsQuery(int id, String name) {
+        byte[] out = new byte[512];
+        out[0] = (byte) (id >> 8);
+        out[1] = (byte) id;
+        out[2] = 0x01; // RD
+        out[5] = 1;    // QDCOUNT
+        int pos = 12;
+        for (String label : name.split("\\.")) {
+            out[pos++] = (byte) label.length();
+            for (char c : label.toCharArray()) out[pos++] = (byte) c;
+        }
+        out[pos++] = 0;
+        out[pos + 1] = 1; // QTYPE A
+        out[pos + 3] = 1; // QCLASS IN
+        return Arrays.copyOf(out, pos + 4);
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The coalescing key: the same question in any letter case shares one upstream
+ * request, while a different type, RD/CD bit, DO bit or EDNS size class does
+ * not; waiters come back from {@link InflightQueries#finish} in one list.
+ */
+public class InflightQueriesTest {
+
+    private final PacketPool pool = new PacketPool(16, 512);
+    private final InflightQueries inflight = new InflightQueries(64);
+
+    @Test
+    public void sameQuestionInAnyCaseJoinsTheLeader() {
+        Packet leader = query("www.example.com", 1, 0, -1);
+        Packet shouted = query("WWW.Example.COM", 1, 0, -1);
+        Packet again = query("www.example.com", 1, 0, -1);
+        assertFalse(inflight.join(leader));
+        assertTrue(inflight.join(shouted));
+        assertTrue(inflight.join(again));
+        assertEquals(1, inflight.size());
+        assertEquals(2, inflight.coalescedCount());
+
+        Packet waiters = inflight.finish(leader);
+        assertSame(again, waiters);
+        assertSame(shouted, waiters.nextWaiter);
+        assertNull(shouted.nextWaiter);
+        assertEquals(0, inflight.size());
+        // Gone from the table: the next identical query leads again.
+        assertFalse(inflight.join(query("www.example.com", 1, 0, -1)));
+    }
+
+    @Test
+    public void anythingThatChangesTheAnswerKeepsQueriesApart() {
+        assertFalse(inflight.join(query("www.example.com", 1, 0, -1)));
+        assertFalse(inflight.join(query("www.example.com", 28, 0, -1)));  // type
+        assertFalse(inflight.join(query("www.example.org", 1, 0, -1)));   // name
+        assertFalse(inflight.join(query("www.example.com", 1, 0x10, -1))); // CD
+        assertFalse(inflight.join(query("www.example.com", 1, 0, 1232)));  // EDNS
+        assertFalse(inflight.join(query("www.example.com", 1, 0, 4096)));  // bigger size class
+        assertFalse(inflight.join(query("www.example.com", 1, 0, 0x8000 | 1232))); // DO
+        assertEquals(7, inflight.size());
+
+        // Sizes within one class still share.
+        assertTrue(inflight.join(query("www.example.com", 1, 0, 1200)));
+        assertTrue(inflight.join(query("www.example.com", 1, 0, 0x8000 | 1000)));
+        assertEquals(2, inflight.coalescedCount());
+    }
+
+    @Test
+    public void unkeyableQueriesLeadButAreNotRegistered() {
+        Packet q = query("www.example.com", 1, 0, -1);
+        q.data[2] |= 0x28; // opcode 5 (UPDATE)
+        assertFalse(inflight.join(q));
+        assertFalse(inflight.join(q));
+        assertEquals(0, inflight.size());
+        assertNull(inflight.finish(q));
+    }
+
+    /**
+     * A query at offset 0 with header byte 3 set to {@code flags3}, plus an OPT
+     * record when {@code edns} is not negative: its low 15 bits are the payload
+     * size and 0x8000 sets DO.
+     */
+    private Packet query(String name, int type, int flags3, int edns) {
+        Packet p = pool.acquire();
+        byte[] d = p.data;
+        int pos = 0;
+        d[pos++] = 0x12;
+        d[pos++] = 0x34;
+        d[pos++] = 0x01; // RD
+        d[pos++] = (byte) flags3;
+        d[pos++] = 0;
+        d[pos++] = 1;
+        for (int i = 0; i < 4; i++) d[pos++] = 0;
+        d[pos++] = 0;
+        d[pos++] = (byte) (edns >= 0 ? 1 : 0);
+        for (String label : name.split("\\.")) {
+            d[pos++] = (byte) label.length();
+            for (char c : label.toCharArray()) d[pos++] = (byte) c;
+        }
+        d[pos++] = 0;
+        DnsWire.put16(d, pos, type);
+        DnsWire.put16(d, pos + 2, 1);
+        pos += 4;
+        if (edns >= 0) {
+            d[pos++] = 0; // root
+            DnsWire.put16(d, pos, 41);
+            DnsWire.put16(d, pos + 2, edns & 0x7FFF);
+            DnsWire.put32(d, pos + 4, (edns & 0x8000) != 0 ? 0x8000 : 0);
+            DnsWire.put16(d, pos + 8, 0);
+            pos += 10;
+        }
+        p.dnsStart = 0;
+        p.length = pos;
+        assertTrue(PacketCodec.readName(p));
+        return p;
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Keyword search over query names: matches anywhere in the name, ignores ASCII
+ * case, finds keywords that overlap or sit inside one another, and gives the
+ * same answer for a String and for wire bytes.
+ */
+public class KeywordMatcherTest {
+
+    private static final KeywordMatcher MATCHER = KeywordMatcher.compile(Arrays.asList(
+            "doubleclick", "ads", "adserver", "tracker", "rack", "she", "hers"));
+
+    @Test
+    public void findsKeywordsAnywhereIgnoringCase() {
+        assertMatch("stats.doubleclick.net", "doubleclick");
+        assertMatch("AdServer.Example", "ads");
+        assertMatch("cdn.TRACKERS.io", "rack"); // ends first, inside "tracker"
+        assertNoMatch("example.com");
+        assertNoMatch("ad.example");
+    }
+
+    @Test
+    public void findsKeywordReachedOnlyThroughAFailLink() {
+        // The scan is on the "tracker" branch when "rack" ends; only the fail link reports it.
+        assertMatch("trackx.example", "rack");
+        // "shers": "she" ends first; "hers" is reached by following fail links after it.
+        assertMatch("shers.example", "she");
+        assertMatch("xhers.example", "hers");
+        assertNoMatch("shr.example");
+    }
+
+    @Test
+    public void bytesAndStringsAgree() {
+        String[] names = {"x.doubleclick.net", "clean.example", "HERS.example", "a.d.s", "trackers"};
+        for (String name : names) {
+            byte[] wire = ("\u0000\u0000" + name).getBytes(StandardCharsets.US_ASCII);
+            assertEquals(name, MATCHER.firstMatch(name), MATCHER.firstMatch(wire, 2, name.length()));
+        }
+    }
+
+    @Test
+    public void emptyAndWideInputs() {
+        KeywordMatcher none = KeywordMatcher.compile(Collections.<String>emptyList());
+        assertFalse(none.matches("anything.example"));
+        assertEquals(0, none.keywordCount());
+        assertNoMatch("");
+        // Characters outside Latin-1 restart the scan rather than matching anything.
+        assertNoMatch("a\u4e2dds.example");
+    }
+
+    private static void assertMatch(String name, String keyword) {
+        int index = MATCHER.firstMatch(name);
+        assertTrue(name, index >= 0);
+        assertEquals(name, keyword, keywordAt(index));
+    }
+
+    private static void assertNoMatch(String name) {
+        assertEquals(name, -1, MATCHER.firstMatch(name));
+        assertFalse(name, MATCHER.matches(name));
+    }
+
+    private static String keywordAt(int index) {
+        return Arrays.asList("doubleclick", "ads", "adserver", "tracker", "rack", "she", "hers").get(index);
+    }
+}
@@ -0,0 +1,300 @@
+package com.example.nexus.services.shield;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+
+/**
+ * Offline stand-in for an encrypted resolver, listening on loopback: either
+ * DoT framing or DoH over HTTP/2 with prior knowledge, in the clear (h2c) or
+ * behind TLS with a test certificate. Every query gets an A record for
+ * 192.0.2.1, after a small random delay so answers come back out of order as
+ * they do from real resolvers. For DoH it can also answer with another
+ * status, stay silent, and keep request bodies to a small stream window,
+ * counting the resets and window overruns it sees.
+ */
+final class LoopbackDnsServer implements Closeable {
+
+    enum Mode { TLS_FRAMING, H2C }
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final Mode mode;
+    private final ServerSocket server;
+    private final ScheduledExecutorService answerers = Executors.newScheduledThreadPool(4);
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger queries = new AtomicInteger();
+    private final AtomicInteger resets = new AtomicInteger();
+    private final AtomicInteger flowViolations = new AtomicInteger();
+    private final int maxDelayMicros;
+    private volatile byte[] statusBlock = {(byte) 0x88}; // :status: 200
+    private volatile boolean silent;
+    private volatile int streamWindow = -1;
+
+    LoopbackDnsServer(Mode mode, int maxDelayMicros) throws IOException {
+        this(mode, maxDelayMicros, null, null);
+    }
+
+    /** Behind TLS from {@code tls}, offering {@code alpn} if not null. */
+    LoopbackDnsServer(Mode mode, int maxDelayMicros, SSLContext tls, String alpn) throws IOException {
+        this.mode = mode;
+        this.maxDelayMicros = maxDelayMicros;
+        if (tls == null) {
+            this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        } else {
+            SSLServerSocket secure = (SSLServerSocket) tls.getServerSocketFactory()
+                    .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            if (alpn != null) {
+                SSLParameters params = secure.getSSLParameters();
+                params.setApplicationProtocols(new String[]{alpn});
+                secure.setSSLParameters(params);
+            }
+            this.server = secure;
+        }
+        Thread acceptor = new Thread(this::acceptLoop, "LoopbackDnsServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    StreamUpstream.Connector connector() {
+        return () -> {
+            Socket s = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            s.setTcpNoDelay(true);
+            return s;
+        };
+    }
+
+    InetSocketAddress address() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+    }
+
+    /** DoH: answers with this HPACK header block instead of :status: 200; the body is still a DNS answer. */
+    void respondWith(byte[] headerBlock) {
+        statusBlock = headerBlock;
+    }
+
+    /** DoH: takes queries but never answers them. */
+    void setSilent(boolean silent) {
+        this.silent = silent;
+    }
+
+    /** DoH: advertises this SETTINGS_INITIAL_WINDOW_SIZE and opens each stream further once its headers arrive. */
+    void limitStreamWindow(int window) {
+        streamWindow = window;
+    }
+
+    /** RST_STREAM frames with CANCEL received. */
+    int resets() {
+        return resets.get();
+    }
+
+    /** DATA frames that went past a stream's window after our SETTINGS were acknowledged. */
+    int flowViolations() {
+        return flowViolations.get();
+    }
+
+    int connections() {
+        return connections.get();
+    }
+
+    int queries() {
+        return queries.get();
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket s = server.accept();
+                s.setTcpNoDelay(true);
+                connections.incrementAndGet();
+                Thread t = new Thread(() -> serve(s), "LoopbackDnsConnection");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket s) {
+        try (Socket socket = s) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            if (mode == Mode.TLS_FRAMING) {
+                serveFramed(in, out);
+            } else {
+                serveH2c(in, out);
+            }
+        } catch (IOException ignored) {
+            // Client went away.
+        }
+    }
+
+    private void serveFramed(DataInputStream in, OutputStream out) throws IOException {
+        while (true) {
+            byte[] query = new byte[in.readUnsignedShort()];
+            in.readFully(query);
+            later(() -> {
+                byte[] answer = answer(query);
+                byte[] frame = new byte[2 + answer.length];
+                DnsWire.put16(frame, 0, answer.length);
+                System.arraycopy(answer, 0, frame, 2, answer.length);
+                write(out, frame);
+            });
+        }
+    }
+
+    private void serveH2c(DataInputStream in, OutputStream out) throws IOException {
+        byte[] preface = new byte[PREFACE.length];
+        in.readFully(preface);
+        if (!Arrays.equals(preface, PREFACE)) throw new IOException("Bad preface");
+        int window = streamWindow;
+        byte[] settings = new byte[window >= 0 ? 12 : 6];
+        DnsWire.put16(settings, 0, 0x3); // MAX_CONCURRENT_STREAMS
+        DnsWire.put32(settings, 2, 256);
+        if (window >= 0) {
+            DnsWire.put16(settings, 6, 0x4); // INITIAL_WINDOW_SIZE
+            DnsWire.put32(settings, 8, window);
+        }
+        write(out, frame(0x4, 0, 0, settings));
+
+        Map<Integer, byte[]> bodies = new HashMap<>();
+        Map<Integer, Integer> windows = new ConcurrentHashMap<>();
+        boolean acknowledged = false;
+        byte[] header = new byte[9];
+        while (true) {
+            in.readFully(header);
+            int length = (header[0] & 0xFF) << 16 | (header[1] & 0xFF) << 8 | (header[2] & 0xFF);
+            int type = header[3] & 0xFF;
+            int flags = header[4] & 0xFF;
+            int stream = (int) DnsWire.u32(header, 5) & 0x7FFFFFFF;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            if (type == 0x4 && (flags & 0x1) == 0) {
+                write(out, frame(0x4, 0x1, 0, new byte[0]));
+            } else if (type == 0x4) {
+                acknowledged = true;
+            } else if (type == 0x6 && (flags & 0x1) == 0) {
+                write(out, frame(0x6, 0x1, 0, payload));
+            } else if (type == 0x3) {
+                if (length == 4 && DnsWire.u32(payload, 0) == 0x8) resets.incrementAndGet();
+            } else if (type == 0x1) {
+                windows.put(stream, window >= 0 ? window : 65535);
+                if (window >= 0) {
+                    later(() -> {
+                        // Counted before it is sent: the client cannot use it any earlier.
+                        windows.merge(stream, 4096, Integer::sum);
+                        byte[] grant = new byte[4];
+                        DnsWire.put32(grant, 0, 4096);
+                        write(out, frame(0x8, 0, stream, grant));
+                    });
+                }
+            } else if (type == 0x0) {
+                int left = windows.merge(stream, -length, Integer::sum);
+                if (left < 0 && acknowledged) flowViolations.incrementAndGet();
+                if (length > 0) {
+                    byte[] increment = new byte[4];
+                    DnsWire.put32(increment, 0, length);
+                    write(out, frame(0x8, 0, 0, increment)); // hand the connection window back
+                }
+                byte[] have = bodies.getOrDefault(stream, new byte[0]);
+                byte[] body = Arrays.copyOf(have, have.length + length);
+                System.arraycopy(payload, 0, body, have.length, length);
+                if ((flags & 0x1) == 0) {
+                    bodies.put(stream, body);
+                    continue;
+                }
+                bodies.remove(stream);
+                windows.remove(stream);
+                if (silent) continue;
+                byte[] status = statusBlock;
+                later(() -> {
+                    byte[] answer = answer(body);
+                    byte[] headers = frame(0x1, 0x4, stream, status);
+                    byte[] data = frame(0x0, 0x1, stream, answer);
+                    byte[] both = Arrays.copyOf(headers, headers.length + data.length);
+                    System.arraycopy(data, 0, both, headers.length, data.length);
+                    write(out, both);
+                });
+            }
+        }
+    }
+
+    private void later(Runnable r) {
+        long delay = maxDelayMicros > 0 ? ThreadLocalRandom.current().nextInt(maxDelayMicros) : 0;
+        answerers.schedule(r, delay, TimeUnit.MICROSECONDS);
+    }
+
+    private void write(OutputStream out, byte[] bytes) {
+        synchronized (out) {
+            try {
+                out.write(bytes);
+                out.flush();
+            } catch (IOException ignored) {
+                // Connection closed under us.
+            }
+        }
+    }
+
+    private byte[] answer(byte[] query) {
+        queries.incrementAndGet();
+        int qEnd = DnsWire.questionEnd(query, 0, query.length);
+        byte[] answer = new byte[qEnd + 16];
+        System.arraycopy(query, 0, answer, 0, qEnd);
+        answer[2] = (byte) (0x80 | (query[2] & 0x01));
+        answer[3] = (byte) 0x80;
+        DnsWire.put16(answer, 6, 1);
+        DnsWire.put16(answer, 8, 0);
+        DnsWire.put16(answer, 10, 0);
+        int p = qEnd;
+        DnsWire.put16(answer, p, 0xC00C);
+        DnsWire.put16(answer, p + 2, 1);
+        DnsWire.put16(answer, p + 4, 1);
+        DnsWire.put32(answer, p + 6, 60);
+        DnsWire.put16(answer, p + 10, 4);
+        answer[p + 12] = (byte) 192;
+        answer[p + 13] = 0;
+        answer[p + 14] = 2;
+        answer[p + 15] = 1;
+        return answer;
+    }
+
+    private static byte[] frame(int type, int flags, int stream, byte[] payload) {
+        byte[] f = new byte[9 + payload.length];
+        f[0] = (byte) (payload.length >> 16);
+        f[1] = (byte) (payload.length >> 8);
+        f[2] = (byte) payload.length;
+        f[3] = (byte) type;
+        f[4] = (byte) flags;
+        DnsWire.put32(f, 5, stream);
+        System.arraycopy(payload, 0, f, 9, payload.length);
+        return f;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        answerers.shutdownNow();
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Wire-level question name reading: case folding, the name hash, bounds
+ * checks on labels in hostile packets, and no compression pointers; plus IPv6
+ * query framing, the reset packets, and cutting answers down for UDP clients.
+ */
+public class PacketCodecTest {
+
+    private final PacketPool pool = new PacketPool(2, 512);
+
+    @Test
+    public void readName_foldsCaseAndHashesInsensitively() {
+        Packet upper = question(0x03, 'W', 'W', 'W', 0x07, 'E', 'x', 'A', 'm', 'P', 'l', 'E', 0x03, 'C', 'O', 'M', 0x00);
+        Packet lower = question(0x03, 'w', 'w', 'w', 0x07, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 0x03, 'c', 'o', 'm', 0x00);
+
+        assertTrue(PacketCodec.readName(upper));
+        assertTrue(PacketCodec.readName(lower));
+        assertEquals("www.example.com", new String(upper.name, 0, upper.nameLen, StandardCharsets.US_ASCII));
+        assertNotEquals(0, upper.nameHash);
+        assertEquals(lower.nameHash, upper.nameHash);
+    }
+
+    @Test
+    public void readName_rejectsCompressionPointers() {
+        Packet self = question(0x03, 'a', 'b', 'c', (byte) 0xC0, 12);
+        assertFalse(PacketCodec.readName(self));
+        assertEquals(0, self.nameHash);
+
+        Packet earlierLabel = question(0x03, 'a', 'b', 'c', 0x03, 'd', 'e', 'f', (byte) 0xC0, 16);
+        assertFalse(PacketCodec.readName(earlierLabel));
+
+        Packet header = question((byte) 0xC0, 0);
+        assertFalse(PacketCodec.readName(header));
+
+        Packet outside = question(0x03, 'a', 'b', 'c', (byte) 0xC1, 0x00);
+        assertFalse(PacketCodec.readName(outside));
+    }
+
+    @Test
+    public void readName_rejectsLabelsPastPacketEnd() {
+        assertFalse(PacketCodec.readName(question(0x05, 'a', 'b')));
+        assertFalse(PacketCodec.readName(question(0x40, 'a')));
+        assertFalse(PacketCodec.readName(question((byte) 0xC0)));
+        assertFalse(PacketCodec.readName(question(0x01, 'a')));
+    }
+
+    @Test
+    public void parsesIpv6QueryAndBuildsReplyWithMandatoryUdpChecksum() {
+        Packet query = pool.acquire();
+        byte[] d = query.data;
+        Arrays.fill(d, (byte) 0);
+        int dnsLen = DnsWire.HEADER_LEN + 5;
+        d[0] = 0x60;
+        DnsWire.put16(d, 4, 8 + dnsLen);
+        d[6] = 17;
+        d[7] = 64;
+        d[8] = (byte) 0xFD; d[9] = 0x00; d[10] = 0x6E; d[11] = 0x78; d[23] = 2;   // fd00:6e78::2
+        d[24] = 0x26; d[25] = 0x06; d[26] = 0x47; d[27] = 0x00; d[39] = 0x11;     // 2606:4700::11
+        DnsWire.put16(d, 40, 41_000);
+        DnsWire.put16(d, 42, 53);
+        DnsWire.put16(d, 44, 8 + dnsLen);
+        d[48] = 0x12; d[49] = 0x34; d[53] = 1;
+        d[60] = 1; d[61] = 'a';
+        query.length = 48 + dnsLen;
+
+        assertTrue(PacketCodec.parseDnsQuery(query));
+        assertEquals(40, query.ipHeaderLen);
+        assertEquals(48, query.dnsStart);
+        assertEquals(41_000, query.srcPort);
+        assertTrue(PacketCodec.readName(query));
+        assertEquals("a", new String(query.name, 0, query.nameLen, StandardCharsets.US_ASCII));
+
+        // Any payload will do; flip the QR bit so it differs from the query.
+        Packet reply = pool.acquire();
+        System.arraycopy(d, 48, reply.data, 48, dnsLen);
+        reply.data[50] |= (byte) 0x80;
+        int len = PacketCodec.buildResponsePacket(query, reply.data, dnsLen);
+        byte[] r = reply.data;
+        assertEquals(48 + dnsLen, len);
+        assertEquals(0x60, r[0] & 0xF0);
+        assertEquals(8 + dnsLen, DnsWire.u16(r, 4));
+        assertEquals(17, r[6]);
+        assertEquals(0x26, r[8] & 0xFF);                 // from the resolver
+        assertEquals(0xFD, r[24] & 0xFF);                // back to the client
+        assertEquals(53, DnsWire.u16(r, 40));
+        assertEquals(41_000, DnsWire.u16(r, 42));
+        assertEquals(8 + dnsLen, DnsWire.u16(r, 44));
+        assertNotEquals(0, DnsWire.u16(r, 46));
+        assertEquals(0, transportChecksum(r, 17, 8, 32, 40, 8 + dnsLen));
+    }
+
+    @Test
+    public void parseDnsQuery_skipsIpv6WithExtensionHeadersOrOtherPorts() {
+        Packet p = pool.acquire();
+        Arrays.fill(p.data, (byte) 0);
+        p.data[0] = 0x60;
+        p.data[6] = 0; // hop-by-hop options first
+        DnsWire.put16(p.data, 42, 53);
+        p.length = 48 + DnsWire.HEADER_LEN;
+        assertFalse(PacketCodec.parseDnsQuery(p));
+
+        p.data[6] = 17;
+        DnsWire.put16(p.data, 42, 443);
+        assertFalse(PacketCodec.parseDnsQuery(p));
+
+        DnsWire.put16(p.data, 42, 53);
+        p.length = 47;
+        assertFalse(PacketCodec.parseDnsQuery(p));
+    }
+
+    @Test
+    public void udpLimitFollowsEdnsAndTruncateKeepsTheQuestion() {
+        byte[] q = {
+                0x12, 0x34, 0x01, 0, 0, 1, 0, 0, 0, 0, 0, 1,
+                1, 'a', 0, 0, 1, 0, 1,
+                0, 0, 41, 0x04, (byte) 0xD0, 0, 0, 0, 0, 0, 0 // OPT, 1232 bytes
+        };
+        assertEquals(1232, DnsWire.udpPayloadLimit(q, 0, q.length));
+        assertEquals(512, DnsWire.udpPayloadLimit(q, 0, 19)); // no OPT record
+        q[11] = 0;
+        assertEquals(512, DnsWire.udpPayloadLimit(q, 0, q.length));
+
+        byte[] answer = Arrays.copyOf(q, 600);
+        answer[2] = (byte) 0x81;
+        answer[7] = 3; // ANCOUNT
+        assertEquals(19, DnsWire.truncate(answer, 0, answer.length));
+        assertTrue(DnsWire.isTruncated(answer, 0));
+        assertEquals(0, DnsWire.u16(answer, 6));
+        assertEquals(0x1234, DnsWire.id(answer, 0));
+    }
+
+    @Test
+    public void buildTcpReset_answersSynWithRstAckAndValidChecksums() {
+        byte[] syn = new byte[40];
+        syn[0] = 0x45;
+        DnsWire.put16(syn, 2, 40);
+        syn[9] = 6;
+        syn[12] = 10; syn[15] = 2;                            // 10.0.0.2
+        syn[16] = (byte) 203; syn[18] = 113; syn[19] = 9;    // 203.0.113.9
+        DnsWire.put16(syn, 20, 40_000);
+        DnsWire.put16(syn, 22, 443);
+        DnsWire.put32(syn, 24, 0xFFFFFFFFL); // sequence wraps on the SYN
+        syn[32] = 5 << 4;
+        syn[33] = 0x02; // SYN
+
+        byte[] out = new byte[64];
+        assertEquals(40, PacketCodec.buildTcpReset(syn, syn.length, out));
+        assertEquals(0, PacketCodec.calculateChecksum(out, 0, 20));
+        assertEquals(443, DnsWire.u16(out, 20));
+        assertEquals(40_000, DnsWire.u16(out, 22));
+        assertEquals(0, DnsWire.u32(out, 28));           // wrapped SYN + 1
+        assertEquals(0x14, out[33]);                     // RST|ACK
+        assertEquals(0, tcpChecksum(out, 12, 8, 20));
+        assertEquals(203, out[12] & 0xFF);
+
+        // Never answer a reset with a reset.
+        byte[] rst = out.clone();
+        assertEquals(0, PacketCodec.buildTcpReset(rst, 40, new byte[64]));
+    }
+
+    @Test
+    public void buildTcpReset_takesPeerAckAsSequenceOverIpv6() {
+        byte[] seg = new byte[60 + 10];
+        seg[0] = 0x60;
+        DnsWire.put16(seg, 4, 30);
+        seg[6] = 6;
+        seg[8] = (byte) 0xFD; seg[23] = 2;               // fd00::2
+        seg[24] = 0x20; seg[25] = 0x01; seg[39] = 1;     // 2001::1
+        DnsWire.put16(seg, 40, 50_000);
+        DnsWire.put16(seg, 42, 80);
+        DnsWire.put32(seg, 48, 0x12345678L);             // ACK number
+        seg[52] = 5 << 4;
+        seg[53] = 0x18; // PSH|ACK
+
+        byte[] out = new byte[80];
+        assertEquals(60, PacketCodec.buildTcpReset(seg, seg.length, out));
+        assertEquals(0x12345678L, DnsWire.u32(out, 44));
+        assertEquals(0x04, out[53]);                     // bare RST
+        assertEquals(20, DnsWire.u16(out, 4));
+        assertEquals(0xFD, out[24] & 0xFF);              // back to the client
+        assertEquals(0, tcpChecksum(out, 8, 32, 20));
+    }
+
+    private static int tcpChecksum(byte[] p, int addrStart, int addrLen, int tcpLen) {
+        return transportChecksum(p, 6, addrStart, addrLen, addrLen == 8 ? 20 : 40, tcpLen);
+    }
+
+    /** Folded one's-complement sum over the pseudo-header and the segment; 0 when the checksum is right. */
+    private static int transportChecksum(byte[] p, int proto, int addrStart, int addrLen, int start, int len) {
+        int sum = proto + len;
+        for (int i = addrStart; i < addrStart + addrLen; i += 2) sum += DnsWire.u16(p, i);
+        for (int i = start; i < start + len; i += 2) {
+            sum += ((p[i] & 0xFF) << 8) | (i + 1 < start + len ? p[i + 1] & 0xFF : 0);
+        }
+        while ((sum >> 16) != 0) sum = (sum & 0xFFFF) + (sum >> 16);
+        return ~sum & 0xFFFF;
+    }
+
+    /** A bare DNS message (no IP/UDP framing) whose question name is {@code nameBytes}. */
+    private Packet question(int... nameBytes) {
+        Packet p = pool.acquire();
+        Arrays.fill(p.data, (byte) 0);
+        p.data[5] = 1; // QDCOUNT
+        int pos = DnsWire.HEADER_LEN;
+        for (int b : nameBytes) p.data[pos++] = (byte) b;
+        p.dnsStart = 0;
+        p.length = pos;
+        return p;
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Guards the steady-state DNS path (parse, match, cache hit, reply framing)
+ * against allocations creeping back in.
+ */
+public class PacketPathAllocationTest {
+
+    private static final int ITERATIONS = 200_000;
+
+    @Test
+    public void cachedQueryPath_allocatesNothing() {
+        PacketPool pool = new PacketPool(8, 4096 + 128);
+        KeywordMatcher matcher = KeywordMatcher.compile(Arrays.asList("ads", "analytics", "tracker"));
+        DnsCache cache = new DnsCache(64);
+
+        byte[] query = dnsQuery(0x1234, "www.Example.com");
+        byte[] answer = dnsAnswer(query, 300);
+        cache.store(query, 0, query.length, answer, 0, answer.length);
+
+        assertAllocationFree(pool, matcher, cache, ipv4Udp(query));
+    }
+
+    @Test
+    public void cachedQueryPathOverIpv6_allocatesNothing() {
+        PacketPool pool = new PacketPool(8, 4096 + 128);
+        KeywordMatcher matcher = KeywordMatcher.compile(Arrays.asList("ads", "analytics", "tracker"));
+        DnsCache cache = new DnsCache(64);
+
+        byte[] query = dnsQuery(0x1234, "www.Example.com");
+        byte[] answer = dnsAnswer(query, 300);
+        cache.store(query, 0, query.length, answer, 0, answer.length);
+
+        assertAllocationFree(pool, matcher, cache, ipv6Udp(query));
+    }
+
+    private static void assertAllocationFree(PacketPool pool, KeywordMatcher matcher, DnsCache cache, byte[] tunPacket) {
+        runPath(pool, matcher, cache, tunPacket, 20_000); // warm up and let the JIT settle
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        int written = runPath(pool, matcher, cache, tunPacket, ITERATIONS);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals(ITERATIONS, written);
+        assertEquals(0, pool.overflowCount());
+        // Allow a little slack for the measurement itself; one byte per query would already be 200 KB.
+        assertTrue("Steady-state path allocated " + allocated + " bytes", allocated < 4096);
+    }
+
+    private static int runPath(PacketPool pool, KeywordMatcher matcher, DnsCache cache, byte[] tunPacket, int n) {
+        int written = 0;
+        for (int i = 0; i < n; i++) {
+            Packet packet = pool.acquire();
+            System.arraycopy(tunPacket, 0, packet.data, 0, tunPacket.length); // stands in for the TUN read
+            packet.length = tunPacket.length;
+
+            assertTrue(PacketCodec.parseDnsQuery(packet));
+            assertTrue(PacketCodec.readName(packet));
+            assertFalse(matcher.matches(packet.name, 0, packet.nameLen));
+
+            Packet reply = pool.acquire();
+            int dnsLen = cache.lookup(packet.data, packet.dnsStart, packet.length, reply.data, packet.dnsStart);
+            if (dnsLen > 0) {
+                reply.length = PacketCodec.buildResponsePacket(packet, reply.data, dnsLen);
+                written++;
+            }
+            reply.release();
+            packet.release();
+        }
+        return written;
+    }
+
+    private static byte[] dnsQuery(int id, String name) {
+        byte[] out = new byte[512];
+        out[0] = (byte) (id >> 8);
+        out[1] = (byte) id;
+        out[2] = 0x01; // RD
+        out[5] = 1;    // QDCOUNT
+        int pos = 12;
+        for (String label : name.split("\\.")) {
+            out[pos++] = (byte) label.length();
+            for (char c : label.toCharArray()) out[pos++] = (byte) c;
+        }
+        out[pos++] = 0;
+        out[pos + 1] = 1; // QTYPE A
+        out[pos + 3] = 1; // QCLASS IN
+        return Arrays.copyOf(out, pos + 4);
+    }
+
+    private static byte[] dnsAnswer(byte[] query, int ttl) {
+        byte[] out = Arrays.copyOf(query, query.length + 16);
+        out[2] = (byte) 0x81;
+        out[3] = (byte) 0x80;
+        out[7] = 1; // ANCOUNT
+        int pos = query.length;
+        out[pos++] = (byte) 0xC0; // pointer to the question name
+        out[pos++] = 12;
+        out[pos + 1] = 1; // TYPE A
+        out[pos + 3] = 1; // CLASS IN
+        pos += 4;
+        out[pos++] = (byte) (ttl >> 24);
+        out[pos++] = (byte) (ttl >> 16);
+        out[pos++] = (byte) (ttl >> 8);
+        out[pos++] = (byte) ttl;
+        out[pos + 1] = 4; // RDLENGTH
+        pos += 2;
+        out[pos] = 93;
+        out[pos + 3] = 34;
+        return out;
+    }
+
+    private static byte[] ipv4Udp(byte[] dns) {
+        byte[] p = new byte[28 + dns.length];
+        p[0] = 0x45;
+        p[2] = (byte) (p.length >> 8);
+        p[3] = (byte) p.length;
+        p[8] = 64;
+        p[9] = 17; // UDP
+        p[12] = 10; p[15] = 2;           // 10.0.0.2
+        p[16] = 76; p[17] = 76; p[18] = 2; p[19] = 2; // resolver
+        p[20] = (byte) 0xC3; p[21] = 0x50; // source port 50000
+        p[23] = 53;
+        p[24] = (byte) ((8 + dns.length) >> 8);
+        p[25] = (byte) (8 + dns.length);
+        System.arraycopy(dns, 0, p, 28, dns.length);
+        return p;
+    }
+
+    private static byte[] ipv6Udp(byte[] dns) {
+        byte[] p = new byte[48 + dns.length];
+        p[0] = 0x60;
+        p[4] = (byte) ((8 + dns.length) >> 8);
+        p[5] = (byte) (8 + dns.length);
+        p[6] = 17; // UDP
+        p[7] = 64;
+        p[8] = (byte) 0xFD; p[23] = 2;                  // fd00::2
+        p[24] = 0x26; p[25] = 0x06; p[39] = 0x11;       // resolver
+        p[40] = (byte) 0xC3; p[41] = 0x50;              // source port 50000
+        p[43] = 53;
+        p[44] = (byte) ((8 + dns.length) >> 8);
+        p[45] = (byte) (8 + dns.length);
+        System.arraycopy(dns, 0, p, 48, dns.length);
+        return p;
+    }
+}
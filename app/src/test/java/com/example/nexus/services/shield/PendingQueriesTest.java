@@ -0,0 +1,131 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * The pending-ID table: a reply is accepted only with an ID in flight and the
+ * same question echoed, IDs never collide in a slot, and each query is
+ * completed, failed or cancelled exactly once.
+ */
+public class PendingQueriesTest {
+
+    private static final long TIMEOUT_MS = 5_000;
+
+    @Test
+    public void acceptsOnlyTheMatchingIdAndQuestion() {
+        PendingQueries pending = new PendingQueries();
+        Recorder callback = new Recorder();
+        int id = pending.claim(query(0x1234, 'a'), 0, 33, callback, TIMEOUT_MS);
+        assertTrue(id >= 0);
+
+        // Same slot, other high bits: a different ID that lands on the busy slot.
+        assertFalse(pending.complete(reply(id ^ PendingQueries.SLOTS, 'a'), 0, 33, null));
+        assertFalse(pending.complete(reply((id + 1) & 0xFFFF, 'a'), 0, 33, null));
+        // Right ID, but the question is not the one we asked.
+        assertFalse(pending.complete(reply(id, 'b'), 0, 33, null));
+        // Not a response at all.
+        byte[] echo = query(id, 'a');
+        assertFalse(pending.complete(echo, 0, 33, null));
+        assertEquals(0, callback.responses);
+        assertEquals(1, pending.size());
+
+        byte[] good = reply(id, 'a');
+        assertTrue(pending.complete(good, 0, 33, null));
+        assertEquals(1, callback.responses);
+        assertEquals(0x1234, DnsWire.id(good, 0)); // the caller's own ID restored
+        assertEquals(0, pending.size());
+
+        // Only once.
+        assertFalse(pending.complete(reply(id, 'a'), 0, 33, null));
+        assertEquals(1, callback.responses);
+    }
+
+    @Test
+    public void idsNeverShareASlot() {
+        PendingQueries pending = new PendingQueries();
+        Set<Integer> slots = new HashSet<>();
+        int claimed = 0;
+        for (int i = 0; i < PendingQueries.SLOTS; i++) {
+            int id = pending.claim(query(i, 'a'), 0, 33, new Recorder(), TIMEOUT_MS);
+            if (id < 0) continue; // eight random probes can miss once the table is nearly full
+            claimed++;
+            assertTrue(id <= 0xFFFF);
+            assertTrue("slot reused", slots.add(id & (PendingQueries.SLOTS - 1)));
+        }
+        assertEquals(claimed, pending.size());
+        assertTrue(claimed > PendingQueries.SLOTS / 2);
+    }
+
+    @Test
+    public void cancelExpireAndFailAllFreeEachQueryOnce() {
+        PendingQueries pending = new PendingQueries();
+        Recorder cancelled = new Recorder();
+        Recorder expiring = new Recorder();
+        Recorder lasting = new Recorder();
+        int c = pending.claim(query(1, 'a'), 0, 33, cancelled, TIMEOUT_MS);
+        pending.claim(query(2, 'b'), 0, 33, expiring, 0);
+        pending.claim(query(3, 'c'), 0, 33, lasting, TIMEOUT_MS);
+
+        pending.cancel(c);
+        assertFalse(pending.complete(reply(c, 'a'), 0, 33, null));
+        assertEquals(0, cancelled.failures);
+
+        long now = System.nanoTime() / 1_000_000L;
+        assertEquals(1, pending.expire(now + 1, null));
+        assertEquals(1, expiring.failures);
+        assertEquals(0, lasting.failures);
+
+        pending.failAll();
+        assertEquals(1, lasting.failures);
+        assertEquals(0, pending.size());
+        pending.failAll();
+        assertEquals(1, lasting.failures);
+    }
+
+    @Test
+    public void rejectsMalformedQueries() {
+        PendingQueries pending = new PendingQueries();
+        assertEquals(-1, pending.claim(new byte[5], 0, 5, new Recorder(), TIMEOUT_MS));
+        byte[] q = query(1, 'a');
+        q[12] = 60; // label runs past the end
+        assertEquals(-1, pending.claim(q, 0, 33, new Recorder(), TIMEOUT_MS));
+    }
+
+    private static final class Recorder implements DnsTransport.Callback {
+        int responses;
+        int failures;
+
+        @Override
+        public void onResponse(byte[] buf, int offset, int length) {
+            responses++;
+        }
+
+        @Override
+        public void onFailure() {
+            failures++;
+        }
+    }
+
+    /** 33 bytes: header and a question for {@code <letter>ww.example.com} IN A. */
+    private static byte[] query(int id, char letter) {
+        byte[] q = {
+                0, 0, 0x01, 0, 0, 1, 0, 0, 0, 0, 0, 0,
+                3, (byte) letter, 'w', 'w', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0,
+                0, 1, 0, 1
+        };
+        DnsWire.put16(q, 0, id);
+        return q;
+    }
+
+    private static byte[] reply(int id, char letter) {
+        byte[] r = query(id, letter);
+        r[2] = (byte) 0x81;
+        r[3] = (byte) 0x80;
+        return r;
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Longest match wins, both families share one trie, malformed or out of
+ * range lengths are rejected rather than widened, the planned routes cover
+ * exactly the blocked space, and a list of 120k prefixes loses none.
+ */
+public class PrefixTrieTest {
+
+    @Test
+    public void longestMatchWinsAcrossFamilies() {
+        PrefixTrie trie = PrefixTrie.compile(Arrays.asList(
+                "# trackers",
+                "203.0.113.0/24",
+                "@@203.0.113.128/25",
+                "203.0.113.200",
+                "2001:db8::/32",
+                "@@2001:db8:1::/48",
+                "not-an-ip",
+                "10.0.0.0/33",
+                "10.0.0.0/-8",
+                "2001:db8::/-1"));
+        assertEquals(5, trie.prefixCount());
+        assertEquals(4, trie.rejectedCount());
+
+        assertTrue(trie.blocksDestination(ipv4("203.0.113.7"), 20));
+        assertFalse(trie.blocksDestination(ipv4("203.0.113.129"), 20));
+        assertTrue(trie.blocksDestination(ipv4("203.0.113.200"), 20));
+        assertFalse(trie.blocksDestination(ipv4("203.0.114.1"), 20));
+        assertTrue(trie.blocksDestination(ipv6("2001:db8:2::1"), 40));
+        assertFalse(trie.blocksDestination(ipv6("2001:db8:1::1"), 40));
+        assertFalse(trie.blocksDestination(ipv6("2001:db9::1"), 40));
+    }
+
+    @Test
+    public void agreesWithBruteForceAndRoutesCoverExactlyTheBlockedSpace() throws Exception {
+        Random rnd = new Random(7);
+        List<String> lines = new ArrayList<>();
+        List<int[]> rules = new ArrayList<>(); // {address, length, allow}
+        for (int i = 0; i < 400; i++) {
+            // A small address space so prefixes nest and overlap often.
+            int len = 8 + rnd.nextInt(25);
+            int addr = (10 << 24) | (rnd.nextInt(1 << 12) << 12) | rnd.nextInt(1 << 12);
+            addr &= len == 32 ? -1 : ~(-1 >>> len);
+            boolean allow = rnd.nextInt(4) == 0;
+            lines.add((allow ? "@@" : "") + dotted(addr) + "/" + len);
+            rules.add(new int[]{addr, len, allow ? 1 : 0});
+        }
+        PrefixTrie trie = PrefixTrie.compile(lines);
+
+        List<int[]> routes = new ArrayList<>();
+        trie.forEachRoute((address, prefixLength) -> {
+            assertTrue(address instanceof Inet4Address);
+            routes.add(new int[]{(int) DnsWire.u32(address.getAddress(), 0), prefixLength});
+        });
+
+        for (int i = 0; i < 200_000; i++) {
+            int a = (10 << 24) | rnd.nextInt(1 << 24);
+            if (i % 2 == 0) {
+                // Aim near a rule's edges too.
+                int[] r = rules.get(rnd.nextInt(rules.size()));
+                a = r[0] + (rnd.nextBoolean() ? 0 : (int) ((1L << (32 - r[1])) - 1));
+            }
+            boolean expected = bruteForce(rules, a);
+            byte[] packet = ipv4(dotted(a));
+            assertEquals(dotted(a), expected, trie.blocksDestination(packet, 20));
+            int covering = 0;
+            for (int[] r : routes) {
+                if (covers(r[0], r[1], a)) covering++;
+            }
+            assertEquals(dotted(a) + " routed", expected ? 1 : 0, covering);
+        }
+    }
+
+    @Test
+    public void largeListKeepsEveryPrefix() {
+        Random rnd = new Random(11);
+        List<String> lines = new ArrayList<>();
+        int[] v4 = new int[100_000];
+        for (int i = 0; i < v4.length; i++) {
+            v4[i] = rnd.nextInt();
+            lines.add(dotted(v4[i]) + "/" + (16 + rnd.nextInt(17)));
+        }
+        for (int i = 0; i < 20_000; i++) {
+            lines.add(Integer.toHexString(0x2000 + rnd.nextInt(0x1000)) + ":" + Integer.toHexString(rnd.nextInt(0x10000))
+                    + "::/" + (24 + rnd.nextInt(40)));
+        }
+        PrefixTrie trie = PrefixTrie.compile(lines);
+        assertEquals(120_000, trie.prefixCount());
+        assertEquals(0, trie.rejectedCount());
+        // Nothing is allowed, so every listed address stays blocked however the prefixes overlap.
+        for (int a : v4) assertTrue(dotted(a), trie.blocksDestination(ipv4(dotted(a)), 20));
+    }
+
+    private static boolean bruteForce(List<int[]> rules, int a) {
+        int bestLen = -1;
+        boolean blocked = false;
+        for (int[] r : rules) {
+            if (covers(r[0], r[1], a) && (r[1] > bestLen || (r[1] == bestLen && r[2] == 1))) {
+                bestLen = r[1];
+                blocked = r[2] == 0;
+            }
+        }
+        return blocked;
+    }
+
+    private static boolean covers(int prefix, int len, int a) {
+        int mask = len == 0 ? 0 : -1 << (32 - len);
+        return ((prefix ^ a) & mask) == 0;
+    }
+
+    private static String dotted(int a) {
+        return (a >>> 24) + "." + ((a >>> 16) & 0xFF) + "." + ((a >>> 8) & 0xFF) + "." + (a & 0xFF);
+    }
+
+    private static byte[] ipv4(String dst) {
+        byte[] p = new byte[20];
+        p[0] = 0x45;
+        try {
+            System.arraycopy(InetAddress.getByName(dst).getAddress(), 0, p, 16, 4);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        return p;
+    }
+
+    private static byte[] ipv6(String dst) {
+        byte[] p = new byte[40];
+        p[0] = 0x60;
+        try {
+            System.arraycopy(InetAddress.getByName(dst).getAddress(), 0, p, 24, 16);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        return p;
+    }
+}
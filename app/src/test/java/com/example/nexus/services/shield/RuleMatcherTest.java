@@ -0,0 +1,99 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rule language semantics: anchors, wildcards, allow-over-block precedence and
+ * rejection of rules the matcher does not support.
+ */
+public class RuleMatcherTest {
+
+    private static final RuleMatcher RULES = RuleMatcher.compile(Arrays.asList(
+            "analytics",
+            "@@||analytics.ourcompany.com^",
+            "||ads.example^",
+            "|exact.org|",
+            "||ads*.cdn^",
+            "trk*pix",
+            "! a comment",
+            "# another one"
+    ));
+
+    @Test
+    public void keywordMatchesAnywhere() {
+        assertBlocked("myanalytics.com", "analytics");
+        assertBlocked("ANALYTICS.io", "analytics");
+    }
+
+    @Test
+    public void allowRuleBeatsBlockRule() {
+        assertAllowed("analytics.ourcompany.com");
+        assertAllowed("eu.analytics.ourcompany.com");
+        assertBlocked("analytics.othercompany.com", "analytics");
+    }
+
+    @Test
+    public void domainAnchorMatchesDomainAndSubdomainsOnly() {
+        assertBlocked("ads.example", "||ads.example^");
+        assertBlocked("a.b.ads.example", "||ads.example^");
+        assertNoMatch("badads.example");
+        assertNoMatch("ads.example.com");
+    }
+
+    @Test
+    public void exactAnchorMatchesWholeNameOnly() {
+        assertBlocked("exact.org", "|exact.org|");
+        assertNoMatch("www.exact.org");
+        assertNoMatch("exact.org.evil");
+    }
+
+    @Test
+    public void wildcardsMatchSegmentsInOrder() {
+        assertBlocked("ads1.cdn", "||ads*.cdn^");
+        assertBlocked("x.ads-eu.img.cdn", "||ads*.cdn^");
+        assertNoMatch("ads.cdnx");
+        assertBlocked("trk.x.pix", "trk*pix");
+        assertNoMatch("pixtrk");
+        assertNoMatch("trkpi");
+    }
+
+    @Test
+    public void controlBytesCannotForgeAnchors() {
+        byte[] name = "x\u0001.ads.example\u0002.net".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(RuleMatcher.NO_RULE, RULES.match(name, 0, name.length));
+    }
+
+    @Test
+    public void unsupportedRulesAreRejectedAndCounted() {
+        RuleMatcher m = RuleMatcher.compile(Arrays.asList("*", "ads$third-party", "/ad[0-9]+/", "ok", ""));
+        assertEquals(1, m.ruleCount());
+        assertEquals(3, m.rejectedCount());
+    }
+
+    private static int match(String name) {
+        byte[] b = name.getBytes(StandardCharsets.US_ASCII);
+        return RULES.match(b, 0, b.length);
+    }
+
+    private static void assertBlocked(String name, String rule) {
+        int r = match(name);
+        assertNotEquals(name + " should match", RuleMatcher.NO_RULE, r);
+        assertFalse(name + " should be blocked", RULES.isAllow(r));
+        assertEquals(rule, RULES.rule(r));
+    }
+
+    private static void assertAllowed(String name) {
+        int r = match(name);
+        assertNotEquals(name + " should match", RuleMatcher.NO_RULE, r);
+        assertTrue(name + " should be allowed", RULES.isAllow(r));
+    }
+
+    private static void assertNoMatch(String name) {
+        assertEquals(name, RuleMatcher.NO_RULE, match(name));
+    }
+}
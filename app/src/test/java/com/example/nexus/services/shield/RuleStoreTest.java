@@ -0,0 +1,109 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rule hot-swap: each change publishes a new version in one swap while a
+ * snapshot already taken keeps its own rules, a failed index load leaves the
+ * current rules in place, and rollback walks back through a bounded history.
+ */
+public class RuleStoreTest {
+
+    @Test
+    public void swapsRulesWithoutDisturbingSnapshotsInUse() throws Exception {
+        RuleStore store = new RuleStore(Collections.singletonList("||ads.example^"));
+        try {
+            RuleSnapshot first = store.current();
+            assertEquals(1, first.version);
+            assertTrue(blocks(first, "sub.ads.example"));
+            assertFalse(blocks(first, "notads.example"));
+
+            RuleSnapshot second = store.setRules(Arrays.asList("||ads.example^", "@@||ok.ads.example^", "tracker")).get();
+            assertEquals(2, second.version);
+            assertSame(second, store.current());
+            assertFalse(blocks(second, "ok.ads.example"));
+            assertTrue(blocks(second, "eu.tracker.net"));
+
+            // A query that took the old snapshot finishes on the old rules.
+            assertTrue(blocks(first, "ok.ads.example"));
+            assertFalse(blocks(first, "eu.tracker.net"));
+        } finally {
+            store.shutdown();
+        }
+    }
+
+    @Test
+    public void indexSwapKeepsRulesAndAFailedLoadKeepsEverything() throws Exception {
+        RuleStore store = new RuleStore(Collections.singletonList("@@||allowed.example.com^"));
+        try {
+            DomainIndex index = index("0.0.0.0 example.com\n");
+            RuleSnapshot withIndex = store.setIndex(() -> index).get();
+            assertSame(index, withIndex.index());
+            assertNotNull(withIndex.filter());
+            assertTrue(blocks(withIndex, "www.example.com"));
+            assertFalse(blocks(withIndex, "allowed.example.com")); // allow rules beat the hosts lists
+
+            try {
+                store.setIndex(() -> {
+                    throw new IOException("corrupt");
+                }).get();
+                fail("load should fail");
+            } catch (ExecutionException expected) {
+            }
+            assertSame(withIndex, store.current());
+
+            RuleSnapshot unfiltered = store.setPrefilter(false).get();
+            assertNull(unfiltered.filter());
+            assertSame(index, unfiltered.index());
+            assertSame(withIndex.matcher(), unfiltered.matcher());
+        } finally {
+            store.shutdown();
+        }
+    }
+
+    @Test
+    public void rollsBackThroughABoundedHistory() throws Exception {
+        RuleStore store = new RuleStore(Collections.singletonList("v1"));
+        try {
+            for (int v = 2; v <= 7; v++) store.setRules(Collections.singletonList("v" + v)).get();
+            assertEquals(7, store.current().version);
+
+            // The last four superseded versions are kept, newest first.
+            for (int v = 6; v >= 3; v--) {
+                RuleSnapshot back = store.rollback().get();
+                assertEquals(v, back.version);
+                assertSame(back, store.current());
+                assertTrue(blocks(back, "v" + v + ".example"));
+            }
+            assertNull(store.rollback().get());
+            assertEquals(3, store.current().version);
+
+            // Publishing after a rollback continues the version sequence.
+            assertEquals(8, store.setRules(Collections.singletonList("v8")).get().version);
+        } finally {
+            store.shutdown();
+        }
+    }
+
+    private static boolean blocks(RuleSnapshot snapshot, String name) {
+        byte[] b = name.getBytes(StandardCharsets.US_ASCII);
+        return snapshot.blocks(b, 0, b.length);
+    }
+
+    private static DomainIndex index(String hosts) throws IOException {
+        File file = File.createTempFile("rule-store", ".idx");
+        file.deleteOnExit();
+        DomainIndex.compile(new StringReader(hosts), file);
+        return DomainIndex.open(file);
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * A burst of blocks reaches the UI in bounded batches at the capped rate, the
+ * notification is updated once for the whole burst, and what does not fit the
+ * queue is counted rather than blocking the packet path.
+ */
+public class ShieldTelemetryTest {
+
+    private static final int BURST = 2_000;
+
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicInteger domains = new AtomicInteger();
+    private final AtomicInteger largestBatch = new AtomicInteger();
+    private final AtomicInteger statusUpdates = new AtomicInteger();
+    private final AtomicInteger notifications = new AtomicInteger();
+    private final AtomicLong lastNotified = new AtomicLong(-1);
+
+    private final ShieldTelemetry telemetry = new ShieldTelemetry(new ShieldTelemetry.Sink() {
+        @Override
+        public void publishStatus(long blockedCount) {
+            statusUpdates.incrementAndGet();
+        }
+
+        @Override
+        public void publishBlocks(ArrayList<String> batch) {
+            domains.addAndGet(batch.size());
+            largestBatch.accumulateAndGet(batch.size(), Math::max);
+        }
+
+        @Override
+        public void publishNotification(long blockedCount) {
+            notifications.incrementAndGet();
+            lastNotified.set(blockedCount);
+        }
+    }, blocked::get);
+
+    @Test
+    public void coalescesABurstAndNeverBlocks() throws Exception {
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < BURST; i++) {
+                blocked.incrementAndGet();
+                telemetry.recordBlock("ads" + i + ".example");
+            }
+            // Recording is a queue offer; the whole burst takes nowhere near one UI interval.
+            assertTrue((System.nanoTime() - start) / 1_000_000 < ShieldTelemetry.UI_INTERVAL_MS * 10);
+
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (domains.get() + telemetry.droppedCount() < BURST && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            Thread.sleep(ShieldTelemetry.NOTIFICATION_INTERVAL_MS + 200);
+
+            assertEquals(BURST, domains.get() + telemetry.droppedCount());
+            assertTrue(telemetry.droppedCount() > 0);
+            assertTrue(largestBatch.get() <= 64);
+            // One status per flush at most, and the burst fits in a handful of flushes.
+            assertTrue(statusUpdates.get() >= 1);
+            assertTrue(statusUpdates.get() <= domains.get() / 64 + 2);
+            assertTrue(notifications.get() >= 1 && notifications.get() <= 2);
+            assertEquals(BURST, lastNotified.get());
+        } finally {
+            telemetry.shutdown();
+        }
+    }
+
+    @Test
+    public void publishesNothingWithoutBlocks() throws Exception {
+        try {
+            Thread.sleep(ShieldTelemetry.UI_INTERVAL_MS * 2);
+            assertEquals(0, statusUpdates.get());
+            assertEquals(0, notifications.get());
+        } finally {
+            telemetry.shutdown();
+        }
+    }
+}
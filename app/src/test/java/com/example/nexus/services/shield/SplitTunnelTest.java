@@ -0,0 +1,87 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Split tunneling: a non-empty include list wins over the exclude list, only
+ * one kind of list ever reaches the builder, and uninstalled packages are
+ * skipped without dropping the rest.
+ */
+public class SplitTunnelTest {
+
+    @Test
+    public void includeListWinsOverExcludeList() {
+        Recorder target = new Recorder("com.gone");
+        List<String> missing = SplitTunnel.apply(
+                Arrays.asList("com.browser", "com.mail"), Arrays.asList("com.bank"), target);
+        assertEquals(Arrays.asList("com.browser", "com.mail"), target.allowed);
+        assertTrue(target.disallowed.isEmpty());
+        assertTrue(missing.isEmpty());
+    }
+
+    @Test
+    public void excludeListAppliesWhenNothingIsIncluded() {
+        Recorder target = new Recorder("com.gone");
+        List<String> missing = SplitTunnel.apply(
+                Collections.emptyList(), Arrays.asList("com.bank", "com.game"), target);
+        assertTrue(target.allowed.isEmpty());
+        assertEquals(Arrays.asList("com.bank", "com.game"), target.disallowed);
+        assertTrue(missing.isEmpty());
+    }
+
+    @Test
+    public void uninstalledPackagesAreSkipped() {
+        Recorder target = new Recorder("com.gone", "com.old");
+        List<String> missing = SplitTunnel.apply(
+                Arrays.asList("com.gone", "com.browser", "com.old"), Collections.emptyList(), target);
+        assertEquals(Collections.singletonList("com.browser"), target.allowed);
+        assertEquals(Arrays.asList("com.gone", "com.old"), missing);
+
+        target = new Recorder("com.gone");
+        missing = SplitTunnel.apply(Collections.emptyList(), Arrays.asList("com.bank", "com.gone"), target);
+        assertEquals(Collections.singletonList("com.bank"), target.disallowed);
+        assertEquals(Collections.singletonList("com.gone"), missing);
+    }
+
+    @Test
+    public void noListsLeaveEveryAppInTheTunnel() {
+        Recorder target = new Recorder();
+        assertTrue(SplitTunnel.apply(Collections.emptyList(), Collections.emptyList(), target).isEmpty());
+        assertTrue(target.allowed.isEmpty());
+        assertTrue(target.disallowed.isEmpty());
+    }
+
+    /** Stands in for the VPN builder; the named packages are not installed. */
+    private static final class Recorder implements SplitTunnel.Target {
+        final Set<String> uninstalled;
+        final List<String> allowed = new ArrayList<>();
+        final List<String> disallowed = new ArrayList<>();
+
+        Recorder(String... uninstalled) {
+            this.uninstalled = new HashSet<>(Arrays.asList(uninstalled));
+        }
+
+        @Override
+        public boolean allow(String pkg) {
+            if (uninstalled.contains(pkg)) return false;
+            allowed.add(pkg);
+            return true;
+        }
+
+        @Override
+        public boolean disallow(String pkg) {
+            if (uninstalled.contains(pkg)) return false;
+            disallowed.add(pkg);
+            return true;
+        }
+    }
+}
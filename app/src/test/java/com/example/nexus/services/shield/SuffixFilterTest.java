@@ -0,0 +1,66 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The Bloom pre-check must never hide a domain the index would block, and
+ * should let only a small share of clean names through.
+ */
+public class SuffixFilterTest {
+
+    private static final int DOMAINS = 50_000;
+
+    @Test
+    public void neverRejectsListedDomainsOrTheirSubdomains() throws Exception {
+        Random rnd = new Random(1);
+        List<String> domains = new ArrayList<>();
+        StringBuilder hosts = new StringBuilder();
+        for (int i = 0; i < DOMAINS; i++) {
+            String d = word(rnd) + "." + word(rnd) + ".com";
+            domains.add(d);
+            hosts.append("0.0.0.0 ").append(i % 5 == 0 ? d.toUpperCase() : d).append('\n');
+        }
+        DomainIndex index = compile(hosts.toString());
+        SuffixFilter filter = SuffixFilter.build(index);
+
+        for (String d : domains) {
+            for (String name : new String[]{d, "cdn.eu." + d, "WWW." + d.toUpperCase(), d + "."}) {
+                byte[] b = name.getBytes(StandardCharsets.US_ASCII);
+                assertTrue(name, filter.mightContain(b, 0, b.length));
+            }
+        }
+
+        int passed = 0;
+        int clean = 20_000;
+        for (int i = 0; i < clean; i++) {
+            byte[] b = ("www." + word(rnd) + "." + word(rnd) + ".net").getBytes(StandardCharsets.US_ASCII);
+            if (filter.mightContain(b, 0, b.length)) passed++;
+        }
+        double rate = (double) passed / clean;
+        // Four suffixes are probed per clean name here, each at roughly the expected rate.
+        assertTrue("false-positive rate " + rate, rate < 5 * filter.expectedFalsePositiveRate() + 0.01);
+    }
+
+    private static DomainIndex compile(String hosts) throws Exception {
+        File file = File.createTempFile("suffix-filter", ".idx");
+        file.deleteOnExit();
+        DomainIndex.compile(new StringReader(hosts), file);
+        return DomainIndex.open(file);
+    }
+
+    private static String word(Random rnd) {
+        int len = 3 + rnd.nextInt(8);
+        StringBuilder b = new StringBuilder(len);
+        for (int i = 0; i < len; i++) b.append((char) ('a' + rnd.nextInt(26)));
+        return b.toString();
+    }
+}
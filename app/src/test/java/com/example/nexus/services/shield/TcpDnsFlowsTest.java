@@ -0,0 +1,296 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * A client's DNS-over-TCP exchange through the terminator: handshake, a query
+ * split across segments, an answer larger than one segment and the client's
+ * window, and the close; plus what it does with segments out of order,
+ * answers for connections that are gone, and segments the client never
+ * acknowledges.
+ */
+public class TcpDnsFlowsTest {
+
+    private static final int CLIENT_ISN = 0x7FFFFFF0; // wraps past 2^31 on the way
+    private static final int MSS = 600;
+
+    private final PacketPool pool = new PacketPool(64, 4096 + 128);
+    private final List<byte[]> sent = new ArrayList<>();
+    private final List<Packet> queries = new ArrayList<>();
+    private final TcpDnsFlows flows = new TcpDnsFlows(pool, p -> {
+        byte[] copy = new byte[p.length];
+        System.arraycopy(p.data, 0, copy, 0, p.length);
+        sent.add(copy);
+        p.release();
+    }, queries::add);
+
+    @Test
+    public void answersAQueryAndClosesCleanly() {
+        long serverSeq = handshake();
+        byte[] query = framed(dnsQuery(0xBEEF, "big.example"));
+
+        // The query arrives in two pieces.
+        segment(0x18, CLIENT_ISN + 1, serverSeq, 2000, slice(query, 0, 5));
+        assertTrue(queries.isEmpty());
+        assertEquals(CLIENT_ISN + 6, (int) ack(last()));
+        segment(0x18, CLIENT_ISN + 6, serverSeq, 2000, slice(query, 5, query.length));
+        assertEquals(1, queries.size());
+        Packet q = queries.get(0);
+        assertNotEquals(0, q.tcpFlow);
+        assertEquals(40_000, q.srcPort);
+        assertEquals(query.length - 2, q.length - q.dnsStart);
+        assertTrue(PacketCodec.readName(q));
+
+        // 3000 bytes: more than one segment, and more than the 2000-byte window.
+        byte[] answer = new byte[3000];
+        System.arraycopy(query, 2, answer, 0, query.length - 2);
+        answer[0] = 0; // flows.reply() puts the client's ID back
+        answer[2] = (byte) 0x81;
+        sent.clear();
+        flows.reply(q, answer, 0, answer.length);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        long next = serverSeq;
+        for (byte[] s : sent) {
+            assertEquals(0, tcpChecksum(s));
+            assertEquals(next, seq(s));
+            assertTrue(payloadLen(s) <= MSS);
+            stream.write(s, 40, payloadLen(s));
+            next += payloadLen(s);
+        }
+        assertEquals(2000, stream.size());
+
+        sent.clear();
+        segment(0x10, CLIENT_ISN + 1 + query.length, next, 4000, new byte[0]);
+        for (byte[] s : sent) {
+            stream.write(s, 40, payloadLen(s));
+            next += payloadLen(s);
+        }
+        byte[] got = stream.toByteArray();
+        assertEquals(2 + 3000, got.length);
+        assertEquals(3000, DnsWire.u16(got, 0));
+        assertEquals(0xBEEF, DnsWire.u16(got, 2));
+
+        // The client closes; we close once its one query has been dealt with.
+        flows.finished(q.tcpFlow);
+        q.release();
+        sent.clear();
+        int clientFin = CLIENT_ISN + 1 + query.length;
+        segment(0x11, clientFin, next, 4000, new byte[0]);
+        byte[] fin = last();
+        assertEquals(0x11, fin[33] & 0x3F);
+        assertEquals(clientFin + 1, (int) ack(fin));
+        segment(0x10, clientFin + 1, next + 1, 4000, new byte[0]);
+
+        // Gone: a late answer is dropped, and a stray segment is reset.
+        sent.clear();
+        flows.reply(q, answer, 0, answer.length);
+        assertTrue(sent.isEmpty());
+        segment(0x10, clientFin + 1, next + 1, 4000, new byte[0]);
+        assertEquals(0x04, last()[33] & 0x3F);
+    }
+
+    @Test
+    public void outOfOrderDataIsDroppedAndReAcked() {
+        long serverSeq = handshake();
+        byte[] query = framed(dnsQuery(1, "a.example"));
+        segment(0x18, CLIENT_ISN + 1 + 5, serverSeq, 2000, slice(query, 5, query.length));
+        assertTrue(queries.isEmpty());
+        assertEquals(CLIENT_ISN + 1, (int) ack(last()));
+        segment(0x18, CLIENT_ISN + 1, serverSeq, 2000, query);
+        assertEquals(1, queries.size());
+    }
+
+    @Test
+    public void unacknowledgedAnswerAndFinAreSentAgain() {
+        long serverSeq = handshake();
+        byte[] query = framed(dnsQuery(7, "a.example"));
+        int clientFin = CLIENT_ISN + 1 + query.length;
+        segment(0x19, CLIENT_ISN + 1, serverSeq, 2000, query); // the query, then FIN
+        Packet q = queries.get(0);
+        byte[] answer = new byte[100];
+        System.arraycopy(query, 2, answer, 0, query.length - 2);
+        answer[2] = (byte) 0x81;
+        sent.clear();
+        flows.reply(q, answer, 0, answer.length);
+        flows.finished(q.tcpFlow);
+        q.release();
+        assertEquals(2, sent.size());
+        byte[] data = sent.get(0);
+        assertEquals(0x11, sent.get(1)[33] & 0x3F);
+
+        // Both lost. Nothing happens before the timeout, then everything from the first unacknowledged byte.
+        long now = System.nanoTime() / 1_000_000L;
+        sent.clear();
+        flows.tick(now);
+        assertTrue(sent.isEmpty());
+        flows.tick(now + TcpDnsFlows.INITIAL_RTO_MS + 100);
+        assertEquals(2, sent.size());
+        assertArrayEquals(data, sent.get(0));
+        byte[] fin = sent.get(1);
+        assertEquals(0x11, fin[33] & 0x3F);
+        assertEquals(serverSeq + 102, seq(fin));
+        assertEquals(clientFin + 1, (int) ack(fin));
+
+        // The data arrives, the FIN does not: only the FIN goes again.
+        segment(0x10, clientFin + 1, serverSeq + 102, 2000, new byte[0]);
+        sent.clear();
+        flows.tick(now + 60_000);
+        assertEquals(1, sent.size());
+        assertEquals(0x11, last()[33] & 0x3F);
+        assertEquals(serverSeq + 102, seq(last()));
+
+        // Acknowledged: the connection is gone and the timer with it.
+        segment(0x10, clientFin + 1, serverSeq + 103, 2000, new byte[0]);
+        sent.clear();
+        flows.tick(now + 120_000);
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void clientThatNeverAnswersIsReset() {
+        segment(0x02, CLIENT_ISN, 0, 65535, new byte[0], true);
+        byte[] synAck = last();
+        sent.clear();
+        long now = System.nanoTime() / 1_000_000L;
+        // Each resend doubles the timeout; stepping a minute at a time passes every one.
+        for (int i = 1; i <= 10 && (sent.isEmpty() || (last()[33] & 0x04) == 0); i++) {
+            flows.tick(now + i * 60_000L);
+        }
+        assertEquals(7, sent.size());
+        for (int i = 0; i < 6; i++) assertArrayEquals(synAck, sent.get(i));
+        assertEquals(0x04, last()[33] & 0x04);
+    }
+
+    @Test
+    public void leavesOtherTrafficAlone() {
+        Packet p = pool.acquire();
+        byte[] syn = clientSegment(0x02, CLIENT_ISN, 0, 65535, new byte[0], true);
+        DnsWire.put16(syn, 22, 443);
+        System.arraycopy(syn, 0, p.data, 0, syn.length);
+        p.length = syn.length;
+        assertFalse(flows.handle(p));
+        p.data[9] = 17;
+        assertFalse(flows.handle(p));
+        assertTrue(sent.isEmpty());
+    }
+
+    /** Runs the handshake and returns the server's next sequence number. */
+    private long handshake() {
+        segment(0x02, CLIENT_ISN, 0, 65535, new byte[0], true);
+        byte[] synAck = last();
+        assertEquals(0x12, synAck[33] & 0x3F);
+        assertEquals(0, tcpChecksum(synAck));
+        assertEquals(CLIENT_ISN + 1, (int) ack(synAck));
+        long serverSeq = (seq(synAck) + 1) & 0xFFFFFFFFL;
+        segment(0x10, CLIENT_ISN + 1, serverSeq, 2000, new byte[0]);
+        return serverSeq;
+    }
+
+    private void segment(int flags, int seq, long ack, int window, byte[] payload) {
+        segment(flags, seq, ack, window, payload, false);
+    }
+
+    private void segment(int flags, int seq, long ack, int window, byte[] payload, boolean mssOption) {
+        byte[] s = clientSegment(flags, seq, ack, window, payload, mssOption);
+        Packet p = pool.acquire();
+        System.arraycopy(s, 0, p.data, 0, s.length);
+        p.length = s.length;
+        assertTrue(flows.handle(p));
+        p.release();
+    }
+
+    /** IPv4 from 10.0.0.2:40000 to 76.76.2.2:53. */
+    private static byte[] clientSegment(int flags, int seq, long ack, int window, byte[] payload, boolean mssOption) {
+        int tcpLen = (mssOption ? 24 : 20) + payload.length;
+        byte[] s = new byte[20 + tcpLen];
+        s[0] = 0x45;
+        DnsWire.put16(s, 2, s.length);
+        s[8] = 64;
+        s[9] = 6;
+        s[12] = 10; s[15] = 2;
+        s[16] = 76; s[17] = 76; s[18] = 2; s[19] = 2;
+        DnsWire.put16(s, 20, 40_000);
+        DnsWire.put16(s, 22, 53);
+        DnsWire.put32(s, 24, seq & 0xFFFFFFFFL);
+        DnsWire.put32(s, 28, ack);
+        s[32] = (byte) ((mssOption ? 6 : 5) << 4);
+        s[33] = (byte) flags;
+        DnsWire.put16(s, 34, window);
+        if (mssOption) {
+            s[40] = 2;
+            s[41] = 4;
+            DnsWire.put16(s, 42, MSS);
+        }
+        System.arraycopy(payload, 0, s, 20 + tcpLen - payload.length, payload.length);
+        return s;
+    }
+
+    private byte[] last() {
+        assertFalse(sent.isEmpty());
+        return sent.get(sent.size() - 1);
+    }
+
+    private static long seq(byte[] s) {
+        return DnsWire.u32(s, 24);
+    }
+
+    private static long ack(byte[] s) {
+        return DnsWire.u32(s, 28);
+    }
+
+    private static int payloadLen(byte[] s) {
+        return s.length - 20 - ((s[32] >> 4) & 0x0F) * 4;
+    }
+
+    /** Folded one's-complement sum over the pseudo-header and segment; 0 when the checksum is right. */
+    private static int tcpChecksum(byte[] p) {
+        int tcpLen = p.length - 20;
+        int sum = 6 + tcpLen;
+        for (int i = 12; i < 20; i += 2) sum += DnsWire.u16(p, i);
+        for (int i = 20; i < p.length; i += 2) {
+            sum += ((p[i] & 0xFF) << 8) | (i + 1 < p.length ? p[i + 1] & 0xFF : 0);
+        }
+        while ((sum >> 16) != 0) sum = (sum & 0xFFFF) + (sum >> 16);
+        return ~sum & 0xFFFF;
+    }
+
+    private static byte[] framed(byte[] dns) {
+        byte[] out = new byte[2 + dns.length];
+        DnsWire.put16(out, 0, dns.length);
+        System.arraycopy(dns, 0, out, 2, dns.length);
+        return out;
+    }
+
+    private static byte[] slice(byte[] b, int from, int to) {
+        byte[] out = new byte[to - from];
+        System.arraycopy(b, from, out, 0, out.length);
+        return out;
+    }
+
+    private static byte[] dnsQuery(int id, String name) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(id >> 8);
+        out.write(id);
+        out.write(0x01);
+        out.write(0);
+        out.write(0);
+        out.write(1); // QDCOUNT
+        for (int i = 0; i < 6; i++) out.write(0);
+        for (String label : name.split("\\.")) {
+            out.write(label.length());
+            for (char c : label.toCharArray()) out.write(c);
+        }
+        out.write(0);
+        out.write(0);
+        out.write(16); // TXT
+        out.write(0);
+        out.write(1);
+        return out.toByteArray();
+    }
+}
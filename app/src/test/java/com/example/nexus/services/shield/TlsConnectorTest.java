@@ -0,0 +1,174 @@
+package com.example.nexus.services.shield;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link TlsConnector} against {@link LoopbackDnsServer} behind TLS, with a
+ * throwaway self-signed certificate and the JDK's TLS stack standing in for
+ * Conscrypt: DoT and DoH (h2 by ALPN) answer through a real handshake, and a
+ * certificate for another name or a server without the protocol is refused
+ * before any query is sent.
+ */
+public class TlsConnectorTest {
+
+    private static final String HOST = "dns.test";
+
+    // Stands in for the platform verifier, which the JDK's default would be too strict to.
+    private static final HostnameVerifier BY_COMMON_NAME = (host, session) -> {
+        try {
+            X509Certificate peer = (X509Certificate) session.getPeerCertificates()[0];
+            return peer.getSubjectX500Principal().getName().equals("CN=" + host);
+        } catch (SSLPeerUnverifiedException e) {
+            return false;
+        }
+    };
+
+    private final SSLContext serverContext;
+    private final SSLContext clientContext;
+
+    public TlsConnectorTest() throws Exception {
+        KeyPair pair = KeyPairGenerator.getInstance("EC").generateKeyPair();
+        long now = System.currentTimeMillis();
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+                new X500Name("CN=" + HOST), BigInteger.valueOf(now),
+                new Date(now - 60_000), new Date(now + 3_600_000),
+                new X500Name("CN=" + HOST), pair.getPublic());
+        ContentSigner signer = new JcaContentSignerBuilder("SHA256withECDSA").build(pair.getPrivate());
+        X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(builder.build(signer));
+
+        char[] password = "test".toCharArray();
+        KeyStore keys = KeyStore.getInstance("PKCS12");
+        keys.load(null, null);
+        keys.setKeyEntry("server", pair.getPrivate(), password, new Certificate[]{certificate});
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keys, password);
+        serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+
+        KeyStore trusted = KeyStore.getInstance("PKCS12");
+        trusted.load(null, null);
+        trusted.setCertificateEntry("server", certificate);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trusted);
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, tmf.getTrustManagers(), null);
+    }
+
+    @Test
+    public void dotAnswersThroughTheHandshake() throws Exception {
+        try (LoopbackDnsServer server = new LoopbackDnsServer(LoopbackDnsServer.Mode.TLS_FRAMING, 0, serverContext, null)) {
+            TlsUpstream upstream = new TlsUpstream(connector(server, HOST, null), 5_000, null);
+            try {
+                assertAnswered(upstream);
+                assertEquals(1, upstream.connectCount());
+            } finally {
+                upstream.close();
+            }
+        }
+    }
+
+    @Test
+    public void dohNegotiatesH2() throws Exception {
+        try (LoopbackDnsServer server = new LoopbackDnsServer(LoopbackDnsServer.Mode.H2C, 0, serverContext, "h2")) {
+            Socket socket = connector(server, HOST, "h2").connect();
+            assertEquals("h2", ((SSLSocket) socket).getApplicationProtocol());
+            socket.close();
+
+            HttpsUpstream upstream = new HttpsUpstream(connector(server, HOST, "h2"), HOST, "/dns-query", true, 5_000, null);
+            try {
+                assertAnswered(upstream);
+            } finally {
+                upstream.close();
+            }
+        }
+    }
+
+    @Test
+    public void refusesACertificateForAnotherName() throws Exception {
+        try (LoopbackDnsServer server = new LoopbackDnsServer(LoopbackDnsServer.Mode.H2C, 0, serverContext, "h2")) {
+            assertRefused(connector(server, "dns.other.test", "h2"), "does not match");
+        }
+    }
+
+    @Test
+    public void refusesAServerWithoutTheProtocol() throws Exception {
+        // Offering nothing at all: the handshake completes, but without h2.
+        try (LoopbackDnsServer server = new LoopbackDnsServer(LoopbackDnsServer.Mode.H2C, 0, serverContext, null)) {
+            assertRefused(connector(server, HOST, "h2"), "did not negotiate");
+        }
+    }
+
+    private TlsConnector connector(LoopbackDnsServer server, String host, String alpn) {
+        return new TlsConnector(host, server.address(), alpn, socket -> true, clientContext, BY_COMMON_NAME);
+    }
+
+    private static void assertRefused(TlsConnector connector, String reason) {
+        try {
+            connector.connect().close();
+            fail("connected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(reason));
+        }
+    }
+
+    private static void assertAnswered(StreamUpstream upstream) throws InterruptedException {
+        byte[] query = new byte[]{
+                0, 42, 0x01, 0, 0, 1, 0, 0, 0, 0, 0, 0,
+                3, 'w', 'w', 'w', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 0,
+                0, 1, 0, 1
+        };
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger failures = new AtomicInteger();
+        byte[][] answer = new byte[1][];
+        DnsTransport.Callback callback = new DnsTransport.Callback() {
+            @Override
+            public void onResponse(byte[] buf, int offset, int length) {
+                answer[0] = Arrays.copyOfRange(buf, offset, offset + length);
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure() {
+                failures.incrementAndGet();
+                done.countDown();
+            }
+        };
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!upstream.send(query, 0, query.length, callback)) {
+            assertTrue("send never accepted", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        assertEquals(42, DnsWire.id(answer[0], 0));
+        assertEquals(1, DnsWire.u16(answer[0], 6));
+    }
+}
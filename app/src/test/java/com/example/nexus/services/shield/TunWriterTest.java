@@ -0,0 +1,155 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Many producers, one writer: every accepted packet is written exactly once,
+ * each producer's packets stay in order, a stalled TUN sheds load instead
+ * of blocking producers, and closing hands every queued packet back.
+ */
+public class TunWriterTest {
+
+    private static final int PRODUCERS = 8;
+    private static final int PER_PRODUCER = 20_000;
+
+    @Test
+    public void writesEveryPacketOncePreservingPerProducerOrder() throws Exception {
+        PacketPool pool = new PacketPool(PRODUCERS * 64, 16);
+        RecordingTun tun = new RecordingTun(PRODUCERS * PER_PRODUCER);
+        TunWriter writer = new TunWriter(tun, 256);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int t = 0; t < PRODUCERS; t++) {
+            int producer = t;
+            producers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < PER_PRODUCER; i++) {
+                    // The ring is smaller than the burst; a refused packet is released, so resend a fresh one.
+                    while (!writer.write(numbered(pool, producer, i))) Thread.yield();
+                }
+            });
+            producers[t].start();
+        }
+        start.countDown();
+        for (Thread t : producers) t.join();
+        assertTrue("writer fell behind", tun.done.await(10, TimeUnit.SECONDS));
+        writer.close();
+
+        assertEquals(0, tun.outOfOrder);
+        assertEquals(PRODUCERS * PER_PRODUCER, writer.writtenCount());
+        assertEquals(0, writer.depth());
+    }
+
+    @Test
+    public void dropsAndCountsWhenTheTunStalls() throws Exception {
+        PacketPool pool = new PacketPool(64, 16);
+        CountDownLatch release = new CountDownLatch(1);
+        OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        TunWriter writer = new TunWriter(stalled, 4);
+        int accepted = 0;
+        for (int i = 0; i < 20; i++) {
+            Packet p = pool.acquire();
+            p.length = 1;
+            if (writer.write(p)) accepted++;
+        }
+        // Four queued, plus at most one already taken by the blocked writer.
+        assertTrue("accepted " + accepted, accepted >= 4 && accepted <= 5);
+        assertEquals(20 - accepted, writer.droppedCount());
+        release.countDown();
+        writer.close();
+    }
+
+    @Test
+    public void closeReturnsQueuedPacketsToThePool() throws Exception {
+        PacketPool pool = new PacketPool(8, 16);
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        TunWriter writer = new TunWriter(stalled, 8);
+        for (int i = 0; i < 6; i++) {
+            Packet p = pool.acquire();
+            p.length = 1;
+            assertTrue(writer.write(p));
+        }
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        assertEquals(2, pool.available()); // one in the blocked write, five queued
+
+        // Unblock the write, as closing the TUN would, while close() waits for the writer.
+        new Thread(release::countDown).start();
+        writer.close();
+        assertEquals(8, pool.available());
+
+        Packet late = pool.acquire();
+        assertFalse(writer.write(late));
+        assertEquals(8, pool.available());
+        assertEquals(0, writer.depth());
+    }
+
+    private static Packet numbered(PacketPool pool, int producer, int seq) {
+        Packet p = pool.acquire();
+        p.data[0] = (byte) producer;
+        DnsWire.put32(p.data, 1, seq);
+        p.length = 5;
+        return p;
+    }
+
+    /** Checks that each producer's sequence numbers arrive in order. */
+    private static final class RecordingTun extends OutputStream {
+        final int[] next = new int[PRODUCERS];
+        final CountDownLatch done;
+        int outOfOrder;
+
+        RecordingTun(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void write(int b) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            int producer = b[off];
+            int seq = (int) DnsWire.u32(b, off + 1);
+            if (seq != next[producer]) outOfOrder++;
+            next[producer] = seq + 1;
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.nexus.services.shield;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Routing: only allowed resolvers are queried or probed, and an unhealthy one
+ * leaves the rotation. Timeouts and hedge delays follow measured RTTs, and a
+ * query the chosen resolver sits on is hedged to the next one. Then a resolver
+ * that truncates every UDP answer: once its TCP connection is up, the manager
+ * asks again over it and hands the client the whole answer. A UDP answer far
+ * larger than a typical EDNS buffer still comes through whole.
+ */
+public class UpstreamManagerTest {
+
+    private static final int ANSWER_LEN = 3000;
+    private static final int ANSWER_LEN_ECHO = 29;
+    private static final int LARGE_UDP_ANSWER_LEN = 9000;
+
+    @Test
+    public void onlyAllowedResolversAreQueriedOrProbed() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramSocket a = new DatagramSocket(0, loopback);
+             DatagramSocket b = new DatagramSocket(0, loopback)) {
+            AtomicInteger toA = new AtomicInteger();
+            AtomicInteger toB = new AtomicInteger();
+            daemon(() -> echo(a, toA));
+            daemon(() -> echo(b, toB));
+            UpstreamManager.Resolver ra = new UpstreamManager.Resolver("a", (InetSocketAddress) a.getLocalSocketAddress());
+            UpstreamManager.Resolver rb = new UpstreamManager.Resolver("b", (InetSocketAddress) b.getLocalSocketAddress());
+            UpstreamManager manager = new UpstreamManager(Arrays.asList(ra, rb), Collections.singleton("a"),
+                    1, 2_000, socket -> true, socket -> true);
+            try {
+                for (int i = 0; i < 10; i++) assertEquals(ANSWER_LEN_ECHO, ask(manager, i)[0]);
+                // b is faster on paper, but not allowed.
+                rb.rttMs = 1;
+                for (int i = 0; i < 10; i++) assertEquals(ANSWER_LEN_ECHO, ask(manager, 100 + i)[0]);
+                // Unhealthy, yet still the only resolver allowed.
+                for (int i = 0; i < 3; i++) ra.onTimeout();
+                assertSame(ra, manager.pick());
+                Thread.sleep(200);
+                assertEquals(0, toB.get());
+                assertTrue(toA.get() >= 20);
+
+                // Allowing b probes it on the next pass and routes around the unhealthy a.
+                manager.setAllowed(Arrays.asList("a", "b"));
+                long deadline = System.currentTimeMillis() + 5_000;
+                while (toB.get() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+                assertTrue(toB.get() > 0);
+                assertSame(rb, manager.pick());
+            } finally {
+                manager.close();
+            }
+        }
+    }
+
+    @Test
+    public void timeoutsAndHedgeDelaysFollowMeasuredRtts() {
+        UpstreamManager.Resolver r = new UpstreamManager.Resolver("r",
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 53));
+        r.maxTimeoutMs = 2_000;
+        r.applyTimeouts();
+        assertEquals(2_000, r.timeoutMs);
+
+        for (int i = 0; i < 48; i++) r.onAnswer(i < 46 ? 40_000 : 150_000, DnsWire.RCODE_NOERROR);
+        assertEquals(40, r.p50Ms);
+        assertEquals(150, r.p99Ms);
+        assertEquals(3 * 150 + 100, r.timeoutMs);
+        assertEquals(r.p95Ms, r.hedgeDelayMs);
+
+        // Very fast resolvers still get the floor; very slow ones the cap, and hedge at half of it.
+        for (int i = 0; i < 200; i++) r.onAnswer(1_000, DnsWire.RCODE_NOERROR);
+        assertEquals(300, r.timeoutMs);
+        assertEquals(10, r.hedgeDelayMs);
+        for (int i = 0; i < 200; i++) r.onAnswer(2_500_000, DnsWire.RCODE_NOERROR);
+        assertEquals(2_000, r.timeoutMs);
+        assertEquals(1_000, r.hedgeDelayMs);
+    }
+
+    @Test
+    public void queryTheBestResolverSitsOnIsHedged() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramSocket silent = new DatagramSocket(0, loopback);
+             DatagramSocket b = new DatagramSocket(0, loopback)) {
+            AtomicInteger toB = new AtomicInteger();
+            daemon(() -> echo(b, toB));
+            UpstreamManager.Resolver ra = new UpstreamManager.Resolver("a", (InetSocketAddress) silent.getLocalSocketAddress());
+            UpstreamManager.Resolver rb = new UpstreamManager.Resolver("b", (InetSocketAddress) b.getLocalSocketAddress());
+            UpstreamManager manager = new UpstreamManager(Arrays.asList(ra, rb), 1, 2_000,
+                    socket -> true, socket -> true);
+            try {
+                rb.rttMs = 1_000; // a looks far better until it stops answering
+                long start = System.nanoTime();
+                int[] got = ask(manager, 7);
+                long tookMs = (System.nanoTime() - start) / 1_000_000;
+                assertEquals(ANSWER_LEN_ECHO, got[0]);
+                assertEquals(7, got[1]);
+                assertTrue(manager.hedgesIssued() >= 1);
+                assertEquals(1, manager.hedgesWon());
+                // Well before a's 2 s timeout: about its hedge delay.
+                assertTrue("took " + tookMs + " ms", tookMs < 1_000);
+            } finally {
+                manager.close();
+            }
+        }
+    }
+
+    @Test
+    public void truncatedUdpAnswerIsAskedAgainOverTcp() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (ServerSocket tcp = new ServerSocket(0, 50, loopback);
+             DatagramSocket udp = new DatagramSocket(new InetSocketAddress(loopback, tcp.getLocalPort()))) {
+            AtomicInteger tcpConnections = new AtomicInteger();
+            daemon(() -> serveUdp(udp));
+            daemon(() -> {
+                try {
+                    while (true) {
+                        Socket s = tcp.accept();
+                        tcpConnections.incrementAndGet();
+                        daemon(() -> serveTcp(s));
+                    }
+                } catch (Exception ignored) {}
+            });
+
+            UpstreamManager manager = new UpstreamManager(
+                    Collections.singletonList(new UpstreamManager.Resolver("local",
+                            new InetSocketAddress(loopback, tcp.getLocalPort()))),
+                    1, 2_000, socket -> true, socket -> true);
+            try {
+                // The connection is opened on first need, so that one client gets the truncated answer.
+                int[] first = ask(manager, 0x0FFF);
+                assertEquals(29, first[0]);
+                assertTrue(first[2] != 0);
+                long deadline = System.currentTimeMillis() + 5_000;
+                while (tcpConnections.get() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+                Thread.sleep(100);
+
+                for (int i = 0; i < 20; i++) {
+                    int[] got = ask(manager, 0x1000 + i);
+                    assertEquals(ANSWER_LEN, got[0]);
+                    assertEquals(0x1000 + i, got[1]);
+                    assertEquals(0, got[2]);
+                }
+                assertTrue(manager.tcpRetries() >= 20);
+                assertEquals(1, tcpConnections.get());
+            } finally {
+                manager.close();
+            }
+        }
+    }
+
+    @Test
+    public void largeUdpAnswerArrivesWhole() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramSocket udp = new DatagramSocket(0, loopback)) {
+            daemon(() -> {
+                byte[] buf = new byte[512];
+                try {
+                    while (true) {
+                        DatagramPacket p = new DatagramPacket(buf, buf.length);
+                        udp.receive(p);
+                        byte[] answer = Arrays.copyOf(buf, LARGE_UDP_ANSWER_LEN);
+                        answer[2] |= (byte) 0x80;
+                        udp.send(new DatagramPacket(answer, answer.length, p.getSocketAddress()));
+                    }
+                } catch (Exception ignored) {}
+            });
+            UpstreamManager manager = new UpstreamManager(
+                    Collections.singletonList(new UpstreamManager.Resolver("local",
+                            (InetSocketAddress) udp.getLocalSocketAddress())),
+                    1, 2_000, socket -> true, socket -> true);
+            try {
+                // Past the 4096 bytes an EDNS client commonly asks for; nothing may be cut off silently.
+                int[] got = ask(manager, 0x2000);
+                assertEquals(LARGE_UDP_ANSWER_LEN, got[0]);
+                assertEquals(0x2000, got[1]);
+                assertEquals(0, got[2]);
+            } finally {
+                manager.close();
+            }
+        }
+    }
+
+    /** Sends one query and returns the answer's length, ID and TC bit. */
+    private static int[] ask(UpstreamManager manager, int id) throws InterruptedException {
+        byte[] query = query(id);
+        CountDownLatch done = new CountDownLatch(1);
+        int[] got = new int[3];
+        assertTrue(manager.send(query, 0, query.length, new DnsTransport.Callback() {
+            @Override
+            public void onResponse(byte[] buf, int offset, int length) {
+                got[0] = length;
+                got[1] = DnsWire.id(buf, offset);
+                got[2] = DnsWire.isTruncated(buf, offset) ? 1 : 0;
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure() {
+                done.countDown();
+            }
+        }));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return got;
+    }
+
+    /** Answers every datagram with itself, flagged as a response. */
+    private static void echo(DatagramSocket socket, AtomicInteger received) {
+        byte[] buf = new byte[512];
+        try {
+            while (true) {
+                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                socket.receive(p);
+                received.incrementAndGet();
+                buf[2] |= (byte) 0x80;
+                socket.send(new DatagramPacket(buf, p.getLength(), p.getSocketAddress()));
+            }
+        } catch (Exception ignored) {}
+    }
+
+    /** Header and question only, with TC set. */
+    private static void serveUdp(DatagramSocket udp) {
+        byte[] buf = new byte[512];
+        try {
+            while (true) {
+                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                udp.receive(p);
+                int len = DnsWire.questionEnd(buf, 0, p.getLength());
+                buf[2] |= (byte) 0x82; // QR, TC
+                udp.send(new DatagramPacket(buf, len, p.getSocketAddress()));
+            }
+        } catch (Exception ignored) {}
+    }
+
+    /** The question echoed, padded out to an answer that never fits a datagram. */
+    private static void serveTcp(Socket s) {
+        try (Socket socket = s) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            while (true) {
+                byte[] q = new byte[in.readUnsignedShort()];
+                in.readFully(q);
+                byte[] answer = Arrays.copyOf(q, ANSWER_LEN);
+                answer[2] |= (byte) 0x80;
+                out.writeShort(answer.length);
+                out.write(answer);
+                out.flush();
+            }
+        } catch (Exception ignored) {}
+    }
+
+    private static byte[] query(int id) {
+        byte[] q = {
+                0, 0, 0x01, 0, 0, 1, 0, 0, 0, 0, 0, 0,
+                3, 'b', 'i', 'g', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 0,
+                0, 16, 0, 1
+        };
+        DnsWire.put16(q, 0, id);
+        return q;
+    }
+
+    private static void daemon(Runnable r) {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        t.start();
+    }
+}